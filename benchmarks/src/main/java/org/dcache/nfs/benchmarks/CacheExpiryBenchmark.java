@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2018 Deutsches Elektronen-Synchroton,
+ * Member of the Helmholtz Association, (DESY), HAMBURG, GERMANY
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Library General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public
+ * License along with this program (see the file COPYING.LIB for more
+ * details); if not, write to the Free Software Foundation, Inc.,
+ * 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.dcache.nfs.benchmarks;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.dcache.utils.Cache;
+import org.dcache.utils.NopCacheEventListener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Measures {@link Cache#get} latency while a concurrent thread permanently
+ * runs expiry sweeps. Entries have a short idle time and expired entries are
+ * put back, thus every sweep has some work to do.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+public class CacheExpiryBenchmark {
+
+    @Param({"100000"})
+    private int size;
+
+    /**
+     * Entry idle time in milliseconds.
+     */
+    @Param({"50"})
+    private long idleTime;
+
+    private Cache<Integer, Integer> cache;
+
+    @Setup
+    public void setUp() {
+        cache = new Cache<>("benchmark", size, Long.MAX_VALUE, idleTime,
+                new NopCacheEventListener<Integer, Integer>() {
+                    @Override
+                    public void notifyExpired(Cache<Integer, Integer> cache, Integer v) {
+                        cache.put(v, v);
+                    }
+                },
+                // sweeps are triggered by the benchmark
+                1, TimeUnit.DAYS);
+
+        for (int i = 0; i < size; i++) {
+            cache.put(i, i);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        cache.shutdown();
+    }
+
+    @Benchmark
+    @Group("expiry")
+    @GroupThreads(3)
+    public Integer get() {
+        return cache.get(ThreadLocalRandom.current().nextInt(size));
+    }
+
+    @Benchmark
+    @Group("expiry")
+    @GroupThreads(1)
+    public void sweep() {
+        cache.run();
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2018 Deutsches Elektronen-Synchroton,
+ * Member of the Helmholtz Association, (DESY), HAMBURG, GERMANY
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Library General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public
+ * License along with this program (see the file COPYING.LIB for more
+ * details); if not, write to the Free Software Foundation, Inc.,
+ * 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.dcache.nfs.benchmarks;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.dcache.nfs.ChimeraNFSException;
+import org.dcache.nfs.v4.FileTracker;
+import org.dcache.nfs.v4.NFS4Client;
+import org.dcache.nfs.v4.NFSv4StateHandler;
+import org.dcache.nfs.v4.StateOwner;
+import org.dcache.nfs.v4.xdr.nfs4_prot;
+import org.dcache.nfs.v4.xdr.seqid4;
+import org.dcache.nfs.v4.xdr.stateid4;
+import org.dcache.nfs.v4.xdr.verifier4;
+import org.dcache.nfs.vfs.Inode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Measures throughput of OPEN followed by CLOSE of a random file, where each
+ * thread acts as a separate client. Opens of different files should not
+ * contend with each other.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Threads(16)
+@Fork(1)
+public class FileTrackerBenchmark {
+
+    @Param({"100000"})
+    private int files;
+
+    private NFSv4StateHandler stateHandler;
+    private FileTracker fileTracker;
+    private Inode[] inodes;
+
+    @State(Scope.Thread)
+    public static class ClientState {
+
+        private NFS4Client client;
+        private StateOwner owner;
+
+        @Setup
+        public void setUp(FileTrackerBenchmark benchmark) throws Exception {
+            InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+            byte[] ownerId = new byte[8];
+            ThreadLocalRandom.current().nextBytes(ownerId);
+            client = benchmark.stateHandler.createClient(address, address, 1, ownerId,
+                    new verifier4(new byte[nfs4_prot.NFS4_VERIFIER_SIZE]), null, false);
+            owner = client.getOrCreateOwner("owner".getBytes(StandardCharsets.UTF_8), new seqid4(0));
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        stateHandler = new NFSv4StateHandler();
+        fileTracker = new FileTracker();
+        inodes = new Inode[files];
+        for (int i = 0; i < files; i++) {
+            inodes[i] = Inode.forFile(ByteBuffer.allocate(Integer.BYTES).putInt(i).array());
+        }
+    }
+
+    @Benchmark
+    public stateid4 openClose(ClientState state) throws ChimeraNFSException {
+        Inode inode = inodes[ThreadLocalRandom.current().nextInt(files)];
+        stateid4 stateid = fileTracker.addOpen(state.client, state.owner, inode,
+                nfs4_prot.OPEN4_SHARE_ACCESS_READ, nfs4_prot.OPEN4_SHARE_DENY_NONE);
+        // releasing the state removes the open
+        state.client.releaseState(stateid);
+        return stateid;
+    }
+}
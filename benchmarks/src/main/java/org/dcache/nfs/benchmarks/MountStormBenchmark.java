@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2018 Deutsches Elektronen-Synchroton,
+ * Member of the Helmholtz Association, (DESY), HAMBURG, GERMANY
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Library General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public
+ * License along with this program (see the file COPYING.LIB for more
+ * details); if not, write to the Free Software Foundation, Inc.,
+ * 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.dcache.nfs.benchmarks;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+import org.dcache.nfs.status.DelayException;
+import org.dcache.nfs.v4.NFS4Client;
+import org.dcache.nfs.v4.NFSv4StateHandler;
+import org.dcache.nfs.v4.xdr.verifier4;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Simulates a mount storm: every client looks up its previous record by owner
+ * id, as EXCHANGE_ID and SETCLIENTID do, and registers a new one. The time to
+ * complete the storm should grow linearly with the number of clients.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class MountStormBenchmark {
+
+    @Param({"5000", "10000", "20000"})
+    private int clients;
+
+    private NFSv4StateHandler stateHandler;
+    private byte[][] owners;
+    private InetSocketAddress address;
+
+    @Setup
+    public void setUp() throws UnknownHostException {
+        address = new InetSocketAddress(InetAddress.getLoopbackAddress(), 2049);
+        owners = new byte[clients][];
+        for (int i = 0; i < clients; i++) {
+            owners[i] = ("compute-node-" + i + ".example.org").getBytes();
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void startServer() {
+        stateHandler = new NFSv4StateHandler(90, 0, clients);
+    }
+
+    @TearDown(Level.Iteration)
+    public void stopServer() throws Exception {
+        stateHandler.shutdown();
+    }
+
+    @Benchmark
+    public int mountStorm() throws DelayException {
+        int reclaimed = 0;
+        verifier4 verifier = verifier4.valueOf(System.currentTimeMillis());
+        for (byte[] owner : owners) {
+            NFS4Client client = stateHandler.clientByOwner(owner);
+            if (client != null) {
+                reclaimed++;
+            }
+            stateHandler.createClient(address, address, 1, owner, verifier, null, false);
+        }
+        return reclaimed;
+    }
+}
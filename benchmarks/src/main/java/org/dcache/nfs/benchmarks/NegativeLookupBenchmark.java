@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2018 Deutsches Elektronen-Synchroton,
+ * Member of the Helmholtz Association, (DESY), HAMBURG, GERMANY
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Library General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public
+ * License along with this program (see the file COPYING.LIB for more
+ * details); if not, write to the Free Software Foundation, Inc.,
+ * 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.dcache.nfs.benchmarks;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.dcache.nfs.status.NoEntException;
+import org.dcache.nfs.vfs.Inode;
+import org.dcache.nfs.vfs.VfsCache;
+import org.dcache.nfs.vfs.VfsCacheConfig;
+import org.dcache.nfs.vfs.VirtualFileSystem;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures throughput of lookups of missing files through {@link VfsCache}.
+ * The backend file system throws a {@link NoEntException} for every name,
+ * as a real file system does. The same benchmark with stack traces enabled
+ * shows the cost of recording them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+public class NegativeLookupBenchmark {
+
+    private VfsCache vfsCache;
+    private Inode parent;
+    private String[] names;
+
+    @Setup
+    public void setUp() {
+        VirtualFileSystem inner = (VirtualFileSystem) Proxy.newProxyInstance(
+                VirtualFileSystem.class.getClassLoader(),
+                new Class<?>[]{VirtualFileSystem.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("lookup")) {
+                        throw new NoEntException("no such file: " + args[1]);
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+
+        VfsCacheConfig cacheConfig = new VfsCacheConfig();
+        cacheConfig.setMaxEntries(1024);
+        cacheConfig.setLifeTime(1);
+        cacheConfig.setTimeUnit(TimeUnit.HOURS);
+        vfsCache = new VfsCache(inner, cacheConfig);
+
+        parent = Inode.forFile("parent".getBytes(StandardCharsets.UTF_8));
+        names = new String[1024];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = "missing-" + i;
+        }
+    }
+
+    @Benchmark
+    public Object lookup() {
+        return lookupMissing();
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = "-Dorg.dcache.nfs.stacktraces=true")
+    public Object lookupWithStackTraces() {
+        return lookupMissing();
+    }
+
+    private Object lookupMissing() {
+        try {
+            return vfsCache.lookup(parent, names[ThreadLocalRandom.current().nextInt(names.length)]);
+        } catch (IOException e) {
+            return e;
+        }
+    }
+}
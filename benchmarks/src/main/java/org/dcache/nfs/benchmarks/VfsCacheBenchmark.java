@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2018 Deutsches Elektronen-Synchroton,
+ * Member of the Helmholtz Association, (DESY), HAMBURG, GERMANY
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Library General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public
+ * License along with this program (see the file COPYING.LIB for more
+ * details); if not, write to the Free Software Foundation, Inc.,
+ * 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.dcache.nfs.benchmarks;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.dcache.nfs.vfs.Inode;
+import org.dcache.nfs.vfs.Stat;
+import org.dcache.nfs.vfs.VfsCache;
+import org.dcache.nfs.vfs.VfsCacheConfig;
+import org.dcache.nfs.vfs.VirtualFileSystem;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures {@link VfsCache#lookup} and {@link VfsCache#getattr} when the
+ * result is cached. Run with {@code -prof gc} to see the allocation rate per
+ * operation; hashing and comparing inodes should not allocate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+public class VfsCacheBenchmark {
+
+    @Param({"10000"})
+    private int files;
+
+    private VfsCache vfsCache;
+    private Inode parent;
+    private String[] names;
+    private Inode[] inodes;
+
+    @Setup
+    public void setUp() throws IOException {
+        // the backing file system is only called to populate the cache
+        VirtualFileSystem inner = (VirtualFileSystem) Proxy.newProxyInstance(
+                VirtualFileSystem.class.getClassLoader(),
+                new Class<?>[]{VirtualFileSystem.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "lookup":
+                            return Inode.forFile(((String) args[1]).getBytes(StandardCharsets.UTF_8));
+                        case "getattr":
+                            return new Stat();
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+
+        VfsCacheConfig cacheConfig = new VfsCacheConfig();
+        cacheConfig.setMaxEntries(files * 2);
+        cacheConfig.setLifeTime(1);
+        cacheConfig.setTimeUnit(TimeUnit.HOURS);
+        vfsCache = new VfsCache(inner, cacheConfig);
+
+        parent = Inode.forFile("parent".getBytes(StandardCharsets.UTF_8));
+        names = new String[files];
+        inodes = new Inode[files];
+        for (int i = 0; i < files; i++) {
+            names[i] = "file-" + i;
+            inodes[i] = vfsCache.lookup(parent, names[i]);
+            vfsCache.getattr(inodes[i]);
+        }
+    }
+
+    @Benchmark
+    public Inode lookup() throws IOException {
+        return vfsCache.lookup(parent, names[ThreadLocalRandom.current().nextInt(files)]);
+    }
+
+    @Benchmark
+    public Stat getattr() throws IOException {
+        return vfsCache.getattr(inodes[ThreadLocalRandom.current().nextInt(files)]);
+    }
+}
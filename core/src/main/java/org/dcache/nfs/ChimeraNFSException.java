@@ -22,6 +22,12 @@ package org.dcache.nfs;
 /**
  * A base class for all NFS exceptions. We do not allow direct instances to
  * enforce correct exceptions.
+ *
+ * NFS exceptions are used to return an error status to the client, which
+ * often is an expected outcome, like lookup of a missing file. Thus, they
+ * do not record the stack trace and the message is formatted only when
+ * requested. Stack traces can be enabled for debugging with
+ * {@code -Dorg.dcache.nfs.stacktraces=true}.
  */
 public abstract class ChimeraNFSException extends java.io.IOException {
 
@@ -29,7 +35,14 @@ public abstract class ChimeraNFSException extends java.io.IOException {
      *
      */
     private static final long serialVersionUID = 4319461664218810541L;
+
+    /**
+     * Whether stack traces should be recorded.
+     */
+    private static final boolean STACK_TRACES = Boolean.getBoolean("org.dcache.nfs.stacktraces");
+
     private final int nfsStatus;
+    private final String detail;
 
     /**
      * Constructs an {@code ChimeraNFSException} with the specified nfs
@@ -41,8 +54,9 @@ public abstract class ChimeraNFSException extends java.io.IOException {
      * @since 0.10
      */
     protected ChimeraNFSException(int status, String msg, Throwable cause) {
-        super(nfsstat.toString(status) + " : " + msg, cause);
+        super(null, cause);
         nfsStatus = status;
+        detail = msg;
     }
 
     /**
@@ -53,8 +67,8 @@ public abstract class ChimeraNFSException extends java.io.IOException {
      * @param msg detailed error message
      */
     protected ChimeraNFSException(int status, String msg) {
-        super(nfsstat.toString(status) +  " : " + msg);
         nfsStatus = status;
+        detail = msg;
     }
 
     /**
@@ -66,8 +80,9 @@ public abstract class ChimeraNFSException extends java.io.IOException {
      * @since 0.10
      */
     protected ChimeraNFSException(int status, Throwable cause) {
-        super(nfsstat.toString(status), cause);
+        super(null, cause);
         nfsStatus = status;
+        detail = null;
     }
 
     /**
@@ -77,8 +92,18 @@ public abstract class ChimeraNFSException extends java.io.IOException {
      * @param status nfsstat code
      */
     protected ChimeraNFSException(int status) {
-        super(nfsstat.toString(status));
         nfsStatus = status;
+        detail = null;
+    }
+
+    @Override
+    public String getMessage() {
+        return detail == null ? nfsstat.toString(nfsStatus) : nfsstat.toString(nfsStatus) + " : " + detail;
+    }
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return STACK_TRACES ? super.fillInStackTrace() : this;
     }
 
     /**
@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2018 Deutsches Elektronen-Synchroton,
+ * Member of the Helmholtz Association, (DESY), HAMBURG, GERMANY
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Library General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public
+ * License along with this program (see the file COPYING.LIB for more
+ * details); if not, write to the Free Software Foundation, Inc.,
+ * 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.dcache.nfs;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.primitives.Ints;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Export table compiled for client matching. IP address based rules are
+ * kept in a prefix trie per address family, thus only rules with a matching
+ * network prefix are evaluated. Host name based rules are evaluated one by
+ * one, with DNS results cached by {@link HostResolver}. The set of exports
+ * a client is allowed to access is cached per client address.
+ *
+ * @since 0.18
+ */
+class CompiledExportTable {
+
+    private static final int MAX_CLIENTS = 4096;
+
+    /**
+     * Exports in table order.
+     */
+    private final FsExport[] _exports;
+
+    private final PrefixTrie _ipv4 = new PrefixTrie();
+    private final PrefixTrie _ipv6 = new PrefixTrie();
+
+    /**
+     * Positions of rules, which match all clients.
+     */
+    private final int[] _matchAll;
+
+    /**
+     * Positions of host name based rules.
+     */
+    private final int[] _byName;
+
+    private final Cache<InetAddress, ClientExports> _clients;
+
+    CompiledExportTable(Collection<FsExport> exports) {
+        _exports = exports.toArray(new FsExport[exports.size()]);
+
+        List<Integer> matchAll = new ArrayList<>();
+        List<Integer> byName = new ArrayList<>();
+        for (int i = 0; i < _exports.length; i++) {
+            InetAddressMatcher matcher = _exports[i].getClientMatcher();
+            if (matcher instanceof InetAddressMatcher.IpAddressMatcher) {
+                InetAddressMatcher.IpAddressMatcher ipMatcher = (InetAddressMatcher.IpAddressMatcher) matcher;
+                byte[] net = ipMatcher.netBytes();
+                (net.length == 4 ? _ipv4 : _ipv6).add(net, ipMatcher.mask(), i);
+            } else if (matcher.getPattern().equals(".*")) {
+                // '*', matches any host name without resolving it
+                matchAll.add(i);
+            } else {
+                byName.add(i);
+            }
+        }
+        _matchAll = Ints.toArray(matchAll);
+        _byName = Ints.toArray(byName);
+
+        CacheBuilder<Object, Object> cacheBuilder = CacheBuilder.newBuilder()
+                .maximumSize(MAX_CLIENTS);
+        if (_byName.length > 0) {
+            // name based decisions must follow DNS changes
+            cacheBuilder.expireAfterWrite(HostResolver.TTL, TimeUnit.MILLISECONDS);
+        }
+        _clients = cacheBuilder.build();
+    }
+
+    /**
+     * Get all exports, which are allowed to a given client, in table order.
+     */
+    List<FsExport> exportsFor(InetAddress client) {
+        return clientExports(client).exports;
+    }
+
+    /**
+     * Get the first export with a given index, which is allowed to a given
+     * client.
+     *
+     * @return the export or null, if client has no access.
+     */
+    FsExport getExport(int index, InetAddress client) {
+        return clientExports(client).byIndex.get(index);
+    }
+
+    /**
+     * Evaluate the clients, which are cached by a previous version of the
+     * table, thus clients don't have to wait for it when the table is
+     * replaced.
+     *
+     * @param previous the previous version of the table.
+     */
+    void warmUp(CompiledExportTable previous) {
+        previous._clients.asMap().keySet().forEach(this::clientExports);
+    }
+
+    private ClientExports clientExports(InetAddress client) {
+        try {
+            return _clients.get(client, () -> match(client));
+        } catch (ExecutionException e) {
+            // match doesn't throw checked exceptions
+            throw new RuntimeException("Unhandled exception", e.getCause());
+        }
+    }
+
+    private ClientExports match(InetAddress client) {
+        BitSet candidates = new BitSet(_exports.length);
+        byte[] address = client.getAddress();
+        (address.length == 4 ? _ipv4 : _ipv6).collect(address, candidates);
+        for (int i : _byName) {
+            candidates.set(i);
+        }
+
+        ImmutableList.Builder<FsExport> allowed = ImmutableList.builder();
+        Map<Integer, FsExport> byIndex = new HashMap<>();
+        int matchAll = 0;
+        for (int i = candidates.nextSetBit(0); ; i = candidates.nextSetBit(i + 1)) {
+            // merge rules, which match all, keeping table order
+            int next = i < 0 ? Integer.MAX_VALUE : i;
+            while (matchAll < _matchAll.length && _matchAll[matchAll] < next) {
+                add(_exports[_matchAll[matchAll++]], allowed, byIndex);
+            }
+            if (i < 0) {
+                break;
+            }
+            // the trie selects by prefix only, let the rule decide
+            if (_exports[i].isAllowed(client)) {
+                add(_exports[i], allowed, byIndex);
+            }
+        }
+        return new ClientExports(allowed.build(), byIndex);
+    }
+
+    private static void add(FsExport export, ImmutableList.Builder<FsExport> allowed, Map<Integer, FsExport> byIndex) {
+        allowed.add(export);
+        byIndex.putIfAbsent(export.getIndex(), export);
+    }
+
+    private static class ClientExports {
+
+        private final List<FsExport> exports;
+        private final Map<Integer, FsExport> byIndex;
+
+        ClientExports(List<FsExport> exports, Map<Integer, FsExport> byIndex) {
+            this.exports = exports;
+            this.byIndex = byIndex;
+        }
+    }
+
+    /**
+     * Binary trie of network prefixes. Each node keeps positions of rules,
+     * which network prefix ends at that node.
+     */
+    private static class PrefixTrie {
+
+        private final Node root = new Node();
+
+        void add(byte[] net, int mask, int position) {
+            Node node = root;
+            for (int bit = 0; bit < mask; bit++) {
+                int b = bitAt(net, bit);
+                if (node.children[b] == null) {
+                    node.children[b] = new Node();
+                }
+                node = node.children[b];
+            }
+            node.rules = Arrays.copyOf(node.rules, node.rules.length + 1);
+            node.rules[node.rules.length - 1] = position;
+        }
+
+        void collect(byte[] address, BitSet rules) {
+            Node node = root;
+            int bit = 0;
+            while (node != null) {
+                for (int position : node.rules) {
+                    rules.set(position);
+                }
+                if (bit == address.length * 8) {
+                    break;
+                }
+                node = node.children[bitAt(address, bit++)];
+            }
+        }
+
+        private static int bitAt(byte[] bytes, int bit) {
+            return (bytes[bit / 8] >> (7 - bit % 8)) & 1;
+        }
+
+        private static class Node {
+
+            private final Node[] children = new Node[2];
+            private int[] rules = new int[0];
+        }
+    }
+}
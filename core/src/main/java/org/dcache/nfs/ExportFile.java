@@ -25,6 +25,7 @@ import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.ImmutableMultimap;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Ordering;
+import com.google.common.collect.Sets;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -34,11 +35,20 @@ import java.io.IOException;
 import java.io.Reader;
 import java.net.InetAddress;
 import java.net.URI;
+import java.nio.file.ClosedWatchServiceException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
@@ -47,6 +57,10 @@ import org.dcache.nfs.v4.xdr.layouttype4;
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Throwables.throwIfInstanceOf;
 import static com.google.common.base.Throwables.throwIfUnchecked;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
 
 /**
  * NFS server export table.
@@ -55,9 +69,31 @@ public class ExportFile {
 
     private static final Logger _log = LoggerFactory.getLogger(ExportFile.class);
 
-    private volatile ImmutableMultimap<Integer, FsExport> _exports;
+    /**
+     * Time in milliseconds to wait for more changes of export files before
+     * reloading them.
+     */
+    private static final long RELOAD_DELAY = 500;
+
+    /**
+     * Current version of export table. Replaced as a whole, thus readers
+     * never see a partially updated table.
+     */
+    private volatile Snapshot _snapshot;
     private final Callable<URI[]> _exportFileProvider;
 
+    /**
+     * Export file and directory with extra exports, which can be watched for
+     * changes. Null, if not applicable.
+     */
+    private final Path _file;
+    private final Path _dir;
+
+    private final List<ExportTableListener> _listeners = new CopyOnWriteArrayList<>();
+
+    private WatchService _watchService;
+    private Thread _watcher;
+
     /**
      * Construct server export table from a given file.
      *
@@ -79,6 +115,8 @@ public class ExportFile {
      * @throws IOException
      */
     public ExportFile(File file, File dir) throws IOException {
+        _file = file.toPath();
+        _dir = dir == null ? null : dir.toPath();
         _exportFileProvider = () -> {
             if (dir != null && dir.exists()) {
 
@@ -99,6 +137,8 @@ public class ExportFile {
     }
 
     public ExportFile(URI uri) throws IOException {
+        _file = "file".equals(uri.getScheme()) ? Paths.get(uri) : null;
+        _dir = null;
         _exportFileProvider = () -> {
             return new URI[]{uri};
         };
@@ -106,14 +146,17 @@ public class ExportFile {
     }
 
     public ExportFile(Reader reader) throws IOException {
+        _file = null;
+        _dir = null;
         _exportFileProvider = () -> {
             throw new IllegalStateException("exports uri not set, rescan impossible");
         };
-        _exports = parse(reader);
+        ImmutableMultimap<Integer, FsExport> exports = parse(reader);
+        _snapshot = new Snapshot(exports, new CompiledExportTable(exports.values()), 0);
     }
 
     public Stream<FsExport> getExports() {
-        return _exports.values().stream();
+        return _snapshot.exports.values().stream();
     }
 
     private static ImmutableMultimap<Integer, FsExport> parse(Reader reader) throws IOException {
@@ -305,25 +348,209 @@ public class ExportFile {
     }
 
     public FsExport getExport(int index, InetAddress client) {
-        for (FsExport export : _exports.get(index)) {
-            if (export.isAllowed(client)) {
-                return export;
-            }
-        }
-        return null;
+        return _snapshot.compiled.getExport(index, client);
     }
 
     public Stream<FsExport> exportsFor(InetAddress client) {
-        return _exports.values().stream().filter(e -> e.isAllowed(client));
+        return _snapshot.compiled.exportsFor(client).stream();
+    }
+
+    /**
+     * Register a listener, which is notified when export table changes.
+     *
+     * @param listener the listener to add.
+     * @since 0.18
+     */
+    public void addListener(ExportTableListener listener) {
+        _listeners.add(listener);
+    }
+
+    /**
+     * Unregister a previously registered listener.
+     *
+     * @param listener the listener to remove.
+     * @since 0.18
+     */
+    public void removeListener(ExportTableListener listener) {
+        _listeners.remove(listener);
     }
 
-    public final void rescan() throws IOException {
+    /**
+     * Get the generation of the export table. The generation changes every
+     * time a changed table is published.
+     *
+     * @return generation of the export table.
+     * @since 0.18
+     */
+    public long getGeneration() {
+        return _snapshot.generation;
+    }
+
+    /**
+     * Re-read export table. If the table has changed, a new version of it is
+     * published and registered listeners are notified. Client decisions
+     * cached by the previous version are re-evaluated before the new version
+     * is published.
+     *
+     * @throws IOException if export table can't be read.
+     */
+    public final synchronized void rescan() throws IOException {
+        ImmutableMultimap<Integer, FsExport> exports;
         try {
-            _exports = parse(_exportFileProvider.call());
+            exports = parse(_exportFileProvider.call());
         } catch (Exception e) {
             throwIfInstanceOf(e, IOException.class);
             throwIfUnchecked(e);
             throw new RuntimeException("Unhandled exception", e);
         }
+
+        Snapshot current = _snapshot;
+        if (current == null) {
+            _snapshot = new Snapshot(exports, new CompiledExportTable(exports.values()), 0);
+            return;
+        }
+
+        Set<Integer> changed = diff(current.exports, exports);
+        if (changed.isEmpty()) {
+            return;
+        }
+
+        CompiledExportTable compiled = new CompiledExportTable(exports.values());
+        compiled.warmUp(current.compiled);
+        _snapshot = new Snapshot(exports, compiled, current.generation + 1);
+
+        _log.info("Export table updated, {} export(s) changed", changed.size());
+        for (ExportTableListener listener : _listeners) {
+            try {
+                listener.exportsChanged(changed);
+            } catch (RuntimeException e) {
+                _log.error("Export table listener failed: {}", e.toString());
+            }
+        }
+    }
+
+    /**
+     * Start watching export file and directory with extra exports. Changed
+     * files are re-read and a new version of the export table is published on
+     * a background thread. Read errors are logged and the current export table
+     * is kept.
+     *
+     * @throws IOException if export files can't be watched.
+     * @throws IllegalStateException if export table is not read from local files.
+     * @since 0.18
+     */
+    public synchronized void startWatching() throws IOException {
+        if (_file == null) {
+            throw new IllegalStateException("export table is not read from a local file");
+        }
+        if (_watcher != null) {
+            return;
+        }
+
+        WatchService watchService = _file.getFileSystem().newWatchService();
+        Path fileDir = _file.toAbsolutePath().getParent();
+        fileDir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+        if (_dir != null && Files.isDirectory(_dir)) {
+            _dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+        }
+
+        _watchService = watchService;
+        _watcher = new Thread(() -> watch(watchService, fileDir), "export-file-watcher");
+        _watcher.setDaemon(true);
+        _watcher.start();
+    }
+
+    /**
+     * Stop watching export files.
+     *
+     * @since 0.18
+     */
+    public synchronized void stopWatching() {
+        if (_watcher == null) {
+            return;
+        }
+        try {
+            _watchService.close();
+        } catch (IOException e) {
+            _log.warn("Failed to close watch service: {}", e.getMessage());
+        }
+        _watcher.interrupt();
+        _watcher = null;
+        _watchService = null;
+    }
+
+    private void watch(WatchService watchService, Path fileDir) {
+        try {
+            while (true) {
+                if (!isExportsChange(watchService.take(), fileDir)) {
+                    continue;
+                }
+                // wait for editors, which write a file in several steps
+                WatchKey key;
+                while ((key = watchService.poll(RELOAD_DELAY, TimeUnit.MILLISECONDS)) != null) {
+                    isExportsChange(key, fileDir);
+                }
+                try {
+                    rescan();
+                } catch (IOException | RuntimeException e) {
+                    _log.error("Failed to reload export table: {}", e.toString());
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // stopped
+        }
+    }
+
+    /**
+     * Check whether any event of a given key is about an export file and
+     * re-arm the key.
+     */
+    private boolean isExportsChange(WatchKey key, Path fileDir) {
+        Path dir = (Path) key.watchable();
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                changed = true;
+                continue;
+            }
+            Path name = (Path) event.context();
+            if (dir.equals(fileDir)) {
+                changed |= name.equals(_file.getFileName());
+            } else {
+                String n = name.toString();
+                changed |= n.endsWith(".exports") && n.charAt(0) != '.';
+            }
+        }
+        key.reset();
+        return changed;
+    }
+
+    /**
+     * Get indexes of exports, which differ between two export tables.
+     */
+    private static Set<Integer> diff(ImmutableMultimap<Integer, FsExport> a, ImmutableMultimap<Integer, FsExport> b) {
+        Set<Integer> changed = new HashSet<>();
+        for (Integer index : Sets.union(a.keySet(), b.keySet())) {
+            if (!a.get(index).asList().equals(b.get(index).asList())) {
+                changed.add(index);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * A version of export table.
+     */
+    private static class Snapshot {
+
+        private final ImmutableMultimap<Integer, FsExport> exports;
+        private final CompiledExportTable compiled;
+        private final long generation;
+
+        Snapshot(ImmutableMultimap<Integer, FsExport> exports, CompiledExportTable compiled, long generation) {
+            this.exports = exports;
+            this.compiled = compiled;
+            this.generation = generation;
+        }
     }
 }
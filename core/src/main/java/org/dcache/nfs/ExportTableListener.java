@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2018 Deutsches Elektronen-Synchroton,
+ * Member of the Helmholtz Association, (DESY), HAMBURG, GERMANY
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Library General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public
+ * License along with this program (see the file COPYING.LIB for more
+ * details); if not, write to the Free Software Foundation, Inc.,
+ * 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.dcache.nfs;
+
+import java.util.Set;
+
+/**
+ * A listener, which is notified when a new version of export table is
+ * published by {@link ExportFile}.
+ *
+ * @since 0.18
+ */
+@FunctionalInterface
+public interface ExportTableListener {
+
+    /**
+     * Called after a new version of export table is published.
+     *
+     * @param changed indexes of exports, which were added, removed or
+     * modified.
+     */
+    void exportsChanged(Set<Integer> changed);
+}
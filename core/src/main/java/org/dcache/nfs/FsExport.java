@@ -28,6 +28,7 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
 import java.util.stream.Collectors;
 
 import org.dcache.nfs.v4.xdr.layouttype4;
@@ -187,6 +188,35 @@ public class FsExport {
 
     }
 
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        }
+        if (!(o instanceof FsExport)) {
+            return false;
+        }
+        FsExport other = (FsExport) o;
+        return _path.equals(other._path)
+                && _clientMatcher.getPattern().equals(other._clientMatcher.getPattern())
+                && _isTrusted == other._isTrusted
+                && _rw == other._rw
+                && _withAcl == other._withAcl
+                && _sec == other._sec
+                && _allSquash == other._allSquash
+                && _anonUid == other._anonUid
+                && _anonGid == other._anonGid
+                && _withDcap == other._withDcap
+                && _allRoot == other._allRoot
+                && _withPnfs == other._withPnfs
+                && _layoutTypes.equals(other._layoutTypes);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(_path, _clientMatcher.getPattern(), _isTrusted, _rw, _sec, _allRoot);
+    }
+
     public boolean isAllowed(InetAddress client) {
         return _clientMatcher.match(client);
     }
@@ -199,6 +229,10 @@ public class FsExport {
         return _clientMatcher.getPattern();
     }
 
+    InetAddressMatcher getClientMatcher() {
+        return _clientMatcher;
+    }
+
     public IO ioMode() {
         return _rw;
     }
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2018 Deutsches Elektronen-Synchroton,
+ * Member of the Helmholtz Association, (DESY), HAMBURG, GERMANY
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Library General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public
+ * License along with this program (see the file COPYING.LIB for more
+ * details); if not, write to the Free Software Foundation, Inc.,
+ * 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.dcache.nfs;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Throwables.throwIfInstanceOf;
+import static com.google.common.base.Throwables.throwIfUnchecked;
+
+/**
+ * Caching DNS resolver used by host name based export rules. Results are
+ * kept for {@link #TTL} milliseconds. An entry, which is used after half of
+ * its life time, is refreshed in the background, while the old result is
+ * still returned. Thus, DNS queries are not on the request path for hosts,
+ * which are accessing the server regularly.
+ *
+ * @since 0.18
+ */
+final class HostResolver {
+
+    /**
+     * Time in milliseconds a DNS result is used.
+     */
+    static final long TTL = TimeUnit.MINUTES.toMillis(1);
+
+    private static final int MAX_ENTRIES = 4096;
+
+    private static final Executor REFRESHER = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder()
+                    .setNameFormat("dns-refresh-%d")
+                    .setDaemon(true)
+                    .build());
+
+    private static final LoadingCache<String, List<InetAddress>> ADDRESSES = CacheBuilder.newBuilder()
+            .maximumSize(MAX_ENTRIES)
+            .refreshAfterWrite(TTL / 2, TimeUnit.MILLISECONDS)
+            .expireAfterWrite(TTL, TimeUnit.MILLISECONDS)
+            .build(CacheLoader.asyncReloading(new CacheLoader<String, List<InetAddress>>() {
+                @Override
+                public List<InetAddress> load(String host) throws UnknownHostException {
+                    return ImmutableList.copyOf(Arrays.asList(InetAddress.getAllByName(host)));
+                }
+            }, REFRESHER));
+
+    private static final LoadingCache<InetAddress, String> NAMES = CacheBuilder.newBuilder()
+            .maximumSize(MAX_ENTRIES)
+            .refreshAfterWrite(TTL / 2, TimeUnit.MILLISECONDS)
+            .expireAfterWrite(TTL, TimeUnit.MILLISECONDS)
+            .build(CacheLoader.asyncReloading(new CacheLoader<InetAddress, String>() {
+                @Override
+                public String load(InetAddress ip) {
+                    return ip.getHostName();
+                }
+            }, REFRESHER));
+
+    private HostResolver() {}
+
+    /**
+     * Get all addresses of a given host.
+     *
+     * @param host the name of the host.
+     * @return addresses of the host.
+     * @throws UnknownHostException if the host can't be resolved.
+     */
+    static List<InetAddress> addressesOf(String host) throws UnknownHostException {
+        try {
+            return ADDRESSES.get(host);
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            Throwable t = e.getCause();
+            throwIfInstanceOf(t, UnknownHostException.class);
+            throwIfUnchecked(t);
+            throw new RuntimeException("Unhandled exception", t);
+        }
+    }
+
+    /**
+     * Get the host name of a given address. If the name can't be resolved,
+     * the textual representation of the address is returned.
+     *
+     * @param ip the address.
+     * @return host name.
+     */
+    static String nameOf(InetAddress ip) {
+        return NAMES.getUnchecked(ip);
+    }
+}
@@ -112,6 +112,21 @@ public abstract class InetAddressMatcher implements Predicate<InetAddress> {
             }
         }
 
+        /**
+         * Get the network address.
+         */
+        byte[] netBytes() {
+            return netBytes;
+        }
+
+        /**
+         * Get the number of leading bits of network address, which have to
+         * match.
+         */
+        int mask() {
+            return mask;
+        }
+
         @Override
         public boolean apply(InetAddress ip) {
 
@@ -171,7 +186,7 @@ public abstract class InetAddressMatcher implements Predicate<InetAddress> {
 
         @Override
         public boolean apply(InetAddress ip) {
-            return regexpPattern.matcher(ip.getHostName()).matches();
+            return regexpPattern.matcher(HostResolver.nameOf(ip)).matches();
         }
     }
 
@@ -184,9 +199,8 @@ public abstract class InetAddressMatcher implements Predicate<InetAddress> {
         @Override
         public boolean apply(InetAddress ip) {
             try {
-                // jvm caches DNS results. We are fine to query on each request
-                InetAddress[] addrs = InetAddress.getAllByName(getPattern());
-                for(InetAddress addr: addrs) {
+                // DNS results are cached and refreshed in the background
+                for(InetAddress addr: HostResolver.addressesOf(getPattern())) {
                     if (addr.equals(ip)) {
                         return true;
                     }
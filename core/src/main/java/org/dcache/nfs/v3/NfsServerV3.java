@@ -126,7 +126,9 @@ import org.dcache.nfs.v3.xdr.FSINFO3resfail;
 import org.dcache.nfs.v3.xdr.ACCESS3res;
 import org.dcache.nfs.v3.xdr.COMMIT3resok;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Iterator;
+import java.util.concurrent.Executor;
 
 import org.dcache.nfs.v3.xdr.COMMIT3resfail;
 import org.dcache.nfs.v3.xdr.FSSTAT3resfail;
@@ -147,6 +149,7 @@ import static org.dcache.nfs.v3.HimeraNfsUtils.defaultPostOpAttr;
 import static org.dcache.nfs.v3.HimeraNfsUtils.defaultWccData;
 import static org.dcache.nfs.v3.NameUtils.checkFilename;
 
+import org.dcache.nfs.v4.FileTracker;
 import org.dcache.nfs.vfs.FsStat;
 import org.dcache.nfs.vfs.Inode;
 import org.dcache.nfs.vfs.PseudoFs;
@@ -166,11 +169,101 @@ public class NfsServerV3 extends nfs3_protServerStub {
     private final VirtualFileSystem _vfs;
     private final ExportFile _exports;
 
+    /**
+     * Executor used to process requests or null, if requests are processed
+     * by the RPC thread.
+     */
+    private final Executor _requestExecutor;
+
+    /**
+     * Tracker of NFSv4 opens and delegations on the same file system or null,
+     * if the file system is not exported with NFSv4.
+     */
+    private final FileTracker _fileTracker;
+
     private final writeverf3 writeVerifier = generateInstanceWriteVerifier();
 
     public NfsServerV3(ExportFile exports, VirtualFileSystem fs) throws OncRpcException, IOException {
+        this(exports, fs, null);
+    }
+
+    /**
+     * Create NFSv3 server, which processes requests with the given executor
+     * instead of the RPC thread. The executor is responsible to limit the number
+     * of requests in flight.
+     *
+     * @param exports export table.
+     * @param fs file system to serve.
+     * @param requestExecutor executor to process requests or null, to use RPC thread.
+     * @see org.dcache.utils.BoundedExecutor
+     * @see org.dcache.utils.VirtualThreads
+     * @since 0.18
+     */
+    public NfsServerV3(ExportFile exports, VirtualFileSystem fs, Executor requestExecutor) {
+        this(exports, fs, requestExecutor, null);
+    }
+
+    /**
+     * Create NFSv3 server, which recalls delegations granted to NFSv4 clients
+     * on the same file system when NFSv3 requests conflict with them.
+     *
+     * @param exports export table.
+     * @param fs file system to serve.
+     * @param requestExecutor executor to process requests or null, to use RPC thread.
+     * @param fileTracker tracker of NFSv4 opens and delegations or null.
+     * @see org.dcache.nfs.v4.NFSv4StateHandler#getFileTracker()
+     * @since 0.18
+     */
+    public NfsServerV3(ExportFile exports, VirtualFileSystem fs, Executor requestExecutor, FileTracker fileTracker) {
         _vfs = fs;
         _exports = exports;
+        _requestExecutor = requestExecutor;
+        _fileTracker = fileTracker;
+    }
+
+    /**
+     * Recall delegations granted to NFSv4 clients, which conflict with
+     * the request.
+     *
+     * @param inode of the accessed file.
+     * @param forWrite true, if file is modified.
+     * @throws DelayException if delegations have to be returned first.
+     */
+    private void recallDelegations(Inode inode, boolean forWrite) throws DelayException {
+        if (_fileTracker != null) {
+            _fileTracker.recallDelegations(null, inode, forWrite);
+        }
+    }
+
+    @Override
+    public void dispatchOncRpcCall(RpcCall call) throws OncRpcException, IOException {
+        if (_requestExecutor == null) {
+            super.dispatchOncRpcCall(call);
+            return;
+        }
+
+        _requestExecutor.execute(() -> {
+            try {
+                super.dispatchOncRpcCall(call);
+            } catch (IOException e) {
+                _log.warn("Failed to process request: {}", e.getMessage());
+                call.failRpcSystem();
+            }
+        });
+    }
+
+    /**
+     * Get write verifier, which reflects file system's write epoch.
+     */
+    private writeverf3 writeVerifier(VirtualFileSystem fs) {
+        long epoch = fs.getWriteEpoch();
+        if (epoch == 0) {
+            return writeVerifier;
+        }
+        writeverf3 verf = new writeverf3();
+        verf.value = new byte[nfs3_prot.NFS3_WRITEVERFSIZE];
+        Bytes.putLong(verf.value, 0, Bytes.getLong(writeVerifier.value, 0) ^ epoch);
+        return verf;
     }
 
     private static writeverf3 generateInstanceWriteVerifier() {
@@ -242,7 +335,7 @@ public class NfsServerV3 extends nfs3_protServerStub {
             HimeraNfsUtils.fill_attributes(fs.getattr(inode), res.resok.file_wcc.after.attributes);
             res.resok.file_wcc.before = new pre_op_attr();
             res.resok.file_wcc.before.attributes_follow = false;
-            res.resok.verf = writeVerifier;
+            res.resok.verf = writeVerifier(fs);
 
         } catch (ChimeraNFSException hne) {
             res.status = hne.getStatus();
@@ -464,8 +557,14 @@ public class NfsServerV3 extends nfs3_protServerStub {
             res.status = nfsstat.NFS_OK;
             res.resok = new GETATTR3resok();
 
+            Stat stat = fs.getattr(inode);
+            if (_fileTracker != null && stat.type() == Stat.Type.REGULAR) {
+                // the holder of a write delegation may have modified the file
+                stat = _fileTracker.getDelegatedAttributes(null, inode, stat);
+            }
+
             res.resok.obj_attributes = new fattr3();
-            HimeraNfsUtils.fill_attributes(fs.getattr(inode), res.resok.obj_attributes);
+            HimeraNfsUtils.fill_attributes(stat, res.resok.obj_attributes);
 
         } catch (ChimeraNFSException e) {
             res.status = e.getStatus();
@@ -942,26 +1041,16 @@ public class NfsServerV3 extends nfs3_protServerStub {
             int count = arg1.count.value.value;
 
             Stat inodeStat = fs.getattr(inode);
+            recallDelegations(inode, false);
 
             res.resok = new READ3resok();
-            res.resok.data = new byte[count];
+            res.resok.data = fs.read(inode, offset, count);
 
             res.resok.count = new count3();
             res.resok.count.value = new uint32();
+            res.resok.count.value.value = res.resok.data.remaining();
 
-            byte[] b = new byte[count];
-            res.resok.count.value.value = fs.read(inode, b, offset, count);
-            if (res.resok.count.value.value < 0) {
-                throw new NfsIoException("IO not allowed");
-            }
-            if (res.resok.count.value.value == count) {
-                res.resok.data = b;
-            } else {
-                res.resok.data = new byte[res.resok.count.value.value];
-                System.arraycopy(b, 0, res.resok.data, 0, res.resok.count.value.value);
-            }
-
-            if (res.resok.count.value.value + offset == inodeStat.getSize()) {
+            if (res.resok.count.value.value + offset >= inodeStat.getSize()) {
                 res.resok.eof = true;
             }
 
@@ -1000,6 +1089,9 @@ public class NfsServerV3 extends nfs3_protServerStub {
 
             Stat parentStat = fs.getattr(parent);
 
+            if (_fileTracker != null && _fileTracker.hasDelegations()) {
+                recallDelegations(fs.lookup(parent, name), true);
+            }
             fs.remove(parent, name);
 
             res.resok = new REMOVE3resok();
@@ -1055,6 +1147,14 @@ public class NfsServerV3 extends nfs3_protServerStub {
             String file2 = arg1.to.name.value;
             checkFilename(file2);
 
+            if (_fileTracker != null && _fileTracker.hasDelegations()) {
+                recallDelegations(fs.lookup(from, file1), true);
+                try {
+                    recallDelegations(fs.lookup(to, file2), true);
+                } catch (NoEntException e) {
+                    // nothing to replace
+                }
+            }
             fs.move(from, file1, to, file2);
 
             res.resok = new RENAME3resok();
@@ -1158,6 +1258,9 @@ public class NfsServerV3 extends nfs3_protServerStub {
             Inode inode = new Inode(arg1.object.data);
             sattr3 newAttr = arg1.new_attributes;
 
+            if (newAttr.size.set_it) {
+                recallDelegations(inode, true);
+            }
             HimeraNfsUtils.set_sattr(inode, fs, newAttr);
             res.resok = new SETATTR3resok();
             res.resok.obj_wcc = new wcc_data();
@@ -1264,8 +1367,14 @@ public class NfsServerV3 extends nfs3_protServerStub {
             res.resok = new WRITE3resok();
             res.status = nfsstat.NFS_OK;
 
+            recallDelegations(inode, true);
+
             VirtualFileSystem.StabilityLevel requiredStabilityLevel = VirtualFileSystem.StabilityLevel.fromStableHow(arg1.stable);
-            VirtualFileSystem.WriteResult ret = fs.write(inode, arg1.data, offset, count, requiredStabilityLevel);
+            ByteBuffer data = arg1.data;
+            if (count < data.remaining()) {
+                data.limit(data.position() + count);
+            }
+            VirtualFileSystem.WriteResult ret = fs.write(inode, data, offset, requiredStabilityLevel);
             if (ret.getBytesWritten() < 0) {
                 throw new NfsIoException("IO not allowed");
             }
@@ -1280,7 +1389,7 @@ public class NfsServerV3 extends nfs3_protServerStub {
             res.resok.file_wcc.before = new pre_op_attr();
             res.resok.file_wcc.before.attributes_follow = false;
             res.resok.committed = ret.getStabilityLevel().toStableHow();
-            res.resok.verf = writeVerifier;
+            res.resok.verf = writeVerifier(fs);
         } catch (ChimeraNFSException hne) {
             res.status = hne.getStatus();
             res.resfail = new WRITE3resfail();
@@ -34,17 +34,30 @@ import org.dcache.nfs.v4.xdr.layoutiomode4;
 import org.dcache.nfs.v4.xdr.uint32_t;
 import org.dcache.nfs.v4.xdr.layouttype4;
 import org.dcache.nfs.v4.xdr.CB_LAYOUTRECALL4args;
+import org.dcache.nfs.v4.xdr.CB_RECALL4args;
+import org.dcache.nfs.v4.xdr.CB_GETATTR4args;
+import org.dcache.nfs.v4.xdr.CB_NOTIFY_LOCK4args;
 import org.dcache.nfs.v4.xdr.CB_COMPOUND4args;
 import org.dcache.nfs.v4.xdr.sessionid4;
 import org.dcache.nfs.v4.xdr.layoutrecall4;
 import org.dcache.nfs.v4.xdr.referring_call_list4;
 import org.dcache.nfs.v4.xdr.nfs_cb_argop4;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import org.dcache.nfs.ChimeraNFSException;
 import org.dcache.nfs.nfsstat;
+import org.dcache.nfs.v4.xdr.bitmap4;
+import org.dcache.nfs.v4.xdr.fattr4;
 import org.dcache.nfs.v4.xdr.layoutrecall_file4;
 import org.dcache.nfs.v4.xdr.length4;
+import org.dcache.nfs.v4.xdr.lock_owner4;
 import org.dcache.nfs.v4.xdr.nfs_fh4;
 import org.dcache.nfs.v4.xdr.offset4;
 import org.dcache.nfs.v4.xdr.stateid4;
@@ -54,12 +67,18 @@ import org.dcache.oncrpc4j.rpc.RpcAuthType;
 import org.dcache.oncrpc4j.rpc.RpcAuthTypeNone;
 import org.dcache.oncrpc4j.rpc.RpcAuthTypeUnix;
 import org.dcache.oncrpc4j.rpc.RpcCall;
+import org.dcache.oncrpc4j.rpc.RpcReply;
 import org.dcache.oncrpc4j.rpc.RpcTransport;
 import org.dcache.oncrpc4j.xdr.XdrAble;
 import org.dcache.oncrpc4j.xdr.XdrVoid;
 
 /**
  * A class to provide callbacks to the client.
+ *
+ * The call-backs are sent asynchronously. Each CB_COMPOUND occupies one slot
+ * of the back channel slot table negotiated with the client. Up to number of
+ * slots requests are sent in parallel, the others are queued until a slot
+ * is released.
  */
 public class ClientCB {
 
@@ -68,12 +87,13 @@ public class ClientCB {
      * cross-vendor agreed to have '1'.
      */
     private static final int CB_VERSION = 1;
-    private final sessionid4 _session;
 
     /**
-     * authentication flavor to be used for call-backs
+     * default time in milliseconds to wait for the client's reply.
      */
-    private final RpcAuth _auth;
+    private static final long CB_TIMEOUT = TimeUnit.SECONDS.toMillis(NFSv4Defaults.NFS4_LEASE_TIME);
+
+    private final sessionid4 _session;
 
     /**
      * highest slot id to use
@@ -81,15 +101,38 @@ public class ClientCB {
     private final int _highestSlotId;
 
     /**
-     * requests sequence id
+     * last used sequence id of each slot
+     */
+    private final int[] _slotSequences;
+
+    /**
+     * slots, where the last request has timed out. The sequence id of such slot
+     * is advanced, as client may have processed the request. If it has not,
+     * client will reply with NFS4ERR_SEQ_MISORDERED to the next request on the
+     * slot and the sequence id is stepped back.
+     */
+    private final boolean[] _unconfirmedSlots;
+
+    /**
+     * slots which are not in use
      */
-    private int _sequenceid = 0;
+    private final Deque<Integer> _freeSlots;
+
+    /**
+     * requests waiting for a free slot
+     */
+    private final Deque<PendingCall> _pendingCalls = new ArrayDeque<>();
 
     /**
      * rpc call to use to communicate with client
      */
     private final RpcCall _rpc;
 
+    /**
+     * time in milliseconds to wait for the client's reply.
+     */
+    private final long _timeout;
+
     /**
      * @param transport for call-back communication
      * @param session associated with the client
@@ -99,25 +142,42 @@ public class ClientCB {
      */
     ClientCB(RpcTransport transport, int program, sessionid4 session, int highestSlotId,
             callback_sec_parms4[] sec_parms) {
+        this(new RpcCall(program, CB_VERSION, authOf(sec_parms), transport), session, highestSlotId, CB_TIMEOUT);
+    }
+
+    /**
+     * @param rpc rpc call to use to communicate with client
+     * @param session associated with the client
+     * @param highestSlotId highest slot id to use
+     * @param timeout time in milliseconds to wait for the client's reply
+     */
+    ClientCB(RpcCall rpc, sessionid4 session, int highestSlotId, long timeout) {
         _session = session;
+        _slotSequences = new int[Math.max(1, highestSlotId)];
+        _unconfirmedSlots = new boolean[_slotSequences.length];
+        _highestSlotId = _slotSequences.length - 1;
+        _rpc = rpc;
+        _timeout = timeout;
+        _freeSlots = new ArrayDeque<>(_slotSequences.length);
+        for (int i = 0; i < _slotSequences.length; i++) {
+            _freeSlots.add(i);
+        }
+    }
 
+    private static RpcAuth authOf(callback_sec_parms4[] sec_parms) {
         switch (sec_parms[0].cb_secflavor) {
             case RpcAuthType.NONE:
-                _auth = new RpcAuthTypeNone();
-                break;
+                return new RpcAuthTypeNone();
             case RpcAuthType.UNIX:
-                _auth = new RpcAuthTypeUnix(
+                return new RpcAuthTypeUnix(
                         sec_parms[0].cbsp_sys_cred.uid,
                         sec_parms[0].cbsp_sys_cred.gid,
                         sec_parms[0].cbsp_sys_cred.gids,
                         sec_parms[0].cbsp_sys_cred.stamp,
                         sec_parms[0].cbsp_sys_cred.machinename);
-                break;
             default:
                 throw new IllegalArgumentException("Unsuppotred security flavor");
         }
-        _highestSlotId = highestSlotId -1;
-        _rpc = new RpcCall(program, CB_VERSION, _auth, transport);
     }
 
     @Override
@@ -129,14 +189,21 @@ public class ClientCB {
         _rpc.call(nfs4_prot.CB_NULL_1, XdrVoid.XDR_VOID, XdrVoid.XDR_VOID, 1, TimeUnit.SECONDS);
     }
 
-    private XdrAble generateCompound(String tag, nfs_cb_argop4...cbOperations) {
+    /**
+     * Get number of requests waiting for a free slot.
+     * @return number of queued requests.
+     */
+    public synchronized int getQueuedCalls() {
+        return _pendingCalls.size();
+    }
+
+    private XdrAble generateCompound(int slot, int sequence, String tag, nfs_cb_argop4...cbOperations) {
 
-        _sequenceid++;
         CB_SEQUENCE4args cbSequence = new CB_SEQUENCE4args();
         cbSequence.csa_cachethis = false;
         cbSequence.csa_highest_slotid = new slotid4(_highestSlotId);
-        cbSequence.csa_sequenceid = new sequenceid4(_sequenceid);
-        cbSequence.csa_slotid = new slotid4(0);
+        cbSequence.csa_sequenceid = new sequenceid4(sequence);
+        cbSequence.csa_slotid = new slotid4(slot);
         cbSequence.csa_sessionid = _session;
         cbSequence.csa_referring_call_lists = new referring_call_list4[0];
 
@@ -156,7 +223,112 @@ public class ClientCB {
         return cbCompound;
     }
 
-    public void cbLayoutRecallFsid() throws OncRpcException, IOException {
+    /**
+     * Send CB_COMPOUND with provided operations to the client. The returned
+     * future completes when client replies, the request times out or fails.
+     *
+     * @param tag compound tag
+     * @param cbOperations operations to send
+     * @return future compound result.
+     */
+    public CompletableFuture<CB_COMPOUND4res> cbCompoundAsync(String tag, nfs_cb_argop4... cbOperations) {
+
+        PendingCall call = new PendingCall(tag, cbOperations);
+        Integer slot;
+        synchronized (this) {
+            slot = _freeSlots.poll();
+            if (slot == null) {
+                _pendingCalls.add(call);
+                return call.result;
+            }
+        }
+        send(slot, call);
+        return call.result;
+    }
+
+    private void send(int slot, PendingCall call) {
+
+        int sequence;
+        synchronized (this) {
+            sequence = _slotSequences[slot] + 1;
+        }
+
+        XdrAble args = generateCompound(slot, sequence, call.tag, call.operations);
+        try {
+            _rpc.call(nfs4_prot.CB_COMPOUND_1, args, new CompletionHandler<RpcReply, RpcTransport>() {
+
+                @Override
+                public void completed(RpcReply reply, RpcTransport transport) {
+                    CB_COMPOUND4res res = new CB_COMPOUND4res();
+                    try {
+                        reply.getReplyResult(res);
+                    } catch (IOException e) {
+                        releaseSlot(slot);
+                        call.result.completeExceptionally(e);
+                        return;
+                    }
+
+                    int sequenceStatus = res.resarray != null && res.resarray.length > 0
+                            && res.resarray[0].opcbsequence != null
+                            ? res.resarray[0].opcbsequence.csr_status : res.status;
+
+                    boolean resend = false;
+                    synchronized (ClientCB.this) {
+                        boolean unconfirmed = _unconfirmedSlots[slot];
+                        _unconfirmedSlots[slot] = false;
+                        if (sequenceStatus == nfsstat.NFS_OK) {
+                            _slotSequences[slot] = sequence;
+                        } else if (sequenceStatus == nfsstat.NFSERR_SEQ_MISORDERED && unconfirmed) {
+                            // client has not seen the timed out request, re-send with its sequence id
+                            _slotSequences[slot] = sequence - 2;
+                            resend = true;
+                        }
+                    }
+
+                    if (resend) {
+                        send(slot, call);
+                        return;
+                    }
+                    releaseSlot(slot);
+                    call.result.complete(res);
+                }
+
+                @Override
+                public void failed(Throwable t, RpcTransport transport) {
+                    /*
+                     * The client may have processed the request, thus the next
+                     * request on this slot must use the next sequence id, otherwise
+                     * it will be treated as a retry. If the client has not seen
+                     * the request, the sequence id is corrected on
+                     * NFS4ERR_SEQ_MISORDERED.
+                     */
+                    synchronized (ClientCB.this) {
+                        _slotSequences[slot] = sequence;
+                        _unconfirmedSlots[slot] = true;
+                    }
+                    releaseSlot(slot);
+                    call.result.completeExceptionally(t);
+                }
+            }, _timeout, TimeUnit.MILLISECONDS);
+        } catch (IOException e) {
+            releaseSlot(slot);
+            call.result.completeExceptionally(e);
+        }
+    }
+
+    private void releaseSlot(int slot) {
+        PendingCall next;
+        synchronized (this) {
+            next = _pendingCalls.poll();
+            if (next == null) {
+                _freeSlots.push(slot);
+                return;
+            }
+        }
+        send(slot, next);
+    }
+
+    private static nfs_cb_argop4 layoutRecallFsid() {
 
         CB_LAYOUTRECALL4args cbLayoutrecall = new CB_LAYOUTRECALL4args();
         cbLayoutrecall.clora_changed = true;
@@ -171,12 +343,19 @@ public class ClientCB {
         nfs_cb_argop4 opArgs = new nfs_cb_argop4();
         opArgs.argop = nfs_cb_opnum4.OP_CB_LAYOUTRECALL;
         opArgs.opcblayoutrecall = cbLayoutrecall;
+        return opArgs;
+    }
 
-        XdrAble args = generateCompound("cb_layout_recall_fs", opArgs);
-        _rpc.call(nfs4_prot.CB_COMPOUND_1, args, new CB_COMPOUND4res());
+    public CompletableFuture<Void> cbLayoutRecallFsidAsync() {
+        return checkStatus(cbCompoundAsync("cb_layout_recall_fs", layoutRecallFsid()));
     }
 
-    public void cbLayoutRecallFile(nfs_fh4 fh, stateid4 stateid) throws OncRpcException, IOException {
+    public void cbLayoutRecallFsid() throws OncRpcException, IOException {
+        // the compound status is ignored, as client may have no layouts to return
+        waitFor(cbCompoundAsync("cb_layout_recall_fs", layoutRecallFsid()).thenApply(r -> null));
+    }
+
+    public CompletableFuture<Void> cbLayoutRecallFileAsync(nfs_fh4 fh, stateid4 stateid) {
 
         CB_LAYOUTRECALL4args cbLayoutrecall = new CB_LAYOUTRECALL4args();
         cbLayoutrecall.clora_changed = true;
@@ -194,11 +373,116 @@ public class ClientCB {
         opArgs.argop = nfs_cb_opnum4.OP_CB_LAYOUTRECALL;
         opArgs.opcblayoutrecall = cbLayoutrecall;
 
-        XdrAble args = generateCompound("cb_layout_recall_file", opArgs);
+        return checkStatus(cbCompoundAsync("cb_layout_recall_file", opArgs));
+    }
 
-        CB_COMPOUND4res res = new CB_COMPOUND4res();
-        _rpc.call(nfs4_prot.CB_COMPOUND_1, args, res);
-        nfsstat.throwIfNeeded(res.status);
+    public void cbLayoutRecallFile(nfs_fh4 fh, stateid4 stateid) throws OncRpcException, IOException {
+        waitFor(cbLayoutRecallFileAsync(fh, stateid));
     }
 
+    public CompletableFuture<Void> cbDelegationRecallAsync(nfs_fh4 fh, stateid4 stateid, boolean truncate) {
+
+        CB_RECALL4args cbRecall = new CB_RECALL4args();
+        cbRecall.fh = fh;
+        cbRecall.stateid = stateid;
+        cbRecall.truncate = truncate;
+
+        nfs_cb_argop4 opArgs = new nfs_cb_argop4();
+        opArgs.argop = nfs_cb_opnum4.OP_CB_RECALL;
+        opArgs.opcbrecall = cbRecall;
+
+        return checkStatus(cbCompoundAsync("cb_recall", opArgs));
+    }
+
+    public void cbDelegationRecall(nfs_fh4 fh, stateid4 stateid, boolean truncate) throws OncRpcException, IOException {
+        waitFor(cbDelegationRecallAsync(fh, stateid, truncate));
+    }
+
+    /**
+     * Query attributes of a file delegated for writing to the client.
+     *
+     * @param fh file handle of the delegated file.
+     * @param attrs requested attributes.
+     * @return future attributes as reported by the client.
+     */
+    public CompletableFuture<fattr4> cbGetAttrAsync(nfs_fh4 fh, bitmap4 attrs) {
+
+        CB_GETATTR4args cbGetAttr = new CB_GETATTR4args();
+        cbGetAttr.fh = fh;
+        cbGetAttr.attr_request = attrs;
+
+        nfs_cb_argop4 opArgs = new nfs_cb_argop4();
+        opArgs.argop = nfs_cb_opnum4.OP_CB_GETATTR;
+        opArgs.opcbgetattr = cbGetAttr;
+
+        return cbCompoundAsync("cb_getattr", opArgs).thenCompose(res -> {
+            CompletableFuture<fattr4> f = new CompletableFuture<>();
+            try {
+                nfsstat.throwIfNeeded(res.status);
+                f.complete(res.resarray[1].opcbgetattr.resok4.obj_attributes);
+            } catch (ChimeraNFSException e) {
+                f.completeExceptionally(e);
+            }
+            return f;
+        });
+    }
+
+    public CompletableFuture<Void> cbNotifyLockAsync(nfs_fh4 fh, lock_owner4 owner) {
+
+        CB_NOTIFY_LOCK4args cbNotifyLock = new CB_NOTIFY_LOCK4args();
+        cbNotifyLock.cnla_fh = fh;
+        cbNotifyLock.cnla_lock_owner = owner;
+
+        nfs_cb_argop4 opArgs = new nfs_cb_argop4();
+        opArgs.argop = nfs_cb_opnum4.OP_CB_NOTIFY_LOCK;
+        opArgs.opcbnotify_lock = cbNotifyLock;
+
+        return checkStatus(cbCompoundAsync("cb_notify_lock", opArgs));
+    }
+
+    /**
+     * Fail the returned future if the compound status is not NFS4_OK.
+     */
+    private static CompletableFuture<Void> checkStatus(CompletableFuture<CB_COMPOUND4res> compound) {
+        return compound.thenCompose(res -> {
+            CompletableFuture<Void> f = new CompletableFuture<>();
+            try {
+                nfsstat.throwIfNeeded(res.status);
+                f.complete(null);
+            } catch (ChimeraNFSException e) {
+                f.completeExceptionally(e);
+            }
+            return f;
+        });
+    }
+
+    /**
+     * Wait for call-back reply and propagate a failure as {@link IOException}.
+     */
+    private static void waitFor(CompletableFuture<Void> future) throws IOException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for call-back reply");
+        } catch (ExecutionException e) {
+            Throwable t = e.getCause();
+            if (t instanceof IOException) {
+                throw (IOException) t;
+            }
+            throw new IOException(t.getMessage(), t);
+        }
+    }
+
+    private static class PendingCall {
+
+        private final String tag;
+        private final nfs_cb_argop4[] operations;
+        private final CompletableFuture<CB_COMPOUND4res> result = new CompletableFuture<>();
+
+        PendingCall(String tag, nfs_cb_argop4[] operations) {
+            this.tag = tag;
+            this.operations = operations;
+        }
+    }
 }
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2018 Deutsches Elektronen-Synchroton,
+ * Member of the Helmholtz Association, (DESY), HAMBURG, GERMANY
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Library General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public
+ * License along with this program (see the file COPYING.LIB for more
+ * details); if not, write to the Free Software Foundation, Inc.,
+ * 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.dcache.nfs.v4;
+
+import java.io.Closeable;
+
+/**
+ * A store of client records, which survive server restarts. On restart the
+ * recorded clients of the previous server instance are allowed to reclaim their
+ * state during the grace period. The grace period ends when all of them have
+ * reclaimed their state or by {@link #reclaimComplete()}.
+ */
+public interface ClientRecoveryStore extends Closeable {
+
+    /**
+     * Record a new confirmed client.
+     *
+     * @param client the client owner id.
+     */
+    void addClient(byte[] client);
+
+    /**
+     * Remove the client record. The client is not able to reclaim it's state
+     * any more.
+     *
+     * @param client the client owner id.
+     */
+    void removeClient(byte[] client);
+
+    /**
+     * Mark that the client has reclaimed it's state.
+     *
+     * @param client the client owner id.
+     */
+    void reclaimClient(byte[] client);
+
+    /**
+     * End the grace period. The clients of the previous server instance, which
+     * have not reclaimed their state yet, can't do it any more.
+     */
+    void reclaimComplete();
+
+    /**
+     * Check whatever the clients of the previous server instance are still
+     * allowed to reclaim their state.
+     *
+     * @return true if grace period is not over.
+     */
+    boolean waitingForReclaim();
+
+    /**
+     * Check whatever the client is known from the previous server instance and
+     * allowed to reclaim it's state.
+     *
+     * @param client the client owner id.
+     * @return true if client may reclaim it's state.
+     */
+    boolean wantReclaim(byte[] client);
+}
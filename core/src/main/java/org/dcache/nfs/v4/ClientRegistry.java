@@ -0,0 +1,443 @@
+/*
+ * Copyright (c) 2018 Deutsches Elektronen-Synchroton,
+ * Member of the Helmholtz Association, (DESY), HAMBURG, GERMANY
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Library General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public
+ * License along with this program (see the file COPYING.LIB for more
+ * details); if not, write to the Free Software Foundation, Inc.,
+ * 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.dcache.nfs.v4;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import org.dcache.utils.Opaque;
+import org.dcache.utils.TimerWheel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A concurrent registry of {@link NFS4Client}s keyed by the 64-bit server
+ * generated client id. The clients are spread over a fixed number of shards,
+ * each backed by a {@link ConcurrentHashMap}, so lookups never block and
+ * updates of different clients rarely contend.
+ *
+ * A client, which was not accessed for longer than the configured idle time
+ * is considered as expired. Expired clients are removed either on access or by
+ * a periodic cleanup task, and passed to the expiry listener exactly once.
+ * The deadlines are tracked by a {@link TimerWheel}, thus the cleanup task
+ * only touches clients, which might have expired. As access only updates the
+ * last access time, a client, which was used after it has been scheduled, is
+ * re-scheduled when its original deadline is reached.
+ *
+ * The registry has no fixed capacity. Instead, the number of registered clients
+ * is accounted and new clients are refused when the configured limit is reached
+ * and no expired clients can be evicted.
+ */
+public class ClientRegistry {
+
+    private static final Logger _log = LoggerFactory.getLogger(ClientRegistry.class);
+
+    /**
+     * Number of shards, must be a power of two.
+     */
+    private static final int SHARDS = 16;
+
+    private final Map<Long, ClientEntry>[] _shards;
+
+    /**
+     * Secondary index of registered clients by owner id. Typically there is
+     * only one client per owner, however, a new client record can co-exist
+     * with the old one while client's reboot is being processed.
+     */
+    private final ConcurrentMap<Opaque, List<NFS4Client>> _clientsByOwner = new ConcurrentHashMap<>();
+
+    /**
+     * Maximal number of clients.
+     */
+    private final int _maxClients;
+
+    /**
+     * Number of registered clients.
+     */
+    private final AtomicInteger _size = new AtomicInteger();
+
+    /**
+     * The highest number of clients registered at the same time.
+     */
+    private final AtomicInteger _highWatermark = new AtomicInteger();
+
+    /**
+     * Indicates that expired clients are evicted by a thread which hit the limit.
+     */
+    private final AtomicBoolean _evicting = new AtomicBoolean();
+
+    /**
+     * Time in milliseconds since last use of the client. After expiration of this
+     * time the client is removed.
+     */
+    private final long _idleTime;
+
+    /**
+     * Callback to notify about expired clients.
+     */
+    private final Consumer<NFS4Client> _onExpire;
+
+    /**
+     * 'Expire thread' used to detect and remove expired entries.
+     */
+    private final ScheduledExecutorService _cleanerScheduler;
+
+    private final Clock _clock;
+
+    /**
+     * Deadlines of registered clients. Guarded by {@link #_wheelLock}.
+     */
+    private final TimerWheel<ClientEntry> _wheel;
+    private final Lock _wheelLock = new ReentrantLock();
+
+    /**
+     * The JMX interface to this registry.
+     */
+    private final ClientRegistryMXBean _mxBean;
+
+    /**
+     * Create new client registry.
+     *
+     * @param name the name of the registry
+     * @param maxClients maximal number of clients.
+     * @param idleTime maximal idle time in milliseconds.
+     * @param onExpire callback to notify about expired clients.
+     * @param timeValue how often cleaner thread have to check for expired entries.
+     * @param timeUnit a {@link TimeUnit} determining how to interpret the
+     * <code>timeValue</code> parameter.
+     * @param clock {@link Clock} to use
+     */
+    @SuppressWarnings("unchecked")
+    public ClientRegistry(String name, int maxClients, long idleTime, Consumer<NFS4Client> onExpire,
+            long timeValue, TimeUnit timeUnit, Clock clock) {
+        _maxClients = maxClients;
+        _idleTime = idleTime;
+        _onExpire = onExpire;
+        _clock = clock;
+        // expire clients at most a 16th of idle time late, but not waste cycles on finer resolution than a second
+        _wheel = new TimerWheel<>(Math.max(1, Math.min(1000, idleTime / 16)), TimeUnit.MILLISECONDS, clock.millis());
+        _shards = new Map[SHARDS];
+        for (int i = 0; i < SHARDS; i++) {
+            _shards[i] = new ConcurrentHashMap<>();
+        }
+        _cleanerScheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder()
+                        .setNameFormat(name + " periodic cleanup")
+                        .setDaemon(true)
+                        .build()
+        );
+        _cleanerScheduler.scheduleAtFixedRate(this::expireClients, timeValue, timeValue, timeUnit);
+        _mxBean = new ClientRegistryMXBeanImpl(name, this);
+    }
+
+    private Map<Long, ClientEntry> shardOf(long clientid) {
+        // the low bits of the client id are a counter, mix in the timestamp and instance id as well
+        long h = clientid ^ (clientid >>> 32);
+        return _shards[(int) (h ^ (h >>> 16)) & (SHARDS - 1)];
+    }
+
+    /**
+     * Add a new client into the registry. An existing client with the same
+     * client id is replaced. If the limit of registered clients is reached,
+     * expired clients are evicted first.
+     *
+     * @param client to add.
+     * @return true if client is added, or false if the registry is full.
+     */
+    public boolean tryPut(NFS4Client client) {
+
+        if (_size.get() >= _maxClients && (!evictExpired() || _size.get() >= _maxClients)) {
+            _log.warn("Client limit reached: {}", _maxClients);
+            return false;
+        }
+
+        long clientid = client.getId().value;
+        ClientEntry entry = new ClientEntry(client, _clock.millis());
+        ClientEntry oldEntry = shardOf(clientid).put(clientid, entry);
+        if (oldEntry == null) {
+            int size = _size.incrementAndGet();
+            _highWatermark.accumulateAndGet(size, Math::max);
+        } else {
+            unindex(oldEntry.client);
+            cancel(oldEntry);
+        }
+        schedule(entry);
+        index(client);
+        return true;
+    }
+
+    /**
+     * Get a client associated with the given client id. If client does not exist
+     * or expired, <code>null</code> is returned.
+     *
+     * @param clientid short-hand client id.
+     * @return client associated with the client id or null.
+     */
+    public NFS4Client get(long clientid) {
+        Map<Long, ClientEntry> shard = shardOf(clientid);
+        ClientEntry entry = shard.get(clientid);
+        if (entry == null) {
+            return null;
+        }
+
+        long now = _clock.millis();
+        if (!entry.validAt(now)) {
+            expire(shard, clientid, entry);
+            return null;
+        }
+        entry.touch(now);
+        return entry.client;
+    }
+
+    /**
+     * Remove client associated with the given client id.
+     *
+     * @param clientid short-hand client id.
+     * @return removed client or null, if there was no client associated with
+     * provided client id.
+     */
+    public NFS4Client remove(long clientid) {
+        ClientEntry entry = shardOf(clientid).remove(clientid);
+        if (entry == null) {
+            return null;
+        }
+        _size.decrementAndGet();
+        unindex(entry.client);
+        cancel(entry);
+        return entry.client;
+    }
+
+    /**
+     * Get a client with the given owner id.
+     *
+     * @param ownerid client's owner id.
+     * @return client with the owner id or null, if there is no such client.
+     */
+    public NFS4Client getByOwner(byte[] ownerid) {
+        List<NFS4Client> clients = _clientsByOwner.get(new Opaque(ownerid));
+        return clients == null ? null : clients.get(0);
+    }
+
+    /*
+     * The per-owner lists are never modified, but replaced. Thus readers
+     * don't need any locking.
+     */
+    private void index(NFS4Client client) {
+        _clientsByOwner.compute(new Opaque(client.getOwnerId()), (k, v) ->
+                v == null
+                        ? Collections.singletonList(client)
+                        : ImmutableList.<NFS4Client>builder().addAll(v).add(client).build());
+    }
+
+    private void unindex(NFS4Client client) {
+        _clientsByOwner.computeIfPresent(new Opaque(client.getOwnerId()), (k, v) -> {
+            List<NFS4Client> clients = v.stream()
+                    .filter(c -> c != client)
+                    .collect(Collectors.toList());
+            return clients.isEmpty() ? null : clients;
+        });
+    }
+
+    /**
+     * Get a snapshot of all registered clients.
+     *
+     * @return list of clients.
+     */
+    public List<NFS4Client> clients() {
+        List<NFS4Client> clients = new ArrayList<>(size());
+        for (Map<Long, ClientEntry> shard : _shards) {
+            shard.values().forEach(e -> clients.add(e.client));
+        }
+        return clients;
+    }
+
+    /**
+     * Get number of registered clients.
+     *
+     * @return number of clients.
+     */
+    public int size() {
+        return _size.get();
+    }
+
+    /**
+     * Get the highest number of clients registered at the same time.
+     *
+     * @return number of clients.
+     */
+    public int getHighWatermark() {
+        return _highWatermark.get();
+    }
+
+    /**
+     * Reset high watermark to the current number of clients.
+     */
+    public void resetHighWatermark() {
+        _highWatermark.set(_size.get());
+    }
+
+    /**
+     * Get maximal number of clients.
+     *
+     * @return number of clients.
+     */
+    public int getMaxClients() {
+        return _maxClients;
+    }
+
+    /**
+     * Remove expired, but not yet collected clients, unless some other thread
+     * is doing it right now.
+     *
+     * @return true if expired clients have been removed by the calling thread.
+     */
+    private boolean evictExpired() {
+        if (!_evicting.compareAndSet(false, true)) {
+            return false;
+        }
+        try {
+            expireClients();
+            return true;
+        } finally {
+            _evicting.set(false);
+        }
+    }
+
+    /**
+     * Remove all expired clients.
+     */
+    void expireClients() {
+        long now = _clock.millis();
+        List<ClientEntry> due = new ArrayList<>();
+        _wheelLock.lock();
+        try {
+            _wheel.advance(now, t -> due.add(t.value()));
+        } finally {
+            _wheelLock.unlock();
+        }
+
+        for (ClientEntry entry : due) {
+            long clientid = entry.client.getId().value;
+            Map<Long, ClientEntry> shard = shardOf(clientid);
+            if (shard.get(clientid) != entry) {
+                // removed or replaced in the meantime
+                continue;
+            }
+            if (entry.validAt(now)) {
+                // used since scheduled
+                schedule(entry);
+            } else {
+                expire(shard, clientid, entry);
+            }
+        }
+    }
+
+    private void expire(Map<Long, ClientEntry> shard, long clientid, ClientEntry entry) {
+        // only the thread which have removed the entry notifies the listener
+        if (shard.remove(clientid, entry)) {
+            _size.decrementAndGet();
+            unindex(entry.client);
+            cancel(entry);
+            _log.debug("Cleaning expired client: {}", entry.client);
+            _onExpire.accept(entry.client);
+        }
+    }
+
+    /**
+     * Schedule, or re-schedule, entry's expiry based on its last access time.
+     */
+    private void schedule(ClientEntry entry) {
+        _wheelLock.lock();
+        try {
+            long deadline = entry.lastAccessTime + _idleTime;
+            if (entry.timeout == null) {
+                entry.timeout = _wheel.schedule(entry, deadline);
+            } else {
+                _wheel.reschedule(entry.timeout, deadline);
+            }
+        } finally {
+            _wheelLock.unlock();
+        }
+    }
+
+    private void cancel(ClientEntry entry) {
+        _wheelLock.lock();
+        try {
+            if (entry.timeout != null) {
+                _wheel.cancel(entry.timeout);
+            }
+        } finally {
+            _wheelLock.unlock();
+        }
+    }
+
+    /**
+     * Shutdown registry cleanup thread.
+     */
+    public void shutdown() {
+        _cleanerScheduler.shutdown();
+    }
+
+    private class ClientEntry {
+
+        private final NFS4Client client;
+
+        /**
+         * Client's last access time.
+         */
+        private volatile long lastAccessTime;
+
+        /**
+         * Entry's handle in the timer wheel. Guarded by {@link #_wheelLock}.
+         */
+        private TimerWheel.Timeout<ClientEntry> timeout;
+
+        ClientEntry(NFS4Client client, long now) {
+            this.client = client;
+            this.lastAccessTime = now;
+        }
+
+        boolean validAt(long time) {
+            return time - lastAccessTime < _idleTime;
+        }
+
+        void touch(long now) {
+            // avoid cache line invalidation if clock has not moved
+            if (lastAccessTime != now) {
+                lastAccessTime = now;
+            }
+        }
+    }
+}
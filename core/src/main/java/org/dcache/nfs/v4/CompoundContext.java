@@ -46,6 +46,7 @@ import org.dcache.nfs.v4.xdr.verifier4;
 import org.dcache.nfs.vfs.VirtualFileSystem;
 import org.dcache.oncrpc4j.rpc.net.InetSocketAddresses;
 import org.dcache.oncrpc4j.rpc.RpcAuthType;
+import org.dcache.oncrpc4j.util.Bytes;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
@@ -96,6 +97,7 @@ public class CompoundContext {
     private final LockManager _nlm;
     private final int _exchangeIdFlags;
     private final verifier4 _rebootVerifier;
+    private final Optional<SlotTableController> _slotTableController;
 
     /**
      * Create context of COUMPOUND request.
@@ -115,6 +117,39 @@ public class CompoundContext {
         _principal = principalOf(_callInfo);
         _exchangeIdFlags = builder.getExchangeIdFlags();
         _rebootVerifier = builder.getRebootVerifier();
+        _slotTableController = Optional.ofNullable(builder.getSlotTableController());
+    }
+
+    /**
+     * Create a copy of the given context. The copy has its own current and
+     * saved file handles and stateids, but shares session, file system and
+     * other server side objects with the original context.
+     *
+     * @param other context to copy.
+     */
+    CompoundContext(CompoundContext other) {
+        _minorversion = other._minorversion;
+        _fs = other._fs;
+        _deviceManager = other._deviceManager;
+        _callInfo = other._callInfo;
+        _exportFile = other._exportFile;
+        _stateHandler = other._stateHandler;
+        _nlm = other._nlm;
+        _subject = other._subject;
+        _principal = other._principal;
+        _exchangeIdFlags = other._exchangeIdFlags;
+        _rebootVerifier = other._rebootVerifier;
+        _slotTableController = other._slotTableController;
+
+        _rootInode = other._rootInode;
+        _currentInode = other._currentInode;
+        _savedInode = other._savedInode;
+        _currentStateid = other._currentStateid;
+        _savedStateid = other._savedStateid;
+        _session = other._session;
+        _slot = other._slot;
+        _cacheThis = other._cacheThis;
+        _cache = other._cache;
     }
 
     public RpcCall getRpcCall() {
@@ -137,6 +172,15 @@ public class CompoundContext {
         return _nlm;
     }
 
+    /**
+     * Get controller of session slot table sizes, if any.
+     * @return slot table controller.
+     * @since 0.18
+     */
+    public Optional<SlotTableController> getSlotTableController() {
+        return _slotTableController;
+    }
+
     /**
      * Get NFSv4 minor version number. The version number os provided by client
      * for each compound.
@@ -363,4 +407,19 @@ public class CompoundContext {
     public verifier4 getRebootVerifier() {
         return _rebootVerifier;
     }
+
+    /**
+     * Return verifier to be returned by WRITE and COMMIT operations. The
+     * verifier changes on server reboot and when the file system reports
+     * loss of uncommitted data.
+     * @return write verifier.
+     * @see VirtualFileSystem#getWriteEpoch()
+     */
+    public verifier4 getWriteVerifier() {
+        long epoch = _fs.getWriteEpoch();
+        if (epoch == 0) {
+            return _rebootVerifier;
+        }
+        return verifier4.valueOf(Bytes.getLong(_rebootVerifier.value, 0) ^ epoch);
+    }
 }
@@ -39,6 +39,7 @@ public class CompoundContextBuilder {
     private ExportFile exportFile = null;
     private int exchangeIdFlags = nfs4_prot.EXCHGID4_FLAG_USE_NON_PNFS;
     private verifier4 rebootVerifier;
+    private SlotTableController slotTableController;
 
     public CompoundContextBuilder withCall(RpcCall call) {
         this.call = call;
@@ -70,6 +71,15 @@ public class CompoundContextBuilder {
         return this;
     }
 
+    public CompoundContextBuilder withSlotTableController(SlotTableController slotTableController) {
+        this.slotTableController = slotTableController;
+        return this;
+    }
+
+    public SlotTableController getSlotTableController() {
+        return slotTableController;
+    }
+
     public CompoundContextBuilder withLockManager(LockManager lm) {
         this.lm = lm;
         return this;
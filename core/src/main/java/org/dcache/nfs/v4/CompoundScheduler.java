@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2018 Deutsches Elektronen-Synchroton,
+ * Member of the Helmholtz Association, (DESY), HAMBURG, GERMANY
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Library General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public
+ * License along with this program (see the file COPYING.LIB for more
+ * details); if not, write to the Free Software Foundation, Inc.,
+ * 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.dcache.nfs.v4;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import org.dcache.nfs.nfsstat;
+import org.dcache.nfs.v4.xdr.nfs_argop4;
+import org.dcache.nfs.v4.xdr.nfs_opnum4;
+import org.dcache.nfs.v4.xdr.nfs_resop4;
+import org.slf4j.MDC;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Executes independent operations of a COMPOUND request in parallel.
+ *
+ * A compound is split into segments, where each segment starts with an
+ * operation which sets the current file handle (PUTFH, PUTROOTFH or PUTPUBFH)
+ * followed by read-only operations, which depend only on the current file
+ * handle (GETATTR, LOOKUP, ACCESS, ...). Such segments are independent of each
+ * other and can be processed concurrently, each with its own copy of the
+ * compound context. Typical examples are {@code PUTFH; GETATTR; PUTFH; GETATTR...}
+ * sent by clients for bulk stat or multi-component path lookups.
+ *
+ * If any operation does not fit into this scheme, e.g. it uses saved file
+ * handle or stateids, or modifies the file system, the compound is processed
+ * sequentially as usual.
+ *
+ * Results are returned in the order of operations. Processing stops at the
+ * first failed operation, results of subsequent segments are discarded. As
+ * segments contain only read-only operations, the observable behaviour is the
+ * same as with sequential processing.
+ *
+ * @since 0.18
+ */
+public class CompoundScheduler {
+
+    /**
+     * Processes a single operation of a compound and stores result in
+     * {@code result}.
+     */
+    @FunctionalInterface
+    interface OperationProcessor {
+
+        void process(CompoundContext context, nfs_argop4 op, nfs_resop4 result) throws IOException;
+    }
+
+    private final Executor _executor;
+
+    /**
+     * Create new scheduler.
+     *
+     * @param executor used to process segments of a compound.
+     */
+    public CompoundScheduler(Executor executor) {
+        _executor = requireNonNull(executor);
+    }
+
+    /**
+     * Process operations of a compound starting at position {@code from}, if
+     * they can be executed in parallel.
+     *
+     * @param context of the compound.
+     * @param ops all operations of the compound.
+     * @param from position of the first operation to process.
+     * @param processor to process a single operation.
+     * @return results of processed operations or null, if operations can't be
+     * executed in parallel.
+     * @throws IOException if processing of an operation has failed.
+     */
+    List<nfs_resop4> execute(CompoundContext context, nfs_argop4[] ops, int from,
+            OperationProcessor processor) throws IOException {
+
+        List<Segment> segments = plan(ops, from);
+        if (segments == null) {
+            return null;
+        }
+
+        Map<String, String> mdc = MDC.getCopyOfContextMap();
+        List<CompletableFuture<List<nfs_resop4>>> futures = new ArrayList<>(segments.size());
+
+        // the first segment is processed by the calling thread
+        futures.add(null);
+        for (Segment segment : segments.subList(1, segments.size())) {
+            CompoundContext segmentContext = new CompoundContext(context);
+            try {
+                futures.add(CompletableFuture.supplyAsync(() -> {
+                    if (mdc != null) {
+                        MDC.setContextMap(mdc);
+                    }
+                    try {
+                        return segment.process(segmentContext, ops, processor);
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    } finally {
+                        MDC.clear();
+                    }
+                }, _executor));
+            } catch (RejectedExecutionException e) {
+                // executor is saturated, segment will be processed by calling thread
+                futures.add(null);
+            }
+        }
+
+        List<nfs_resop4> results = new ArrayList<>(ops.length - from);
+        for (int i = 0; i < segments.size(); i++) {
+            CompletableFuture<List<nfs_resop4>> future = futures.get(i);
+            List<nfs_resop4> segmentResults = future == null
+                    ? segments.get(i).process(new CompoundContext(context), ops, processor)
+                    : join(future);
+
+            results.addAll(segmentResults);
+            if (segmentResults.get(segmentResults.size() - 1).getStatus() != nfsstat.NFS_OK) {
+                futures.subList(i + 1, futures.size()).stream()
+                        .filter(f -> f != null)
+                        .forEach(f -> f.cancel(false));
+                break;
+            }
+        }
+        return results;
+    }
+
+    private static List<nfs_resop4> join(CompletableFuture<List<nfs_resop4>> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable t = e.getCause();
+            if (t instanceof IOException) {
+                throw (IOException) t;
+            }
+            if (t instanceof RuntimeException) {
+                throw (RuntimeException) t;
+            }
+            if (t instanceof Error) {
+                throw (Error) t;
+            }
+            throw new IOException(t);
+        }
+    }
+
+    /**
+     * Split operations starting at position {@code from} into independent
+     * segments.
+     *
+     * @return list of segments or null, if operations can't be split into at
+     * least two independent segments.
+     */
+    static List<Segment> plan(nfs_argop4[] ops, int from) {
+
+        if (from >= ops.length || !setsCurrentFh(ops[from].argop)) {
+            return null;
+        }
+
+        List<Segment> segments = new ArrayList<>();
+        int start = from;
+        for (int i = from + 1; i < ops.length; i++) {
+            int op = ops[i].argop;
+            if (setsCurrentFh(op)) {
+                segments.add(new Segment(start, i));
+                start = i;
+            } else if (!isIndependent(op)) {
+                return null;
+            }
+        }
+        segments.add(new Segment(start, ops.length));
+
+        return segments.size() < 2 ? null : segments;
+    }
+
+    /**
+     * Tell whether operation sets current file handle without using current
+     * or saved state.
+     */
+    private static boolean setsCurrentFh(int op) {
+        switch (op) {
+            case nfs_opnum4.OP_PUTFH:
+            case nfs_opnum4.OP_PUTROOTFH:
+            case nfs_opnum4.OP_PUTPUBFH:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Tell whether operation doesn't modify server or file system state and
+     * depends only on the current file handle.
+     */
+    private static boolean isIndependent(int op) {
+        switch (op) {
+            case nfs_opnum4.OP_ACCESS:
+            case nfs_opnum4.OP_GETATTR:
+            case nfs_opnum4.OP_GETFH:
+            case nfs_opnum4.OP_LOOKUP:
+            case nfs_opnum4.OP_LOOKUPP:
+            case nfs_opnum4.OP_NVERIFY:
+            case nfs_opnum4.OP_READLINK:
+            case nfs_opnum4.OP_VERIFY:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * A sequence of operations, which depends only on file handle set by the
+     * first operation.
+     */
+    static class Segment {
+
+        private final int from;
+        private final int to;
+
+        Segment(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        int from() {
+            return from;
+        }
+
+        int to() {
+            return to;
+        }
+
+        List<nfs_resop4> process(CompoundContext context, nfs_argop4[] ops,
+                OperationProcessor processor) throws IOException {
+
+            List<nfs_resop4> results = new ArrayList<>(to - from);
+            for (int i = from; i < to; i++) {
+                nfs_resop4 result = nfs_resop4.resopFor(ops[i].argop);
+                processor.process(context, ops[i], result);
+                results.add(result);
+                if (result.getStatus() != nfsstat.NFS_OK) {
+                    break;
+                }
+            }
+            return results;
+        }
+    }
+}
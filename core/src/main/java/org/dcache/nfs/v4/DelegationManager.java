@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2018 Deutsches Elektronen-Synchroton,
+ * Member of the Helmholtz Association, (DESY), HAMBURG, GERMANY
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Library General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public
+ * License along with this program (see the file COPYING.LIB for more
+ * details); if not, write to the Free Software Foundation, Inc.,
+ * 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.dcache.nfs.v4;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import org.dcache.nfs.v4.xdr.bitmap4;
+import org.dcache.nfs.v4.xdr.fattr4;
+import org.dcache.nfs.v4.xdr.nfs4_prot;
+import org.dcache.nfs.v4.xdr.nfs_fh4;
+import org.dcache.nfs.v4.xdr.open_delegation_type4;
+import org.dcache.nfs.v4.xdr.stateid4;
+import org.dcache.nfs.vfs.Inode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A class which sends delegation recalls to the clients and collects
+ * delegation statistics. The bookkeeping of granted delegations is done by
+ * {@link FileTracker} together with the open files.
+ */
+public class DelegationManager {
+
+    private static final Logger _log = LoggerFactory.getLogger(DelegationManager.class);
+
+    /**
+     * Time in milliseconds to wait for client's reply on CB_GETATTR.
+     */
+    private static final long CB_GETATTR_TIMEOUT = TimeUnit.SECONDS.toMillis(1);
+
+    /**
+     * Time in milliseconds a client has to return a recalled delegation
+     * before it's revoked.
+     */
+    private final long _recallTimeout;
+
+    private final AtomicLong _readDelegations = new AtomicLong();
+    private final AtomicLong _writeDelegations = new AtomicLong();
+    private final AtomicLong _recalls = new AtomicLong();
+    private final AtomicLong _revoked = new AtomicLong();
+    private final AtomicLong _returnedRecalls = new AtomicLong();
+    private final AtomicLong _totalRecallTime = new AtomicLong();
+    private final AtomicLong _maxRecallTime = new AtomicLong();
+
+    /**
+     * Create new delegation manager.
+     *
+     * @param name the name used to identify this manager.
+     * @param recallTimeout time in milliseconds a client has to return a
+     * recalled delegation before it's revoked.
+     */
+    public DelegationManager(String name, long recallTimeout) {
+        _recallTimeout = recallTimeout;
+        new DelegationManagerMXBeanImpl(name, this);
+    }
+
+    /**
+     * Send CB_RECALL to the client holding the delegation. The call-back is
+     * sent asynchronously, the caller doesn't wait for client's reply.
+     *
+     * @param client the client holding the delegation.
+     * @param inode the delegated file.
+     * @param stateid the delegation stateid.
+     */
+    void recall(NFS4Client client, Inode inode, stateid4 stateid) {
+        _recalls.incrementAndGet();
+        ClientCB cb = client.getCB();
+        if (cb == null) {
+            _log.warn("Can't recall delegation {} from {}: no callback channel", stateid, client);
+            return;
+        }
+        cb.cbDelegationRecallAsync(new nfs_fh4(inode.toNfsHandle()), stateid, false)
+                .whenComplete((r, t) -> {
+                    if (t != null) {
+                        _log.warn("Failed to recall delegation {} from {}: {}", stateid, client, t.getMessage());
+                    }
+                });
+    }
+
+    /**
+     * Query size and change attribute of a file delegated for writing with
+     * CB_GETATTR and wait for client's reply.
+     *
+     * @param client the client holding the write delegation.
+     * @param inode the delegated file.
+     * @return attributes reported by the client.
+     * @throws IOException if client fails or doesn't reply in time.
+     */
+    fattr4 getAttributes(NFS4Client client, Inode inode) throws IOException {
+        ClientCB cb = client.getCB();
+        if (cb == null) {
+            throw new IOException("no callback channel");
+        }
+
+        bitmap4 attrs = new bitmap4();
+        attrs.set(nfs4_prot.FATTR4_CHANGE);
+        attrs.set(nfs4_prot.FATTR4_SIZE);
+        try {
+            return cb.cbGetAttrAsync(new nfs_fh4(inode.toNfsHandle()), attrs)
+                    .get(CB_GETATTR_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for CB_GETATTR reply");
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause().getMessage(), e.getCause());
+        } catch (TimeoutException e) {
+            throw new IOException("no reply in " + CB_GETATTR_TIMEOUT + " ms");
+        }
+    }
+
+    /**
+     * Check whatever the client had enough time to return a recalled delegation.
+     *
+     * @param recallTime the time in milliseconds when delegation was recalled.
+     * @param now current time in milliseconds.
+     * @return true if delegation have to be revoked.
+     */
+    boolean isRecallExpired(long recallTime, long now) {
+        return now - recallTime > _recallTimeout;
+    }
+
+    void granted(int delegationType) {
+        if (delegationType == open_delegation_type4.OPEN_DELEGATE_WRITE) {
+            _writeDelegations.incrementAndGet();
+        } else {
+            _readDelegations.incrementAndGet();
+        }
+    }
+
+    void returnedAfterRecall(long recallTime) {
+        _returnedRecalls.incrementAndGet();
+        _totalRecallTime.addAndGet(recallTime);
+        _maxRecallTime.accumulateAndGet(recallTime, Math::max);
+    }
+
+    void revoked() {
+        _revoked.incrementAndGet();
+    }
+
+    /**
+     * Get number of granted read delegations.
+     * @return number of granted read delegations.
+     */
+    public long getReadDelegations() {
+        return _readDelegations.get();
+    }
+
+    /**
+     * Get number of granted write delegations.
+     * @return number of granted write delegations.
+     */
+    public long getWriteDelegations() {
+        return _writeDelegations.get();
+    }
+
+    /**
+     * Get number of sent delegation recalls.
+     * @return number of recalls.
+     */
+    public long getRecalls() {
+        return _recalls.get();
+    }
+
+    /**
+     * Get number of delegations revoked, as client did not return them in time.
+     * @return number of revoked delegations.
+     */
+    public long getRevoked() {
+        return _revoked.get();
+    }
+
+    /**
+     * Get average time in milliseconds between delegation recall and return.
+     * @return average recall time.
+     */
+    public long getAverageRecallTime() {
+        long n = _returnedRecalls.get();
+        return n == 0 ? 0 : _totalRecallTime.get() / n;
+    }
+
+    /**
+     * Get maximal time in milliseconds between delegation recall and return.
+     * @return maximal recall time.
+     */
+    public long getMaxRecallTime() {
+        return _maxRecallTime.get();
+    }
+
+    /**
+     * Reset all counters.
+     */
+    public void resetStatistics() {
+        _readDelegations.set(0);
+        _writeDelegations.set(0);
+        _recalls.set(0);
+        _revoked.set(0);
+        _returnedRecalls.set(0);
+        _totalRecallTime.set(0);
+        _maxRecallTime.set(0);
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright (c) 2018 Deutsches Elektronen-Synchroton,
+ * Member of the Helmholtz Association, (DESY), HAMBURG, GERMANY
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Library General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public
+ * License along with this program (see the file COPYING.LIB for more
+ * details); if not, write to the Free Software Foundation, Inc.,
+ * 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.dcache.nfs.v4;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import org.dcache.utils.Opaque;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link ClientRecoveryStore} which records clients in an append-only log file.
+ *
+ * Each record consists of a record type, the length of the client owner id
+ * and the owner id itself. On startup the log is replayed to find the clients
+ * of the previous server instance and then compacted. The log is compacted as
+ * well at the end of the grace period and when it contains too many stale records.
+ */
+public class FileClientRecoveryStore extends InMemoryClientRecoveryStore {
+
+    private static final Logger _log = LoggerFactory.getLogger(FileClientRecoveryStore.class);
+
+    /**
+     * Magic number to identify log file.
+     */
+    private static final int MAGIC = 0x4e465352;
+
+    private static final byte ADD = 1;
+    private static final byte REMOVE = 2;
+
+    /**
+     * Minimal number of records before log compaction is considered.
+     */
+    private static final int COMPACTION_THRESHOLD = 1024;
+
+    private final Path _path;
+
+    /**
+     * Lock to serialize log synchronization. To avoid a dead lock, the store's
+     * monitor must not be acquired while holding this lock.
+     */
+    private final Object _syncLock = new Object();
+
+    private volatile FileChannel _channel;
+
+    /**
+     * Number of records in the log.
+     */
+    private int _records;
+
+    /**
+     * Sequence number of the last record written into the log.
+     */
+    private volatile long _appended;
+
+    /**
+     * Sequence number of the last record known to be on the disk.
+     */
+    private long _synced;
+
+    /**
+     * Create a new store, which uses the given file as log. The clients recorded
+     * in the existing file are allowed to reclaim their state.
+     *
+     * @param path the log file.
+     * @throws IOException if log file can't be read or written.
+     */
+    public FileClientRecoveryStore(Path path) throws IOException {
+        this(path, replay(path));
+    }
+
+    private FileClientRecoveryStore(Path path, Collection<Opaque> reclaimable) throws IOException {
+        super(reclaimable);
+        _path = path;
+        _log.info("Recovered {} clients from {}", reclaimable.size(), path);
+        compact(reclaimable);
+    }
+
+    @Override
+    public void addClient(byte[] client) {
+        long seq;
+        synchronized (this) {
+            boolean recorded = isRecorded(client);
+            super.addClient(client);
+            if (recorded) {
+                // the log already has a record for this client
+                return;
+            }
+            seq = append(ADD, client);
+        }
+        sync(seq);
+    }
+
+    @Override
+    public void removeClient(byte[] client) {
+        long seq;
+        synchronized (this) {
+            super.removeClient(client);
+            seq = append(REMOVE, client);
+        }
+        sync(seq);
+    }
+
+    @Override
+    public synchronized void reclaimComplete() {
+        boolean wasWaiting = waitingForReclaim();
+        super.reclaimComplete();
+        if (wasWaiting) {
+            // drop clients which have not reclaimed
+            compactUnchecked();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        synchronized (_syncLock) {
+            _channel.close();
+        }
+    }
+
+    /**
+     * Write a record into the log without waiting for it to reach the disk.
+     *
+     * @return sequence number of the record to pass to {@link #sync(long)}.
+     */
+    private long append(byte type, byte[] client) {
+        try {
+            ByteBuffer record = ByteBuffer.allocate(5 + client.length);
+            record.put(type).putInt(client.length).put(client).flip();
+            writeFully(_channel, record);
+            _records++;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to update client recovery log " + _path, e);
+        }
+
+        long seq = ++_appended;
+        if (_records > COMPACTION_THRESHOLD && _records > 2 * recoverableClients().size()) {
+            compactUnchecked();
+        }
+        return seq;
+    }
+
+    /**
+     * Wait until the record with the given sequence number is on the disk.
+     * A single sync covers all records written so far, thus concurrent
+     * updates share one fsync instead of issuing one each.
+     */
+    private void sync(long seq) {
+        synchronized (_syncLock) {
+            if (_synced >= seq) {
+                return;
+            }
+            long appended = _appended;
+            try {
+                _channel.force(false);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to sync client recovery log " + _path, e);
+            }
+            _synced = appended;
+        }
+    }
+
+    private void compactUnchecked() {
+        try {
+            compact(recoverableClients());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to compact client recovery log " + _path, e);
+        }
+    }
+
+    /**
+     * Replace the log with a new one, which contains only provided clients.
+     */
+    private void compact(Collection<Opaque> clients) throws IOException {
+
+        Path tmp = _path.resolveSibling(_path.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+
+            ByteBuffer header = ByteBuffer.allocate(4);
+            header.putInt(MAGIC).flip();
+            writeFully(out, header);
+            for (Opaque client : clients) {
+                byte[] owner = client.getOpaque();
+                ByteBuffer record = ByteBuffer.allocate(5 + owner.length);
+                record.put(ADD).putInt(owner.length).put(owner).flip();
+                writeFully(out, record);
+            }
+            out.force(true);
+        }
+
+        synchronized (_syncLock) {
+            if (_channel != null) {
+                _channel.close();
+            }
+            Files.move(tmp, _path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            _channel = FileChannel.open(_path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            // the new log is already on the disk
+            _synced = _appended;
+        }
+        _records = clients.size();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Read the log and return the clients, which have been recorded but not removed.
+     */
+    private static Set<Opaque> replay(Path path) throws IOException {
+
+        Set<Opaque> clients = new HashSet<>();
+        if (!Files.exists(path)) {
+            return clients;
+        }
+
+        ByteBuffer log = ByteBuffer.wrap(Files.readAllBytes(path));
+        if (log.remaining() < 4 || log.getInt() != MAGIC) {
+            throw new IOException("Not a client recovery log: " + path);
+        }
+
+        /*
+         * After a crash the tail of the log might be incomplete or zero-filled.
+         * The log is valid up to the first broken record, the rest is dropped
+         * by compaction.
+         */
+        while (log.hasRemaining()) {
+            int offset = log.position();
+            if (log.remaining() < 5) {
+                _log.warn("Ignoring truncated record at offset {} of {}", offset, path);
+                break;
+            }
+            byte type = log.get();
+            int len = log.getInt();
+            if (type != ADD && type != REMOVE) {
+                _log.warn("Ignoring invalid record type {} at offset {} and the rest of {}", type, offset, path);
+                break;
+            }
+            if (len < 0 || len > log.remaining()) {
+                _log.warn("Ignoring truncated record at offset {} of {}", offset, path);
+                break;
+            }
+            byte[] owner = new byte[len];
+            log.get(owner);
+            if (type == ADD) {
+                clients.add(new Opaque(owner));
+            } else {
+                clients.remove(new Opaque(owner));
+            }
+        }
+        return clients;
+    }
+}
@@ -20,26 +20,51 @@
 package org.dcache.nfs.v4;
 
 import com.google.common.util.concurrent.Striped;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import org.dcache.nfs.ChimeraNFSException;
 import org.dcache.nfs.status.BadStateidException;
+import org.dcache.nfs.status.DelayException;
 import org.dcache.nfs.status.InvalException;
 import org.dcache.nfs.status.ShareDeniedException;
+import org.dcache.nfs.v4.xdr.aceflag4;
+import org.dcache.nfs.v4.xdr.fattr4;
+import org.dcache.nfs.v4.xdr.acemask4;
+import org.dcache.nfs.v4.xdr.acetype4;
+import org.dcache.nfs.v4.xdr.limit_by4;
+import org.dcache.nfs.v4.xdr.nfs4_prot;
+import org.dcache.nfs.v4.xdr.nfs_space_limit4;
+import org.dcache.nfs.v4.xdr.nfsace4;
+import org.dcache.nfs.v4.xdr.open_delegation4;
+import org.dcache.nfs.v4.xdr.open_delegation_type4;
+import org.dcache.nfs.v4.xdr.open_none_delegation4;
+import org.dcache.nfs.v4.xdr.open_read_delegation4;
+import org.dcache.nfs.v4.xdr.open_write_delegation4;
 import org.dcache.nfs.v4.xdr.stateid4;
+import org.dcache.nfs.v4.xdr.uint32_t;
+import org.dcache.nfs.v4.xdr.uint64_t;
+import org.dcache.nfs.v4.xdr.utf8str_mixed;
+import org.dcache.nfs.v4.xdr.why_no_delegation4;
 import org.dcache.nfs.vfs.Inode;
+import org.dcache.nfs.vfs.Stat;
+import org.dcache.oncrpc4j.xdr.Xdr;
 import org.dcache.utils.Opaque;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
- * A class which tracks open files.
+ * A class which tracks open files and delegations granted on them.
  */
 public class FileTracker {
 
+    private static final Logger _log = LoggerFactory.getLogger(FileTracker.class);
+
     /*
      * we use {@link Striped} locks here to split synchronized block on open files
      * into multiple partitions to increase concurrency, while guaranteeing atomicity
@@ -51,7 +76,32 @@ public class FileTracker {
      * FIXME: get number of threads from RPC service.
      */
     private final Striped<Lock> filesLock = Striped.lock(Runtime.getRuntime().availableProcessors()*4);
-    private final Map<Opaque, List<OpenState>> files = Collections.synchronizedMap(new HashMap<>());
+
+    /*
+     * Opens and delegations by file id. An entry is modified only with the
+     * file's lock held, thus the map itself must only be safe for concurrent
+     * access to different files.
+     */
+    private final ConcurrentMap<Opaque, OpenFile> files = new ConcurrentHashMap<>();
+
+    /**
+     * Number of delegations granted on all files.
+     */
+    private final AtomicInteger delegationCount = new AtomicInteger();
+
+    private final DelegationManager delegationManager;
+
+    public FileTracker() {
+        this(new DelegationManager("NFSv41 delegations", NFSv4Defaults.NFS4_LEASE_TIME * 1000));
+    }
+
+    /**
+     * Create new file tracker.
+     * @param delegationManager used to recall delegations on conflicting opens.
+     */
+    public FileTracker(DelegationManager delegationManager) {
+        this.delegationManager = delegationManager;
+    }
 
     private static class OpenState {
 
@@ -87,6 +137,101 @@ public class FileTracker {
 
     }
 
+    private static class DelegationState {
+
+        private final NFS4Client client;
+        private final stateid4 stateid;
+        private final int type;
+
+        /**
+         * Time when delegation was recalled or zero, if not recalled.
+         */
+        private long recallTime;
+
+        public DelegationState(NFS4Client client, stateid4 stateid, int type) {
+            this.client = client;
+            this.stateid = stateid;
+            this.type = type;
+        }
+    }
+
+    /**
+     * Opens and delegations of a single file together with the number of opens
+     * per share access and share deny mode, which allow to check for a
+     * conflicting share reservation without scanning all opens.
+     */
+    private static class OpenFile {
+
+        private final List<OpenState> opens = new ArrayList<>(1);
+        private final List<DelegationState> delegations = new ArrayList<>(1);
+
+        private int readers;
+        private int writers;
+        private int readDenies;
+        private int writeDenies;
+
+        /**
+         * Check whether any open conflicts with given share access and deny
+         * mode. Opens of clients with expired lease are ignored.
+         */
+        boolean hasConflict(int shareAccess, int shareDeny) {
+            if (!mayConflict(shareAccess, shareDeny)) {
+                return false;
+            }
+            // check client as session GC may not be active yet
+            for (OpenState o : opens) {
+                if (o.client.isLeaseValid()
+                        && ((shareAccess & o.getShareDeny()) != 0 || (shareDeny & o.getShareAccess()) != 0)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean mayConflict(int shareAccess, int shareDeny) {
+            return ((shareAccess & nfs4_prot.OPEN4_SHARE_ACCESS_READ) != 0 && readDenies > 0)
+                    || ((shareAccess & nfs4_prot.OPEN4_SHARE_ACCESS_WRITE) != 0 && writeDenies > 0)
+                    || ((shareDeny & nfs4_prot.OPEN4_SHARE_DENY_READ) != 0 && readers > 0)
+                    || ((shareDeny & nfs4_prot.OPEN4_SHARE_DENY_WRITE) != 0 && writers > 0);
+        }
+
+        void add(OpenState os) {
+            opens.add(os);
+            count(os.shareAccess, os.shareDeny, 1);
+        }
+
+        void remove(OpenState os) {
+            opens.remove(os);
+            count(os.shareAccess, os.shareDeny, -1);
+        }
+
+        void update(OpenState os, int shareAccess, int shareDeny) {
+            count(os.shareAccess, os.shareDeny, -1);
+            os.shareAccess = shareAccess;
+            os.shareDeny = shareDeny;
+            count(shareAccess, shareDeny, 1);
+        }
+
+        private void count(int shareAccess, int shareDeny, int n) {
+            if ((shareAccess & nfs4_prot.OPEN4_SHARE_ACCESS_READ) != 0) {
+                readers += n;
+            }
+            if ((shareAccess & nfs4_prot.OPEN4_SHARE_ACCESS_WRITE) != 0) {
+                writers += n;
+            }
+            if ((shareDeny & nfs4_prot.OPEN4_SHARE_DENY_READ) != 0) {
+                readDenies += n;
+            }
+            if ((shareDeny & nfs4_prot.OPEN4_SHARE_DENY_WRITE) != 0) {
+                writeDenies += n;
+            }
+        }
+
+        boolean isEmpty() {
+            return opens.isEmpty() && delegations.isEmpty();
+        }
+    }
+
     /**
      * Add a new open to the list of open files. If provided {@code shareAccess}
      * and {@code shareDeny} conflicts with existing opens, @{link ShareDeniedException}
@@ -102,42 +247,36 @@ public class FileTracker {
      */
     public stateid4 addOpen(NFS4Client client, StateOwner owner, Inode inode, int shareAccess, int shareDeny) throws  ChimeraNFSException {
 
-        Opaque fileId = new Opaque(inode.getFileId());
+        Opaque fileId = inode.getFileIdKey();
         Lock lock = filesLock.get(fileId);
         lock.lock();
         try {
-            /*
-             * check for existing opens on that file
-             * initialize new array with size of one, as this is what the majority of cases will be
-             */
-            final List<OpenState> opens = files.computeIfAbsent(fileId, x -> new ArrayList<>(1));
-
-            stateid4 stateid;
-            // check for conflickting open from not expired client (we need to check
-            // client as session GC may not beed active yet
-            if (opens.stream()
-                    .filter(o -> o.client.isLeaseValid())
-                    .anyMatch(o -> (shareAccess & o.getShareDeny()) != 0|| (shareDeny & o.getShareAccess()) != 0)) {
-                    throw new ShareDeniedException("Conflicting share");
-            }
+            recallConflictingDelegations(client, fileId, inode,
+                    (shareAccess & nfs4_prot.OPEN4_SHARE_ACCESS_WRITE) != 0);
 
-            // if there is an another open from the same client we must merge
-            // access mode and return the same stateid as required by rfc5661#18.16.3
+            final OpenFile openFile = files.get(fileId);
+            if (openFile != null) {
+                // check for conflickting open from not expired client
+                if (openFile.hasConflict(shareAccess, shareDeny)) {
+                    throw new ShareDeniedException("Conflicting share");
+                }
 
-            for (OpenState os : opens) {
-                if (os.client.getId() == client.getId() &&
-                        os.getOwner().equals(owner)) {
-                        os.shareAccess |= shareAccess;
-                        os.shareDeny |= shareDeny;
+                // if there is an another open from the same client we must merge
+                // access mode and return the same stateid as required by rfc5661#18.16.3
+                for (OpenState os : openFile.opens) {
+                    if (os.client.getId() == client.getId()
+                            && os.getOwner().equals(owner)) {
+                        openFile.update(os, os.shareAccess | shareAccess, os.shareDeny | shareDeny);
                         os.stateid.seqid.value++;
                         return os.stateid;
+                    }
                 }
             }
 
             NFS4State state = client.createState(owner);
-            stateid = state.stateid();
+            stateid4 stateid = state.stateid();
             OpenState openState = new OpenState(client, owner, stateid, shareAccess, shareDeny);
-            opens.add(openState);
+            files.computeIfAbsent(fileId, x -> new OpenFile()).add(openState);
             state.addDisposeListener(s -> removeOpen(inode, stateid));
             return stateid;
         } finally {
@@ -158,17 +297,12 @@ public class FileTracker {
      */
     public stateid4 downgradeOpen(NFS4Client client, stateid4 stateid, Inode inode, int shareAccess, int shareDeny) throws ChimeraNFSException {
 
-        Opaque fileId = new Opaque(inode.getFileId());
+        Opaque fileId = inode.getFileIdKey();
         Lock lock = filesLock.get(fileId);
         lock.lock();
         try {
-            final List<OpenState> opens = files.get(fileId);
-
-            OpenState os = opens.stream()
-                    .filter(s -> client.getId() == s.client.getId())
-                    .filter(s -> s.stateid.equals(stateid))
-                    .findFirst()
-                    .orElseThrow(BadStateidException::new);
+            final OpenFile openFile = files.get(fileId);
+            OpenState os = findOpen(openFile, client, stateid);
 
             if ((os.shareAccess & shareAccess) != shareAccess) {
                 throw new InvalException("downgrading to not owned share_access mode");
@@ -178,8 +312,7 @@ public class FileTracker {
                 throw new InvalException("downgrading to not owned share_deny mode");
             }
 
-            os.shareAccess = shareAccess;
-            os.shareDeny = shareDeny;
+            openFile.update(os, shareAccess, shareDeny);
 
             os.stateid.seqid.value++;
             return os.stateid;
@@ -195,28 +328,20 @@ public class FileTracker {
      */
     void removeOpen(Inode inode, stateid4 stateid) {
 
-        Opaque fileId = new Opaque(inode.getFileId());
+        Opaque fileId = inode.getFileIdKey();
         Lock lock = filesLock.get(fileId);
         lock.lock();
         try {
-            final List<OpenState> opens = files.get(fileId);
+            final OpenFile openFile = files.get(fileId);
 
-            if (opens != null) {
-                Iterator<OpenState> osi = opens.iterator();
-                while(osi.hasNext()) {
-                    OpenState os = osi.next();
+            if (openFile != null) {
+                for (OpenState os : openFile.opens) {
                     if (os.stateid.equals(stateid)) {
-                        osi.remove();
+                        openFile.remove(os);
                         break;
                     }
                 }
-
-                /**
-                 * As we hold the lock, nobody else have added something into it.
-                 */
-                if (opens.isEmpty()) {
-                    files.remove(fileId);
-                }
+                removeIfEmpty(fileId, openFile);
             }
         } finally {
             lock.unlock();
@@ -224,33 +349,508 @@ public class FileTracker {
     }
 
     /**
-     * Get open access type used by opened file.
+     * Get open access type used by opened file. A delegation stateid grants
+     * read access for read delegations and read-write access for write delegations.
      * @param client nfs client which performs the request.
      * @param inode of the opened file
-     * @param stateid associated with the open.
+     * @param stateid associated with the open or delegation.
      * @return share access typed used.
-     * @throws BadStateidException if no open file associated with provided state id.
+     * @throws BadStateidException if no open file or delegation associated with provided state id.
      */
     public int getShareAccess(NFS4Client client, Inode inode, stateid4 stateid) throws BadStateidException {
 
-        Opaque fileId = new Opaque(inode.getFileId());
+        Opaque fileId = inode.getFileIdKey();
         Lock lock = filesLock.get(fileId);
         lock.lock();
         try {
-            final List<OpenState> opens = files.get(fileId);
+            OpenFile openFile = files.get(fileId);
+            if (openFile != null) {
+                for (DelegationState d : openFile.delegations) {
+                    if (d.client.getId() == client.getId() && d.stateid.equals(stateid)) {
+                        return d.type == open_delegation_type4.OPEN_DELEGATE_WRITE
+                                ? nfs4_prot.OPEN4_SHARE_ACCESS_BOTH : nfs4_prot.OPEN4_SHARE_ACCESS_READ;
+                    }
+                }
+            }
+            return findOpen(openFile, client, stateid).getShareAccess();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Recall delegations of other clients, which conflict with an access to
+     * the file outside of an open, like I/O of NFSv3 clients or with anonymous
+     * stateid, truncation, remove or rename.
+     *
+     * @param client nfs client performing the request or null, if the request
+     * is not associated with a NFSv4.1 client.
+     * @param inode of the accessed file.
+     * @param forWrite true, if file is modified, which conflicts with read
+     * delegations as well.
+     * @throws DelayException if there are conflicting delegations.
+     */
+    public void recallDelegations(NFS4Client client, Inode inode, boolean forWrite) throws DelayException {
+
+        if (delegationCount.get() == 0) {
+            return;
+        }
+
+        Opaque fileId = inode.getFileIdKey();
+        Lock lock = filesLock.get(fileId);
+        lock.lock();
+        try {
+            recallConflictingDelegations(client, fileId, inode, forWrite);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Check whatever there are delegations on any file. Allows to avoid
+     * expensive preparation of {@link #recallDelegations}, like lookup of
+     * the file to remove.
+     *
+     * @return true if at least one delegation is granted.
+     */
+    public boolean hasDelegations() {
+        return delegationCount.get() > 0;
+    }
+
+    /**
+     * Get attributes of a file, which may be delegated for writing to another
+     * client. As the delegation holder may have modified the file without
+     * telling the server, it's asked for file's size and change attribute with
+     * CB_GETATTR. If the holder doesn't reply, the delegation is recalled.
+     *
+     * @param client nfs client performing the request or null, if the request
+     * is not associated with a NFSv4.1 client.
+     * @param inode of the file.
+     * @param stat attributes of the file known by the server.
+     * @return attributes of the file as seen by the delegation holder.
+     * @throws DelayException if the delegation is recalled.
+     */
+    public Stat getDelegatedAttributes(NFS4Client client, Inode inode, Stat stat) throws DelayException {
+
+        if (delegationCount.get() == 0) {
+            return stat;
+        }
 
-            if (opens == null) {
-                throw new BadStateidException("no matching open");
+        Opaque fileId = inode.getFileIdKey();
+        Lock lock = filesLock.get(fileId);
+        DelegationState holder = null;
+        boolean recalled = false;
+        lock.lock();
+        try {
+            OpenFile openFile = files.get(fileId);
+            if (openFile != null) {
+                for (DelegationState d : openFile.delegations) {
+                    if (d.type == open_delegation_type4.OPEN_DELEGATE_WRITE
+                            && (client == null || d.client.getId() != client.getId())) {
+                        holder = d;
+                        recalled = d.recallTime != 0;
+                        break;
+                    }
+                }
             }
+        } finally {
+            lock.unlock();
+        }
+
+        if (holder == null) {
+            return stat;
+        }
 
-            return opens.stream()
-                    .filter(s -> client.getId() == s.client.getId())
-                    .filter(s -> s.stateid.equals(stateid))
-                    .map(OpenState::getShareAccess)
-                    .findFirst()
-                    .orElseThrow(BadStateidException::new);
+        if (recalled) {
+            // wait for the client to return the delegation
+            recallDelegations(client, inode, false);
+            return stat;
+        }
+
+        // don't block other requests on the file while waiting for the client
+        try {
+            return withClientAttributes(stat, delegationManager.getAttributes(holder.client, inode));
+        } catch (IOException e) {
+            _log.info("CB_GETATTR to {} failed: {}, recalling delegation", holder.client, e.getMessage());
+        }
+
+        recallDelegations(client, inode, false);
+        return stat;
+    }
+
+    /**
+     * Merge size and change attribute reported by the delegation holder into
+     * file's attributes. If the client has modified the file, the change
+     * attribute and modification time are advanced.
+     */
+    private static Stat withClientAttributes(Stat stat, fattr4 attributes) throws IOException {
+
+        long change = stat.getGeneration();
+        long size = stat.getSize();
+        try (Xdr xdr = new Xdr(attributes.attr_vals.value)) {
+            xdr.beginDecoding();
+            for (int i : attributes.attrmask) {
+                switch (i) {
+                    case nfs4_prot.FATTR4_CHANGE:
+                        change = xdr.xdrDecodeLong();
+                        break;
+                    case nfs4_prot.FATTR4_SIZE:
+                        size = xdr.xdrDecodeLong();
+                        break;
+                    default:
+                        throw new IOException("Unexpected attribute in CB_GETATTR reply: " + i);
+                }
+            }
+            xdr.endDecoding();
+        }
+
+        if (change == stat.getGeneration() && size == stat.getSize()) {
+            return stat;
+        }
+
+        Stat modified = stat.clone();
+        modified.setSize(size);
+        modified.setGeneration(stat.getGeneration() + 1);
+        modified.setMTime(System.currentTimeMillis());
+        return modified;
+    }
+
+    /**
+     * Try to grant a delegation to the client, which has opened the file.
+     * A read delegation is granted if no other client has the file open
+     * for writing, a write delegation is granted if no other client has the
+     * file open at all.
+     *
+     * @param client nfs client performing the open operation.
+     * @param owner open state owner.
+     * @param inode of opened file.
+     * @param shareAccess type of access and delegation wanted by client.
+     * @return the granted delegation or a reason why no delegation is granted.
+     * @throws ChimeraNFSException
+     */
+    public open_delegation4 grantDelegation(NFS4Client client, StateOwner owner, Inode inode, int shareAccess) throws ChimeraNFSException {
+
+        Opaque fileId = inode.getFileIdKey();
+        Lock lock = filesLock.get(fileId);
+        lock.lock();
+        try {
+            open_delegation4 delegation = delegate(client, owner, fileId, inode, shareAccess);
+            // the reason is reported only to v4.1 clients, which have asked for a delegation
+            if (delegation.delegation_type == open_delegation_type4.OPEN_DELEGATE_NONE_EXT
+                    && (client.getMinorVersion() == 0
+                    || (shareAccess & nfs4_prot.OPEN4_SHARE_ACCESS_WANT_DELEG_MASK) == nfs4_prot.OPEN4_SHARE_ACCESS_WANT_NO_PREFERENCE)) {
+                return noDelegation();
+            }
+            return delegation;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Try to grant a delegation to the client on a file, which it already
+     * has open, as requested by WANT_DELEGATION.
+     *
+     * @param client nfs client performing the request.
+     * @param inode of the file.
+     * @param want type of delegation wanted by client.
+     * @return the granted delegation or a reason why no delegation is granted.
+     * @throws ChimeraNFSException
+     */
+    public open_delegation4 wantDelegation(NFS4Client client, Inode inode, int want) throws ChimeraNFSException {
+
+        Opaque fileId = inode.getFileIdKey();
+        Lock lock = filesLock.get(fileId);
+        lock.lock();
+        try {
+            OpenFile openFile = files.get(fileId);
+            if (openFile == null) {
+                return noDelegation(why_no_delegation4.WND4_RESOURCE);
+            }
+
+            StateOwner owner = null;
+            int shareAccess = 0;
+            for (OpenState os : openFile.opens) {
+                if (os.client.getId() == client.getId()) {
+                    owner = os.getOwner();
+                    shareAccess |= os.getShareAccess() & nfs4_prot.OPEN4_SHARE_ACCESS_BOTH;
+                }
+            }
+
+            if (owner == null) {
+                return noDelegation(why_no_delegation4.WND4_RESOURCE);
+            }
+
+            return delegate(client, owner, fileId, inode, shareAccess | want);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove delegation on returned by the client.
+     *
+     * @param client nfs client returning the delegation.
+     * @param inode of delegated file.
+     * @param stateid associated with the delegation.
+     * @throws BadStateidException if client holds no such delegation.
+     */
+    public void returnDelegation(NFS4Client client, Inode inode, stateid4 stateid) throws ChimeraNFSException {
+
+        Opaque fileId = inode.getFileIdKey();
+        Lock lock = filesLock.get(fileId);
+        lock.lock();
+        try {
+            OpenFile openFile = files.get(fileId);
+            if (openFile == null || openFile.delegations.stream()
+                    .noneMatch(d -> d.client.getId() == client.getId() && d.stateid.equals(stateid))) {
+                throw new BadStateidException("no matching delegation");
+            }
+
+            // dispose listener will remove the delegation
+            client.releaseState(stateid);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get number of delegations granted on all files.
+     * @return number of delegations.
+     */
+    public int getDelegationCount() {
+        return delegationCount.get();
+    }
+
+    private open_delegation4 delegate(NFS4Client client, StateOwner owner, Opaque fileId, Inode inode, int shareAccess) throws ChimeraNFSException {
+
+        int want = shareAccess & nfs4_prot.OPEN4_SHARE_ACCESS_WANT_DELEG_MASK;
+        boolean forWrite = (shareAccess & nfs4_prot.OPEN4_SHARE_ACCESS_WRITE) != 0;
+
+        // only 4.1 clients with callback channel can be recalled
+        if (client.getMinorVersion() == 0 || client.getCB() == null) {
+            return noDelegation(why_no_delegation4.WND4_RESOURCE);
+        }
+
+        switch (want) {
+            case nfs4_prot.OPEN4_SHARE_ACCESS_WANT_NO_PREFERENCE:
+            case nfs4_prot.OPEN4_SHARE_ACCESS_WANT_ANY_DELEG:
+                break;
+            case nfs4_prot.OPEN4_SHARE_ACCESS_WANT_READ_DELEG:
+                if (forWrite) {
+                    return noDelegation(why_no_delegation4.WND4_NOT_SUPP_DOWNGRADE);
+                }
+                break;
+            case nfs4_prot.OPEN4_SHARE_ACCESS_WANT_WRITE_DELEG:
+                if (!forWrite) {
+                    return noDelegation(why_no_delegation4.WND4_NOT_SUPP_UPGRADE);
+                }
+                break;
+            case nfs4_prot.OPEN4_SHARE_ACCESS_WANT_CANCEL:
+                return noDelegation(why_no_delegation4.WND4_CANCELED);
+            default:
+                return noDelegation(why_no_delegation4.WND4_NOT_WANTED);
+        }
+
+        OpenFile openFile = files.get(fileId);
+        if (openFile != null) {
+            for (DelegationState d : openFile.delegations) {
+                if (d.client.getId() == client.getId()) {
+                    // client already holds a delegation
+                    return noDelegation(why_no_delegation4.WND4_NOT_WANTED);
+                }
+                if (d.recallTime != 0 || forWrite || d.type == open_delegation_type4.OPEN_DELEGATE_WRITE) {
+                    return noDelegation(why_no_delegation4.WND4_CONTENTION);
+                }
+            }
+        }
+
+        if (openFile != null && (forWrite || openFile.writers > 0) && openFile.opens.stream()
+                .filter(o -> o.client.getId() != client.getId())
+                .filter(o -> o.client.isLeaseValid())
+                .anyMatch(o -> forWrite || (o.getShareAccess() & nfs4_prot.OPEN4_SHARE_ACCESS_WRITE) != 0)) {
+            return noDelegation(why_no_delegation4.WND4_CONTENTION);
+        }
+
+        int type = forWrite ? open_delegation_type4.OPEN_DELEGATE_WRITE : open_delegation_type4.OPEN_DELEGATE_READ;
+
+        NFS4State state = client.createState(owner);
+        state.confirm();
+        stateid4 stateid = state.stateid();
+        files.computeIfAbsent(fileId, x -> new OpenFile())
+                .delegations.add(new DelegationState(client, stateid, type));
+        delegationCount.incrementAndGet();
+        state.addDisposeListener(s -> removeDelegation(inode, stateid));
+        delegationManager.granted(type);
+
+        open_delegation4 delegation = new open_delegation4();
+        delegation.delegation_type = type;
+        if (forWrite) {
+            delegation.write = new open_write_delegation4();
+            delegation.write.stateid = stateid;
+            delegation.write.recall = false;
+            delegation.write.space_limit = new nfs_space_limit4();
+            delegation.write.space_limit.limitby = limit_by4.NFS_LIMIT_SIZE;
+            delegation.write.space_limit.filesize = new uint64_t(Long.MAX_VALUE);
+            delegation.write.permissions = noPermissions();
+        } else {
+            delegation.read = new open_read_delegation4();
+            delegation.read.stateid = stateid;
+            delegation.read.recall = false;
+            delegation.read.permissions = noPermissions();
+        }
+        return delegation;
+    }
+
+    /**
+     * Recall delegations of other clients, which conflict with a new open or
+     * an access to the file. Must be called with file's lock held.
+     * @param client nfs client performing the request or null.
+     * @throws DelayException if there are conflicting delegations.
+     */
+    private void recallConflictingDelegations(NFS4Client client, Opaque fileId, Inode inode, boolean forWrite) throws DelayException {
+
+        OpenFile openFile = files.get(fileId);
+        if (openFile == null || openFile.delegations.isEmpty()) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        boolean conflict = false;
+
+        // revoke may modify the list
+        for (DelegationState d : new ArrayList<>(openFile.delegations)) {
+
+            if (client != null && d.client.getId() == client.getId()) {
+                continue;
+            }
+
+            if (d.type == open_delegation_type4.OPEN_DELEGATE_READ && !forWrite) {
+                continue;
+            }
+
+            if (!d.client.isLeaseValid()) {
+                revoke(fileId, d);
+                continue;
+            }
+
+            if (d.recallTime == 0) {
+                d.recallTime = now;
+                delegationManager.recall(d.client, inode, d.stateid);
+            } else if (delegationManager.isRecallExpired(d.recallTime, now)) {
+                _log.warn("Revoking delegation {} not returned by {}", d.stateid, d.client);
+                revoke(fileId, d);
+                delegationManager.revoked();
+                continue;
+            }
+            conflict = true;
+        }
+
+        if (conflict) {
+            throw new DelayException("Delegation recall in progress");
+        }
+    }
+
+    private void revoke(Opaque fileId, DelegationState d) {
+        removeDelegation(fileId, d.stateid);
+        try {
+            d.client.releaseState(d.stateid);
+        } catch (ChimeraNFSException e) {
+            // state already gone
+        }
+    }
+
+    /**
+     * Remove a delegation from the list.
+     * @param inode of the delegated file
+     * @param stateid associated with the delegation.
+     */
+    void removeDelegation(Inode inode, stateid4 stateid) {
+
+        Opaque fileId = inode.getFileIdKey();
+        Lock lock = filesLock.get(fileId);
+        lock.lock();
+        try {
+            DelegationState d = removeDelegation(fileId, stateid);
+            if (d != null && d.recallTime != 0) {
+                delegationManager.returnedAfterRecall(System.currentTimeMillis() - d.recallTime);
+            }
         } finally {
             lock.unlock();
         }
     }
+
+    private DelegationState removeDelegation(Opaque fileId, stateid4 stateid) {
+
+        final OpenFile openFile = files.get(fileId);
+        if (openFile == null) {
+            return null;
+        }
+
+        DelegationState removed = null;
+        Iterator<DelegationState> i = openFile.delegations.iterator();
+        while (i.hasNext()) {
+            DelegationState d = i.next();
+            if (d.stateid.equals(stateid)) {
+                i.remove();
+                delegationCount.decrementAndGet();
+                removed = d;
+                break;
+            }
+        }
+
+        removeIfEmpty(fileId, openFile);
+        return removed;
+    }
+
+    /**
+     * Find an open of the client with given stateid.
+     * @throws BadStateidException if there is no such open.
+     */
+    private static OpenState findOpen(OpenFile openFile, NFS4Client client, stateid4 stateid) throws BadStateidException {
+        if (openFile != null) {
+            for (OpenState os : openFile.opens) {
+                if (client.getId() == os.client.getId() && os.stateid.equals(stateid)) {
+                    return os;
+                }
+            }
+        }
+        throw new BadStateidException("no matching open");
+    }
+
+    /**
+     * Remove file's entry, if there are no opens or delegations. As the file's
+     * lock is held, nobody else can add something into it.
+     */
+    private void removeIfEmpty(Opaque fileId, OpenFile openFile) {
+        if (openFile.isEmpty()) {
+            files.remove(fileId);
+        }
+    }
+
+    private static open_delegation4 noDelegation() {
+        open_delegation4 delegation = new open_delegation4();
+        delegation.delegation_type = open_delegation_type4.OPEN_DELEGATE_NONE;
+        return delegation;
+    }
+
+    private static open_delegation4 noDelegation(int why) {
+        open_delegation4 delegation = new open_delegation4();
+        delegation.delegation_type = open_delegation_type4.OPEN_DELEGATE_NONE_EXT;
+        delegation.od_whynone = new open_none_delegation4();
+        delegation.od_whynone.ond_why = why;
+        return delegation;
+    }
+
+    /**
+     * An empty ACE, which tells to the client to check access with the server.
+     */
+    private static nfsace4 noPermissions() {
+        nfsace4 ace = new nfsace4();
+        ace.type = new acetype4(new uint32_t(nfs4_prot.ACE4_ACCESS_ALLOWED_ACE_TYPE));
+        ace.flag = new aceflag4(new uint32_t(0));
+        ace.access_mask = new acemask4(new uint32_t(0));
+        ace.who = new utf8str_mixed("");
+        return ace;
+    }
 }
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2018 Deutsches Elektronen-Synchroton,
+ * Member of the Helmholtz Association, (DESY), HAMBURG, GERMANY
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Library General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public
+ * License along with this program (see the file COPYING.LIB for more
+ * details); if not, write to the Free Software Foundation, Inc.,
+ * 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.dcache.nfs.v4;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import org.dcache.utils.Opaque;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link ClientRecoveryStore} which keeps client records in memory only.
+ * A store of the next server instance can be created from an existing store to
+ * simulate server restart.
+ */
+public class InMemoryClientRecoveryStore implements ClientRecoveryStore {
+
+    private static final Logger _log = LoggerFactory.getLogger(InMemoryClientRecoveryStore.class);
+
+    /**
+     * Clients of this server instance.
+     */
+    private final Set<Opaque> _clients = new HashSet<>();
+
+    /**
+     * Clients of the previous server instance, which have not reclaimed their state yet.
+     */
+    private final Set<Opaque> _reclaimable = new HashSet<>();
+
+    /**
+     * Create an empty store with nothing to recover.
+     */
+    public InMemoryClientRecoveryStore() {
+    }
+
+    /**
+     * Create a store for the next server instance. The clients known by the
+     * {@code previousInstance} are allowed to reclaim their state.
+     *
+     * @param previousInstance client store of the previous server instance.
+     */
+    public InMemoryClientRecoveryStore(InMemoryClientRecoveryStore previousInstance) {
+        this(previousInstance.recoverableClients());
+    }
+
+    /**
+     * Create a store, where provided clients are allowed to reclaim their state.
+     *
+     * @param reclaimable client owner ids of the previous server instance.
+     */
+    protected InMemoryClientRecoveryStore(Collection<Opaque> reclaimable) {
+        _reclaimable.addAll(reclaimable);
+    }
+
+    @Override
+    public synchronized void addClient(byte[] client) {
+        _clients.add(new Opaque(client));
+    }
+
+    @Override
+    public synchronized void removeClient(byte[] client) {
+        Opaque key = new Opaque(client);
+        _clients.remove(key);
+        _reclaimable.remove(key);
+    }
+
+    @Override
+    public synchronized void reclaimClient(byte[] client) {
+        if (_reclaimable.remove(new Opaque(client)) && _reclaimable.isEmpty()) {
+            _log.info("All clients have reclaimed their state, grace period is over.");
+        }
+    }
+
+    @Override
+    public synchronized void reclaimComplete() {
+        if (!_reclaimable.isEmpty()) {
+            _log.info("Grace period is over, {} clients did not reclaim their state.", _reclaimable.size());
+        }
+        _reclaimable.clear();
+    }
+
+    @Override
+    public synchronized boolean waitingForReclaim() {
+        return !_reclaimable.isEmpty();
+    }
+
+    @Override
+    public synchronized boolean wantReclaim(byte[] client) {
+        return _reclaimable.contains(new Opaque(client));
+    }
+
+    /**
+     * Check whatever the client is known to this store, either as a client of
+     * this server instance or as a client of the previous instance, which still
+     * can reclaim its state.
+     *
+     * @param client client owner id.
+     * @return <tt>true</tt> iff client is recorded.
+     */
+    protected synchronized boolean isRecorded(byte[] client) {
+        Opaque key = new Opaque(client);
+        return _clients.contains(key) || _reclaimable.contains(key);
+    }
+
+    /**
+     * Get clients, which will be allowed to reclaim their state after restart.
+     * Beside the clients of this server instance, this includes the clients of
+     * the previous instance, which have not reclaimed their state yet.
+     *
+     * @return set of client owner ids.
+     */
+    protected synchronized Set<Opaque> recoverableClients() {
+        Set<Opaque> clients = new HashSet<>(_clients);
+        clients.addAll(_reclaimable);
+        return clients;
+    }
+
+    @Override
+    public void close() throws IOException {
+        // NOP
+    }
+}
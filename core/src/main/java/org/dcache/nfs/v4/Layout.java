@@ -19,6 +19,7 @@
  */
 package org.dcache.nfs.v4;
 
+import org.dcache.nfs.v4.xdr.deviceid4;
 import org.dcache.nfs.v4.xdr.stateid4;
 import org.dcache.nfs.v4.xdr.layout4;
 
@@ -53,11 +54,26 @@ public class Layout {
     private final boolean _returnOnClose;
     private final stateid4 _stateid;
     private final layout4[] _layoutSegments;
+    private final deviceid4[] _deviceIds;
 
     public Layout(boolean returnOnClose, stateid4 stateid, layout4[] layoutSegments) {
+        this(returnOnClose, stateid, layoutSegments, new deviceid4[0]);
+    }
+
+    /**
+     * Create a layout, which references provided devices. The devices are
+     * used to recall the layout when a device becomes unavailable.
+     *
+     * @param returnOnClose should the client return the layout prior close.
+     * @param stateid stateid associated with layout.
+     * @param layoutSegments layout segments.
+     * @param deviceIds devices used by layout segments.
+     */
+    public Layout(boolean returnOnClose, stateid4 stateid, layout4[] layoutSegments, deviceid4... deviceIds) {
         _returnOnClose = returnOnClose;
         _stateid = stateid;
         _layoutSegments = layoutSegments;
+        _deviceIds = deviceIds;
     }
 
     /**
@@ -83,4 +99,12 @@ public class Layout {
     public layout4[] getLayoutSegments() {
         return _layoutSegments;
     }
+
+    /**
+     * Get devices used by this layout.
+     * @return array of device ids.
+     */
+    public deviceid4[] getDeviceIds() {
+        return _deviceIds;
+    }
 }
@@ -0,0 +1,375 @@
+/*
+ * Copyright (c) 2018 Deutsches Elektronen-Synchroton,
+ * Member of the Helmholtz Association, (DESY), HAMBURG, GERMANY
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Library General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public
+ * License along with this program (see the file COPYING.LIB for more
+ * details); if not, write to the Free Software Foundation, Inc.,
+ * 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.dcache.nfs.v4;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.dcache.nfs.ChimeraNFSException;
+import org.dcache.nfs.status.NoMatchingLayoutException;
+import org.dcache.nfs.v4.xdr.deviceid4;
+import org.dcache.nfs.v4.xdr.nfs_fh4;
+import org.dcache.nfs.v4.xdr.stateid4;
+import org.dcache.nfs.vfs.Inode;
+import org.dcache.utils.Opaque;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A class which tracks layouts handed out to the clients, until they are
+ * returned. The outstanding layouts can be recalled per data server device
+ * or for the whole file system. The future returned by a recall completes
+ * when all recalled layouts are returned by the clients or revoked by the server.
+ */
+public class LayoutTracker {
+
+    private static final Logger _log = LoggerFactory.getLogger(LayoutTracker.class);
+
+    private static class LayoutState {
+
+        private final NFS4Client client;
+        private final Inode inode;
+        private final stateid4 stateid;
+        private final Set<deviceid4> devices = new HashSet<>();
+        private final CompletableFuture<Void> released = new CompletableFuture<>();
+
+        LayoutState(NFS4Client client, Inode inode, stateid4 stateid) {
+            this.client = client;
+            this.inode = inode;
+            this.stateid = stateid;
+        }
+    }
+
+    /**
+     * All outstanding layouts. The stateid's seqid is ignored by equals.
+     */
+    private final Map<stateid4, LayoutState> _layouts = new HashMap<>();
+    private final Map<deviceid4, Set<LayoutState>> _layoutsByDevice = new HashMap<>();
+    private final Map<Opaque, Set<LayoutState>> _layoutsByFile = new HashMap<>();
+    private final Map<NFS4Client, Set<LayoutState>> _layoutsByClient = new HashMap<>();
+
+    /**
+     * Time in milliseconds a client has to return a recalled layout.
+     */
+    private final long _recallTimeout;
+
+    private final ScheduledExecutorService _revokeTimer;
+
+    /**
+     * Create new layout tracker.
+     * @param recallTimeout time in milliseconds a client has to return a
+     * recalled layout before it's revoked.
+     */
+    public LayoutTracker(long recallTimeout) {
+        _recallTimeout = recallTimeout;
+        _revokeTimer = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder()
+                        .setNameFormat("pNFS layout revoke timer")
+                        .setDaemon(true)
+                        .build()
+        );
+    }
+
+    /**
+     * Record a layout handed out to the client.
+     *
+     * @param client nfs client which got the layout.
+     * @param inode of the file.
+     * @param stateid layout stateid.
+     * @param devices the devices used by the layout.
+     */
+    public void addLayout(NFS4Client client, Inode inode, stateid4 stateid, deviceid4... devices) {
+
+        boolean isNew;
+        synchronized (this) {
+            LayoutState layout = _layouts.get(stateid);
+            isNew = layout == null;
+            if (isNew) {
+                layout = new LayoutState(client, inode, stateid);
+                _layouts.put(stateid, layout);
+                _layoutsByFile.computeIfAbsent(new Opaque(inode.getFileId()), k -> new HashSet<>()).add(layout);
+                _layoutsByClient.computeIfAbsent(client, k -> new HashSet<>()).add(layout);
+            }
+
+            for (deviceid4 device : devices) {
+                if (layout.devices.add(device)) {
+                    _layoutsByDevice.computeIfAbsent(device, k -> new HashSet<>()).add(layout);
+                }
+            }
+        }
+
+        if (isNew) {
+            try {
+                // forget the layout when client's state goes away
+                client.state(stateid).addDisposeListener(s -> removeLayout(stateid));
+            } catch (ChimeraNFSException e) {
+                _log.debug("Layout stateid {} is not known to the client {}", stateid, client);
+            }
+        }
+    }
+
+    /**
+     * Remove layout returned by the client.
+     *
+     * @param client nfs client returning the layout.
+     * @param stateid layout stateid.
+     * @return true if layout was known to the tracker.
+     */
+    public boolean returnLayout(NFS4Client client, stateid4 stateid) {
+        LayoutState layout;
+        synchronized (this) {
+            layout = _layouts.get(stateid);
+            if (layout == null || layout.client != client) {
+                return false;
+            }
+            remove(layout);
+        }
+        layout.released.complete(null);
+        return true;
+    }
+
+    /**
+     * Remove all layouts of the client.
+     *
+     * @param client nfs client returning the layouts.
+     */
+    public void returnAll(NFS4Client client) {
+        List<LayoutState> layouts;
+        synchronized (this) {
+            Set<LayoutState> clientLayouts = _layoutsByClient.get(client);
+            if (clientLayouts == null) {
+                return;
+            }
+            layouts = new ArrayList<>(clientLayouts);
+            layouts.forEach(this::remove);
+        }
+        layouts.forEach(l -> l.released.complete(null));
+    }
+
+    /**
+     * Recall all layouts, which use the given device. Each layout is recalled
+     * with a separate CB_LAYOUTRECALL. Call-backs are sent in parallel.
+     *
+     * @param device the device which layouts have to be recalled.
+     * @return future which completes when all recalled layouts are returned
+     * or revoked.
+     */
+    public CompletableFuture<Void> recallByDevice(deviceid4 device) {
+
+        List<LayoutState> layouts;
+        synchronized (this) {
+            Set<LayoutState> deviceLayouts = _layoutsByDevice.get(device);
+            if (deviceLayouts == null) {
+                return CompletableFuture.completedFuture(null);
+            }
+            layouts = new ArrayList<>(deviceLayouts);
+        }
+
+        _log.info("Recalling {} layouts on device {}", layouts.size(), device);
+        for (LayoutState layout : layouts) {
+            ClientCB cb = layout.client.getCB();
+            if (cb == null) {
+                revoke(layout);
+                continue;
+            }
+            scheduleRevoke(layout);
+            cb.cbLayoutRecallFileAsync(new nfs_fh4(layout.inode.toNfsHandle()), layout.stateid)
+                    .whenComplete((r, t) -> onRecallReply(Arrays.asList(layout), t));
+        }
+        return allReleased(layouts);
+    }
+
+    /**
+     * Recall all layouts. Each client gets a single CB_LAYOUTRECALL for the
+     * whole file system. Call-backs are sent in parallel.
+     *
+     * @return future which completes when all recalled layouts are returned
+     * or revoked.
+     */
+    public CompletableFuture<Void> recallAll() {
+
+        Map<NFS4Client, List<LayoutState>> layoutsByClient;
+        synchronized (this) {
+            layoutsByClient = _layoutsByClient.entrySet().stream()
+                    .collect(Collectors.toMap(Map.Entry::getKey, e -> new ArrayList<>(e.getValue())));
+        }
+
+        _log.info("Recalling layouts of {} clients", layoutsByClient.size());
+        List<LayoutState> all = new ArrayList<>();
+        layoutsByClient.forEach((client, layouts) -> {
+            all.addAll(layouts);
+            ClientCB cb = client.getCB();
+            if (cb == null) {
+                layouts.forEach(this::revoke);
+                return;
+            }
+            layouts.forEach(this::scheduleRevoke);
+            cb.cbLayoutRecallFsidAsync()
+                    .whenComplete((r, t) -> onRecallReply(layouts, t));
+        });
+        return allReleased(all);
+    }
+
+    /**
+     * Get number of outstanding layouts.
+     * @return number of layouts.
+     */
+    public synchronized int getLayoutCount() {
+        return _layouts.size();
+    }
+
+    /**
+     * Get number of outstanding layouts, which use the given device.
+     * @param device the device.
+     * @return number of layouts.
+     */
+    public synchronized int getLayoutCount(deviceid4 device) {
+        Set<LayoutState> layouts = _layoutsByDevice.get(device);
+        return layouts == null ? 0 : layouts.size();
+    }
+
+    /**
+     * Get stateids of outstanding layouts on the given file.
+     * @param inode of the file.
+     * @return collection of layout stateids.
+     */
+    public synchronized Collection<stateid4> getLayouts(Inode inode) {
+        Set<LayoutState> layouts = _layoutsByFile.get(new Opaque(inode.getFileId()));
+        return layouts == null ? new ArrayList<>() :
+                layouts.stream().map(l -> l.stateid).collect(Collectors.toList());
+    }
+
+    /**
+     * Get stateids of outstanding layouts of the given client.
+     * @param client nfs client.
+     * @return collection of layout stateids.
+     */
+    public synchronized Collection<stateid4> getLayouts(NFS4Client client) {
+        Set<LayoutState> layouts = _layoutsByClient.get(client);
+        return layouts == null ? new ArrayList<>() :
+                layouts.stream().map(l -> l.stateid).collect(Collectors.toList());
+    }
+
+    /**
+     * Stop layout revoke timer.
+     */
+    public void shutdown() {
+        _revokeTimer.shutdown();
+    }
+
+    private void onRecallReply(Collection<LayoutState> layouts, Throwable t) {
+        if (t == null) {
+            // client will return layouts with LAYOUTRETURN
+            return;
+        }
+
+        if (t instanceof CompletionException && t.getCause() != null) {
+            t = t.getCause();
+        }
+
+        if (t instanceof NoMatchingLayoutException) {
+            // client has nothing to return
+            layouts.forEach(this::release);
+            return;
+        }
+
+        _log.warn("Failed to recall layouts from {}: {}", layouts.iterator().next().client, t.getMessage());
+        layouts.forEach(this::revoke);
+    }
+
+    private void scheduleRevoke(LayoutState layout) {
+        _revokeTimer.schedule(() -> {
+            if (!layout.released.isDone()) {
+                _log.warn("Revoking layout {} not returned by {}", layout.stateid, layout.client);
+                revoke(layout);
+            }
+        }, _recallTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Forget the layout and invalidate layout stateid.
+     */
+    private void revoke(LayoutState layout) {
+        release(layout);
+        try {
+            layout.client.releaseState(layout.stateid);
+        } catch (ChimeraNFSException e) {
+            // state already gone
+        }
+    }
+
+    private void release(LayoutState layout) {
+        synchronized (this) {
+            if (_layouts.get(layout.stateid) == layout) {
+                remove(layout);
+            }
+        }
+        layout.released.complete(null);
+    }
+
+    private void removeLayout(stateid4 stateid) {
+        LayoutState layout;
+        synchronized (this) {
+            layout = _layouts.get(stateid);
+            if (layout == null) {
+                return;
+            }
+            remove(layout);
+        }
+        layout.released.complete(null);
+    }
+
+    private void remove(LayoutState layout) {
+        _layouts.remove(layout.stateid);
+        removeFromIndex(_layoutsByFile, new Opaque(layout.inode.getFileId()), layout);
+        removeFromIndex(_layoutsByClient, layout.client, layout);
+        for (deviceid4 device : layout.devices) {
+            removeFromIndex(_layoutsByDevice, device, layout);
+        }
+    }
+
+    private static <K> void removeFromIndex(Map<K, Set<LayoutState>> index, K key, LayoutState layout) {
+        Set<LayoutState> layouts = index.get(key);
+        if (layouts != null) {
+            layouts.remove(layout);
+            if (layouts.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+
+    private static CompletableFuture<Void> allReleased(Collection<LayoutState> layouts) {
+        return CompletableFuture.allOf(layouts.stream()
+                .map(l -> l.released)
+                .toArray(CompletableFuture[]::new));
+    }
+}
@@ -143,6 +143,8 @@ public class MDSOperationFactory implements NFSv4OperationFactory {
                 return new OperationFREE_STATEID(op);
             case nfs_opnum4.OP_TEST_STATEID:
                 return new OperationTEST_STATEID(op);
+            case nfs_opnum4.OP_WANT_DELEGATION:
+                return new OperationWANT_DELEGATION(op);
             case nfs_opnum4.OP_ILLEGAL:
 
         }
@@ -121,8 +121,8 @@ public class NFS4Client {
     /**
      * sessions associated with the client
      */
-    private final Map<sessionid4, NFSv41Session> _sessions = new HashMap<>();
-    private long _cl_time = System.currentTimeMillis();        // time of last lease renewal
+    private final Map<sessionid4, NFSv41Session> _sessions = new ConcurrentHashMap<>();
+    private volatile long _cl_time = System.currentTimeMillis();        // time of last lease renewal
 
     /**
      * Open Owners associated with client.
@@ -217,6 +217,14 @@ public class NFS4Client {
         return _minorVersion;
     }
 
+    /**
+     * Get client supplied owner id, which is persistent across client reboots.
+     * @return client owner id.
+     */
+    public byte[] getOwnerId() {
+        return _ownerId;
+    }
+
     /**
      * Check whatever client belongs to the provider owner.
      * @param other client owner to test.
@@ -251,10 +259,13 @@ public class NFS4Client {
     }
 
     public synchronized void setConfirmed() {
-        _isConfirmed = true;
+        if (!_isConfirmed) {
+            _isConfirmed = true;
+            _stateHandler.clientConfirmed(this);
+        }
     }
 
-    public synchronized boolean isLeaseValid() {
+    public boolean isLeaseValid() {
         return (System.currentTimeMillis() - _cl_time) < _leaseTime;
     }
 
@@ -264,16 +275,27 @@ public class NFS4Client {
      * @throws ExpiredException if difference between current time and last
      * lease more than max_lease_time
      */
-    public synchronized void updateLeaseTime() throws ChimeraNFSException {
+    public void updateLeaseTime() throws ChimeraNFSException {
 
         long curentTime = System.currentTimeMillis();
+        long delta = curentTime - _cl_time;
+        if (delta > _leaseTime) {
+            expireLease(curentTime);
+        }
+        _cl_time = curentTime;
+    }
+
+    /*
+     * the lease is renewed on every request, thus locking is only required
+     * when it's expired.
+     */
+    private synchronized void expireLease(long curentTime) throws ChimeraNFSException {
         long delta = curentTime - _cl_time;
         if (delta > _leaseTime) {
             drainStates();
             throw new ExpiredException("lease time expired: (" + delta +"): " + BaseEncoding.base16().lowerCase().encode(_ownerId) +
                     " (" + _clientId + ").");
         }
-        _cl_time = curentTime;
     }
 
     /**
@@ -405,13 +427,15 @@ public class NFS4Client {
         }
 
         sessionid4 sessionid = _stateHandler.createSessionId(this, _sessionSequence);
-        NFSv41Session session = new NFSv41Session(this, sessionid, cacheSize, cbCacheSize, maxOps, maxCbOps);
+        NFSv41Session session = new NFSv41Session(this, sessionid, cacheSize, cbCacheSize, maxOps, maxCbOps,
+                _stateHandler.getReplyCache());
 
         _sessions.put(sessionid, session);
         _sessionSequence++;
 
         if(!_isConfirmed){
             _isConfirmed = true;
+            _stateHandler.clientConfirmed(this);
             _log.debug("set client confirmed");
         }
 
@@ -423,9 +447,10 @@ public class NFS4Client {
         if (session == null) {
             throw new BadSessionException("session not found");
         }
+        session.releaseReplies();
     }
 
-    public synchronized NFSv41Session getSession(sessionid4 id) throws BadSessionException {
+    public NFSv41Session getSession(sessionid4 id) throws BadSessionException {
         NFSv41Session session = _sessions.get(id);
         if (session == null) {
             throw new BadSessionException("session not found");
@@ -483,6 +508,9 @@ public class NFS4Client {
      */
     public final void tryDispose() {
         drainStates();
+        synchronized (this) {
+            _sessions.values().forEach(NFSv41Session::releaseReplies);
+        }
     }
 
     public synchronized void reclaimComplete() throws ChimeraNFSException {
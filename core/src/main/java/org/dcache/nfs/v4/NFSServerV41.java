@@ -33,13 +33,18 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Executor;
 import org.dcache.nfs.v4.xdr.nfs_opnum4;
 import org.dcache.nfs.vfs.PseudoFs;
 import org.dcache.nfs.vfs.VirtualFileSystem;
 import org.dcache.commons.stats.RequestExecutionTimeGauges;
+import org.dcache.utils.BoundedExecutor;
+import org.dcache.utils.VirtualThreads;
 import org.dcache.nfs.status.BadSessionException;
 import org.dcache.nfs.status.BadStateidException;
 import org.dcache.nfs.status.BadXdrException;
@@ -61,6 +66,8 @@ import org.dcache.nfs.v4.nlm.LockManager;
 import org.dcache.nfs.v4.nlm.SimpleLm;
 import org.dcache.nfs.v4.xdr.verifier4;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 public class NFSServerV41 extends nfs4_prot_NFS4_PROGRAM_ServerStub {
 
     private static final Logger _log = LoggerFactory.getLogger(NFSServerV41.class);
@@ -74,6 +81,14 @@ public class NFSServerV41 extends nfs4_prot_NFS4_PROGRAM_ServerStub {
     private final NFSv41DeviceManager _deviceManager;
     private final NFSv4StateHandler _statHandler;
     private final LockManager _nlm;
+    private final SlotTableController _slotTableController;
+    private final CompoundScheduler _compoundScheduler;
+
+    /**
+     * Executor used to process requests or null, if requests are processed
+     * by the RPC thread.
+     */
+    private final Executor _requestExecutor;
     /**
      * Verifier to indicate client that server is rebooted. Current currentTimeMillis
      * is good enough, unless server reboots within a millisecond.
@@ -85,8 +100,16 @@ public class NFSServerV41 extends nfs4_prot_NFS4_PROGRAM_ServerStub {
         _fs = builder.vfs;
         _exportFile = builder.exportFile;
         _operationFactory = builder.operationFactory;
-        _nlm = builder.nlm == null ? new SimpleLm() : builder.nlm;
-        _statHandler = builder.stateHandler == null ? new NFSv4StateHandler() : builder.stateHandler;
+        _nlm = builder.nlm == null ? new SimpleLm("NFSv41") : builder.nlm;
+        _statHandler = builder.stateHandler == null
+                ? new NFSv4StateHandler(NFSv4Defaults.NFS4_LEASE_TIME, 0, builder.maxClients) : builder.stateHandler;
+        _slotTableController = builder.slotTableController;
+        if (builder.replyCacheSize > 0) {
+            _statHandler.setReplyCache(new ReplyCache("NFSv41 reply cache",
+                    builder.replyCacheSize, builder.replyCacheOffHeap));
+        }
+        _compoundScheduler = builder.compoundScheduler;
+        _requestExecutor = builder.requestExecutor;
     }
 
     @Deprecated
@@ -98,8 +121,28 @@ public class NFSServerV41 extends nfs4_prot_NFS4_PROGRAM_ServerStub {
         _fs = fs;
         _exportFile = exportFile;
         _operationFactory = operationFactory;
-        _nlm = new SimpleLm();
+        _nlm = new SimpleLm("NFSv41");
         _statHandler = new NFSv4StateHandler();
+        _slotTableController = null;
+        _compoundScheduler = null;
+        _requestExecutor = null;
+    }
+
+    @Override
+    public void dispatchOncRpcCall(RpcCall call) throws OncRpcException, IOException {
+        if (_requestExecutor == null) {
+            super.dispatchOncRpcCall(call);
+            return;
+        }
+
+        _requestExecutor.execute(() -> {
+            try {
+                super.dispatchOncRpcCall(call);
+            } catch (IOException e) {
+                _log.warn("Failed to process request: {}", e.getMessage());
+                call.failRpcSystem();
+            }
+        });
     }
 
     @Override
@@ -113,6 +156,10 @@ public class NFSServerV41 extends nfs4_prot_NFS4_PROGRAM_ServerStub {
 
         COMPOUND4res res = new COMPOUND4res();
 
+        long started = System.nanoTime();
+        if (_slotTableController != null) {
+            _slotTableController.requestStarted();
+        }
         try {
 
             /*
@@ -151,6 +198,7 @@ public class NFSServerV41 extends nfs4_prot_NFS4_PROGRAM_ServerStub {
                     .withLockManager(_nlm)
                     .withExportFile(_exportFile)
                     .withRebootVerifier(_rebootVerifier)
+                    .withSlotTableController(_slotTableController)
                     .withCall(call$);
 
             if (_deviceManager != null) {
@@ -200,29 +248,24 @@ public class NFSServerV41 extends nfs4_prot_NFS4_PROGRAM_ServerStub {
                             }
                         }
                     }
-                    long t0 = System.nanoTime();
-                    _operationFactory.getOperation(op).process(context, opResult);
-                    GAUGES.update(nfs_opnum4.toString(op.argop), System.nanoTime() - t0);
-
-                } catch (NfsIoException | ResourceException | ServerFaultException e) {
-                    _log.error("NFS server fault: op: {} : {}", nfs_opnum4.toString(op.argop), e.getMessage());
-                    opResult.setStatus(e.getStatus());
-                } catch (BadXdrException | OpIllegalException | InvalException e) {
-                    _log.warn("Faulty NFS client: op: {} : {}", nfs_opnum4.toString(op.argop), e.getMessage());
-                    opResult.setStatus(e.getStatus());
-                } catch (BadStateidException | StaleStateidException e) {
-                    _log.warn("Bad Stateid: op: {} : {}", nfs_opnum4.toString(op.argop), e.getMessage());
-                    opResult.setStatus(e.getStatus());
-                } catch (ExpiredException | BadSessionException | StaleClientidException  e) {
-                    _log.warn("Bad client: op: {} : {}", nfs_opnum4.toString(op.argop), e.getMessage());
-                    opResult.setStatus(e.getStatus());
                 } catch (ChimeraNFSException e) {
                     opResult.setStatus(e.getStatus());
-                } catch (OncRpcException e) {
-                    opResult.setStatus(nfsstat.NFSERR_BADXDR);
-                    _log.warn("Bad xdr: {}: ", e.getMessage());
+                    res.resarray.add(opResult);
+                    res.status = opResult.getStatus();
+                    break;
                 }
 
+                if (_compoundScheduler != null && position == (minorversion == 0 ? 0 : 1)) {
+                    List<nfs_resop4> results = _compoundScheduler.execute(context, arg1.argarray, position, this::processOperation);
+                    if (results != null) {
+                        res.resarray.addAll(results);
+                        res.status = statusOfLastOperation(results);
+                        break;
+                    }
+                }
+
+                processOperation(context, op, opResult);
+
                 res.resarray.add(opResult);
                 res.status = opResult.getStatus();
                 if (res.status != nfsstat.NFS_OK) {
@@ -245,6 +288,9 @@ public class NFSServerV41 extends nfs4_prot_NFS4_PROGRAM_ServerStub {
             res.resarray = Collections.emptyList();
             res.status = nfsstat.NFSERR_SERVERFAULT;
         }finally{
+            if (_slotTableController != null) {
+                _slotTableController.requestCompleted(System.nanoTime() - started);
+            }
             MDC.remove(NfsMdc.TAG);
             MDC.remove(NfsMdc.CLIENT);
             MDC.remove(NfsMdc.SESSION);
@@ -261,6 +307,36 @@ public class NFSServerV41 extends nfs4_prot_NFS4_PROGRAM_ServerStub {
         return _statHandler;
     }
 
+    /**
+     * Process a single operation of a compound. The status of the operation is
+     * stored in {@code opResult}.
+     */
+    private void processOperation(CompoundContext context, nfs_argop4 op, nfs_resop4 opResult) throws IOException {
+        try {
+            long t0 = System.nanoTime();
+            _operationFactory.getOperation(op).process(context, opResult);
+            GAUGES.update(nfs_opnum4.toString(op.argop), System.nanoTime() - t0);
+
+        } catch (NfsIoException | ResourceException | ServerFaultException e) {
+            _log.error("NFS server fault: op: {} : {}", nfs_opnum4.toString(op.argop), e.getMessage());
+            opResult.setStatus(e.getStatus());
+        } catch (BadXdrException | OpIllegalException | InvalException e) {
+            _log.warn("Faulty NFS client: op: {} : {}", nfs_opnum4.toString(op.argop), e.getMessage());
+            opResult.setStatus(e.getStatus());
+        } catch (BadStateidException | StaleStateidException e) {
+            _log.warn("Bad Stateid: op: {} : {}", nfs_opnum4.toString(op.argop), e.getMessage());
+            opResult.setStatus(e.getStatus());
+        } catch (ExpiredException | BadSessionException | StaleClientidException  e) {
+            _log.warn("Bad client: op: {} : {}", nfs_opnum4.toString(op.argop), e.getMessage());
+            opResult.setStatus(e.getStatus());
+        } catch (ChimeraNFSException e) {
+            opResult.setStatus(e.getStatus());
+        } catch (OncRpcException e) {
+            opResult.setStatus(nfsstat.NFSERR_BADXDR);
+            _log.warn("Bad xdr: {}: ", e.getMessage());
+        }
+    }
+
     /*
      *
      * from NFSv4.1 spec:
@@ -319,6 +395,16 @@ public class NFSServerV41 extends nfs4_prot_NFS4_PROGRAM_ServerStub {
         return ops.get(ops.size() -1).getStatus();
     }
 
+    /**
+     * Get {@link SlotTableController} used by this nfs server.
+     * @return slot table controller or empty, if sessions use a fixed number
+     * of slots.
+     * @since 0.18
+     */
+    public Optional<SlotTableController> getSlotTableController() {
+        return Optional.ofNullable(_slotTableController);
+    }
+
     public RequestExecutionTimeGauges<String> getStatistics() {
         return GAUGES;
     }
@@ -331,6 +417,12 @@ public class NFSServerV41 extends nfs4_prot_NFS4_PROGRAM_ServerStub {
         private ExportFile exportFile;
         private LockManager nlm;
         private NFSv4StateHandler stateHandler;
+        private int maxClients = NFSv4Defaults.NFS4_MAX_CLIENTS;
+        private SlotTableController slotTableController;
+        private long replyCacheSize;
+        private boolean replyCacheOffHeap;
+        private CompoundScheduler compoundScheduler;
+        private Executor requestExecutor;
 
         public Builder withDeviceManager(NFSv41DeviceManager deviceManager) {
             this.deviceManager = deviceManager;
@@ -362,6 +454,74 @@ public class NFSServerV41 extends nfs4_prot_NFS4_PROGRAM_ServerStub {
             return this;
         }
 
+        /**
+         * Set maximal number of concurrently registered clients. When reached,
+         * new clients get NFS4ERR_DELAY. Ignored, if a state handler is provided
+         * with {@link #withStateHandler}.
+         */
+        public Builder withMaxClients(int maxClients) {
+            checkArgument(maxClients > 0, "maxClients must be positive");
+            this.maxClients = maxClients;
+            return this;
+        }
+
+        public Builder withSlotTableController(SlotTableController slotTableController) {
+            this.slotTableController = slotTableController;
+            return this;
+        }
+
+        /**
+         * Keep replies of sessions in a server wide reply cache of encoded
+         * replies with a limited size. A retry of a request, whose reply was
+         * evicted, gets NFS4ERR_RETRY_UNCACHED_REP. By default, each session
+         * slot keeps the last reply.
+         *
+         * @param maxBytes maximal number of bytes used by cached replies.
+         * @param offHeap whether replies are stored in direct buffers.
+         * @since 0.18
+         */
+        public Builder withReplyCache(long maxBytes, boolean offHeap) {
+            checkArgument(maxBytes > 0, "maxBytes must be positive");
+            this.replyCacheSize = maxBytes;
+            this.replyCacheOffHeap = offHeap;
+            return this;
+        }
+
+        /**
+         * Process independent operations of a compound in parallel using the
+         * given scheduler. By default, operations are processed sequentially.
+         */
+        public Builder withCompoundScheduler(CompoundScheduler compoundScheduler) {
+            this.compoundScheduler = compoundScheduler;
+            return this;
+        }
+
+        /**
+         * Process requests with the given executor instead of the RPC thread.
+         * The executor is responsible to limit the number of requests in flight.
+         *
+         * @see BoundedExecutor
+         */
+        public Builder withRequestExecutor(Executor requestExecutor) {
+            this.requestExecutor = requestExecutor;
+            return this;
+        }
+
+        /**
+         * Process each request on a new virtual thread, with at most
+         * {@code maxInFlight} requests processed concurrently. If the runtime
+         * doesn't support virtual threads (requires Java 21 or newer), requests
+         * are processed by the RPC thread.
+         */
+        public Builder withVirtualThreads(int maxInFlight) {
+            if (VirtualThreads.isSupported()) {
+                this.requestExecutor = VirtualThreads.newBoundedExecutor(maxInFlight);
+            } else {
+                _log.warn("Virtual threads are not supported by the JVM, requests are processed by RPC threads.");
+            }
+            return this;
+        }
+
         public NFSServerV41 build() {
             return new NFSServerV41(this);
         }
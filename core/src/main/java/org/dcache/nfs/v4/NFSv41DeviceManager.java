@@ -43,7 +43,9 @@ public interface NFSv41DeviceManager {
      *      LAYOUTIOMODE4_READ or LAYOUTIOMODE4_RW MUST be returned.
      * @param stateid reflecting the corresponding valid open, byte-range lock,
      *      or delegation stateid.
-     * @return
+     * @return file layout. The layout should reference the used devices, see
+     *      {@link Layout#getDeviceIds()}, to allow {@link LayoutTracker} to
+     *      recall it by device.
      * @throws IOException
      */
     public Layout layoutGet(CompoundContext context, Inode inode, layouttype4 layoutType, int ioMode, stateid4 stateid)
@@ -20,9 +20,10 @@
 package org.dcache.nfs.v4;
 
 import com.google.common.io.BaseEncoding;
-import java.util.HashSet;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import org.dcache.nfs.ChimeraNFSException;
 import org.dcache.nfs.v4.xdr.sessionid4;
 import org.dcache.nfs.v4.xdr.nfs_resop4;
@@ -32,9 +33,24 @@ public class NFSv41Session {
 
     private final sessionid4 _session;
     /**
-     * Session reply slots.
+     * Session reply slots. The array is replaced, when slot table grows.
      */
-    private final SessionSlot[] _slots;
+    private volatile SessionSlot[] _slots;
+
+    /**
+     * Highest slot id accepted by server.
+     */
+    private volatile int _highestSlot;
+
+    /**
+     * Highest slot id server wants client to use.
+     */
+    private volatile int _targetHighestSlot;
+
+    /**
+     * Time, in nanoseconds, of last slot table resize.
+     */
+    private volatile long _lastSlotTableUpdate;
     private final NFS4Client _client;
     private final int _maxOps;
     private final int _maxCbOps;
@@ -42,14 +58,43 @@ public class NFSv41Session {
     private final int _cbReplyCacheSize;
     private final Set<SessionConnection> _boundConnections;
 
+    /**
+     * Server wide reply cache used by session slots or null, if slots keep
+     * the replies.
+     */
+    private final ReplyCache _replyCache;
+    private final ReplyCache.Account _replyCacheAccount;
+
     public NFSv41Session(NFS4Client client, sessionid4 sessionid,  int replyCacheSize, int cbReplyCacheSize, int maxOps, int maxCbOps) {
+        this(client, sessionid, replyCacheSize, cbReplyCacheSize, maxOps, maxCbOps, null);
+    }
+
+    /**
+     * Create new session, which keeps replies in the given reply cache.
+     *
+     * @param client owning the session.
+     * @param sessionid id of the session.
+     * @param replyCacheSize number of slots.
+     * @param cbReplyCacheSize number of call-back slots.
+     * @param maxOps maximal number of operations per compound.
+     * @param maxCbOps maximal number of call-back operations per compound.
+     * @param replyCache server wide reply cache or null, to keep replies in slots.
+     * @since 0.18
+     */
+    public NFSv41Session(NFS4Client client, sessionid4 sessionid,  int replyCacheSize, int cbReplyCacheSize, int maxOps, int maxCbOps,
+            ReplyCache replyCache) {
         _client = client;
+        _replyCache = replyCache;
+        _replyCacheAccount = replyCache == null ? null : replyCache.newAccount();
         _slots = new SessionSlot[replyCacheSize];
+        _highestSlot = replyCacheSize - 1;
+        _targetHighestSlot = _highestSlot;
+        _lastSlotTableUpdate = System.nanoTime();
         _session = sessionid;
 	_maxOps = maxOps;
 	_maxCbOps = maxCbOps;
         _cbReplyCacheSize = cbReplyCacheSize;
-        _boundConnections = new HashSet<>();
+        _boundConnections = ConcurrentHashMap.newKeySet();
     }
 
     public sessionid4 id() {
@@ -65,7 +110,47 @@ public class NFSv41Session {
      * @return max slot id.
      */
     public int getHighestSlot() {
-        return _slots.length - 1;
+        return _highestSlot;
+    }
+
+    /**
+     * Get slot id, which server wants to be the highest used by client.
+     * @return target max slot id.
+     */
+    public int getTargetHighestSlot() {
+        return _targetHighestSlot;
+    }
+
+    /**
+     * Get time, in nanoseconds, of the last slot table resize.
+     */
+    long getLastSlotTableUpdate() {
+        return _lastSlotTableUpdate;
+    }
+
+    /**
+     * Resize session's slot table. Slots above new highest slot id are
+     * discarded, thus, if re-enabled, will start with a new sequence.
+     *
+     * @param highestSlot highest slot id accepted by server.
+     * @param targetHighestSlot highest slot id server wants client to use.
+     * @param now current time in nanoseconds.
+     */
+    synchronized void resizeSlotTable(int highestSlot, int targetHighestSlot, long now) {
+        SessionSlot[] slots = _slots;
+        if (highestSlot >= slots.length) {
+            _slots = Arrays.copyOf(slots, highestSlot + 1);
+        } else {
+            for (int i = highestSlot + 1; i < slots.length; i++) {
+                if (slots[i] != null && _replyCache != null) {
+                    _replyCache.release(slots[i]);
+                }
+                slots[i] = null;
+            }
+        }
+        _highestSlot = highestSlot;
+        _targetHighestSlot = targetHighestSlot;
+        _lastSlotTableUpdate = now;
     }
 
     public int getCbHighestSlot() {
@@ -79,7 +164,8 @@ public class NFSv41Session {
      */
     public int getHighestUsedSlot() {
         int id;
-        for(id = getHighestSlot(); id >= 0 && _slots[id] == null; id--) {
+        SessionSlot[] slots = _slots;
+        for(id = Math.min(getHighestSlot(), slots.length - 1); id >= 0 && slots[id] == null; id--) {
            /*
             * NOP. We only move pointer
             */
@@ -104,11 +190,27 @@ public class NFSv41Session {
             throw new BadSlotException("slot id overflow");
         }
 
-        if (_slots[slot] == null) {
-            _slots[slot] = new SessionSlot();
+        SessionSlot sessionSlot = _slots[slot];
+        if (sessionSlot == null) {
+            synchronized (this) {
+                sessionSlot = _slots[slot];
+                if (sessionSlot == null) {
+                    sessionSlot = _replyCache == null ? new SessionSlot() : new SessionSlot(_replyCache, _replyCacheAccount);
+                    _slots[slot] = sessionSlot;
+                }
+            }
         }
 
-        return _slots[slot];
+        return sessionSlot;
+    }
+
+    /**
+     * Release replies cached by session's slots.
+     */
+    void releaseReplies() {
+        if (_replyCache != null) {
+            _replyCache.release(_replyCacheAccount);
+        }
     }
 
     /**
@@ -138,9 +240,15 @@ public class NFSv41Session {
      * has no bindings,
      * @param connection to bind
      */
-    public synchronized void bindIfNeeded(SessionConnection connection) {
-        if (_boundConnections.isEmpty()) {
-            bindToConnection(connection);
+    public void bindIfNeeded(SessionConnection connection) {
+        // avoid locking on every request, as only the first one binds
+        if (!_boundConnections.isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            if (_boundConnections.isEmpty()) {
+                bindToConnection(connection);
+            }
         }
     }
 
@@ -157,7 +265,7 @@ public class NFSv41Session {
      * @param connection
      * @return true, if session has no bindings or is bound to given connection.
      */
-    public synchronized boolean isReleasableBy(SessionConnection connection) {
+    public boolean isReleasableBy(SessionConnection connection) {
         return _boundConnections.isEmpty() || _boundConnections.contains(connection);
     }
 }
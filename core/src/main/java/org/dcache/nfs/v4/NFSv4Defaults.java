@@ -61,8 +61,29 @@ public interface NFSv4Defaults {
      */
     public final static int NFS4_MAX_OPS = 128;
 
+    /**
+     * Maximal number of concurrently registered clients. When reached, new
+     * clients are asked to retry later.
+     */
+    public final static int NFS4_MAX_CLIENTS = 65536;
+
     /**
      * Maximal number of session slots
      */
     public final static int NFS4_MAX_SESSION_SLOTS = 16;
+
+    /**
+     * Maximal number of session slots a slot table can grow to.
+     */
+    public final static int NFS4_MAX_SESSION_SLOTS_LIMIT = 1024;
+
+    /**
+     * Number of requests in flight above which slot tables are shrunk.
+     */
+    public final static int NFS4_SLOT_TABLE_MAX_IN_FLIGHT = 4096;
+
+    /**
+     * Fraction of heap usage above which slot tables are shrunk.
+     */
+    public final static double NFS4_SLOT_TABLE_MAX_HEAP_USAGE = 0.9;
 }
@@ -22,16 +22,21 @@ package org.dcache.nfs.v4;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.security.Principal;
+import java.time.Clock;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.stream.Collectors;
+import java.util.function.Consumer;
 
 import org.dcache.nfs.ChimeraNFSException;
 import org.dcache.nfs.status.BadSessionException;
 import org.dcache.nfs.status.BadStateidException;
+import org.dcache.nfs.status.DelayException;
 import org.dcache.nfs.status.StaleClientidException;
 import org.dcache.nfs.v4.xdr.clientid4;
 import org.dcache.nfs.v4.xdr.nfs4_prot;
@@ -39,9 +44,8 @@ import org.dcache.nfs.v4.xdr.sessionid4;
 import org.dcache.nfs.v4.xdr.stateid4;
 import org.dcache.nfs.v4.xdr.verifier4;
 import org.dcache.oncrpc4j.util.Bytes;
-import org.dcache.utils.Cache;
-import org.dcache.utils.CacheElement;
-import org.dcache.utils.NopCacheEventListener;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import static com.google.common.base.Preconditions.checkState;
 
@@ -59,33 +63,97 @@ public class NFSv4StateHandler {
      */
     private final AtomicInteger _clientId = new AtomicInteger(0);
 
-    // mapping between server generated clietid and nfs_client_id, not confirmed yet
-    private final Cache<clientid4, NFS4Client> _clientsByServerId;
+    // mapping between server generated clietid and nfs_client_id
+    private final ClientRegistry _clientsByServerId;
 
     /**
      * Client's lease expiration time in milliseconds.
      */
     private final long _leaseTime;
 
-    private boolean _running;
+    private volatile boolean _running;
 
     /**
      * a system wide unique id of this state handler.
      */
     private final int _instanceId;
 
-    private final FileTracker _openFileTracker = new FileTracker();
+    private final DelegationManager _delegationManager;
+
+    private final FileTracker _openFileTracker;
+
+    private final LayoutTracker _layoutTracker;
+
+    /**
+     * Reply cache shared by all sessions or null, if session slots keep
+     * their replies.
+     */
+    private volatile ReplyCache _replyCache;
+
+    /**
+     * Persistent store of client records used to recover after restart.
+     */
+    private final ClientRecoveryStore _clientStore;
+
+    /**
+     * Executor to terminate grace period, if clients do not reclaim their state.
+     */
+    private final ScheduledExecutorService _graceTimer;
 
     public NFSv4StateHandler() {
         this(NFSv4Defaults.NFS4_LEASE_TIME, 0);
     }
 
     NFSv4StateHandler(long leaseTime, int instanceId) {
+        this(leaseTime, instanceId, NFSv4Defaults.NFS4_MAX_CLIENTS);
+    }
+
+    /**
+     * Create new state handler.
+     *
+     * @param leaseTime client's lease time in seconds.
+     * @param instanceId system wide unique id of this state handler.
+     * @param maxClients maximal number of clients. When reached, new clients
+     * are asked to retry later.
+     */
+    public NFSv4StateHandler(long leaseTime, int instanceId, int maxClients) {
+        this(leaseTime, instanceId, maxClients, new InMemoryClientRecoveryStore());
+    }
+
+    /**
+     * Create new state handler. If {@code clientStore} contains clients of the
+     * previous server instance, then the handler stays in grace period until
+     * all of them have reclaimed their state, but not longer than a lease time.
+     *
+     * @param leaseTime client's lease time in seconds.
+     * @param instanceId system wide unique id of this state handler.
+     * @param maxClients maximal number of clients. When reached, new clients
+     * are asked to retry later.
+     * @param clientStore store of client records used for recovery.
+     */
+    public NFSv4StateHandler(long leaseTime, int instanceId, int maxClients, ClientRecoveryStore clientStore) {
         _leaseTime = TimeUnit.SECONDS.toMillis(leaseTime);
-        _clientsByServerId = new Cache<>("NFSv41 clients", 5000, Long.MAX_VALUE,
+        _clientsByServerId = new ClientRegistry("NFSv41 clients",
+                maxClients,
                 _leaseTime * 2,
                 new DeadClientCollector(),
-                _leaseTime * 4, TimeUnit.MILLISECONDS);
+                _leaseTime * 4, TimeUnit.MILLISECONDS,
+                Clock.systemDefaultZone());
+
+        _delegationManager = new DelegationManager("NFSv41 delegations", _leaseTime);
+        _openFileTracker = new FileTracker(_delegationManager);
+        _layoutTracker = new LayoutTracker(_leaseTime);
+        _clientStore = clientStore;
+        _graceTimer = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder()
+                        .setNameFormat("NFSv41 grace period timer")
+                        .setDaemon(true)
+                        .build()
+        );
+        if (_clientStore.waitingForReclaim()) {
+            _log.info("Entering grace period for {} ms", _leaseTime);
+            _graceTimer.schedule(_clientStore::reclaimComplete, _leaseTime, TimeUnit.MILLISECONDS);
+        }
 
         _running = true;
         _instanceId = instanceId;
@@ -93,17 +161,20 @@ public class NFSv4StateHandler {
 
     public void removeClient(NFS4Client client) {
 
-	synchronized (this) {
-	    checkState(_running, "NFS state handler not running");
-	    _clientsByServerId.remove(client.getId());
-	}
+        checkState(_running, "NFS state handler not running");
+        _clientsByServerId.remove(client.getId().value);
+        if (client.isConfirmed()) {
+            _clientStore.removeClient(client.getOwnerId());
+        }
         client.tryDispose();
     }
 
-    private synchronized void addClient(NFS4Client newClient) {
+    private void addClient(NFS4Client newClient) throws DelayException {
 
         checkState(_running, "NFS state handler not running");
-        _clientsByServerId.put(newClient.getId(), newClient);
+        if (!_clientsByServerId.tryPut(newClient)) {
+            throw new DelayException("too many clients");
+        }
     }
 
     /**
@@ -114,7 +185,7 @@ public class NFSv4StateHandler {
      * @throws StaleClientidException if there are no corresponding verified
      * valid record exist.
      */
-    public synchronized NFS4Client getConfirmedClient(clientid4 clientid) throws StaleClientidException {
+    public NFS4Client getConfirmedClient(clientid4 clientid) throws StaleClientidException {
 
         NFS4Client client = getValidClient(clientid);
 
@@ -134,7 +205,7 @@ public class NFSv4StateHandler {
      * @throws StaleClientidException if there are no corresponding verified
      * valid record exist.
      */
-    public synchronized NFS4Client getValidClient(clientid4 clientid) throws StaleClientidException {
+    public NFS4Client getValidClient(clientid4 clientid) throws StaleClientidException {
 
         NFS4Client client = getClient(clientid);
 
@@ -153,46 +224,39 @@ public class NFSv4StateHandler {
      * @return nfs client associated with clientid.
      * @throws StaleClientidException if there are no corresponding record exist.
      */
-    public synchronized NFS4Client getClient(clientid4 clientid) throws StaleClientidException {
+    public NFS4Client getClient(clientid4 clientid) throws StaleClientidException {
 
         checkState(_running, "NFS state handler not running");
 
-        NFS4Client client = _clientsByServerId.get(clientid);
+        NFS4Client client = _clientsByServerId.get(clientid.value);
         if(client == null) {
             throw new StaleClientidException("bad client id.");
         }
         return client;
     }
 
-    public synchronized NFS4Client getClientIdByStateId(stateid4 stateId) throws ChimeraNFSException {
+    public NFS4Client getClientIdByStateId(stateid4 stateId) throws ChimeraNFSException {
 
         checkState(_running, "NFS state handler not running");
 
-        clientid4 clientId = new clientid4(Bytes.getLong(stateId.other, 0));
-        NFS4Client client = _clientsByServerId.get(clientId);
+        NFS4Client client = _clientsByServerId.get(Bytes.getLong(stateId.other, 0));
         if (client == null) {
             throw new BadStateidException("no client for stateid: " + stateId);
         }
         return client;
     }
 
-    public synchronized NFS4Client getClient(sessionid4 id) throws ChimeraNFSException {
+    public NFS4Client getClient(sessionid4 id) throws ChimeraNFSException {
         checkState(_running, "NFS state handler not running");
-        clientid4 clientId = new clientid4(Bytes.getLong(id.value, 0));
-        NFS4Client client = _clientsByServerId.get(clientId);
+        NFS4Client client = _clientsByServerId.get(Bytes.getLong(id.value, 0));
         if (client == null) {
             throw new BadSessionException("session not found: " + id);
         }
         return client;
     }
 
-    public synchronized NFS4Client clientByOwner(byte[] ownerid) {
-        return _clientsByServerId.entries()
-                .stream()
-                .map(CacheElement::getObject)
-                .filter(c -> c.isOwner(ownerid))
-                .findAny()
-                .orElse(null);
+    public NFS4Client clientByOwner(byte[] ownerid) {
+        return _clientsByServerId.getByOwner(ownerid);
     }
 
     public void updateClientLeaseTime(stateid4  stateid) throws ChimeraNFSException {
@@ -209,20 +273,40 @@ public class NFSv4StateHandler {
         client.updateLeaseTime();
     }
 
-    public synchronized List<NFS4Client> getClients() {
+    public List<NFS4Client> getClients() {
         checkState(_running, "NFS state handler not running");
-        return _clientsByServerId.entries().stream()
-                .map(CacheElement::getObject)
-                .collect(Collectors.toList());
+        return _clientsByServerId.clients();
     }
 
+    /**
+     * Create and register a new client.
+     *
+     * @return new client.
+     * @throws DelayException if the limit of clients is reached.
+     */
     public NFS4Client createClient(InetSocketAddress clientAddress, InetSocketAddress localAddress, int minorVersion,
-            byte[] ownerID, verifier4 verifier, Principal principal, boolean callbackNeeded) {
+            byte[] ownerID, verifier4 verifier, Principal principal, boolean callbackNeeded) throws DelayException {
         NFS4Client client = new NFS4Client(this, nextClientId(), minorVersion, clientAddress, localAddress, ownerID, verifier, principal, _leaseTime, callbackNeeded);
         addClient(client);
         return client;
     }
 
+    /**
+     * Get number of known clients.
+     * @return number of clients.
+     */
+    public int getClientCount() {
+        return _clientsByServerId.size();
+    }
+
+    /**
+     * Get the highest number of clients known at the same time.
+     * @return number of clients.
+     */
+    public int getClientHighWatermark() {
+        return _clientsByServerId.getHighWatermark();
+    }
+
     /**
      * Get open files tacker.
      * @return open files tracker
@@ -231,11 +315,48 @@ public class NFSv4StateHandler {
         return _openFileTracker;
     }
 
-    private class DeadClientCollector extends NopCacheEventListener<clientid4, NFS4Client> {
+    /**
+     * Get reply cache shared by all sessions.
+     * @return reply cache or null, if session slots keep their replies.
+     * @since 0.18
+     */
+    public ReplyCache getReplyCache() {
+        return _replyCache;
+    }
+
+    /**
+     * Keep replies of new sessions in the given reply cache.
+     * @param replyCache reply cache or null, to keep replies in session slots.
+     * @since 0.18
+     */
+    public void setReplyCache(ReplyCache replyCache) {
+        _replyCache = replyCache;
+    }
+
+    /**
+     * Get tracker of layouts handed out to the clients.
+     * @return layout tracker
+     */
+    public LayoutTracker getLayoutTracker() {
+        return _layoutTracker;
+    }
+
+    /**
+     * Get delegation manager used to recall delegations.
+     * @return delegation manager.
+     */
+    public DelegationManager getDelegationManager() {
+        return _delegationManager;
+    }
+
+    private class DeadClientCollector implements Consumer<NFS4Client> {
 
         @Override
-        public void notifyExpired(Cache<clientid4, NFS4Client> cache, NFS4Client client) {
+        public void accept(NFS4Client client) {
             _log.info("Removing expired client: {}", client);
+            if (client.isConfirmed()) {
+                _clientStore.removeClient(client.getOwnerId());
+            }
             client.tryDispose();
         }
     }
@@ -246,20 +367,49 @@ public class NFSv4StateHandler {
      */
     public boolean hasGracePeriodExpired() {
         checkState(_running, "NFS state handler not running");
-	/*
-	 * As we do not have a persistent storage for state information,
-	 * grace period makes no sense as it ends up as a simple delay
-	 * before first IO request can be processed.
-	 */
-	return true;
+        return !_clientStore.waitingForReclaim();
+    }
+
+    /**
+     * Check whatever the client is known from the previous server instance and
+     * still allowed to reclaim it's state.
+     * @param client to check.
+     * @return true, if client may reclaim it's state.
+     */
+    public boolean wantReclaim(NFS4Client client) {
+        return _clientStore.wantReclaim(client.getOwnerId());
+    }
+
+    /**
+     * Notify state handler, that client has reclaimed all it's state.
+     * @param client which has completed reclaim.
+     */
+    public void reclaimComplete(NFS4Client client) {
+        _clientStore.reclaimClient(client.getOwnerId());
+    }
+
+    /**
+     * Record a client, which has been confirmed, to allow it to reclaim it's
+     * state after server restart.
+     * @param client confirmed client.
+     */
+    void clientConfirmed(NFS4Client client) {
+        _clientStore.addClient(client.getOwnerId());
+    }
+
+    /**
+     * Get the store used to recover client records after restart.
+     * @return client recovery store.
+     */
+    public ClientRecoveryStore getClientStore() {
+        return _clientStore;
     }
 
     private synchronized void drainClients() {
-        _clientsByServerId.entries().stream()
-                .map(CacheElement::getObject)
+        _clientsByServerId.clients()
                 .forEach(c -> {
                     c.tryDispose();
-                    _clientsByServerId.remove(c.getId());
+                    _clientsByServerId.remove(c.getId().value);
                 });
     }
 
@@ -271,6 +421,13 @@ public class NFSv4StateHandler {
         _running = false;
         drainClients();
         _clientsByServerId.shutdown();
+        _graceTimer.shutdown();
+        _layoutTracker.shutdown();
+        try {
+            _clientStore.close();
+        } catch (IOException e) {
+            _log.warn("Failed to close client recovery store: {}", e.getMessage());
+        }
     }
 
     /**
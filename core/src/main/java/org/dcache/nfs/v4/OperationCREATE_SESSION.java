@@ -103,8 +103,13 @@ public class OperationCREATE_SESSION extends AbstractNFSv4Operation {
             throw new ClidInUseException("client already in use: " + client.principal() + " " + context.getPrincipal());
         }
 
+        int requestedSlots = _args.opcreate_session.csa_fore_chan_attrs.ca_maxrequests.value;
+        int slots = context.getSlotTableController()
+                .map(c -> c.slotsForNewSession(requestedSlots))
+                .orElse(Math.min(NFSv4Defaults.NFS4_MAX_SESSION_SLOTS, requestedSlots));
+
         NFSv41Session session = client.createSession(_args.opcreate_session.csa_sequence.value,
-                Math.min(NFSv4Defaults.NFS4_MAX_SESSION_SLOTS, _args.opcreate_session.csa_fore_chan_attrs.ca_maxrequests.value),
+                slots,
                 Math.min(NFSv4Defaults.NFS4_MAX_SESSION_SLOTS, _args.opcreate_session.csa_back_chan_attrs.ca_maxrequests.value),
                 Math.min(NFSv4Defaults.NFS4_MAX_OPS, _args.opcreate_session.csa_fore_chan_attrs.ca_maxoperations.value),
                 Math.min(NFSv4Defaults.NFS4_MAX_OPS, _args.opcreate_session.csa_back_chan_attrs.ca_maxoperations.value));
@@ -119,7 +124,7 @@ public class OperationCREATE_SESSION extends AbstractNFSv4Operation {
                     context.getRpcCall().getTransport().getPeerTransport(),
                     _args.opcreate_session.csa_cb_program.value,
                     session.id(),
-                    _args.opcreate_session.csa_back_chan_attrs.ca_maxrequests.value,
+                    session.getCbHighestSlot() + 1,
                     _args.opcreate_session.csa_sec_parms);
             try {
                 cb.cbPing();
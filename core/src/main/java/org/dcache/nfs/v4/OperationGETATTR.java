@@ -118,10 +118,19 @@ public class OperationGETATTR extends AbstractNFSv4Operation {
 
         final GETATTR4res res = result.opgetattr;
 
+        Inode inode = context.currentInode();
+        Stat stat = context.getFs().getattr(inode);
+
+        // the holder of a write delegation may have modified the file
+        bitmap4 bitmap = _args.opgetattr.attr_request;
+        if (stat.type() == Stat.Type.REGULAR && (bitmap.isSet(nfs4_prot.FATTR4_SIZE)
+                || bitmap.isSet(nfs4_prot.FATTR4_CHANGE) || bitmap.isSet(nfs4_prot.FATTR4_TIME_MODIFY))) {
+            NFS4Client client = context.getMinorversion() > 0 ? context.getSession().getClient() : null;
+            stat = context.getStateHandler().getFileTracker().getDelegatedAttributes(client, inode, stat);
+        }
+
         res.resok4 = new GETATTR4resok();
-        res.resok4.obj_attributes = getAttributes(_args.opgetattr.attr_request,
-                context.getFs(),
-                context.currentInode(), context);
+        res.resok4.obj_attributes = getAttributes(bitmap, context.getFs(), inode, stat, context);
 
         res.status = nfsstat.NFS_OK;
 
@@ -112,6 +112,10 @@ public class OperationLAYOUTGET extends AbstractNFSv4Operation {
             throw new LayoutUnavailableException("IO error on layout get", e);
         }
 
+        context.getStateHandler()
+                .getLayoutTracker()
+                .addLayout(context.getSession().getClient(), inode, ioLayout.getStateid(), ioLayout.getDeviceIds());
+
         layout4[] layoutSegments = ioLayout.getLayoutSegments();
 
         int n = 0;
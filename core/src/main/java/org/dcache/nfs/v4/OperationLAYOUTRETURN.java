@@ -53,6 +53,9 @@ public class OperationLAYOUTRETURN extends AbstractNFSv4Operation {
         _log.debug("LAYOUTRETURN4args : return type: {}", _args.oplayoutreturn.lora_layoutreturn.lr_returntype);
         _log.debug("LAYOUTRETURN4args :     reclaim: {}", _args.oplayoutreturn.lora_reclaim);
 
+        LayoutTracker layoutTracker = context.getStateHandler().getLayoutTracker();
+        NFS4Client client = context.getSession().getClient();
+
         if (_args.oplayoutreturn.lora_layoutreturn.lr_returntype == layoutreturn_type4.LAYOUTRETURN4_FILE) {
 
             pnfsDeviceManager.
@@ -60,6 +63,10 @@ public class OperationLAYOUTRETURN extends AbstractNFSv4Operation {
                     _args.oplayoutreturn.lora_layoutreturn.lr_layout.lrf_stateid,
                             layouttype4.valueOf(_args.oplayoutreturn.lora_layout_type),
                     _args.oplayoutreturn.lora_layoutreturn.lr_layout.lrf_body);
+            layoutTracker.returnLayout(client, _args.oplayoutreturn.lora_layoutreturn.lr_layout.lrf_stateid);
+        } else {
+            // we have a single file system, thus FSID and ALL are the same
+            layoutTracker.returnAll(client);
         }
 
         res.lorr_stateid = new layoutreturn_stateid();
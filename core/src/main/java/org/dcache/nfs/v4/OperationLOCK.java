@@ -21,11 +21,14 @@ package org.dcache.nfs.v4;
 
 import org.dcache.nfs.ChimeraNFSException;
 import org.dcache.nfs.nfsstat;
+import org.dcache.nfs.status.GraceException;
 import org.dcache.nfs.status.InvalException;
+import org.dcache.nfs.status.NoGraceException;
 import org.dcache.nfs.status.OpenModeException;
 import org.dcache.nfs.status.ServerFaultException;
 import org.dcache.nfs.v4.nlm.LockDeniedException;
 import org.dcache.nfs.v4.nlm.LockException;
+import org.dcache.nfs.v4.nlm.LockManager;
 import org.dcache.nfs.v4.nlm.NlmLock;
 import org.dcache.nfs.v4.xdr.LOCK4denied;
 import org.dcache.nfs.v4.xdr.LOCK4resok;
@@ -33,6 +36,7 @@ import org.dcache.nfs.v4.xdr.length4;
 import org.dcache.nfs.v4.xdr.lock_owner4;
 import org.dcache.nfs.v4.xdr.nfs4_prot;
 import org.dcache.nfs.v4.xdr.nfs_argop4;
+import org.dcache.nfs.v4.xdr.nfs_fh4;
 import org.dcache.nfs.v4.xdr.nfs_lock_type4;
 import org.dcache.nfs.v4.xdr.nfs_opnum4;
 import org.dcache.nfs.v4.xdr.nfs_resop4;
@@ -102,6 +106,17 @@ public class OperationLOCK extends AbstractNFSv4Operation {
             }
         }
 
+        if (_args.oplock.reclaim) {
+            if (context.getStateHandler().hasGracePeriodExpired()) {
+                throw new NoGraceException("Server not in grace period");
+            }
+            if (!client.needReclaim() || !context.getStateHandler().wantReclaim(client)) {
+                throw new NoGraceException("Lock reclaim by client without state to reclaim");
+            }
+        } else if (client.needReclaim() && !context.getStateHandler().hasGracePeriodExpired()) {
+            throw new GraceException();
+        }
+
         try {
 
             // reject write lock  on read-only open
@@ -116,7 +131,38 @@ public class OperationLOCK extends AbstractNFSv4Operation {
             }
 
             NlmLock lock = new NlmLock(lockOwner, _args.oplock.locktype,  _args.oplock.offset.value, _args.oplock.length.value);
-            context.getLm().lock(inode.getFileId(), lock);
+
+            ClientCB cb = client.getCB();
+            boolean blocking = _args.oplock.locktype == nfs_lock_type4.READW_LT || _args.oplock.locktype == nfs_lock_type4.WRITEW_LT;
+            if (blocking && context.getMinorversion() > 0 && cb != null) {
+                /*
+                 * Blocking lock request by a v4.1 client with a back channel.
+                 * If the lock is denied, the client will be notified with
+                 * CB_NOTIFY_LOCK, when the range becomes available.
+                 */
+                nfs_fh4 fh = new nfs_fh4(inode.toNfsHandle());
+                lock_owner4 owner = new lock_owner4(lockOwner.getRawStateOwner());
+                LockManager lm = context.getLm();
+                boolean waiting = lm.isWaiting(inode.getFileId(), lock);
+                try {
+                    lm.lockOrWait(inode.getFileId(), lock, () ->
+                            cb.cbNotifyLockAsync(fh, owner).whenComplete((v, t) -> {
+                                if (t != null) {
+                                    _log.info("Failed to notify {} about available lock: {}", client, t.getMessage());
+                                }
+                            })
+                    );
+                } catch (LockDeniedException e) {
+                    if (!waiting) {
+                        // drop the request from the waiter queue when lock owner,
+                        // open or client goes away
+                        lock_state.addDisposeListener(s -> lm.cancelWait(inode.getFileId(), lock));
+                    }
+                    throw e;
+                }
+            } else {
+                context.getLm().lock(inode.getFileId(), lock);
+            }
 
             // ensure, that on close locks will be released
             lock_state.addDisposeListener(s -> {
@@ -211,13 +211,9 @@ public class OperationOPEN extends AbstractNFSv4Operation {
                 break;
             case open_claim_type4.CLAIM_PREVIOUS:
                 /*
-                 * As we don't have persistent state store there are two oprions:
-                 *
-                 *   1. fail with NFSERR_RECLAIM_BAD
-                 *   2. just do a regulat open by FH.
-                 *
-                 * Let take the second case as first one will endup with
-                 * it anyway.
+                 * Only clients recorded by the previous server instance are
+                 * allowed to reclaim. As open state itself is not persistent,
+                 * the reclaim is a regular open by FH.
                  *
                  * Just check that we are still in the grace period and
                  * fall -through to CLAIM_FH.
@@ -228,6 +224,9 @@ public class OperationOPEN extends AbstractNFSv4Operation {
                 if (!client.needReclaim()) {
                     throw new NoGraceException("CLAIM open after 'reclaim complete'");
                 }
+                if (!context.getStateHandler().wantReclaim(client)) {
+                    throw new NoGraceException("Client unknown to previous server instance");
+                }
             case open_claim_type4.CLAIM_FH:
 
                 _log.debug("open by Inode for : {}", context.currentInode());
@@ -260,7 +259,12 @@ public class OperationOPEN extends AbstractNFSv4Operation {
          * if it's v4.0, then client have to confirm
          */
         if (context.getMinorversion() > 0) {
-            res.resok4.rflags = new uint32_t(nfs4_prot.OPEN4_RESULT_LOCKTYPE_POSIX);
+            int rflags = nfs4_prot.OPEN4_RESULT_LOCKTYPE_POSIX;
+            if (client.getCB() != null) {
+                // blocked lock requests are notified with CB_NOTIFY_LOCK
+                rflags |= nfs4_prot.OPEN4_RESULT_MAY_NOTIFY_LOCK;
+            }
+            res.resok4.rflags = new uint32_t(rflags);
         } else {
             res.resok4.rflags = new uint32_t(nfs4_prot.OPEN4_RESULT_LOCKTYPE_POSIX
                     | nfs4_prot.OPEN4_RESULT_CONFIRM);
@@ -274,13 +278,20 @@ public class OperationOPEN extends AbstractNFSv4Operation {
          * THis is a perfectly a valid situation as at the end file is created and only
          * one writer is allowed.
          */
-        stateid4 stateid = context
-                .getStateHandler()
-                .getFileTracker()
+        FileTracker fileTracker = context.getStateHandler().getFileTracker();
+        stateid4 stateid = fileTracker
                 .addOpen(client, owner, context.currentInode(),
                 _args.opopen.share_access.value,
                 _args.opopen.share_deny.value);
 
+        /*
+         * delegations are not reclaimed, as we do not keep them over restarts.
+         */
+        if (_args.opopen.claim.claim != open_claim_type4.CLAIM_PREVIOUS) {
+            res.resok4.delegation = fileTracker.grantDelegation(client, owner,
+                    context.currentInode(), _args.opopen.share_access.value);
+        }
+
         context.currentStateid(stateid);
         res.resok4.stateid = stateid;
         res.status = nfsstat.NFS_OK;
@@ -28,7 +28,6 @@ import org.dcache.nfs.v4.xdr.READ4resok;
 import org.dcache.nfs.v4.xdr.READ4res;
 import org.dcache.nfs.status.InvalException;
 import org.dcache.nfs.status.IsDirException;
-import org.dcache.nfs.status.NfsIoException;
 import org.dcache.nfs.v4.xdr.nfs_resop4;
 import org.dcache.nfs.vfs.Stat;
 import org.slf4j.Logger;
@@ -66,23 +65,18 @@ public class OperationREAD extends AbstractNFSv4Operation {
             context.getStateHandler().updateClientLeaseTime(_args.opread.stateid);
         }
 
+        if (Stateids.isStateLess(_args.opread.stateid)) {
+            // I/O outside of an open conflicts with write delegations of other clients
+            NFS4Client client = context.getMinorversion() > 0 ? context.getSession().getClient() : null;
+            context.getStateHandler().getFileTracker().recallDelegations(client, context.currentInode(), false);
+        }
+
 
         long offset = _args.opread.offset.value;
         int count = _args.opread.count.value;
 
-        ByteBuffer buf = ByteBuffer.allocate(count);
-
-        int bytesReaded = context.getFs().read(context.currentInode(),
-                buf.array(), offset, count);
-        if (bytesReaded < 0) {
-            throw new NfsIoException("IO not allowd");
-        }
-
-        /*
-         * As we have written directly into back-end byte array tell the byte
-         * buffer where the limit is.
-         */
-        buf.limit(bytesReaded);
+        ByteBuffer buf = context.getFs().read(context.currentInode(), offset, count);
+        int bytesReaded = buf.remaining();
 
         res.status = nfsstat.NFS_OK;
         res.resok4 = new READ4resok();
@@ -38,10 +38,6 @@ public class OperationRECLAIM_COMPLETE extends AbstractNFSv4Operation {
     @Override
     public void process(CompoundContext context, nfs_resop4 result) throws ChimeraNFSException {
 
-	/*
-	 * we do not have any session state percistent store and,
-	 * as a result, there is nothing to recover. Just reply OK.
-	 */
 	result.opreclaim_complete.rcr_status = nfsstat.NFS_OK;
 
 	if (_args.opreclaim_complete.rca_one_fs) {
@@ -51,7 +47,9 @@ public class OperationRECLAIM_COMPLETE extends AbstractNFSv4Operation {
 	     */
 	    context.currentInode();
 	} else {
-	    context.getSession().getClient().reclaimComplete();
+	    NFS4Client client = context.getSession().getClient();
+	    client.reclaimComplete();
+	    context.getStateHandler().reclaimComplete(client);
 	}
     }
 }
@@ -63,6 +63,13 @@ public class OperationREMOVE extends AbstractNFSv4Operation {
 
         _log.debug("REMOVE: {} : {}", parentInode, name);
 
+        // removal conflicts with delegations of other clients
+        FileTracker fileTracker = context.getStateHandler().getFileTracker();
+        if (fileTracker.hasDelegations()) {
+            NFS4Client client = context.getMinorversion() > 0 ? context.getSession().getClient() : null;
+            fileTracker.recallDelegations(client, context.getFs().lookup(parentInode, name), true);
+        }
+
         res.resok4.cinfo.before = new changeid4(stat.getGeneration());
         context.getFs().remove(parentInode, name);
 
@@ -28,6 +28,7 @@ import org.dcache.nfs.v4.xdr.nfs_opnum4;
 import org.dcache.nfs.v4.xdr.RENAME4res;
 import org.dcache.nfs.v4.xdr.RENAME4resok;
 import org.dcache.nfs.ChimeraNFSException;
+import org.dcache.nfs.status.NoEntException;
 import org.dcache.nfs.status.NotDirException;
 import org.dcache.nfs.v4.xdr.nfs_resop4;
 import org.dcache.nfs.vfs.Inode;
@@ -77,6 +78,18 @@ public class OperationRENAME extends AbstractNFSv4Operation {
                 destDir,
                 newName);
 
+        // rename conflicts with delegations of other clients on the source and replaced target
+        FileTracker fileTracker = context.getStateHandler().getFileTracker();
+        if (fileTracker.hasDelegations()) {
+            NFS4Client client = context.getMinorversion() > 0 ? context.getSession().getClient() : null;
+            fileTracker.recallDelegations(client, context.getFs().lookup(sourceDir, oldName), true);
+            try {
+                fileTracker.recallDelegations(client, context.getFs().lookup(destDir, newName), true);
+            } catch (NoEntException e) {
+                // nothing to replace
+            }
+        }
+
         res.resok4.source_cinfo.before = new changeid4(sourceStat.getGeneration());
         res.resok4.target_cinfo.before = new changeid4(destStat.getGeneration());
 
@@ -63,11 +63,14 @@ public class OperationSEQUENCE extends AbstractNFSv4Operation {
         context.setCacheThis(_args.opsequence.sa_cachethis);
         context.setSessionSlot(slot);
 
+        context.getSlotTableController()
+                .ifPresent(c -> c.adjust(session, _args.opsequence.sa_highest_slotid.value));
+
         res.sr_resok4 = new SEQUENCE4resok();
 
         res.sr_resok4.sr_highest_slotid = new slotid4(session.getHighestSlot());
         res.sr_resok4.sr_slotid = new slotid4(_args.opsequence.sa_slotid.value);
-        res.sr_resok4.sr_target_highest_slotid = new slotid4(session.getHighestSlot());
+        res.sr_resok4.sr_target_highest_slotid = new slotid4(session.getTargetHighestSlot());
         res.sr_resok4.sr_sessionid = new sessionid4(_args.opsequence.sa_sessionid.value);
 
         //res.sr_resok4.sr_sequenceid = new sequenceid4( new uint32_t( session.nextSequenceID()) );
@@ -81,26 +81,30 @@ public class OperationSETATTR extends AbstractNFSv4Operation {
 
         Inode inode = context.currentInode();
 
-        if (_args.opsetattr.obj_attributes.attrmask.isSet(nfs4_prot.FATTR4_SIZE) && !Stateids.isStateLess(_args.opsetattr.stateid)) {
-
-            // TODO: check for DENY_WRITE for any existing opens. However, posix does not support deny masks.
-            NFS4Client client;
-            stateid4 stateid = Stateids.getCurrentStateidIfNeeded(context, _args.opsetattr.stateid);
-            if (context.getMinorversion() > 0) {
-                client = context.getSession().getClient();
-            } else {
-                client = context.getStateHandler().getClientIdByStateId(stateid);
-            }
+        if (_args.opsetattr.obj_attributes.attrmask.isSet(nfs4_prot.FATTR4_SIZE)) {
+
+            NFS4Client client = context.getMinorversion() > 0 ? context.getSession().getClient() : null;
+            if (!Stateids.isStateLess(_args.opsetattr.stateid)) {
+
+                // TODO: check for DENY_WRITE for any existing opens. However, posix does not support deny masks.
+                stateid4 stateid = Stateids.getCurrentStateidIfNeeded(context, _args.opsetattr.stateid);
+                if (client == null) {
+                    client = context.getStateHandler().getClientIdByStateId(stateid);
+                }
 
-            // will throw BAD_STATEID
-            NFS4State state = client.state(stateid);
+                // will throw BAD_STATEID
+                NFS4State state = client.state(stateid);
 
-            // setting file size requires open for writing
-            int shareAccess = context.getStateHandler().getFileTracker().getShareAccess(client, inode,
-                    state.getOpenState().stateid());
-            if ((shareAccess & nfs4_prot.OPEN4_SHARE_ACCESS_WRITE) == 0) {
-                throw new OpenModeException("Invalid open mode");
+                // setting file size requires open for writing or write delegation
+                int shareAccess = context.getStateHandler().getFileTracker().getShareAccess(client, inode,
+                        state.getOpenState().stateid());
+                if ((shareAccess & nfs4_prot.OPEN4_SHARE_ACCESS_WRITE) == 0) {
+                    throw new OpenModeException("Invalid open mode");
+                }
             }
+
+            // truncate conflicts with delegations of other clients
+            context.getStateHandler().getFileTracker().recallDelegations(client, inode, true);
         }
 
         res.status = nfsstat.NFS_OK;
@@ -19,10 +19,16 @@
  */
 package org.dcache.nfs.v4;
 
+import org.dcache.nfs.ChimeraNFSException;
 import org.dcache.nfs.nfsstat;
+import org.dcache.nfs.status.InvalException;
+import org.dcache.nfs.status.NotSuppException;
+import org.dcache.nfs.v4.xdr.nfs4_prot;
 import org.dcache.nfs.v4.xdr.nfs_argop4;
 import org.dcache.nfs.v4.xdr.nfs_opnum4;
 import org.dcache.nfs.v4.xdr.nfs_resop4;
+import org.dcache.nfs.v4.xdr.open_claim_type4;
+import org.dcache.nfs.vfs.Inode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -35,7 +41,24 @@ public class OperationWANT_DELEGATION extends AbstractNFSv4Operation {
     }
 
     @Override
-    public void process(CompoundContext context, nfs_resop4 result) {
-        result.opwant_delegation.wdr_status = nfsstat.NFSERR_NOTSUPP;
+    public void process(CompoundContext context, nfs_resop4 result) throws ChimeraNFSException {
+
+        Inode inode = context.currentInode();
+
+        if (_args.opwant_delegation.wda_claim.dc_claim != open_claim_type4.CLAIM_FH) {
+            throw new NotSuppException("Unsupported delegation claim: " + _args.opwant_delegation.wda_claim.dc_claim);
+        }
+
+        int want = _args.opwant_delegation.wda_want.value & nfs4_prot.OPEN4_SHARE_ACCESS_WANT_DELEG_MASK;
+        if (want == nfs4_prot.OPEN4_SHARE_ACCESS_WANT_NO_PREFERENCE
+                || want == nfs4_prot.OPEN4_SHARE_ACCESS_WANT_NO_DELEG) {
+            throw new InvalException("Invalid delegation want: " + want);
+        }
+
+        NFS4Client client = context.getSession().getClient();
+        result.opwant_delegation.wdr_resok4 = context.getStateHandler()
+                .getFileTracker()
+                .wantDelegation(client, inode, want);
+        result.opwant_delegation.wdr_status = nfsstat.NFS_OK;
     }
 }
@@ -21,7 +21,6 @@ package org.dcache.nfs.v4;
 
 import java.io.IOException;
 import org.dcache.nfs.nfsstat;
-import org.dcache.nfs.v4.xdr.stable_how4;
 import org.dcache.nfs.v4.xdr.nfs_argop4;
 import org.dcache.nfs.v4.xdr.nfs_opnum4;
 import org.dcache.nfs.v4.xdr.count4;
@@ -69,13 +68,16 @@ public class OperationWRITE extends AbstractNFSv4Operation {
             context.getStateHandler().updateClientLeaseTime(_args.opwrite.stateid);
         }
 
+        if (Stateids.isStateLess(_args.opwrite.stateid)) {
+            // I/O outside of an open conflicts with delegations of other clients
+            NFS4Client client = context.getMinorversion() > 0 ? context.getSession().getClient() : null;
+            context.getStateHandler().getFileTracker().recallDelegations(client, context.currentInode(), true);
+        }
+
         long offset = _args.opwrite.offset.value;
-        int count = _args.opwrite.data.remaining();
-        byte[] data = new byte[count];
-        _args.opwrite.data.get(data);
 
         VirtualFileSystem.WriteResult writeResult = context.getFs().write(context.currentInode(),
-                data, offset, count, VirtualFileSystem.StabilityLevel.fromStableHow(_args.opwrite.stable));
+                _args.opwrite.data, offset, VirtualFileSystem.StabilityLevel.fromStableHow(_args.opwrite.stable));
 
         if (writeResult.getBytesWritten() < 0) {
             throw new NfsIoException("IO not allowed");
@@ -84,8 +86,8 @@ public class OperationWRITE extends AbstractNFSv4Operation {
         res.status = nfsstat.NFS_OK;
         res.resok4 = new WRITE4resok();
         res.resok4.count = new count4(writeResult.getBytesWritten());
-        res.resok4.committed = stable_how4.FILE_SYNC4;
-        res.resok4.writeverf = context.getRebootVerifier();
+        res.resok4.committed = writeResult.getStabilityLevel().toStableHow();
+        res.resok4.writeverf = context.getWriteVerifier();
 
     }
 }
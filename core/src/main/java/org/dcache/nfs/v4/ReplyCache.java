@@ -0,0 +1,330 @@
+/*
+ * Copyright (c) 2018 Deutsches Elektronen-Synchroton,
+ * Member of the Helmholtz Association, (DESY), HAMBURG, GERMANY
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Library General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public
+ * License along with this program (see the file COPYING.LIB for more
+ * details); if not, write to the Free Software Foundation, Inc.,
+ * 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.dcache.nfs.v4;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import org.dcache.nfs.nfsstat;
+import org.dcache.nfs.v4.xdr.READ4resok;
+import org.dcache.nfs.v4.xdr.nfs_opnum4;
+import org.dcache.nfs.v4.xdr.nfs_resop4;
+import org.dcache.oncrpc4j.xdr.Xdr;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A server wide reply cache of NFSv4.1 sessions with a limited size. Replies
+ * are kept in encoded XDR form, either on heap or in direct buffers. This way
+ * cached replies don't hold references to (possibly large) buffers of READ
+ * operations.
+ *
+ * When the cache is full, replies are evicted. Sessions, which use more than
+ * their fair share of the cache, evict their own replies first. Otherwise, the
+ * oldest reply is evicted. A retry of a request with an evicted reply is
+ * answered with NFS4ERR_RETRY_UNCACHED_REP.
+ *
+ * @see NFSServerV41.Builder#withReplyCache(long, boolean)
+ * @since 0.18
+ */
+public class ReplyCache {
+
+    private static final Logger _log = LoggerFactory.getLogger(ReplyCache.class);
+
+    /**
+     * Initial size of buffer used to encode a reply.
+     */
+    private static final int ENCODE_BUFFER_SIZE = 512;
+
+    /**
+     * All cached replies in order of insertion.
+     */
+    private final LinkedHashSet<Entry> _entries = new LinkedHashSet<>();
+
+    private long _maxBytes;
+    private volatile boolean _offHeap;
+
+    private long _usedBytes;
+    private int _sessions;
+    private long _evictions;
+
+    /**
+     * Create new reply cache.
+     *
+     * @param name of the cache used for JMX.
+     * @param maxBytes the maximal number of bytes to cache.
+     * @param offHeap whether replies are stored in direct buffers.
+     */
+    public ReplyCache(String name, long maxBytes, boolean offHeap) {
+        checkArgument(maxBytes >= 0, "Negative cache size");
+        _maxBytes = maxBytes;
+        _offHeap = offHeap;
+        new ReplyCacheMXBeanImpl(name, this);
+    }
+
+    /**
+     * Get the maximal number of bytes, which can be cached.
+     * @return size of the cache in bytes.
+     */
+    public synchronized long getMaxBytes() {
+        return _maxBytes;
+    }
+
+    /**
+     * Set the maximal number of bytes, which can be cached. If the cache
+     * already uses more, replies are evicted.
+     *
+     * @param maxBytes size of the cache in bytes.
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        checkArgument(maxBytes >= 0, "Negative cache size");
+        _maxBytes = maxBytes;
+        evictIfNeeded(null);
+    }
+
+    /**
+     * Tell whether replies are stored in direct buffers.
+     * @return true, if replies are stored off heap.
+     */
+    public boolean isOffHeap() {
+        return _offHeap;
+    }
+
+    /**
+     * Set whether new replies are stored in direct buffers.
+     * @param offHeap true to store replies off heap.
+     */
+    public void setOffHeap(boolean offHeap) {
+        _offHeap = offHeap;
+    }
+
+    /**
+     * Get number of bytes used by cached replies.
+     * @return used bytes.
+     */
+    public synchronized long getUsedBytes() {
+        return _usedBytes;
+    }
+
+    /**
+     * Get number of cached replies.
+     * @return number of replies.
+     */
+    public synchronized int getEntries() {
+        return _entries.size();
+    }
+
+    /**
+     * Get number of sessions, which have cached replies.
+     * @return number of sessions.
+     */
+    public synchronized int getSessions() {
+        return _sessions;
+    }
+
+    /**
+     * Get number of replies evicted to stay within the cache size.
+     * @return number of evicted replies.
+     */
+    public synchronized long getEvictions() {
+        return _evictions;
+    }
+
+    /**
+     * Create an account of a session, which is used to track replies of the
+     * session.
+     *
+     * @return new account.
+     */
+    Account newAccount() {
+        return new Account();
+    }
+
+    /**
+     * Store the reply in slot's cache. A previously cached reply of the slot
+     * is released.
+     */
+    void store(Account account, SessionSlot slot, List<nfs_resop4> reply) {
+
+        ByteBuffer data;
+        try {
+            data = encode(reply);
+        } catch (IOException e) {
+            // the retry will get NFS4ERR_RETRY_UNCACHED_REP
+            _log.warn("Failed to encode reply: {}", e.getMessage());
+            release(slot);
+            return;
+        }
+
+        synchronized (this) {
+            release(slot);
+            if (data.remaining() > _maxBytes) {
+                return;
+            }
+
+            Entry entry = new Entry(account, slot, data);
+            _entries.add(entry);
+            account.entries.add(entry);
+            if (account.bytes == 0) {
+                _sessions++;
+            }
+            account.bytes += entry.size;
+            _usedBytes += entry.size;
+            slot.setCachedReply(entry);
+
+            evictIfNeeded(account);
+        }
+    }
+
+    /**
+     * Release cached reply of the slot, if any.
+     */
+    synchronized void release(SessionSlot slot) {
+        Entry entry = slot.getCachedReply();
+        if (entry != null) {
+            remove(entry);
+        }
+    }
+
+    /**
+     * Release all replies of the account.
+     */
+    synchronized void release(Account account) {
+        for (Entry entry : new ArrayList<>(account.entries)) {
+            remove(entry);
+        }
+    }
+
+    private void evictIfNeeded(Account account) {
+        while (_usedBytes > _maxBytes) {
+            long fairShare = _maxBytes / Math.max(1, _sessions);
+            Entry victim;
+            if (account != null && account.bytes > fairShare && account.entries.size() > 1) {
+                victim = account.entries.peekFirst();
+            } else {
+                Iterator<Entry> i = _entries.iterator();
+                victim = i.next();
+            }
+            remove(victim);
+            _evictions++;
+        }
+    }
+
+    private void remove(Entry entry) {
+        _entries.remove(entry);
+        entry.account.entries.remove(entry);
+        entry.account.bytes -= entry.size;
+        if (entry.account.bytes == 0) {
+            _sessions--;
+        }
+        _usedBytes -= entry.size;
+        entry.slot.clearCachedReply(entry);
+    }
+
+    private ByteBuffer encode(List<nfs_resop4> reply) throws IOException {
+        byte[] bytes;
+        try (Xdr xdr = new Xdr(ENCODE_BUFFER_SIZE)) {
+            xdr.beginEncoding();
+            xdr.xdrEncodeInt(reply.size());
+            for (nfs_resop4 op : reply) {
+                forEncoding(op).xdrEncode(xdr);
+            }
+            xdr.endEncoding();
+            bytes = xdr.getBytes();
+        }
+
+        if (!_offHeap) {
+            return ByteBuffer.wrap(bytes);
+        }
+        ByteBuffer data = ByteBuffer.allocateDirect(bytes.length);
+        data.put(bytes);
+        data.flip();
+        return data;
+    }
+
+    /**
+     * Get a copy of the operation result, which can be encoded without
+     * modifying the original one. Encoding consumes the data buffer of a READ,
+     * while the same reply has to be sent to the client afterwards.
+     */
+    private static nfs_resop4 forEncoding(nfs_resop4 op) {
+        if (op.resop != nfs_opnum4.OP_READ || op.opread.status != nfsstat.NFS_OK) {
+            return op;
+        }
+
+        nfs_resop4 copy = nfs_resop4.resopFor(nfs_opnum4.OP_READ);
+        copy.opread.status = nfsstat.NFS_OK;
+        copy.opread.resok4 = new READ4resok();
+        copy.opread.resok4.eof = op.opread.resok4.eof;
+        copy.opread.resok4.data = op.opread.resok4.data.duplicate();
+        return copy;
+    }
+
+    /**
+     * Replies of a single session.
+     */
+    class Account {
+
+        private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+        private long bytes;
+    }
+
+    /**
+     * A cached reply.
+     */
+    static class Entry {
+
+        private final Account account;
+        private final SessionSlot slot;
+        private final ByteBuffer data;
+        private final int size;
+
+        Entry(Account account, SessionSlot slot, ByteBuffer data) {
+            this.account = account;
+            this.slot = slot;
+            this.data = data;
+            this.size = data.remaining();
+        }
+
+        /**
+         * Decode the cached reply.
+         */
+        List<nfs_resop4> decode() throws IOException {
+            byte[] bytes = new byte[size];
+            data.duplicate().get(bytes);
+            // decoded buffers might refer to the array, thus it's not released
+            Xdr xdr = new Xdr(bytes);
+            xdr.beginDecoding();
+            int count = xdr.xdrDecodeInt();
+            List<nfs_resop4> reply = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                reply.add(new nfs_resop4(xdr));
+            }
+            xdr.endDecoding();
+            return reply;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2018 Deutsches Elektronen-Synchroton,
+ * Member of the Helmholtz Association, (DESY), HAMBURG, GERMANY
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Library General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public
+ * License along with this program (see the file COPYING.LIB for more
+ * details); if not, write to the Free Software Foundation, Inc.,
+ * 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.dcache.nfs.v4;
+
+import java.lang.management.ManagementFactory;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanRegistrationException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.NotCompliantMBeanException;
+import javax.management.ObjectName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class ReplyCacheMXBeanImpl implements ReplyCacheMXBean {
+
+    private static final Logger _log = LoggerFactory.getLogger(ReplyCacheMXBeanImpl.class);
+
+    private final ReplyCache _cache;
+
+    public ReplyCacheMXBeanImpl(String name, ReplyCache cache) {
+        _cache = cache;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName mxBeanName = new ObjectName(String.format("%s:type=ReplyCache,name=%s",
+                    _cache.getClass().getPackage().getName(), name));
+            if (!server.isRegistered(mxBeanName)) {
+                server.registerMBean(this, mxBeanName);
+            }
+        } catch (MalformedObjectNameException | InstanceAlreadyExistsException
+                | MBeanRegistrationException | NotCompliantMBeanException ex) {
+            _log.warn("Failed to register JMX bean: {}", ex.getMessage());
+        }
+    }
+
+    @Override
+    public long getMaxBytes() {
+        return _cache.getMaxBytes();
+    }
+
+    @Override
+    public void setMaxBytes(long maxBytes) {
+        _cache.setMaxBytes(maxBytes);
+    }
+
+    @Override
+    public long getUsedBytes() {
+        return _cache.getUsedBytes();
+    }
+
+    @Override
+    public int getEntries() {
+        return _cache.getEntries();
+    }
+
+    @Override
+    public int getSessions() {
+        return _cache.getSessions();
+    }
+
+    @Override
+    public long getEvictions() {
+        return _cache.getEvictions();
+    }
+
+    @Override
+    public boolean isOffHeap() {
+        return _cache.isOffHeap();
+    }
+}
@@ -19,6 +19,7 @@
  */
 package org.dcache.nfs.v4;
 
+import java.io.IOException;
 import java.util.Collections;
 import java.util.List;
 import org.dcache.nfs.v4.xdr.nfs_resop4;
@@ -36,8 +37,28 @@ public class SessionSlot {
     private int _sequence;
     private List<nfs_resop4> _reply;
 
+    /**
+     * Reply cache and account of slot's session or null, if replies are kept
+     * in the slot.
+     */
+    private final ReplyCache _replyCache;
+    private final ReplyCache.Account _account;
+    private volatile ReplyCache.Entry _cachedReply;
+
     public SessionSlot() {
+        this(null, null);
+    }
+
+    /**
+     * Create a slot, which keeps replies in the given reply cache.
+     *
+     * @param replyCache the reply cache to use.
+     * @param account of slot's session.
+     */
+    SessionSlot(ReplyCache replyCache, ReplyCache.Account account) {
        _sequence = 0;
+       _replyCache = replyCache;
+       _account = account;
     }
 
     /**
@@ -68,6 +89,15 @@ public class SessionSlot {
                 return _reply;
             }
 
+            ReplyCache.Entry cachedReply = _cachedReply;
+            if (cachedReply != null) {
+                try {
+                    return cachedReply.decode();
+                } catch (IOException e) {
+                    _log.warn("Failed to decode cached reply: {}", e.getMessage());
+                }
+            }
+
             return Collections.emptyList();
         }
 
@@ -79,10 +109,34 @@ public class SessionSlot {
 
         _sequence = sequence;
         _reply = null;
+        if (_cachedReply != null) {
+            _replyCache.release(this);
+        }
         return null;
     }
 
     void update(List<nfs_resop4> reply) {
-        _reply = reply;
+        if (_replyCache != null) {
+            _replyCache.store(_account, this, reply);
+        } else {
+            _reply = reply;
+        }
+    }
+
+    ReplyCache.Entry getCachedReply() {
+        return _cachedReply;
+    }
+
+    void setCachedReply(ReplyCache.Entry entry) {
+        _cachedReply = entry;
+    }
+
+    /**
+     * Drop the reference to the cached reply, if it is still the given one.
+     */
+    void clearCachedReply(ReplyCache.Entry entry) {
+        if (_cachedReply == entry) {
+            _cachedReply = null;
+        }
     }
 }
@@ -0,0 +1,384 @@
+/*
+ * Copyright (c) 2018 Deutsches Elektronen-Synchroton,
+ * Member of the Helmholtz Association, (DESY), HAMBURG, GERMANY
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Library General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public
+ * License along with this program (see the file COPYING.LIB for more
+ * details); if not, write to the Free Software Foundation, Inc.,
+ * 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.dcache.nfs.v4;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Controls the size of session slot tables depending on client activity and
+ * server load. Sessions of clients, which use all granted slots, are doubled
+ * in size up to {@code maxSlots}. When the server is under pressure, i.e. too
+ * many requests are in flight, heap usage or average request latency is above
+ * the configured threshold, clients are asked to halve the number of used slots
+ * by lowering {@code sr_target_highest_slotid}, but never below {@code minSlots}.
+ * Slot tables are adjusted at most once per adjustment interval.
+ *
+ * @since 0.18
+ */
+public class SlotTableController {
+
+    /**
+     * Weight of a new sample in average latency, as power of two.
+     */
+    private static final int LATENCY_WEIGHT_SHIFT = 4;
+
+    private final int _initialSlots;
+    private volatile int _minSlots;
+    private volatile int _maxSlots;
+    private volatile int _maxInFlight;
+    private volatile double _maxHeapUsage;
+    private volatile long _maxLatency;
+    private final long _adjustInterval;
+
+    private final List<MemoryPoolMXBean> _heapPools;
+
+    private final AtomicInteger _inFlight = new AtomicInteger();
+
+    /**
+     * Exponential moving average of request execution time in nanoseconds.
+     * Concurrent updates may get lost, which is fine for an estimate.
+     */
+    private volatile long _averageLatency;
+
+    private volatile boolean _underPressure;
+    private final AtomicLong _lastPressureCheck = new AtomicLong();
+
+    private final AtomicLong _grows = new AtomicLong();
+    private final AtomicLong _shrinks = new AtomicLong();
+
+    private SlotTableController(Builder builder) {
+        checkArgument(builder.minSlots > 0, "minSlots must be positive");
+        checkArgument(builder.maxSlots >= builder.minSlots, "maxSlots less than minSlots");
+        checkArgument(builder.initialSlots >= builder.minSlots && builder.initialSlots <= builder.maxSlots,
+                "initialSlots out of range");
+
+        _initialSlots = builder.initialSlots;
+        _minSlots = builder.minSlots;
+        _maxSlots = builder.maxSlots;
+        _maxInFlight = builder.maxInFlight;
+        _maxHeapUsage = builder.maxHeapUsage;
+        _maxLatency = builder.maxLatency;
+        _adjustInterval = builder.adjustInterval;
+        _heapPools = ManagementFactory.getMemoryPoolMXBeans().stream()
+                .filter(p -> p.getType() == MemoryType.HEAP && p.isUsageThresholdSupported()
+                        && p.isCollectionUsageThresholdSupported())
+                .collect(Collectors.toList());
+        _lastPressureCheck.set(System.nanoTime() - _adjustInterval);
+        new SlotTableControllerMXBeanImpl(builder.name, this);
+    }
+
+    /**
+     * Get number of slots a new session will get, if client asks for the
+     * given number of slots.
+     *
+     * @param requested number of slots requested by client.
+     * @return number of slots.
+     */
+    public int slotsForNewSession(int requested) {
+        int slots = _underPressure ? _minSlots : _initialSlots;
+        return Math.max(1, Math.min(slots, requested));
+    }
+
+    /**
+     * Notify controller that a new request is being processed.
+     */
+    public void requestStarted() {
+        _inFlight.incrementAndGet();
+    }
+
+    /**
+     * Notify controller that a request has been processed.
+     *
+     * @param nanos request execution time in nanoseconds.
+     */
+    public void requestCompleted(long nanos) {
+        _inFlight.decrementAndGet();
+        long average = _averageLatency;
+        _averageLatency = average + ((nanos - average) >> LATENCY_WEIGHT_SHIFT);
+    }
+
+    /**
+     * Adjust slot table of the given session, if needed. The session's target
+     * highest slot is adjusted first. The highest slot is only lowered down to
+     * the highest slot used by the client.
+     *
+     * @param session to adjust.
+     * @param clientHighestSlot highest slot used by client, as reported in SEQUENCE.
+     */
+    public void adjust(NFSv41Session session, int clientHighestSlot) {
+
+        long now = System.nanoTime();
+        if (now - session.getLastSlotTableUpdate() < _adjustInterval) {
+            return;
+        }
+
+        synchronized (session) {
+            // another request might have adjusted the table in the meantime
+            if (now - session.getLastSlotTableUpdate() < _adjustInterval) {
+                return;
+            }
+
+            int highest = session.getHighestSlot();
+            int target = session.getTargetHighestSlot();
+            int used = Math.min(clientHighestSlot, highest);
+
+            int newTarget;
+            if (isUnderPressure(now)) {
+                newTarget = Math.max(_minSlots - 1, (target + 1) / 2 - 1);
+            } else if (used >= target) {
+                // client uses all slots it was asked to use
+                newTarget = Math.max(_minSlots - 1, Math.min(_maxSlots - 1, (target + 1) * 2 - 1));
+            } else {
+                newTarget = target;
+            }
+
+            int newHighest = newTarget >= highest ? newTarget : Math.max(newTarget, used);
+            if (newTarget == target && newHighest == highest) {
+                return;
+            }
+
+            session.resizeSlotTable(newHighest, newTarget, now);
+            if (newTarget > target) {
+                _grows.incrementAndGet();
+            } else if (newTarget < target) {
+                _shrinks.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Tell whether the server is under pressure. The result is re-evaluated at
+     * most once per adjustment interval.
+     */
+    private boolean isUnderPressure(long now) {
+        long lastCheck = _lastPressureCheck.get();
+        if (now - lastCheck >= _adjustInterval && _lastPressureCheck.compareAndSet(lastCheck, now)) {
+            _underPressure = checkPressure();
+        }
+        return _underPressure;
+    }
+
+    private boolean checkPressure() {
+        int maxInFlight = _maxInFlight;
+        if (maxInFlight > 0 && _inFlight.get() > maxInFlight) {
+            return true;
+        }
+
+        long maxLatency = _maxLatency;
+        if (maxLatency > 0 && _averageLatency > maxLatency) {
+            return true;
+        }
+
+        double maxHeapUsage = _maxHeapUsage;
+        return maxHeapUsage > 0 && getHeapUsage() > maxHeapUsage;
+    }
+
+    /**
+     * Get fraction of heap in use after the last garbage collection. Only
+     * long-lived pools (those, which support usage threshold) are taken into
+     * account, as young generation pools are expected to be full.
+     *
+     * @return heap usage between 0 and 1.
+     */
+    double getHeapUsage() {
+        double usage = 0;
+        for (MemoryPoolMXBean pool : _heapPools) {
+            MemoryUsage memoryUsage = pool.getCollectionUsage();
+            if (memoryUsage != null && memoryUsage.getMax() > 0) {
+                usage = Math.max(usage, (double) memoryUsage.getUsed() / memoryUsage.getMax());
+            }
+        }
+        return usage;
+    }
+
+    public int getInitialSlots() {
+        return _initialSlots;
+    }
+
+    public int getMinSlots() {
+        return _minSlots;
+    }
+
+    public void setMinSlots(int minSlots) {
+        checkArgument(minSlots > 0 && minSlots <= _maxSlots, "minSlots out of range");
+        _minSlots = minSlots;
+    }
+
+    public int getMaxSlots() {
+        return _maxSlots;
+    }
+
+    public void setMaxSlots(int maxSlots) {
+        checkArgument(maxSlots >= _minSlots, "maxSlots less than minSlots");
+        _maxSlots = maxSlots;
+    }
+
+    public int getMaxInFlight() {
+        return _maxInFlight;
+    }
+
+    public void setMaxInFlight(int maxInFlight) {
+        _maxInFlight = maxInFlight;
+    }
+
+    public double getMaxHeapUsage() {
+        return _maxHeapUsage;
+    }
+
+    public void setMaxHeapUsage(double maxHeapUsage) {
+        _maxHeapUsage = maxHeapUsage;
+    }
+
+    /**
+     * Get average latency above which server is considered to be under pressure.
+     * @return latency in nanoseconds or zero, if latency is ignored.
+     */
+    public long getMaxLatency() {
+        return _maxLatency;
+    }
+
+    public void setMaxLatency(long maxLatency, TimeUnit unit) {
+        _maxLatency = unit.toNanos(maxLatency);
+    }
+
+    /**
+     * Get number of requests currently in flight.
+     * @return number of requests.
+     */
+    public int getInFlight() {
+        return _inFlight.get();
+    }
+
+    /**
+     * Get average request execution time.
+     * @return average latency in nanoseconds.
+     */
+    public long getAverageLatency() {
+        return _averageLatency;
+    }
+
+    public boolean isUnderPressure() {
+        return _underPressure;
+    }
+
+    /**
+     * Get number of times a slot table target was increased.
+     * @return number of grows.
+     */
+    public long getGrows() {
+        return _grows.get();
+    }
+
+    /**
+     * Get number of times a slot table target was decreased.
+     * @return number of shrinks.
+     */
+    public long getShrinks() {
+        return _shrinks.get();
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+
+        private String name = "NFSv41";
+        private int initialSlots = NFSv4Defaults.NFS4_MAX_SESSION_SLOTS;
+        private int minSlots = 1;
+        private int maxSlots = NFSv4Defaults.NFS4_MAX_SESSION_SLOTS_LIMIT;
+        private int maxInFlight = NFSv4Defaults.NFS4_SLOT_TABLE_MAX_IN_FLIGHT;
+        private double maxHeapUsage = NFSv4Defaults.NFS4_SLOT_TABLE_MAX_HEAP_USAGE;
+        private long maxLatency = 0;
+        private long adjustInterval = TimeUnit.SECONDS.toNanos(1);
+
+        private Builder() {
+        }
+
+        public Builder withName(String name) {
+            this.name = name;
+            return this;
+        }
+
+        public Builder withInitialSlots(int initialSlots) {
+            this.initialSlots = initialSlots;
+            return this;
+        }
+
+        public Builder withMinSlots(int minSlots) {
+            this.minSlots = minSlots;
+            return this;
+        }
+
+        public Builder withMaxSlots(int maxSlots) {
+            this.maxSlots = maxSlots;
+            return this;
+        }
+
+        /**
+         * Number of requests in flight above which server is under pressure.
+         * Zero disables the check.
+         */
+        public Builder withMaxInFlight(int maxInFlight) {
+            this.maxInFlight = maxInFlight;
+            return this;
+        }
+
+        /**
+         * Fraction of heap usage above which server is under pressure. Zero
+         * disables the check.
+         */
+        public Builder withMaxHeapUsage(double maxHeapUsage) {
+            this.maxHeapUsage = maxHeapUsage;
+            return this;
+        }
+
+        /**
+         * Average request latency above which server is under pressure. Zero
+         * disables the check.
+         */
+        public Builder withMaxLatency(long maxLatency, TimeUnit unit) {
+            this.maxLatency = unit.toNanos(maxLatency);
+            return this;
+        }
+
+        /**
+         * Minimal time between two adjustments of a session slot table.
+         */
+        public Builder withAdjustInterval(long interval, TimeUnit unit) {
+            this.adjustInterval = unit.toNanos(interval);
+            return this;
+        }
+
+        public SlotTableController build() {
+            return new SlotTableController(this);
+        }
+    }
+}
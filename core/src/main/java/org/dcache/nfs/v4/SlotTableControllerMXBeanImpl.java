@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2018 Deutsches Elektronen-Synchroton,
+ * Member of the Helmholtz Association, (DESY), HAMBURG, GERMANY
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Library General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public
+ * License along with this program (see the file COPYING.LIB for more
+ * details); if not, write to the Free Software Foundation, Inc.,
+ * 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.dcache.nfs.v4;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanRegistrationException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.NotCompliantMBeanException;
+import javax.management.ObjectName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class SlotTableControllerMXBeanImpl implements SlotTableControllerMXBean {
+
+    private static final Logger _log = LoggerFactory.getLogger(SlotTableControllerMXBeanImpl.class);
+
+    private final SlotTableController _controller;
+
+    public SlotTableControllerMXBeanImpl(String name, SlotTableController controller) {
+        _controller = controller;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName mxBeanName = new ObjectName(String.format("%s:type=SlotTableController,name=%s",
+                    _controller.getClass().getPackage().getName(), name));
+            if (!server.isRegistered(mxBeanName)) {
+                server.registerMBean(this, mxBeanName);
+            }
+        } catch (MalformedObjectNameException | InstanceAlreadyExistsException
+                | MBeanRegistrationException | NotCompliantMBeanException ex) {
+            _log.warn("Failed to register JMX bean: {}", ex.getMessage());
+        }
+    }
+
+    @Override
+    public int getInitialSlots() {
+        return _controller.getInitialSlots();
+    }
+
+    @Override
+    public int getMinSlots() {
+        return _controller.getMinSlots();
+    }
+
+    @Override
+    public void setMinSlots(int minSlots) {
+        _controller.setMinSlots(minSlots);
+    }
+
+    @Override
+    public int getMaxSlots() {
+        return _controller.getMaxSlots();
+    }
+
+    @Override
+    public void setMaxSlots(int maxSlots) {
+        _controller.setMaxSlots(maxSlots);
+    }
+
+    @Override
+    public int getMaxInFlight() {
+        return _controller.getMaxInFlight();
+    }
+
+    @Override
+    public void setMaxInFlight(int maxInFlight) {
+        _controller.setMaxInFlight(maxInFlight);
+    }
+
+    @Override
+    public double getMaxHeapUsage() {
+        return _controller.getMaxHeapUsage();
+    }
+
+    @Override
+    public void setMaxHeapUsage(double maxHeapUsage) {
+        _controller.setMaxHeapUsage(maxHeapUsage);
+    }
+
+    @Override
+    public long getMaxLatencyMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(_controller.getMaxLatency());
+    }
+
+    @Override
+    public void setMaxLatencyMillis(long maxLatency) {
+        _controller.setMaxLatency(maxLatency, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public int getInFlight() {
+        return _controller.getInFlight();
+    }
+
+    @Override
+    public long getAverageLatencyMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(_controller.getAverageLatency());
+    }
+
+    @Override
+    public boolean isUnderPressure() {
+        return _controller.isUnderPressure();
+    }
+
+    @Override
+    public long getGrows() {
+        return _controller.getGrows();
+    }
+
+    @Override
+    public long getShrinks() {
+        return _controller.getShrinks();
+    }
+}
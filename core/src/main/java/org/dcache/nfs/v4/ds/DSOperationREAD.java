@@ -35,6 +35,7 @@ import org.dcache.nfs.nfsstat;
 import org.dcache.nfs.status.InvalException;
 import org.dcache.nfs.status.IsDirException;
 import org.dcache.nfs.v4.Stateids;
+import org.dcache.nfs.vfs.FileChannels;
 import org.dcache.nfs.vfs.FsCache;
 import org.dcache.nfs.vfs.Inode;
 import org.dcache.nfs.vfs.Stat;
@@ -76,29 +77,20 @@ public class DSOperationREAD extends AbstractNFSv4Operation {
             context.getStateHandler().updateClientLeaseTime(_args.opread.stateid);
         }
 
-        boolean eof = false;
-
         long offset = _args.opread.offset.value;
         int count = _args.opread.count.value;
 
-        ByteBuffer bb = ByteBuffer.allocateDirect(count);
         FileChannel in = _fsCache.get(inode);
 
-        int bytesReaded = in.read(bb, offset);
-        if (bytesReaded < 0) {
-            eof = true;
-            bytesReaded = 0;
-        }
+        ByteBuffer bb = FileChannels.read(in, offset, count);
+        int bytesReaded = bb.remaining();
 
         res.status = nfsstat.NFS_OK;
         res.resok4 = new READ4resok();
-        bb.flip();
         res.resok4.data = bb;
 
-        if (offset + bytesReaded == stat.getSize()) {
-            eof = true;
-        }
-        res.resok4.eof = eof;
+        // an empty buffer means, that offset is at or beyond the end of file
+        res.resok4.eof = (count > 0 && bytesReaded == 0) || offset + bytesReaded == stat.getSize();
 
         _log.debug("MOVER: {}@{} readed, {} requested.",
                 bytesReaded, offset, _args.opread.count.value);
@@ -19,8 +19,10 @@
  */
 package org.dcache.nfs.v4.ds;
 
+import com.google.common.util.concurrent.Striped;
 import java.io.IOException;
 import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.Lock;
 
 import org.dcache.nfs.v4.AbstractNFSv4Operation;
 import org.dcache.nfs.v4.CompoundContext;
@@ -45,6 +47,13 @@ import org.slf4j.LoggerFactory;
 public class DSOperationWRITE extends AbstractNFSv4Operation {
 
     private static final Logger _log = LoggerFactory.getLogger(DSOperationWRITE.class);
+
+    /**
+     * Serializes file size updates of concurrent writes into the same file.
+     * Locks are used instead of synchronizing on the channel, as setattr may
+     * block and a monitor would pin the carrier of a virtual thread.
+     */
+    private static final Striped<Lock> SIZE_UPDATE_LOCKS = Striped.lock(64);
     private final FsCache _fsCache;
 
     public DSOperationWRITE(nfs_argop4 args, FsCache fsCache) {
@@ -99,12 +108,16 @@ public class DSOperationWRITE extends AbstractNFSv4Operation {
         res.resok4.committed = _args.opwrite.stable;
         res.resok4.writeverf = context.getRebootVerifier();
 
-        synchronized(out) {
+        Lock lock = SIZE_UPDATE_LOCKS.get(out);
+        lock.lock();
+        try {
             if ((_args.opwrite.stable != stable_how4.UNSTABLE4) && (offset + bytesWritten > lastSize)) {
                 Stat newStat = new Stat();
                 newStat.setSize(out.size());
                 context.getFs().setattr(context.currentInode(), newStat);
             }
+        } finally {
+            lock.unlock();
         }
         _log.debug("MOVER: {}@{} written, {} requested. New File size {}",
                 bytesWritten, offset, _args.opwrite.data, out.size());
@@ -19,13 +19,20 @@
  */
 package org.dcache.nfs.v4.nlm;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
-import java.util.stream.Collectors;
-import org.dcache.nfs.v4.xdr.nfs4_prot;
+import org.dcache.nfs.v4.NFSv4Defaults;
+import org.dcache.utils.Opaque;
 
 /**
  * An abstract implementation of {@link LockManager} that handles  lock
@@ -36,6 +43,33 @@ import org.dcache.nfs.v4.xdr.nfs4_prot;
  */
 public abstract class AbstractLockManager implements LockManager {
 
+    /**
+     * Default time in milliseconds a range is held for a notified waiter.
+     */
+    public static final long DEFAULT_LOCK_HOLD_TIME = TimeUnit.SECONDS.toMillis(5);
+
+    /**
+     * Default time in milliseconds after which a waiter, which did not re-send
+     * its request, is removed from the queue.
+     */
+    public static final long DEFAULT_MAX_WAIT_IDLE_TIME = TimeUnit.SECONDS.toMillis(NFSv4Defaults.NFS4_LEASE_TIME);
+
+    /**
+     * Blocked lock requests by object id. A queue is accessed only while
+     * holding the corresponding object lock.
+     */
+    private final ConcurrentMap<Opaque, Deque<Waiter>> waiters = new ConcurrentHashMap<>();
+
+    private volatile long lockHoldTime = DEFAULT_LOCK_HOLD_TIME;
+    private volatile long maxWaitIdleTime = DEFAULT_MAX_WAIT_IDLE_TIME;
+
+    private final AtomicLong waitingLocks = new AtomicLong();
+    private final AtomicLong notifications = new AtomicLong();
+    private final AtomicLong grantedAfterWait = new AtomicLong();
+    private final AtomicLong expiredWaiters = new AtomicLong();
+    private final AtomicLong totalWaitTime = new AtomicLong();
+    private final AtomicLong maxWaitTime = new AtomicLong();
+
     /**
      * Get exclusive lock on objects locks.
      *
@@ -52,6 +86,20 @@ public abstract class AbstractLockManager implements LockManager {
      */
     abstract protected Collection<NlmLock> getActiveLocks(byte[] objId);
 
+    /**
+     * Get collection of currently used active locks on the object, which
+     * overlap with the range of a given lock. The default implementation
+     * filters the result of {@link #getActiveLocks(byte[])}. Subclasses with
+     * range-aware lock storage should override this method.
+     *
+     * @param objId object id.
+     * @param lock lock which defines the range.
+     * @return collection of active locks, which overlap with the range.
+     */
+    protected Collection<NlmLock> getOverlappingLocks(byte[] objId, NlmLock lock) {
+        return LockRanges.overlapping(getActiveLocks(objId), lock);
+    }
+
     /**
      * Add {@code lock} to an object.
      * @param objId object id.
@@ -84,79 +132,128 @@ public abstract class AbstractLockManager implements LockManager {
 
     @Override
     public void lock(byte[] objId, NlmLock lock) throws LockException {
+        lockOrWait(objId, lock, null);
+    }
+
+    @Override
+    public void lockOrWait(byte[] objId, NlmLock lock, Runnable onAvailable) throws LockException {
+        List<Runnable> toNotify = new ArrayList<>();
         Lock dlmLock = getObjectLock(objId);
         dlmLock.lock();
         try {
-            Collection<NlmLock> currentLocks = getActiveLocks(objId);
-            Optional<NlmLock> conflictingLock = currentLocks.stream().filter((NlmLock l) -> l.isConflicting(lock)).findAny();
-            if (conflictingLock.isPresent()) {
-                throw new LockDeniedException("object locked", conflictingLock.get());
+            long now = System.currentTimeMillis();
+            Opaque key = new Opaque(objId);
+            Deque<Waiter> queue = waiters.get(key);
+            if (queue != null && expireWaiters(queue, now)) {
+                notifyWaiters(objId, queue, now, toNotify);
             }
-            // no conflicting locks. try to merge existing locks
-            List<NlmLock> toMerge = currentLocks.stream().filter((NlmLock l) -> l.isOverlappingRange(lock)).filter((NlmLock l) -> l.isSameOwner(lock)).filter((NlmLock l) -> l.getLockType() == lock.getLockType()).collect(Collectors.toList());
-            if (toMerge.isEmpty()) {
-                add(objId, lock);
-            } else {
-                // merge overlaping/continues locks
-                long lockBegin = lock.getOffset();
-                long lockEnd = lock.getLength() == nfs4_prot.NFS4_UINT64_MAX ? nfs4_prot.NFS4_UINT64_MAX : (lockBegin + lock.getLength());
-                for (NlmLock l : toMerge) {
-                    lockBegin = Math.min(lockBegin, l.getOffset());
-                    lockEnd = lockEnd == nfs4_prot.NFS4_UINT64_MAX || l.getLength() == nfs4_prot.NFS4_UINT64_MAX ? nfs4_prot.NFS4_UINT64_MAX : Math.max(lockEnd, l.getOffset() + l.getLength() - 1);
+
+            try {
+                if (queue != null) {
+                    // the range might be held for a notified waiter
+                    Optional<Waiter> reserved = queue.stream()
+                            .filter(w -> w.isReservedAt(now) && w.lock.isConflicting(lock))
+                            .findAny();
+                    if (reserved.isPresent()) {
+                        throw new LockDeniedException("range reserved for a waiter", reserved.get().lock);
+                    }
                 }
-                NlmLock mergedLock = new NlmLock(lock.getOwner(), lock.getLockType(), lockBegin, lockEnd == nfs4_prot.NFS4_UINT64_MAX ? lockEnd : lockEnd - lockBegin);
-                removeAll(objId, toMerge);
-                add(objId, mergedLock);
+                doLock(objId, lock);
+            } catch (LockDeniedException e) {
+                if (onAvailable != null) {
+                    enqueue(key, lock, onAvailable, now);
+                } else if (queue != null && queue.isEmpty()) {
+                    waiters.remove(key, queue);
+                }
+                throw e;
+            }
+
+            if (queue != null) {
+                granted(key, queue, lock, now);
             }
         } finally {
             dlmLock.unlock();
+            toNotify.forEach(Runnable::run);
+        }
+    }
+
+    /**
+     * Add a lock to an object, if it doesn't conflict with existing locks.
+     * Overlapping locks of the same owner and type are merged. Called while
+     * holding object lock. Subclasses, which can update their lock storage
+     * atomically, may override this method.
+     *
+     * @param objId object id.
+     * @param lock lock to add.
+     * @throws LockDeniedException if a conflicting lock exists.
+     */
+    protected void doLock(byte[] objId, NlmLock lock) throws LockDeniedException {
+        Collection<NlmLock> currentLocks = getOverlappingLocks(objId, lock);
+        Optional<NlmLock> conflictingLock = LockRanges.findConflict(currentLocks, lock);
+        if (conflictingLock.isPresent()) {
+            throw new LockDeniedException("object locked", conflictingLock.get());
+        }
+        // no conflicting locks. try to merge existing locks
+        List<NlmLock> toMerge = LockRanges.mergeable(currentLocks, lock);
+        if (toMerge.isEmpty()) {
+            add(objId, lock);
+        } else {
+            // merge overlaping/continues locks
+            NlmLock mergedLock = LockRanges.merge(lock, toMerge);
+            removeAll(objId, toMerge);
+            add(objId, mergedLock);
         }
     }
 
     @Override
     public void unlock(byte[] objId, NlmLock lock) throws LockException {
+        List<Runnable> toNotify = new ArrayList<>();
         Lock dlmLock = getObjectLock(objId);
         dlmLock.lock();
         try {
-            Collection<NlmLock> currentLocks = getActiveLocks(objId);
-            // check for exact match first
-            if (remove(objId, lock)) {
-                return;
-            }
-            List<NlmLock> toRemove = new ArrayList<>();
-            List<NlmLock> toAdd = new ArrayList<>();
-            currentLocks.stream().filter((NlmLock l) -> l.isSameOwner(lock)).filter((NlmLock l) -> l.isOverlappingRange(lock)).forEach((NlmLock l) -> {
-                toRemove.add(l);
-                long l1 = lock.getOffset() - l.getOffset();
-                if (l1 > 0) {
-                    NlmLock first = new NlmLock(l.getOwner(), l.getLockType(), l.getOffset(), l1);
-                    toAdd.add(first);
-                }
-                if (lock.getLength() != nfs4_prot.NFS4_UINT64_MAX) {
-                    long l2 = l.getLength() - l1 - 1;
-                    if (l2 > 0) {
-                        NlmLock second = new NlmLock(l.getOwner(), l.getLockType(), lock.getOffset() + lock.getLength(), l2);
-                        toAdd.add(second);
-                    }
-                }
-            });
-            if (toRemove.isEmpty()) {
-                throw new LockRangeUnavailabeException("no matching lock");
-            }
-            removeAll(objId, toRemove);
-            addAll(objId, toAdd);
+            doUnlock(objId, lock);
+            notifyWaiters(objId, toNotify);
         } finally {
             dlmLock.unlock();
+            toNotify.forEach(Runnable::run);
         }
     }
 
+    /**
+     * Remove a lock or a range of a lock from an object. Called while holding
+     * object lock. Subclasses, which can update their lock storage atomically,
+     * may override this method.
+     *
+     * @param objId object id.
+     * @param lock lock or range to remove.
+     * @throws LockException if no matching lock exists.
+     */
+    protected void doUnlock(byte[] objId, NlmLock lock) throws LockException {
+        // check for exact match first
+        if (remove(objId, lock)) {
+            return;
+        }
+        Collection<NlmLock> currentLocks = getOverlappingLocks(objId, lock);
+        List<NlmLock> toRemove = new ArrayList<>();
+        List<NlmLock> toAdd = new ArrayList<>();
+        currentLocks.stream().filter((NlmLock l) -> l.isSameOwner(lock)).forEach((NlmLock l) -> {
+            toRemove.add(l);
+            toAdd.addAll(LockRanges.split(l, lock));
+        });
+        if (toRemove.isEmpty()) {
+            throw new LockRangeUnavailabeException("no matching lock");
+        }
+        removeAll(objId, toRemove);
+        addAll(objId, toAdd);
+    }
+
     @Override
     public void test(byte[] objId, NlmLock lock) throws LockException {
         Lock dlmLock = getObjectLock(objId);
         dlmLock.lock();
         try {
-            Collection<NlmLock> currentLocks = getActiveLocks(objId);
-            Optional<NlmLock> conflictingLock = currentLocks.stream().filter((NlmLock l) -> l.isOverlappingRange(lock) && !l.isSameOwner(lock)).findAny();
+            Collection<NlmLock> currentLocks = getOverlappingLocks(objId, lock);
+            Optional<NlmLock> conflictingLock = currentLocks.stream().filter((NlmLock l) -> !l.isSameOwner(lock)).findAny();
             if (conflictingLock.isPresent()) {
                 throw new LockDeniedException("object locked", conflictingLock.get());
             }
@@ -167,12 +264,245 @@ public abstract class AbstractLockManager implements LockManager {
 
     @Override
     public void unlockIfExists(byte[] objId, NlmLock lock) {
+        List<Runnable> toNotify = new ArrayList<>();
+        Lock dlmLock = getObjectLock(objId);
+        dlmLock.lock();
+        try {
+            if (remove(objId, lock)) {
+                notifyWaiters(objId, toNotify);
+            }
+        } finally {
+            dlmLock.unlock();
+            toNotify.forEach(Runnable::run);
+        }
+    }
+
+    @Override
+    public void cancelWait(byte[] objId, NlmLock lock) {
+        List<Runnable> toNotify = new ArrayList<>();
         Lock dlmLock = getObjectLock(objId);
         dlmLock.lock();
         try {
-            remove(objId, lock);
+            Opaque key = new Opaque(objId);
+            Deque<Waiter> queue = waiters.get(key);
+            if (queue != null && queue.removeIf(w -> w.lock.equals(lock))) {
+                waitingLocks.decrementAndGet();
+                // the cancelled waiter might hold a range
+                notifyWaiters(objId, queue, System.currentTimeMillis(), toNotify);
+                if (queue.isEmpty()) {
+                    waiters.remove(key);
+                }
+            }
         } finally {
             dlmLock.unlock();
+            toNotify.forEach(Runnable::run);
+        }
+    }
+
+    @Override
+    public boolean isWaiting(byte[] objId, NlmLock lock) {
+        Lock dlmLock = getObjectLock(objId);
+        dlmLock.lock();
+        try {
+            Deque<Waiter> queue = waiters.get(new Opaque(objId));
+            return queue != null && queue.stream().anyMatch(w -> w.lock.equals(lock));
+        } finally {
+            dlmLock.unlock();
+        }
+    }
+
+    /**
+     * Add a request into object's waiter queue. A repeated request keeps its
+     * position in the queue.
+     */
+    private void enqueue(Opaque key, NlmLock lock, Runnable onAvailable, long now) {
+        Deque<Waiter> queue = waiters.computeIfAbsent(key, k -> new ArrayDeque<>());
+        for (Waiter w : queue) {
+            if (w.lock.equals(lock)) {
+                w.onAvailable = onAvailable;
+                w.lastSeen = now;
+                return;
+            }
+        }
+        queue.addLast(new Waiter(lock, onAvailable, now));
+        waitingLocks.incrementAndGet();
+    }
+
+    /**
+     * Remove waiters satisfied by a granted lock.
+     */
+    private void granted(Opaque key, Deque<Waiter> queue, NlmLock lock, long now) {
+        Iterator<Waiter> i = queue.iterator();
+        while (i.hasNext()) {
+            Waiter w = i.next();
+            if (w.lock.isSameOwner(lock) && w.lock.isOverlappingRange(lock)) {
+                i.remove();
+                waitingLocks.decrementAndGet();
+                long waitTime = now - w.since;
+                grantedAfterWait.incrementAndGet();
+                totalWaitTime.addAndGet(waitTime);
+                maxWaitTime.accumulateAndGet(waitTime, Math::max);
+            }
+        }
+        if (queue.isEmpty()) {
+            waiters.remove(key);
+        }
+    }
+
+    /**
+     * Remove waiters, which did not show up for too long, and notified waiters,
+     * which did not come back within hold time.
+     *
+     * @return true if any waiter was removed.
+     */
+    private boolean expireWaiters(Deque<Waiter> queue, long now) {
+        boolean expired = false;
+        Iterator<Waiter> i = queue.iterator();
+        while (i.hasNext()) {
+            Waiter w = i.next();
+            if (now - w.lastSeen > maxWaitIdleTime || (w.reservedUntil != 0 && now > w.reservedUntil)) {
+                i.remove();
+                waitingLocks.decrementAndGet();
+                expiredWaiters.incrementAndGet();
+                expired = true;
+            }
+        }
+        return expired;
+    }
+
+    private void notifyWaiters(byte[] objId, List<Runnable> toNotify) {
+        Opaque key = new Opaque(objId);
+        Deque<Waiter> queue = waiters.get(key);
+        if (queue == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        expireWaiters(queue, now);
+        notifyWaiters(objId, queue, now, toNotify);
+        if (queue.isEmpty()) {
+            waiters.remove(key);
+        }
+    }
+
+    /**
+     * Select waiters, in FIFO order, which can be granted now, reserve their
+     * ranges and add their callbacks to {@code toNotify}. A waiter is not
+     * selected if it conflicts with an earlier waiter, which can't be granted
+     * yet.
+     */
+    private void notifyWaiters(byte[] objId, Deque<Waiter> queue, long now, List<Runnable> toNotify) {
+        List<NlmLock> ahead = new ArrayList<>();
+        for (Waiter w : queue) {
+            if (w.reservedUntil == 0) {
+                boolean available = ahead.stream().noneMatch(l -> l.isConflicting(w.lock))
+                        && getOverlappingLocks(objId, w.lock).stream().noneMatch(l -> l.isConflicting(w.lock));
+                if (available) {
+                    w.reservedUntil = now + lockHoldTime;
+                    toNotify.add(w.onAvailable);
+                    notifications.incrementAndGet();
+                }
+            }
+            ahead.add(w.lock);
+        }
+    }
+
+    /**
+     * Set the time in milliseconds a range is held for a notified waiter.
+     *
+     * @param lockHoldTime hold time in milliseconds.
+     */
+    public void setLockHoldTime(long lockHoldTime) {
+        this.lockHoldTime = lockHoldTime;
+    }
+
+    /**
+     * Set the time in milliseconds after which a waiter, which did not re-send
+     * its request, is removed from the queue.
+     *
+     * @param maxWaitIdleTime idle time in milliseconds.
+     */
+    public void setMaxWaitIdleTime(long maxWaitIdleTime) {
+        this.maxWaitIdleTime = maxWaitIdleTime;
+    }
+
+    /**
+     * Returns number of lock requests in waiter queues.
+     */
+    public long getWaitingLocks() {
+        return waitingLocks.get();
+    }
+
+    /**
+     * Returns number of waiters notified about available range.
+     */
+    public long getNotifications() {
+        return notifications.get();
+    }
+
+    /**
+     * Returns number of locks granted to waiters.
+     */
+    public long getGrantedAfterWait() {
+        return grantedAfterWait.get();
+    }
+
+    /**
+     * Returns number of waiters removed from the queue without getting the lock.
+     */
+    public long getExpiredWaiters() {
+        return expiredWaiters.get();
+    }
+
+    /**
+     * Returns average time in milliseconds a waiter waited for a lock.
+     */
+    public long getAverageWaitTime() {
+        long n = grantedAfterWait.get();
+        return n == 0 ? 0 : totalWaitTime.get() / n;
+    }
+
+    /**
+     * Returns maximal time in milliseconds a waiter waited for a lock.
+     */
+    public long getMaxWaitTime() {
+        return maxWaitTime.get();
+    }
+
+    /**
+     * Reset wait statistics.
+     */
+    public void resetStatistics() {
+        notifications.set(0);
+        grantedAfterWait.set(0);
+        expiredWaiters.set(0);
+        totalWaitTime.set(0);
+        maxWaitTime.set(0);
+    }
+
+    /**
+     * A blocked lock request.
+     */
+    private static class Waiter {
+
+        private final NlmLock lock;
+        private final long since;
+        private Runnable onAvailable;
+        private long lastSeen;
+        /**
+         * Time until the range is held for this waiter, or zero, if the waiter
+         * is not notified yet.
+         */
+        private long reservedUntil;
+
+        Waiter(NlmLock lock, Runnable onAvailable, long now) {
+            this.lock = lock;
+            this.onAvailable = onAvailable;
+            this.since = now;
+            this.lastSeen = now;
+        }
+
+        boolean isReservedAt(long now) {
+            return reservedUntil != 0 && now <= reservedUntil;
         }
     }
 
@@ -60,4 +60,50 @@ public interface LockManager {
      * @param lock
      */
     void unlockIfExists(byte[] objId, NlmLock lock);
+
+    /**
+     * Like {@link #lock(byte[], NlmLock)}, but if a conflicting lock is
+     * detected, the request is put into object's waiter queue. Once the
+     * range becomes available, waiters are notified in FIFO order by
+     * calling their {@code onAvailable} callback and the range is held for
+     * a notified waiter for a short period of time. The waiter is expected
+     * to re-send the lock request.
+     * <p>
+     * The default implementation does not support waiter queues and
+     * behaves like {@link #lock(byte[], NlmLock)}.
+     *
+     * @param objId object to lock.
+     * @param lock lock definition.
+     * @param onAvailable callback to notify the waiter.
+     * @throws LockDeniedException if a conflicting lock is detected.
+     * @throws LockException if locking fails.
+     * @since 0.18
+     */
+    default void lockOrWait(byte[] objId, NlmLock lock, Runnable onAvailable) throws LockException {
+        lock(objId, lock);
+    }
+
+    /**
+     * Remove a request added by {@link #lockOrWait(byte[], NlmLock, Runnable)}
+     * from object's waiter queue, if present.
+     *
+     * @param objId object id.
+     * @param lock lock definition.
+     * @since 0.18
+     */
+    default void cancelWait(byte[] objId, NlmLock lock) {
+    }
+
+    /**
+     * Check whatever a request added by {@link #lockOrWait(byte[], NlmLock, Runnable)}
+     * is in object's waiter queue.
+     *
+     * @param objId object id.
+     * @param lock lock definition.
+     * @return true, if request is waiting for the lock.
+     * @since 0.18
+     */
+    default boolean isWaiting(byte[] objId, NlmLock lock) {
+        return false;
+    }
 }
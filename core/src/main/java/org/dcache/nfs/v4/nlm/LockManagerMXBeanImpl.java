@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2018 Deutsches Elektronen-Synchroton,
+ * Member of the Helmholtz Association, (DESY), HAMBURG, GERMANY
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Library General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public
+ * License along with this program (see the file COPYING.LIB for more
+ * details); if not, write to the Free Software Foundation, Inc.,
+ * 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.dcache.nfs.v4.nlm;
+
+import java.lang.management.ManagementFactory;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanRegistrationException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.NotCompliantMBeanException;
+import javax.management.ObjectName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class LockManagerMXBeanImpl implements LockManagerMXBean {
+
+    private static final Logger _log = LoggerFactory.getLogger(LockManagerMXBeanImpl.class);
+
+    private final AbstractLockManager _lockManager;
+
+    public LockManagerMXBeanImpl(String name, AbstractLockManager lockManager) {
+        _lockManager = lockManager;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName mxBeanName = new ObjectName(String.format("%s:type=LockManager,name=%s",
+                    _lockManager.getClass().getPackage().getName(), name));
+            if (!server.isRegistered(mxBeanName)) {
+                server.registerMBean(this, mxBeanName);
+            }
+        } catch (MalformedObjectNameException | InstanceAlreadyExistsException
+                | MBeanRegistrationException | NotCompliantMBeanException ex) {
+            _log.warn("Failed to register JMX bean: {}", ex.getMessage());
+        }
+    }
+
+    @Override
+    public long getWaitingLocks() {
+        return _lockManager.getWaitingLocks();
+    }
+
+    @Override
+    public long getNotifications() {
+        return _lockManager.getNotifications();
+    }
+
+    @Override
+    public long getGrantedAfterWait() {
+        return _lockManager.getGrantedAfterWait();
+    }
+
+    @Override
+    public long getExpiredWaiters() {
+        return _lockManager.getExpiredWaiters();
+    }
+
+    @Override
+    public long getAverageWaitTime() {
+        return _lockManager.getAverageWaitTime();
+    }
+
+    @Override
+    public long getMaxWaitTime() {
+        return _lockManager.getMaxWaitTime();
+    }
+
+    @Override
+    public void resetStatistics() {
+        _lockManager.resetStatistics();
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2018 Deutsches Elektronen-Synchroton,
+ * Member of the Helmholtz Association, (DESY), HAMBURG, GERMANY
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Library General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public
+ * License along with this program (see the file COPYING.LIB for more
+ * details); if not, write to the Free Software Foundation, Inc.,
+ * 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.dcache.nfs.v4.nlm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import org.dcache.nfs.v4.xdr.nfs4_prot;
+
+/**
+ * Lock conflict, merge and split rules shared by lock managers, which keep
+ * locks in their own storage, and by those, which apply them to a plain list
+ * of locks, e.g. inside a data grid.
+ *
+ * @since 0.18
+ */
+final class LockRanges {
+
+    private LockRanges() {}
+
+    /**
+     * Find a lock, which conflicts with a given lock.
+     *
+     * @param currentLocks locks to check.
+     * @param lock the requested lock.
+     * @return conflicting lock, if any.
+     */
+    static Optional<NlmLock> findConflict(Collection<NlmLock> currentLocks, NlmLock lock) {
+        return currentLocks.stream().filter((NlmLock l) -> l.isConflicting(lock)).findAny();
+    }
+
+    /**
+     * Get locks of the same owner and type, which have to be merged with
+     * a given lock.
+     */
+    static List<NlmLock> mergeable(Collection<NlmLock> overlappingLocks, NlmLock lock) {
+        return overlappingLocks.stream()
+                .filter((NlmLock l) -> l.isSameOwner(lock))
+                .filter((NlmLock l) -> l.getLockType() == lock.getLockType())
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Build a lock, which covers a given lock and all locks to merge.
+     */
+    static NlmLock merge(NlmLock lock, Collection<NlmLock> toMerge) {
+        long lockBegin = lock.getOffset();
+        long lockEnd = lock.getLength() == nfs4_prot.NFS4_UINT64_MAX ? nfs4_prot.NFS4_UINT64_MAX : (lockBegin + lock.getLength());
+        for (NlmLock l : toMerge) {
+            lockBegin = Math.min(lockBegin, l.getOffset());
+            lockEnd = lockEnd == nfs4_prot.NFS4_UINT64_MAX || l.getLength() == nfs4_prot.NFS4_UINT64_MAX ? nfs4_prot.NFS4_UINT64_MAX : Math.max(lockEnd, l.getOffset() + l.getLength() - 1);
+        }
+        return new NlmLock(lock.getOwner(), lock.getLockType(), lockBegin, lockEnd == nfs4_prot.NFS4_UINT64_MAX ? lockEnd : lockEnd - lockBegin);
+    }
+
+    /**
+     * Get parts of a held lock, which remain after a given range is unlocked.
+     */
+    static List<NlmLock> split(NlmLock held, NlmLock unlock) {
+        List<NlmLock> remaining = new ArrayList<>(2);
+        long l1 = unlock.getOffset() - held.getOffset();
+        if (l1 > 0) {
+            remaining.add(new NlmLock(held.getOwner(), held.getLockType(), held.getOffset(), l1));
+        }
+        if (unlock.getLength() != nfs4_prot.NFS4_UINT64_MAX) {
+            long l2 = held.getLength() - l1 - 1;
+            if (l2 > 0) {
+                remaining.add(new NlmLock(held.getOwner(), held.getLockType(), unlock.getOffset() + unlock.getLength(), l2));
+            }
+        }
+        return remaining;
+    }
+
+    /**
+     * Apply a lock request to a list of all locks of an object.
+     *
+     * @param locks locks of the object, updated on success.
+     * @param lock the requested lock.
+     * @return conflicting lock or null, if lock is granted.
+     */
+    static NlmLock lock(List<NlmLock> locks, NlmLock lock) {
+        List<NlmLock> overlapping = overlapping(locks, lock);
+        Optional<NlmLock> conflictingLock = findConflict(overlapping, lock);
+        if (conflictingLock.isPresent()) {
+            return conflictingLock.get();
+        }
+        List<NlmLock> toMerge = mergeable(overlapping, lock);
+        if (toMerge.isEmpty()) {
+            locks.add(lock);
+        } else {
+            locks.removeAll(toMerge);
+            locks.add(merge(lock, toMerge));
+        }
+        return null;
+    }
+
+    /**
+     * Apply an unlock request to a list of all locks of an object.
+     *
+     * @param locks locks of the object, updated on success.
+     * @param lock the range to unlock.
+     * @return true, if any lock was removed or split.
+     */
+    static boolean unlock(List<NlmLock> locks, NlmLock lock) {
+        // check for exact match first
+        if (locks.remove(lock)) {
+            return true;
+        }
+        List<NlmLock> toRemove = overlapping(locks, lock).stream()
+                .filter((NlmLock l) -> l.isSameOwner(lock))
+                .collect(Collectors.toList());
+        if (toRemove.isEmpty()) {
+            return false;
+        }
+        List<NlmLock> toAdd = new ArrayList<>();
+        toRemove.forEach(l -> toAdd.addAll(split(l, lock)));
+        locks.removeAll(toRemove);
+        locks.addAll(toAdd);
+        return true;
+    }
+
+    static List<NlmLock> overlapping(Collection<NlmLock> locks, NlmLock lock) {
+        return locks.stream()
+                .filter(l -> l.isOverlappingRange(lock))
+                .collect(Collectors.toList());
+    }
+}
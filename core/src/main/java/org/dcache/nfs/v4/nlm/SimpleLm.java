@@ -19,12 +19,19 @@
  */
 package org.dcache.nfs.v4.nlm;
 
-import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.Multimap;
-import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.Striped;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import org.dcache.nfs.v4.xdr.nfs4_prot;
+import org.dcache.utils.Opaque;
 
 /**
  * Simple non-distributed implementation of {@link LockManager}.
@@ -33,49 +40,185 @@ import java.util.concurrent.locks.ReentrantLock;
  */
 public class SimpleLm extends AbstractLockManager {
 
+    /*
+     * Use {@link Striped} locks to make operations on different files
+     * independent from each other.
+     */
+    private final Striped<Lock> objLock;
+
+    /**
+     * Active locks, indexed by file id.
+     */
+    private final ConcurrentMap<Opaque, FileLocks> locks = new ConcurrentHashMap<>();
+
+    public SimpleLm() {
+        this(Runtime.getRuntime().availableProcessors() * 4);
+    }
+
     /**
-     * Exclusive lock on file object.
+     * Create lock manager with a given number of lock stripes.
+     *
+     * @param concurrency the number of lock stripes.
      */
-    private final Lock objLock = new ReentrantLock();
+    public SimpleLm(int concurrency) {
+        objLock = Striped.lock(concurrency);
+    }
 
     /**
-     * Exclusive lock on objects locks.
+     * Create lock manager, which publishes its lock wait statistics over JMX
+     * under a given name.
+     *
+     * @param name the name of the lock manager.
      */
-    private final Multimap<String, NlmLock> locks = ArrayListMultimap.create();
+    public SimpleLm(String name) {
+        this(Runtime.getRuntime().availableProcessors() * 4);
+        new LockManagerMXBeanImpl(name, this);
+    }
 
     @Override
     protected Lock getObjectLock(byte[] objId) {
-        return objLock;
+        return objLock.get(new Opaque(objId));
     }
 
     @Override
     protected Collection<NlmLock> getActiveLocks(byte[] objId) {
-        String key = BaseEncoding.base16().lowerCase().encode(objId);
-        return locks.get(key);
+        FileLocks fileLocks = locks.get(new Opaque(objId));
+        return fileLocks == null ? new ArrayList<>() : fileLocks.all();
+    }
+
+    @Override
+    protected Collection<NlmLock> getOverlappingLocks(byte[] objId, NlmLock lock) {
+        FileLocks fileLocks = locks.get(new Opaque(objId));
+        return fileLocks == null ? new ArrayList<>() : fileLocks.overlapping(lock);
     }
 
     @Override
     protected void add(byte[] objId, NlmLock lock) {
-        String key = BaseEncoding.base16().lowerCase().encode(objId);
-        locks.put(key, lock);
+        locks.computeIfAbsent(new Opaque(objId), k -> new FileLocks()).add(lock);
     }
 
     @Override
     protected boolean remove(byte[] objId, NlmLock lock) {
-        String key = BaseEncoding.base16().lowerCase().encode(objId);
-        return locks.remove(key, lock);
+        Opaque key = new Opaque(objId);
+        FileLocks fileLocks = locks.get(key);
+        if (fileLocks == null) {
+            return false;
+        }
+        boolean removed = fileLocks.remove(lock);
+        // the caller holds the object lock, thus no concurrent add is possible
+        if (fileLocks.isEmpty()) {
+            locks.remove(key);
+        }
+        return removed;
     }
 
     @Override
     protected void addAll(byte[] objId, Collection<NlmLock> locks) {
-        String key = BaseEncoding.base16().lowerCase().encode(objId);
-        locks.forEach(l -> this.locks.put(key, l));
+        locks.forEach(l -> add(objId, l));
     }
 
     @Override
     protected void removeAll(byte[] objId, Collection<NlmLock> locks) {
-        String key = BaseEncoding.base16().lowerCase().encode(objId);
-        locks.forEach(l -> this.locks.remove(key, l));
+        locks.forEach(l -> remove(objId, l));
     }
 
+    /**
+     * Locks of a single file, ordered by the lock offset.
+     * <p>
+     * To find locks overlapping with a given range, only locks which start
+     * before the end of the range and not before the range's offset minus the
+     * longest lock length are inspected. Locks up to the end of the file are
+     * kept separately, thus don't widen the search.
+     */
+    private static class FileLocks {
+
+        private final NavigableMap<Long, List<NlmLock>> byOffset = new TreeMap<>();
+
+        /**
+         * Multiset of lengths of locks in {@link #byOffset}.
+         */
+        private final NavigableMap<Long, Integer> lengths = new TreeMap<>();
+
+        /**
+         * Locks up to the end of the file.
+         */
+        private final List<NlmLock> toEof = new ArrayList<>(1);
+
+        void add(NlmLock lock) {
+            if (lock.getLength() == nfs4_prot.NFS4_UINT64_MAX) {
+                toEof.add(lock);
+            } else {
+                byOffset.computeIfAbsent(lock.getOffset(), k -> new ArrayList<>(1)).add(lock);
+                lengths.merge(lock.getLength(), 1, Integer::sum);
+            }
+        }
+
+        boolean remove(NlmLock lock) {
+            if (lock.getLength() == nfs4_prot.NFS4_UINT64_MAX) {
+                return toEof.remove(lock);
+            }
+
+            List<NlmLock> atOffset = byOffset.get(lock.getOffset());
+            if (atOffset == null || !atOffset.remove(lock)) {
+                return false;
+            }
+            if (atOffset.isEmpty()) {
+                byOffset.remove(lock.getOffset());
+            }
+            lengths.computeIfPresent(lock.getLength(), (k, v) -> v == 1 ? null : v - 1);
+            return true;
+        }
+
+        boolean isEmpty() {
+            return byOffset.isEmpty() && toEof.isEmpty();
+        }
+
+        List<NlmLock> all() {
+            List<NlmLock> all = new ArrayList<>(toEof);
+            byOffset.values().forEach(all::addAll);
+            return all;
+        }
+
+        List<NlmLock> overlapping(NlmLock lock) {
+
+            List<NlmLock> overlapping = new ArrayList<>();
+            for (NlmLock l : toEof) {
+                if (l.isOverlappingRange(lock)) {
+                    overlapping.add(l);
+                }
+            }
+
+            if (byOffset.isEmpty()) {
+                return overlapping;
+            }
+
+            long offset = lock.getOffset();
+            long lastByte = lock.getLength() == nfs4_prot.NFS4_UINT64_MAX || lock.getLength() > Long.MAX_VALUE - offset
+                    ? Long.MAX_VALUE
+                    : offset + lock.getLength() - 1;
+            long maxLength = lengths.lastKey();
+
+            Iterator<Map.Entry<Long, List<NlmLock>>> i = byOffset.headMap(lastByte, true)
+                    .descendingMap()
+                    .entrySet()
+                    .iterator();
+            while (i.hasNext()) {
+                Map.Entry<Long, List<NlmLock>> e = i.next();
+                long start = e.getKey();
+                if (start < offset) {
+                    long distance = offset - start;
+                    // no lock starting here or below can reach the range (or distance overflowed)
+                    if (distance < 0 || distance >= maxLength) {
+                        break;
+                    }
+                }
+                for (NlmLock l : e.getValue()) {
+                    if (l.isOverlappingRange(lock)) {
+                        overlapping.add(l);
+                    }
+                }
+            }
+            return overlapping;
+        }
+    }
 }
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2018 Deutsches Elektronen-Synchroton,
+ * Member of the Helmholtz Association, (DESY), HAMBURG, GERMANY
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Library General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public
+ * License along with this program (see the file COPYING.LIB for more
+ * details); if not, write to the Free Software Foundation, Inc.,
+ * 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.dcache.nfs.vfs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Utility methods for file systems which keep their data in {@link FileChannel}s.
+ *
+ * @since 0.18
+ */
+public final class FileChannels {
+
+    private FileChannels() {
+        // no instance allowed
+    }
+
+    /**
+     * Read up to {@code count} bytes from a given channel at a given position
+     * into a heap buffer. The buffer is sized to the data actually available
+     * in the file, thus reading at, or close to, the end of file does not pin
+     * {@code count} bytes of memory. The buffer is handed to the transport as
+     * is, without an intermediate byte array. Direct buffers are not used, as
+     * they are zeroed on allocation, freed only by GC and the data is copied
+     * during XDR encoding anyway.
+     *
+     * @param channel channel to read from.
+     * @param offset file's position to read from.
+     * @param count maximal number of bytes to read.
+     * @return buffer with data read from the file, ready to be consumed. The
+     * buffer is empty if {@code offset} is at or beyond the end of file.
+     * @throws IOException
+     */
+    public static ByteBuffer read(FileChannel channel, long offset, int count) throws IOException {
+
+        long available = Math.max(0, channel.size() - offset);
+        ByteBuffer data = ByteBuffer.allocate((int) Math.min(count, available));
+        while (data.hasRemaining()) {
+            int n = channel.read(data, offset + data.position());
+            if (n < 0) {
+                // file truncated behind our back
+                break;
+            }
+        }
+        data.flip();
+        return data;
+    }
+}
@@ -19,6 +19,7 @@ package org.dcache.nfs.vfs;
 import com.google.common.io.BaseEncoding;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.Arrays;
 
 /**
  * NFS file handle on wire representation format v1.
@@ -49,6 +50,13 @@ public class FileHandle {
     private final int type;
     private final byte[] fs_opaque;
 
+    /**
+     * On the wire representation and its hash code, computed once, as handles
+     * are used as keys in caches and maps.
+     */
+    private final byte[] bytes;
+    private final int hashCode;
+
     public FileHandle(int generation, int exportIdx, int type, byte[] fs_opaque) {
         this.version = VERSION;
         this.magic = MAGIC;
@@ -56,6 +64,8 @@ public class FileHandle {
         this.exportIdx = exportIdx;
         this.type = type;
         this.fs_opaque = fs_opaque;
+        this.bytes = toBytes();
+        this.hashCode = Arrays.hashCode(bytes);
     }
 
 
@@ -106,6 +116,8 @@ public class FileHandle {
         } else {
             throw new IllegalArgumentException("Unsupported version: " + geussVersion);
         }
+        this.bytes = toBytes();
+        this.hashCode = Arrays.hashCode(this.bytes);
     }
 
     public int getVersion() {
@@ -133,6 +145,10 @@ public class FileHandle {
     }
 
     public byte[] bytes() {
+        return bytes.clone();
+    }
+
+    private byte[] toBytes() {
         int len = fs_opaque.length + MIN_LEN;
         byte[] bytes = new byte[len];
         ByteBuffer b = ByteBuffer.wrap(bytes);
@@ -147,9 +163,26 @@ public class FileHandle {
         return bytes;
     }
 
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this) {
+            return true;
+        }
+        if (!(obj instanceof FileHandle)) {
+            return false;
+        }
+        final FileHandle other = (FileHandle) obj;
+        return hashCode == other.hashCode && Arrays.equals(bytes, other.bytes);
+    }
+
     @Override
     public String toString() {
-        return BaseEncoding.base16().lowerCase().encode(this.bytes());
+        return BaseEncoding.base16().lowerCase().encode(bytes);
     }
 
     private static boolean arrayEquals(byte[] a1, byte[] a2, int len) {
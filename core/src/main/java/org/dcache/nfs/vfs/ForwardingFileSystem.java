@@ -20,6 +20,7 @@
 package org.dcache.nfs.vfs;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import javax.security.auth.Subject;
 import org.dcache.nfs.v4.NfsIdMapping;
 import org.dcache.nfs.v4.xdr.nfsace4;
@@ -95,6 +96,11 @@ public abstract class ForwardingFileSystem implements VirtualFileSystem {
         return delegate().read(inode, data, offset, count);
     }
 
+    @Override
+    public ByteBuffer read(Inode inode, long offset, int count) throws IOException {
+        return delegate().read(inode, offset, count);
+    }
+
     @Override
     public String readlink(Inode inode) throws IOException {
         return delegate().readlink(inode);
@@ -115,11 +121,21 @@ public abstract class ForwardingFileSystem implements VirtualFileSystem {
         return delegate().write(inode, data, offset, count, stabilityLevel);
     }
 
+    @Override
+    public WriteResult write(Inode inode, ByteBuffer data, long offset, StabilityLevel stabilityLevel) throws IOException {
+        return delegate().write(inode, data, offset, stabilityLevel);
+    }
+
     @Override
     public void commit(Inode inode, long offset, int count) throws IOException {
         delegate().commit(inode, offset, count);
     }
 
+    @Override
+    public long getWriteEpoch() {
+        return delegate().getWriteEpoch();
+    }
+
     @Override
     public Stat getattr(Inode inode) throws IOException {
         return delegate().getattr(inode);
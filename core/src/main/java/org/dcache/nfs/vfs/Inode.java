@@ -19,11 +19,16 @@
  */
 package org.dcache.nfs.vfs;
 
-import java.util.Arrays;
+import org.dcache.utils.Opaque;
 
 public class Inode {
 
-    FileHandle fh;
+    final FileHandle fh;
+
+    /**
+     * File id as a map key, created on first use.
+     */
+    private volatile Opaque fileIdKey;
 
     public Inode(byte[] bytes) {
         this(new FileHandle(bytes));
@@ -41,17 +46,36 @@ public class Inode {
         return fh.getFsOpaque();
     }
 
+    /**
+     * Get file id wrapped into {@link Opaque}, suitable to be used as a key in
+     * maps and caches. The same instance is returned on subsequent calls.
+     *
+     * @return file id as {@link Opaque}.
+     * @since 0.18
+     */
+    public Opaque getFileIdKey() {
+        Opaque key = fileIdKey;
+        if (key == null) {
+            key = new Opaque(fh.getFsOpaque());
+            fileIdKey = key;
+        }
+        return key;
+    }
+
     public byte[] toNfsHandle() {
         return fh.bytes();
     }
 
     @Override
     public int hashCode() {
-        return Arrays.hashCode(fh.bytes());
+        return fh.hashCode();
     }
 
     @Override
     public boolean equals(Object obj) {
+        if (obj == this) {
+            return true;
+        }
         if (obj == null) {
             return false;
         }
@@ -59,7 +83,7 @@ public class Inode {
             return false;
         }
         final Inode other = (Inode) obj;
-        return Arrays.equals(fh.bytes(), other.fh.bytes());
+        return fh.equals(other.fh);
     }
 
     public boolean isPesudoInode() {
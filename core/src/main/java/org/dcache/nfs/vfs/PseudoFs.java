@@ -21,18 +21,25 @@ package org.dcache.nfs.vfs;
 
 import com.google.common.base.Function;
 import com.google.common.base.Splitter;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Collections2;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Collectors;
 import javax.security.auth.Subject;
 import org.dcache.auth.Subjects;
 import org.dcache.nfs.ChimeraNFSException;
 import org.dcache.nfs.ExportFile;
+import org.dcache.nfs.ExportTableListener;
 import org.dcache.nfs.FsExport;
 import org.dcache.nfs.nfsstat;
 import org.dcache.nfs.status.*;
@@ -67,6 +74,16 @@ public class PseudoFs extends ForwardingFileSystem {
     private final ExportFile _exportFile;
     private final RpcAuth _auth;
 
+    /**
+     * Export trees, shared by all instances, which use the same export table.
+     * A tree is built once per backend file system and set of exports visible
+     * to a client, and dropped when any of those exports changes, or when a
+     * node of the tree doesn't exist any more in the backend file system.
+     */
+    private final static Cache<ExportFile, ExportTrees> EXPORT_TREES = CacheBuilder.newBuilder()
+            .weakKeys()
+            .build();
+
     private final static int ACCESS4_MASK =
             ACCESS4_DELETE | ACCESS4_EXECUTE | ACCESS4_EXTEND
             | ACCESS4_LOOKUP | ACCESS4_MODIFY | ACCESS4_READ;
@@ -84,56 +101,43 @@ public class PseudoFs extends ForwardingFileSystem {
         return _inner;
     }
 
-    private boolean canAccess(Inode inode, int mode) {
-        try {
-            checkAccess(inode, mode, false);
-            return true;
-        } catch (IOException e) {
-        }
-        return false;
-    }
+    /**
+     * ACCESS4 bits and ACE4 masks used to evaluate them.
+     */
+    private static final int[][] ACCESS4_TO_ACE4 = {
+        {ACCESS4_READ, ACE4_READ_DATA},
+        {ACCESS4_LOOKUP, ACE4_EXECUTE},
+        {ACCESS4_MODIFY, ACE4_WRITE_DATA},
+        {ACCESS4_EXECUTE, ACE4_EXECUTE},
+        {ACCESS4_EXTEND, ACE4_APPEND_DATA},
+        {ACCESS4_DELETE, ACE4_DELETE_CHILD}
+    };
 
     @Override
     public int access(Inode inode, int mode) throws IOException {
-        int accessmask = 0;
 
         if ((mode & ~ACCESS4_MASK) != 0) {
             throw new InvalException("invalid access mask");
         }
 
-        if ((mode & ACCESS4_READ) != 0) {
-            if (canAccess(inode, ACE4_READ_DATA)) {
-                accessmask |= ACCESS4_READ;
-            }
-        }
-
-        if ((mode & ACCESS4_LOOKUP) != 0) {
-            if (canAccess(inode, ACE4_EXECUTE)) {
-                accessmask |= ACCESS4_LOOKUP;
+        int requestedMask = 0;
+        for (int[] bits : ACCESS4_TO_ACE4) {
+            if ((mode & bits[0]) != 0) {
+                requestedMask |= bits[1];
             }
         }
 
-        if ((mode & ACCESS4_MODIFY) != 0) {
-            if (canAccess(inode, ACE4_WRITE_DATA)) {
-                accessmask |= ACCESS4_MODIFY;
-            }
-        }
-
-        if ((mode & ACCESS4_EXECUTE) != 0) {
-            if (canAccess(inode, ACE4_EXECUTE)) {
-                accessmask |= ACCESS4_EXECUTE;
-            }
-        }
-
-        if ((mode & ACCESS4_EXTEND) != 0) {
-            if (canAccess(inode, ACE4_APPEND_DATA)) {
-                accessmask |= ACCESS4_EXTEND;
-            }
+        int allowedMask;
+        try {
+            allowedMask = allowedAccess(inode, requestedMask);
+        } catch (IOException e) {
+            allowedMask = 0;
         }
 
-        if ((mode & ACCESS4_DELETE) != 0) {
-            if (canAccess(inode, ACE4_DELETE_CHILD)) {
-                accessmask |= ACCESS4_DELETE;
+        int accessmask = 0;
+        for (int[] bits : ACCESS4_TO_ACE4) {
+            if ((mode & bits[0]) != 0 && (allowedMask & bits[1]) != 0) {
+                accessmask |= bits[0];
             }
         }
 
@@ -254,6 +258,12 @@ public class PseudoFs extends ForwardingFileSystem {
         return _inner.read(inode, data, offset, count);
     }
 
+    @Override
+    public ByteBuffer read(Inode inode, long offset, int count) throws IOException {
+        checkAccess(inode, ACE4_READ_DATA);
+        return _inner.read(inode, offset, count);
+    }
+
     @Override
     public String readlink(Inode inode) throws IOException {
         checkAccess(inode, ACE4_READ_DATA);
@@ -291,10 +301,21 @@ public class PseudoFs extends ForwardingFileSystem {
         return _inner.write(inode, data, offset, count, stabilityLevel);
     }
 
+    @Override
+    public WriteResult write(Inode inode, ByteBuffer data, long offset, StabilityLevel stabilityLevel) throws IOException {
+        checkAccess(inode, ACE4_WRITE_DATA);
+        return _inner.write(inode, data, offset, stabilityLevel);
+    }
+
     @Override
     public Stat getattr(Inode inode) throws IOException {
         checkAccess(inode, ACE4_READ_ATTRIBUTES);
-        return _inner.getattr(inode);
+        try {
+            return _inner.getattr(inode);
+        } catch (NoEntException | StaleException e) {
+            dropExportTreeOf(inode);
+            throw e;
+        }
     }
 
     @Override
@@ -403,6 +424,81 @@ public class PseudoFs extends ForwardingFileSystem {
         return effectiveSubject;
     }
 
+    /**
+     * Get the subset of {@code requestedMask}, which is allowed. Each bit is
+     * evaluated on its own, like {@link #checkAccess(Inode, int, boolean)} does,
+     * but export options and file attributes are evaluated only once.
+     */
+    private int allowedAccess(Inode inode, int requestedMask) throws IOException {
+
+        Subject effectiveSubject = _subject;
+        int allowedMask = requestedMask;
+
+        if (inode.isPesudoInode()) {
+            allowedMask &= ~modifyBits(allowedMask);
+        } else {
+            int exportIdx = getExportIndex(inode);
+            FsExport export = _exportFile.getExport(exportIdx, _inetAddress);
+            if (exportIdx != 0 && export == null) {
+                throw new AccessException("permission deny");
+            }
+
+            checkSecurityFlavor(_auth, export.getSec());
+
+            if (export.ioMode() == FsExport.IO.RO) {
+                allowedMask &= ~modifyBits(allowedMask);
+            }
+
+            if (export.isAllRoot()) {
+                return allowedMask;
+            }
+
+            if (Subjects.isNobody(_subject) || export.hasAllSquash() || (!export.isTrusted() && Subjects.isRoot(_subject))) {
+                effectiveSubject = Subjects.of(export.getAnonUid(), export.getAnonGid());
+            }
+
+            if (export.checkAcls()) {
+                AclCheckable aclCheckable = _inner.getAclCheckable();
+                int undefinedMask = 0;
+                for (int m = allowedMask; m != 0; m &= m - 1) {
+                    int bit = Integer.lowestOneBit(m);
+                    switch (aclCheckable.checkAcl(_subject, inode, bit)) {
+                        case DENY:
+                            allowedMask &= ~bit;
+                            break;
+                        case UNDEFINED:
+                            undefinedMask |= bit;
+                            break;
+                        default:
+                            break;
+                    }
+                }
+                // unix permissions only for bits without ACL answer
+                if (undefinedMask == 0) {
+                    return allowedMask;
+                }
+                int decidedMask = allowedMask & ~undefinedMask;
+                return decidedMask | (undefinedMask & unixToAccessmask(effectiveSubject, _inner.getattr(inode)));
+            }
+        }
+
+        if (allowedMask == 0 || allowedMask == ACE4_READ_ATTRIBUTES) {
+            return allowedMask;
+        }
+        return allowedMask & unixToAccessmask(effectiveSubject, _inner.getattr(inode));
+    }
+
+    private static int modifyBits(int mask) {
+        int modify = 0;
+        for (int m = mask; m != 0; m &= m - 1) {
+            int bit = Integer.lowestOneBit(m);
+            if (Acls.wantModify(bit)) {
+                modify |= bit;
+            }
+        }
+        return modify;
+    }
+
     /*
      * unix permission bits offset as defined in POSIX
      * for st_mode filed of the stat  structure.
@@ -431,22 +527,18 @@ public class PseudoFs extends ForwardingFileSystem {
     }
 
     private Inode lookupInPseudoDirectory(Inode parent, String name) throws IOException {
-        Set<PseudoFsNode> nodes = prepareExportTree();
-
-        for (PseudoFsNode node : nodes) {
-            if (node.id().equals(parent)) {
-                PseudoFsNode n = node.getChild(name);
-                if (n != null) {
-                    return n.isMountPoint() ? pseudoIdToReal(n.id(), getIndexId(n)) : n.id();
-                }
+        PseudoFsNode node = getExportTree().getNode(parent);
+        if (node != null) {
+            PseudoFsNode n = node.getChild(name);
+            if (n != null) {
+                return n.isMountPoint() ? pseudoIdToReal(n.id(), getIndexId(n)) : n.id();
             }
         }
         throw new NoEntException();
     }
 
     private boolean isPseudoDirectory(Inode dir) throws IOException {
-        return prepareExportTree().stream()
-                .anyMatch(n -> n.id().equals(dir));
+        return getExportTree().getNode(dir) != null;
     }
 
     public static Inode pseudoIdToReal(Inode inode, int index) {
@@ -495,29 +587,37 @@ public class PseudoFs extends ForwardingFileSystem {
     }
 
     private Collection<DirectoryEntry> listPseudoDirectory(Inode parent) throws ChimeraNFSException, IOException {
-        Set<PseudoFsNode> nodes = prepareExportTree();
-        for (PseudoFsNode node : nodes) {
-            if (node.id().equals(parent)) {
-                if (node.isMountPoint()) {
-                    return Collections2.transform(_inner.list(parent, null, 0L).getEntries(), new ConvertToRealInode(node));
-                } else {
-                    long cookie = 0; // artificial cookie
-                    List<DirectoryEntry> pseudoLs = new ArrayList<>();
-                    for (String s : node.getChildren()) {
-                        PseudoFsNode subNode = node.getChild(s);
-                        Inode inode = subNode.id();
-                        Stat stat = _inner.getattr(inode);
-                        DirectoryEntry e = new DirectoryEntry(s,
-                                subNode.isMountPoint()
-                                ? pseudoIdToReal(inode, getIndexId(subNode)) : inode, stat, cookie);
-                        pseudoLs.add(e);
-                        cookie++;
-                    }
-                    return pseudoLs;
-                }
+        PseudoFsNode node = getExportTree().getNode(parent);
+        if (node == null) {
+            throw new NoEntException();
+        }
+        if (node.isMountPoint()) {
+            try {
+                return Collections2.transform(_inner.list(parent, null, 0L).getEntries(), new ConvertToRealInode(node));
+            } catch (NoEntException | StaleException e) {
+                dropExportTreeOf(parent);
+                throw e;
             }
         }
-        throw new NoEntException();
+        long cookie = 0; // artificial cookie
+        List<DirectoryEntry> pseudoLs = new ArrayList<>();
+        for (String s : node.getChildren()) {
+            PseudoFsNode subNode = node.getChild(s);
+            Inode inode = subNode.id();
+            Stat stat;
+            try {
+                stat = _inner.getattr(inode);
+            } catch (NoEntException | StaleException e) {
+                dropExportTreeOf(inode);
+                throw e;
+            }
+            DirectoryEntry e = new DirectoryEntry(s,
+                    subNode.isMountPoint()
+                    ? pseudoIdToReal(inode, getIndexId(subNode)) : inode, stat, cookie);
+            pseudoLs.add(e);
+            cookie++;
+        }
+        return pseudoLs;
     }
 
     private Inode pushExportIndex(Inode inode, int index) {
@@ -560,18 +660,22 @@ public class PseudoFs extends ForwardingFileSystem {
         return new Inode(fh);
     }
 
-    private void pathToPseudoFs(final PseudoFsNode root, Set<PseudoFsNode> all, FsExport e) {
+    /**
+     * Add nodes of an export path to the tree.
+     *
+     * @return false, if the path can't be resolved.
+     */
+    private boolean pathToPseudoFs(final PseudoFsNode root, FsExport e) {
 
         PseudoFsNode parent = root;
         String path = e.getPath();
 
         if (e.getPath().equals("/")) {
             root.addExport(e);
-            return;
+            return true;
         }
 
         Splitter splitter = Splitter.on('/').omitEmptyStrings();
-        Set<PseudoFsNode> pathNodes = new HashSet<>();
 
         for (String s : splitter.split(path)) {
             try {
@@ -579,34 +683,89 @@ public class PseudoFs extends ForwardingFileSystem {
                 if (node == null) {
                     node = new PseudoFsNode(realToPseudo(_inner.lookup(parent.id(), s)));
                     parent.addChild(s, node);
-                    pathNodes.add(node);
                 }
                 parent = node;
             } catch (IOException ef) {
-                return;
+                return false;
             }
         }
 
-        all.addAll(pathNodes);
         parent.setId(pseudoIdToReal(parent.id(), e.getIndex()));
         parent.addExport(e);
+        return true;
     }
 
-    private Set<PseudoFsNode> prepareExportTree() throws ChimeraNFSException, IOException {
+    /**
+     * Get the export tree for the client. The tree is taken from the cache or
+     * built and cached, if all export paths are resolved.
+     */
+    private PseudoFsTree getExportTree() throws ChimeraNFSException, IOException {
+
+        long generation = _exportFile.getGeneration();
+        ExportTrees exportTrees = getExportTrees();
+
+        List<FsExport> exports = _exportFile.exportsFor(_inetAddress).collect(Collectors.toList());
+        TreeKey key = new TreeKey(_inner, exports);
+        PseudoFsTree tree = exportTrees.trees.get(key);
+        if (tree != null) {
+            return tree;
+        }
 
-        Set<PseudoFsNode> nodes = new HashSet<>();
         Inode rootInode = realToPseudo(_inner.getRootInode());
         PseudoFsNode root = new PseudoFsNode(rootInode);
 
-        _exportFile.exportsFor(_inetAddress).forEach(e -> pathToPseudoFs(root, nodes, e));
+        boolean complete = true;
+        for (FsExport e : exports) {
+            complete &= pathToPseudoFs(root, e);
+        }
 
-        if (nodes.isEmpty()) {
+        tree = new PseudoFsTree(root);
+        if (tree.size() == 1) {
             _log.warn("No exports found for: {}", _inetAddress);
             throw new AccessException();
         }
 
-        nodes.add(root);
-        return nodes;
+        // an export path might be created later
+        if (complete) {
+            PseudoFsTree other = exportTrees.trees.putIfAbsent(key, tree);
+            if (other != null) {
+                tree = other;
+            } else if (_exportFile.getGeneration() != generation) {
+                // the tree might be built from an outdated export table
+                exportTrees.trees.remove(key, tree);
+            }
+        }
+        return tree;
+    }
+
+    private ExportTrees getExportTrees() {
+        ExportTrees exportTrees = EXPORT_TREES.getIfPresent(_exportFile);
+        if (exportTrees == null) {
+            ExportTrees newTrees = new ExportTrees();
+            exportTrees = EXPORT_TREES.asMap().putIfAbsent(_exportFile, newTrees);
+            if (exportTrees == null) {
+                exportTrees = newTrees;
+                _exportFile.addListener(newTrees);
+            }
+        }
+        return exportTrees;
+    }
+
+    /**
+     * Drop the cached export tree of the client, if the given inode, which
+     * doesn't exist any more, is a node of it. The exported directory might be
+     * removed and re-created, so the tree is rebuilt with the new inodes on
+     * the next request.
+     */
+    private void dropExportTreeOf(Inode inode) {
+        List<FsExport> exports = _exportFile.exportsFor(_inetAddress).collect(Collectors.toList());
+        TreeKey key = new TreeKey(_inner, exports);
+        ExportTrees exportTrees = getExportTrees();
+        PseudoFsTree tree = exportTrees.trees.get(key);
+        if (tree != null && tree.getNode(inode) != null) {
+            _log.debug("Dropping export tree with stale node {}", inode);
+            exportTrees.trees.remove(key, tree);
+        }
     }
 
     private static void checkSecurityFlavor(RpcAuth auth, FsExport.Sec minFlavor) throws ChimeraNFSException {
@@ -648,4 +807,60 @@ public class PseudoFs extends ForwardingFileSystem {
     private boolean inheritUidGid(Inode inode) {
         return _exportFile.getExport(inode.exportIndex(), _inetAddress).isAllRoot();
     }
+
+    /**
+     * Export trees of an export table.
+     */
+    private static class ExportTrees implements ExportTableListener {
+
+        private final ConcurrentMap<TreeKey, PseudoFsTree> trees = new ConcurrentHashMap<>();
+
+        @Override
+        public void exportsChanged(Set<Integer> changed) {
+            trees.keySet().removeIf(k -> k.containsAny(changed));
+        }
+    }
+
+    /**
+     * Identifies an export tree by backend file system and export indexes
+     * visible to a client.
+     */
+    private static class TreeKey {
+
+        private final VirtualFileSystem _fs;
+        private final int[] _exports;
+        private final int _hashCode;
+
+        TreeKey(VirtualFileSystem fs, List<FsExport> exports) {
+            _fs = fs;
+            _exports = exports.stream().mapToInt(FsExport::getIndex).toArray();
+            _hashCode = 31 * System.identityHashCode(fs) + Arrays.hashCode(_exports);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            if (!(obj instanceof TreeKey)) {
+                return false;
+            }
+            final TreeKey other = (TreeKey) obj;
+            return _fs == other._fs && Arrays.equals(_exports, other._exports);
+        }
+
+        @Override
+        public int hashCode() {
+            return _hashCode;
+        }
+
+        boolean containsAny(Set<Integer> indexes) {
+            for (int index : _exports) {
+                if (indexes.contains(index)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
 }
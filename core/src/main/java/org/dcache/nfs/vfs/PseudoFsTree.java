@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2018 Deutsches Elektronen-Synchroton,
+ * Member of the Helmholtz Association, (DESY), HAMBURG, GERMANY
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Library General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public
+ * License along with this program (see the file COPYING.LIB for more
+ * details); if not, write to the Free Software Foundation, Inc.,
+ * 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.dcache.nfs.vfs;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A pseudo file system tree with an index of its nodes by inode. The tree
+ * must not be modified after the index is built.
+ *
+ * @since 0.18
+ */
+class PseudoFsTree {
+
+    private final Map<Inode, PseudoFsNode> _nodes = new HashMap<>();
+
+    PseudoFsTree(PseudoFsNode root) {
+        Deque<PseudoFsNode> toVisit = new ArrayDeque<>();
+        toVisit.add(root);
+        while (!toVisit.isEmpty()) {
+            PseudoFsNode node = toVisit.poll();
+            _nodes.put(node.id(), node);
+            node.getChildren().forEach(name -> toVisit.add(node.getChild(name)));
+        }
+    }
+
+    /**
+     * Get node of the tree with a given id.
+     *
+     * @param id inode of the node.
+     * @return the node or null, if there is no such node.
+     */
+    PseudoFsNode getNode(Inode id) {
+        return _nodes.get(id);
+    }
+
+    /**
+     * Get the number of nodes in the tree, including the root.
+     */
+    int size() {
+        return _nodes.size();
+    }
+}
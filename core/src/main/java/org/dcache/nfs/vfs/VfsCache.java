@@ -28,11 +28,15 @@ import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 import java.io.IOException;
 import java.util.Arrays;
-import java.util.Objects;
+import java.util.Optional;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import javax.security.auth.Subject;
+import org.dcache.nfs.status.NoEntException;
+import org.dcache.nfs.v4.xdr.nfsace4;
 import org.dcache.utils.GuavaCacheMXBeanImpl;
 import org.dcache.utils.Opaque;
 
@@ -43,13 +47,28 @@ import static java.util.Objects.requireNonNull;
  */
 public class VfsCache extends ForwardingFileSystem {
 
-    private final LoadingCache<CacheKey, Inode> _lookupCache;
+    /**
+     * Lookup results. A missing name is loaded as an empty value, which is
+     * dropped as soon as the load completes.
+     */
+    private final Cache<CacheKey, Optional<Inode>> _lookupCache;
     private final Cache<Opaque, Stat> _statCache;
     private final LoadingCache<Inode, Inode> _parentCache;
     private final Supplier<FsStat> _fsStatSupplier;
 
     private final Cache<InodeCacheEntry, DirectoryStream> _readdirCache;
 
+    /**
+     * Maximal number of ACL access decisions cached for a single file.
+     */
+    private static final int MAX_ACL_DECISIONS = 256;
+
+    /**
+     * ACL access decisions by file id. Null, if disabled.
+     */
+    private final Cache<Opaque, ConcurrentMap<AclKey, AclCheckable.Access>> _aclCache;
+    private final AclCheckable _aclCheckable = this::checkAclFromCacheOrLoad;
+
     private final VirtualFileSystem _inner;
 
     public VfsCache(VirtualFileSystem inner, VfsCacheConfig cacheConfig) {
@@ -59,7 +78,7 @@ public class VfsCache extends ForwardingFileSystem {
 		.expireAfterWrite(cacheConfig.getLifeTime(), cacheConfig.getTimeUnit())
 		.softValues()
                 .recordStats()
-		.build(new LoockupLoader());
+		.build();
 
 	_statCache = CacheBuilder.newBuilder()
 		.maximumSize(cacheConfig.getMaxEntries())
@@ -82,6 +101,17 @@ public class VfsCache extends ForwardingFileSystem {
                 .recordStats()
                 .build();
 
+        if (cacheConfig.getAclLifeTime() > 0) {
+            _aclCache = CacheBuilder.newBuilder()
+                    .maximumSize(cacheConfig.getMaxEntries())
+                    .expireAfterWrite(cacheConfig.getAclLifeTime(), cacheConfig.getAclLifeTimeUnit())
+                    .recordStats()
+                    .build();
+            new GuavaCacheMXBeanImpl("vfs-acl", _aclCache);
+        } else {
+            _aclCache = null;
+        }
+
         _fsStatSupplier = cacheConfig.getFsStatLifeTime() > 0 ?
                 Suppliers.memoizeWithExpiration(new FsStatSupplier(), cacheConfig.getFsStatLifeTime(), cacheConfig.getFsSataTimeUnit()) :
                 new FsStatSupplier();
@@ -182,6 +212,20 @@ public class VfsCache extends ForwardingFileSystem {
     public void setattr(Inode inode, Stat stat) throws IOException {
         _inner.setattr(inode, stat);
 	invalidateStatCache(inode);
+        invalidateAclCache(inode);
+    }
+
+    @Override
+    public void setAcl(Inode inode, nfsace4[] acl) throws IOException {
+        _inner.setAcl(inode, acl);
+        // the mode might be updated as well
+        invalidateStatCache(inode);
+        invalidateAclCache(inode);
+    }
+
+    @Override
+    public AclCheckable getAclCheckable() {
+        return _aclCache == null ? _inner.getAclCheckable() : _aclCheckable;
     }
 
     /*
@@ -199,7 +243,7 @@ public class VfsCache extends ForwardingFileSystem {
     }
 
     private void updateLookupCache(Inode parent, String path, Inode inode) {
-	_lookupCache.put(new CacheKey(parent, path), inode);
+	_lookupCache.put(new CacheKey(parent, path), Optional.of(inode));
     }
 
     /**
@@ -209,34 +253,95 @@ public class VfsCache extends ForwardingFileSystem {
      * @param path to invalidate
      */
     public void invalidateStatCache(final Inode inode) {
-	_statCache.invalidate(new Opaque(inode.getFileId()));
+	_statCache.invalidate(inode.getFileIdKey());
     }
 
-    private void updateParentCache(Inode inode, Inode parent) {
-        _parentCache.put(inode, parent);
+    /**
+     * Discards cached ACL access decisions for given {@link Inode}.
+     *
+     * @param inode to invalidate
+     */
+    public void invalidateAclCache(final Inode inode) {
+        if (_aclCache != null) {
+            _aclCache.invalidate(inode.getFileIdKey());
+        }
     }
 
-    private class LoockupLoader extends CacheLoader<CacheKey, Inode> {
+    private AclCheckable.Access checkAclFromCacheOrLoad(Subject subject, Inode inode, int accessMask) throws IOException {
+        ConcurrentMap<AclKey, AclCheckable.Access> decisions;
+        try {
+            decisions = _aclCache.get(inode.getFileIdKey(), ConcurrentHashMap::new);
+        } catch (ExecutionException e) {
+            throw new AssertionError("map creation failed", e);
+        }
 
-        @Override
-        public Inode load(CacheKey k) throws Exception {
-            return _inner.lookup(k.getParent(), k.getName());
+        AclKey key = new AclKey(subject, accessMask);
+        AclCheckable.Access access = decisions.get(key);
+        if (access == null) {
+            access = _inner.getAclCheckable().checkAcl(subject, inode, accessMask);
+            if (decisions.size() >= MAX_ACL_DECISIONS) {
+                decisions.clear();
+            }
+            decisions.put(key, access);
         }
+        return access;
+    }
+
+    private void updateParentCache(Inode inode, Inode parent) {
+        _parentCache.put(inode, parent);
     }
 
     private Inode lookupFromCacheOrLoad(final Inode parent, final String path) throws IOException {
-	try {
-	    return _lookupCache.get(new CacheKey(parent, path));
-	} catch (ExecutionException e) {
-	    Throwable t = e.getCause();
-	    Throwables.throwIfInstanceOf(t, IOException.class);
-	    throw new IOException(e.getMessage(), t);
-	}
+        CacheKey key = new CacheKey(parent, path);
+        // check for a hit first to avoid creating a loader
+        Optional<Inode> inode = _lookupCache.getIfPresent(key);
+        if (inode != null && inode.isPresent()) {
+            return inode.get();
+        }
+
+        /*
+         * A missing name, which is a common case, is loaded as an empty value
+         * instead of a failure, as the cache would wrap the exception into an
+         * ExecutionException with a full stack trace.
+         */
+        NoEntException[] noEnt = new NoEntException[1];
+        try {
+            inode = _lookupCache.get(key, () -> {
+                try {
+                    return Optional.of(_inner.lookup(parent, path));
+                } catch (NoEntException e) {
+                    noEnt[0] = e;
+                    return Optional.empty();
+                }
+            });
+        } catch (ExecutionException e) {
+            Throwable t = e.getCause();
+            Throwables.throwIfInstanceOf(t, IOException.class);
+            throw new IOException(e.getMessage(), t);
+        }
+
+        if (inode.isPresent()) {
+            return inode.get();
+        }
+
+        // don't keep negative entries, as the name can be created by others
+        _lookupCache.asMap().remove(key, inode);
+        if (noEnt[0] != null) {
+            throw noEnt[0];
+        }
+        // concurrent lookup of the same name loaded by other thread
+        throw new NoEntException("Path does not exist: " + path);
     }
 
     private Stat statFromCacheOrLoad(final Inode inode) throws IOException {
+        Opaque key = inode.getFileIdKey();
+        // check for a hit first to avoid creating a loader
+        Stat stat = _statCache.getIfPresent(key);
+        if (stat != null) {
+            return stat;
+        }
 	try {
-	    return _statCache.get(new Opaque(inode.getFileId()), () -> _inner.getattr(inode));
+	    return _statCache.get(key, () -> _inner.getattr(inode));
 	} catch (ExecutionException e) {
 	    Throwable t = e.getCause();
 	    Throwables.throwIfInstanceOf(t, IOException.class);
@@ -268,10 +373,12 @@ public class VfsCache extends ForwardingFileSystem {
 
         private final Inode _parent;
         private final String _name;
+        private final int _hashCode;
 
         public CacheKey(Inode parent, String name) {
             _parent = parent;
             _name = name;
+            _hashCode = 31 * _name.hashCode() + _parent.hashCode();
         }
 
         @Override
@@ -291,7 +398,7 @@ public class VfsCache extends ForwardingFileSystem {
 
         @Override
         public int hashCode() {
-            return Objects.hash(_name, _parent);
+            return _hashCode;
         }
 
         public String getName() {
@@ -303,6 +410,36 @@ public class VfsCache extends ForwardingFileSystem {
         }
     }
 
+    private static class AclKey {
+
+        private final Subject _subject;
+        private final int _accessMask;
+        private final int _hashCode;
+
+        AclKey(Subject subject, int accessMask) {
+            _subject = subject;
+            _accessMask = accessMask;
+            _hashCode = 31 * subject.hashCode() + accessMask;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            if (!(obj instanceof AclKey)) {
+                return false;
+            }
+            final AclKey other = (AclKey) obj;
+            return _accessMask == other._accessMask && _subject.equals(other._subject);
+        }
+
+        @Override
+        public int hashCode() {
+            return _hashCode;
+        }
+    }
+
     private static class InodeCacheEntry {
 
         private final Inode _inode;
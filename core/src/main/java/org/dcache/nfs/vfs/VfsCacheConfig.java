@@ -36,6 +36,9 @@ public class VfsCacheConfig {
     private TimeUnit readdirLifeTimeUnit = TimeUnit.SECONDS;
     private int readdirMaxEntries;
 
+    private long aclLifeTime = 0;
+    private TimeUnit aclLifeTimeUnit = TimeUnit.SECONDS;
+
     /**
      * Get maximal number of entries in the cache.
      * @return maximal number of entries
@@ -102,6 +105,23 @@ public class VfsCacheConfig {
         return readdirMaxEntries;
     }
 
+    /**
+     * Get ACL access decision cache validity time. Zero disables the cache.
+     *
+     * @return cache validity time.
+     */
+    public long getAclLifeTime() {
+        return aclLifeTime;
+    }
+
+    /**
+     * Get unit in which ACL access decision cache validity time is expressed.
+     * @return time unit.
+     */
+    public TimeUnit getAclLifeTimeUnit() {
+        return aclLifeTimeUnit;
+    }
+
     /**
      * Set maximal number of entries in the cache.
      * @param maxEntries
@@ -165,4 +185,21 @@ public class VfsCacheConfig {
     public void setReaddirMaxEntries(int maxEntries) {
         readdirMaxEntries = maxEntries;
     }
+
+    /**
+     * Set ACL access decision cache validity time. As access decisions made
+     * by other servers can't be invalidated, this time should be short.
+     * @param lifeTime
+     */
+    public void setAclLifeTime(long lifeTime) {
+        this.aclLifeTime = lifeTime;
+    }
+
+    /**
+     * Set unit in which ACL access decision cache validity time is expressed.
+     * @param lifeTimeTimeUnit
+     */
+    public void setAclLifeTimeUnit(TimeUnit lifeTimeTimeUnit) {
+        this.aclLifeTimeUnit = lifeTimeTimeUnit;
+    }
 }
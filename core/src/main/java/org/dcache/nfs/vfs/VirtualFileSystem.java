@@ -20,6 +20,8 @@
 package org.dcache.nfs.vfs;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import javax.security.auth.Subject;
 import org.dcache.nfs.v4.NfsIdMapping;
 import org.dcache.nfs.v4.xdr.nfsace4;
@@ -179,6 +181,35 @@ public interface VirtualFileSystem {
      */
     int read(Inode inode, byte[] data, long offset, int count) throws IOException;
 
+    /**
+     * Read up to {@code count} bytes from file with a given inode. The returned
+     * buffer is ready to be consumed, i.e. its remaining bytes are the data read
+     * from the file, and is handed to the transport as is. Implementations which
+     * hold data in a {@link FileChannel} or off-heap memory should override this
+     * method and return a buffer filled by the channel (see
+     * {@link FileChannels#read(FileChannel, long, int)}) to avoid copying the
+     * data through an intermediate array.
+     * <p>
+     * The default implementation adapts {@link #read(Inode, byte[], long, int)}.
+     *
+     * @param inode inode of the file to read from.
+     * @param offset file's position to read from.
+     * @param count maximal number of bytes to read.
+     * @return buffer with data read from the file. The buffer is empty if
+     * {@code offset} is at or beyond the end of file. Never {@code null}.
+     * @throws IOException
+     * @since 0.18
+     */
+    default ByteBuffer read(Inode inode, long offset, int count) throws IOException {
+        byte[] data = new byte[count];
+        int n = read(inode, data, offset, count);
+        if (n < 0) {
+            // EOF
+            n = 0;
+        }
+        return ByteBuffer.wrap(data, 0, n);
+    }
+
     /**
      * Get value of a symbolic link object.
      *
@@ -224,6 +255,42 @@ public interface VirtualFileSystem {
      */
     WriteResult write(Inode inode, byte[] data, long offset, int count, StabilityLevel stabilityLevel) throws IOException;
 
+    /**
+     * Write remaining bytes of provided {@code data} into inode with a given
+     * stability level. On return the buffer's position is advanced by the
+     * number of bytes written. Implementations which can consume a
+     * {@link ByteBuffer} directly, e.g. by passing it to a {@link FileChannel},
+     * should override this method to avoid copying the data into an
+     * intermediate heap array.
+     * <p>
+     * The default implementation adapts {@link #write(Inode, byte[], long, int, StabilityLevel)}
+     * and passes the buffer's backing array as is, if possible.
+     *
+     * @param inode inode of the file to write.
+     * @param data data to be written.
+     * @param offset the file position to begin writing at.
+     * @param stabilityLevel data stability level.
+     * @return write result.
+     * @throws IOException
+     * @since 0.18
+     */
+    default WriteResult write(Inode inode, ByteBuffer data, long offset, StabilityLevel stabilityLevel) throws IOException {
+        int count = data.remaining();
+        byte[] bytes;
+        if (data.hasArray() && data.arrayOffset() + data.position() == 0) {
+            bytes = data.array();
+        } else {
+            bytes = new byte[count];
+            data.duplicate().get(bytes);
+        }
+
+        WriteResult result = write(inode, bytes, offset, count, stabilityLevel);
+        if (result.getBytesWritten() > 0) {
+            data.position(data.position() + result.getBytesWritten());
+        }
+        return result;
+    }
+
     /**
      * Flush data in {@code dirty} state to the stable storage. Typically
      * follows {@link #write()} operation.
@@ -235,6 +302,23 @@ public interface VirtualFileSystem {
      */
     void commit(Inode inode, long offset, int count) throws IOException;
 
+    /**
+     * Get the write epoch of this file system. The epoch must change every
+     * time data acknowledged as {@link StabilityLevel#UNSTABLE} may have been
+     * lost before reaching stable storage. The epoch is part of the write
+     * verifier returned to the clients, which re-send uncommitted data when the
+     * verifier changes.
+     * <p>
+     * The default implementation returns a constant, i.e. only server restarts
+     * change the write verifier.
+     *
+     * @return the write epoch.
+     * @since 0.18
+     */
+    default long getWriteEpoch() {
+        return 0L;
+    }
+
     /**
      * Get file system object's attributes.
      *
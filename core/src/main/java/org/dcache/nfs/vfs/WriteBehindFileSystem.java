@@ -0,0 +1,485 @@
+/*
+ * Copyright (c) 2018 Deutsches Elektronen-Synchroton,
+ * Member of the Helmholtz Association, (DESY), HAMBURG, GERMANY
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Library General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public
+ * License along with this program (see the file COPYING.LIB for more
+ * details); if not, write to the Free Software Foundation, Inc.,
+ * 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.dcache.nfs.vfs;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import org.dcache.utils.Opaque;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Write-behind decorator.
+ * <p>
+ * {@link StabilityLevel#UNSTABLE} writes are kept in memory and passed to the
+ * backing file system in coalesced chunks. The buffered data of a file is
+ * flushed when the file is committed, read, truncated, removed or written with
+ * a higher stability level, when the total amount of buffered data exceeds the
+ * configured limit and periodically by a background timer.
+ * <p>
+ * If buffered data can't be flushed, it's lost. In that case the write epoch
+ * is advanced, which changes the write verifier, thus clients re-send all
+ * uncommitted data.
+ *
+ * @since 0.18
+ */
+public class WriteBehindFileSystem extends ForwardingFileSystem implements Closeable {
+
+    private static final Logger _log = LoggerFactory.getLogger(WriteBehindFileSystem.class);
+
+    /**
+     * Maximal number of bytes passed to the backing file system with a single
+     * write request.
+     */
+    private static final int MAX_FLUSH_CHUNK = 4 * 1024 * 1024;
+
+    private final VirtualFileSystem _inner;
+
+    /**
+     * Amount of buffered data, in bytes, which triggers flush of all files.
+     */
+    private final long _maxBufferedBytes;
+
+    /**
+     * Maximal time, in milliseconds, data stays buffered.
+     */
+    private final long _flushDelay;
+
+    private final ConcurrentMap<Opaque, DirtyFile> _dirtyFiles = new ConcurrentHashMap<>();
+    private final AtomicLong _bufferedBytes = new AtomicLong();
+    private final AtomicLong _epoch = new AtomicLong();
+    private final ScheduledExecutorService _flusher;
+
+    /**
+     * Create write-behind decorator for a given file system.
+     *
+     * @param inner the backing file system.
+     * @param maxBufferedBytes amount of buffered data, in bytes, which triggers
+     * flush of all files.
+     * @param flushDelay maximal time data stays buffered.
+     * @param unit time unit of {@code flushDelay}.
+     */
+    public WriteBehindFileSystem(VirtualFileSystem inner, long maxBufferedBytes, long flushDelay, TimeUnit unit) {
+        checkArgument(maxBufferedBytes > 0, "maxBufferedBytes must be positive");
+        checkArgument(flushDelay > 0, "flushDelay must be positive");
+        _inner = requireNonNull(inner);
+        _maxBufferedBytes = maxBufferedBytes;
+        _flushDelay = unit.toMillis(flushDelay);
+        _flusher = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder()
+                        .setNameFormat("write-behind flusher")
+                        .setDaemon(true)
+                        .build()
+        );
+        _flusher.scheduleWithFixedDelay(this::flushExpired, flushDelay, flushDelay, unit);
+    }
+
+    @Override
+    protected VirtualFileSystem delegate() {
+        return _inner;
+    }
+
+    @Override
+    public WriteResult write(Inode inode, byte[] data, long offset, int count, StabilityLevel stabilityLevel) throws IOException {
+        return write(inode, ByteBuffer.wrap(data, 0, count), offset, stabilityLevel);
+    }
+
+    @Override
+    public WriteResult write(Inode inode, ByteBuffer data, long offset, StabilityLevel stabilityLevel) throws IOException {
+
+        if (stabilityLevel != StabilityLevel.UNSTABLE) {
+            flush(inode);
+            return _inner.write(inode, data, offset, stabilityLevel);
+        }
+
+        int count = data.remaining();
+        // the request buffer is recycled by the transport, keep a copy
+        byte[] bytes = new byte[count];
+        data.get(bytes);
+
+        Opaque key = new Opaque(inode.getFileId());
+        while (true) {
+            DirtyFile dirtyFile = _dirtyFiles.computeIfAbsent(key, k -> new DirtyFile(inode));
+            dirtyFile.getLock().lock();
+            try {
+                if (dirtyFile.isRetired()) {
+                    // flushed in between, try again
+                    continue;
+                }
+                _bufferedBytes.addAndGet(dirtyFile.add(offset, bytes));
+                break;
+            } finally {
+                dirtyFile.getLock().unlock();
+            }
+        }
+
+        if (_bufferedBytes.get() > _maxBufferedBytes) {
+            _log.debug("Buffered data exceeds {} bytes, flushing", _maxBufferedBytes);
+            flushAll();
+        }
+
+        return new WriteResult(StabilityLevel.UNSTABLE, count);
+    }
+
+    @Override
+    public void commit(Inode inode, long offset, int count) throws IOException {
+        flush(inode);
+        _inner.commit(inode, offset, count);
+    }
+
+    @Override
+    public int read(Inode inode, byte[] data, long offset, int count) throws IOException {
+        flush(inode);
+        return _inner.read(inode, data, offset, count);
+    }
+
+    @Override
+    public ByteBuffer read(Inode inode, long offset, int count) throws IOException {
+        flush(inode);
+        return _inner.read(inode, offset, count);
+    }
+
+    @Override
+    public Stat getattr(Inode inode) throws IOException {
+        Stat stat = _inner.getattr(inode);
+        DirtyFile dirtyFile = _dirtyFiles.get(new Opaque(inode.getFileId()));
+        if (dirtyFile != null && stat.isDefined(Stat.StatAttribute.SIZE)) {
+            long size;
+            dirtyFile.getLock().lock();
+            try {
+                size = dirtyFile.size();
+            } finally {
+                dirtyFile.getLock().unlock();
+            }
+            if (size > stat.getSize()) {
+                stat = stat.clone();
+                stat.setSize(size);
+            }
+        }
+        return stat;
+    }
+
+    @Override
+    public void setattr(Inode inode, Stat stat) throws IOException {
+        if (stat.isDefined(Stat.StatAttribute.SIZE)) {
+            flush(inode);
+        }
+        _inner.setattr(inode, stat);
+    }
+
+    @Override
+    public void remove(Inode parent, String path) throws IOException {
+        if (!_dirtyFiles.isEmpty()) {
+            flush(_inner.lookup(parent, path));
+        }
+        _inner.remove(parent, path);
+    }
+
+    /**
+     * Get the write epoch. The epoch is advanced every time buffered data
+     * is lost.
+     */
+    @Override
+    public long getWriteEpoch() {
+        return _epoch.get() + _inner.getWriteEpoch();
+    }
+
+    /**
+     * Get amount of data, in bytes, which is buffered and not passed to the
+     * backing file system yet.
+     *
+     * @return number of buffered bytes.
+     */
+    public long getBufferedBytes() {
+        return _bufferedBytes.get();
+    }
+
+    /**
+     * Pass all buffered data of a given file to the backing file system.
+     *
+     * @param inode inode of the file to flush.
+     * @throws IOException if buffered data can't be written.
+     */
+    public void flush(Inode inode) throws IOException {
+        DirtyFile dirtyFile = _dirtyFiles.get(new Opaque(inode.getFileId()));
+        if (dirtyFile != null) {
+            flush(dirtyFile);
+        }
+    }
+
+    /**
+     * Pass all buffered data to the backing file system.
+     */
+    public void flushAll() {
+        for (DirtyFile dirtyFile : _dirtyFiles.values()) {
+            flushQuietly(dirtyFile);
+        }
+    }
+
+    /**
+     * Flush all buffered data and stop background flushing.
+     */
+    @Override
+    public void close() {
+        _flusher.shutdown();
+        flushAll();
+    }
+
+    private void flushExpired() {
+        long now = System.currentTimeMillis();
+        for (DirtyFile dirtyFile : _dirtyFiles.values()) {
+            if (now - dirtyFile.getCreationTime() >= _flushDelay) {
+                flushQuietly(dirtyFile);
+            }
+        }
+    }
+
+    private void flushQuietly(DirtyFile dirtyFile) {
+        try {
+            flush(dirtyFile);
+        } catch (IOException | RuntimeException e) {
+            // the epoch is advanced, clients will re-send the data
+            _log.error("Failed to flush {}: {}", dirtyFile.getInode(), e.toString());
+        }
+    }
+
+    private void flush(DirtyFile dirtyFile) throws IOException {
+        dirtyFile.getLock().lock();
+        try {
+            if (dirtyFile.isRetired()) {
+                return;
+            }
+
+            try {
+                for (Chunk chunk : dirtyFile.chunks()) {
+                    int written = 0;
+                    while (written < chunk.data.length) {
+                        ByteBuffer data = ByteBuffer.wrap(chunk.data, written, chunk.data.length - written).slice();
+                        WriteResult result = _inner.write(dirtyFile.getInode(), data,
+                                chunk.offset + written, StabilityLevel.UNSTABLE);
+                        if (result.getBytesWritten() <= 0) {
+                            throw new IOException("Short write: " + (chunk.data.length - written) + " bytes not written");
+                        }
+                        written += result.getBytesWritten();
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                _epoch.incrementAndGet();
+                throw e;
+            } finally {
+                /*
+                 * Keep the file registered until the data is written, so that
+                 * concurrent writers and readers wait for the flush to complete.
+                 */
+                dirtyFile.retire();
+                _dirtyFiles.remove(new Opaque(dirtyFile.getInode().getFileId()), dirtyFile);
+                _bufferedBytes.addAndGet(-dirtyFile.getBytes());
+            }
+        } finally {
+            dirtyFile.getLock().unlock();
+        }
+    }
+
+    /**
+     * A contiguous range of data to be written with a single request.
+     */
+    private static class Chunk {
+
+        private final long offset;
+        private final byte[] data;
+
+        Chunk(long offset, byte[] data) {
+            this.offset = offset;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Buffered data of a single file. The data is kept as non overlapping
+     * extents, ordered by offset.
+     */
+    private static class DirtyFile {
+
+        private final Inode _inode;
+        private final long _creationTime = System.currentTimeMillis();
+        private final NavigableMap<Long, byte[]> _extents = new TreeMap<>();
+        private long _bytes;
+        private boolean _retired;
+
+        /**
+         * Guards the data. A lock is used instead of a monitor, as data is
+         * written to the inner file system while holding it and a monitor
+         * would pin the carrier of a virtual thread.
+         */
+        private final Lock _lock = new ReentrantLock();
+
+        DirtyFile(Inode inode) {
+            _inode = inode;
+        }
+
+        Inode getInode() {
+            return _inode;
+        }
+
+        Lock getLock() {
+            return _lock;
+        }
+
+        long getCreationTime() {
+            return _creationTime;
+        }
+
+        long getBytes() {
+            return _bytes;
+        }
+
+        boolean isRetired() {
+            return _retired;
+        }
+
+        void retire() {
+            _retired = true;
+        }
+
+        /**
+         * Returns file size implied by buffered data.
+         */
+        long size() {
+            Map.Entry<Long, byte[]> last = _extents.lastEntry();
+            return last == null ? 0 : last.getKey() + last.getValue().length;
+        }
+
+        /**
+         * Add data at a given offset. Data which overlaps with already
+         * buffered extents replaces them.
+         *
+         * @return change in the number of buffered bytes.
+         */
+        long add(long offset, byte[] data) {
+
+            long before = _bytes;
+            long end = offset + data.length;
+
+            Map.Entry<Long, byte[]> lower = _extents.lowerEntry(offset);
+            if (lower != null) {
+                long lowerEnd = lower.getKey() + lower.getValue().length;
+                if (lowerEnd > offset) {
+                    byte[] extent = lower.getValue();
+                    remove(lower.getKey());
+                    put(lower.getKey(), Arrays.copyOf(extent, (int) (offset - lower.getKey())));
+                    if (lowerEnd > end) {
+                        put(end, Arrays.copyOfRange(extent, (int) (end - lower.getKey()), extent.length));
+                    }
+                }
+            }
+
+            byte[] tail = null;
+            Iterator<Map.Entry<Long, byte[]>> i = _extents.subMap(offset, true, end, false).entrySet().iterator();
+            while (i.hasNext()) {
+                Map.Entry<Long, byte[]> e = i.next();
+                long extentEnd = e.getKey() + e.getValue().length;
+                if (extentEnd > end) {
+                    // only the last extent can stick out
+                    tail = Arrays.copyOfRange(e.getValue(), (int) (end - e.getKey()), e.getValue().length);
+                }
+                _bytes -= e.getValue().length;
+                i.remove();
+            }
+
+            if (tail != null) {
+                put(end, tail);
+            }
+            put(offset, data);
+
+            return _bytes - before;
+        }
+
+        private void put(long offset, byte[] data) {
+            _extents.put(offset, data);
+            _bytes += data.length;
+        }
+
+        private void remove(long offset) {
+            _bytes -= _extents.remove(offset).length;
+        }
+
+        /**
+         * Returns buffered data as chunks, where adjacent extents are merged,
+         * up to {@link #MAX_FLUSH_CHUNK} bytes.
+         */
+        List<Chunk> chunks() {
+
+            List<Chunk> chunks = new ArrayList<>();
+            List<Map.Entry<Long, byte[]>> run = new ArrayList<>();
+            long runStart = 0;
+            long runEnd = 0;
+
+            for (Map.Entry<Long, byte[]> e : _extents.entrySet()) {
+                long length = e.getValue().length;
+                if (!run.isEmpty() && (e.getKey() != runEnd || runEnd - runStart + length > MAX_FLUSH_CHUNK)) {
+                    chunks.add(merge(run, runStart, runEnd));
+                    run.clear();
+                }
+                if (run.isEmpty()) {
+                    runStart = e.getKey();
+                }
+                run.add(e);
+                runEnd = e.getKey() + length;
+            }
+
+            if (!run.isEmpty()) {
+                chunks.add(merge(run, runStart, runEnd));
+            }
+            return chunks;
+        }
+
+        private static Chunk merge(List<Map.Entry<Long, byte[]>> run, long start, long end) {
+            if (run.size() == 1) {
+                return new Chunk(start, run.get(0).getValue());
+            }
+
+            byte[] data = new byte[(int) (end - start)];
+            for (Map.Entry<Long, byte[]> e : run) {
+                System.arraycopy(e.getValue(), 0, data, (int) (e.getKey() - start), e.getValue().length);
+            }
+            return new Chunk(start, data);
+        }
+    }
+}
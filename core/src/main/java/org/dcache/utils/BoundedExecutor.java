@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2018 Deutsches Elektronen-Synchroton,
+ * Member of the Helmholtz Association, (DESY), HAMBURG, GERMANY
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Library General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public
+ * License along with this program (see the file COPYING.LIB for more
+ * details); if not, write to the Free Software Foundation, Inc.,
+ * 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.dcache.utils;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * An {@link Executor} which limits the number of tasks in flight. When the
+ * limit is reached, the submitting thread is blocked until one of the running
+ * tasks completes. This way a server, which dispatches requests to an
+ * unbounded executor, e.g. one starting a virtual thread per task, pushes back
+ * on the transport instead of accepting unlimited amount of requests.
+ *
+ * @since 0.18
+ */
+public class BoundedExecutor implements Executor {
+
+    private final Executor _inner;
+    private final Semaphore _permits;
+    private final int _maxInFlight;
+
+    /**
+     * Create new executor.
+     *
+     * @param inner executor to run tasks.
+     * @param maxInFlight maximal number of concurrently running tasks.
+     */
+    public BoundedExecutor(Executor inner, int maxInFlight) {
+        checkArgument(maxInFlight > 0, "maxInFlight must be positive");
+        _inner = requireNonNull(inner);
+        _maxInFlight = maxInFlight;
+        _permits = new Semaphore(maxInFlight);
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        requireNonNull(task);
+        try {
+            _permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting for a free slot");
+        }
+
+        try {
+            _inner.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    _permits.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            _permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Get maximal number of concurrently running tasks.
+     * @return number of tasks.
+     */
+    public int getMaxInFlight() {
+        return _maxInFlight;
+    }
+
+    /**
+     * Get number of tasks currently in flight.
+     * @return number of tasks.
+     */
+    public int getInFlight() {
+        return _maxInFlight - _permits.availablePermits();
+    }
+}
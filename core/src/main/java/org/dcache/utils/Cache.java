@@ -23,7 +23,6 @@ import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import java.time.Clock;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.MissingResourceException;
@@ -61,6 +60,11 @@ public class Cache<K, V> implements Runnable {
     private static final Logger _log = LoggerFactory.getLogger(Cache.class);
     private final Clock _timeSource;
 
+    /**
+     * Resolution of expiry timer wheel.
+     */
+    private static final long EXPIRY_TICK = 100;
+
     /**
      * {@link TimerTask} to periodically check and remove expired entries.
      */
@@ -70,19 +74,20 @@ public class Cache<K, V> implements Runnable {
 
         _accessLock.lock();
         try {
-            long now = System.currentTimeMillis();
-            Iterator<Map.Entry<K, CacheElement<V>>> entries = _storage.entrySet().iterator();
-            while(entries.hasNext()) {
-                Map.Entry<K, CacheElement<V>> entry = entries.next();
-                CacheElement<V> cacheElement = entry.getValue();
-
-                if (!cacheElement.validAt(now)) {
-                    _log.debug("Cleaning expired entry key = [{}], value = [{}]",
-                            entry.getKey(), cacheElement.getObject());
-                    entries.remove();
-                    expiredEntries.add(cacheElement.getObject());
+            long now = _timeSource.millis();
+            _expiryWheel.advance(now, timeout -> {
+                K key = timeout.value();
+                CacheElement<V> cacheElement = _storage.get(key);
+                if (cacheElement.validAt(now)) {
+                    // accessed without going through the cache, e.g. by entries()
+                    _expiryWheel.reschedule(timeout, cacheElement.expiresAt());
+                    return;
                 }
-            }
+                _log.debug("Cleaning expired entry key = [{}], value = [{}]",
+                        key, cacheElement.getObject());
+                _storage.remove(key);
+                expiredEntries.add(cacheElement.getObject());
+            });
             _lastClean.set(now);
         } finally {
             _accessLock.unlock();
@@ -121,6 +126,12 @@ public class Cache<K, V> implements Runnable {
      */
     private final Map<K, CacheElement<V>> _storage;
 
+    /**
+     * Expiry deadlines of stored entries. Only entries which are due are
+     * visited on cleanup.
+     */
+    private final TimerWheel<K> _expiryWheel;
+
     /**
      * 'Expire thread' used to detect and remove expired entries.
      */
@@ -197,6 +208,7 @@ public class Cache<K, V> implements Runnable {
         _defaultEntryMaxLifeTime = entryLifeTime;
         _defaultEntryIdleTime = entryIdleTime;
         _storage = new HashMap<>(_size);
+        _expiryWheel = new TimerWheel<>(EXPIRY_TICK, TimeUnit.MILLISECONDS, clock.millis());
         _eventListener = eventListener;
         _mxBean = new CacheMXBeanImpl<>(this);
         _cleanerScheduler = Executors.newSingleThreadScheduledExecutor(
@@ -248,7 +260,12 @@ public class Cache<K, V> implements Runnable {
                 _log.warn("Cache limit reached: {}", _size);
                 throw new MissingResourceException("Cache limit reached", Cache.class.getName(), "");
             }
-            _storage.put(k, new CacheElement<>(v, _timeSource, entryMaxLifeTime, entryIdleTime));
+            CacheElement<V> element = new CacheElement<>(v, _timeSource, entryMaxLifeTime, entryIdleTime);
+            CacheElement<V> oldElement = _storage.put(k, element);
+            if (oldElement != null) {
+                _expiryWheel.cancel(timeoutOf(oldElement));
+            }
+            element._timeout = _expiryWheel.schedule(k, element.expiresAt());
         } finally {
             _accessLock.unlock();
         }
@@ -283,8 +300,10 @@ public class Cache<K, V> implements Runnable {
             if ( !valid ) {
                 _log.debug("Cache hits but entry expired for key = [{}], value = [{}]", k, v);
                 _storage.remove(k);
+                _expiryWheel.cancel(timeoutOf(element));
             } else {
                 _log.debug("Cache hits for key = [{}], value = [{}]", k, v);
+                _expiryWheel.reschedule(timeoutOf(element), element.expiresAt());
             }
         } finally {
             _accessLock.unlock();
@@ -315,6 +334,7 @@ public class Cache<K, V> implements Runnable {
         try {
             CacheElement<V> element = _storage.remove(k);
             if( element == null ) return null;
+            _expiryWheel.cancel(timeoutOf(element));
             valid = element.validAt(_timeSource.millis());
             v = element.getObject();
         } finally {
@@ -372,6 +392,7 @@ public class Cache<K, V> implements Runnable {
         _accessLock.lock();
         try {
             _storage.clear();
+            _expiryWheel.clear();
         } finally {
             _accessLock.unlock();
         }
@@ -394,6 +415,11 @@ public class Cache<K, V> implements Runnable {
         return entries;
     }
 
+    @SuppressWarnings("unchecked")
+    private TimerWheel.Timeout<K> timeoutOf(CacheElement<V> element) {
+        return (TimerWheel.Timeout<K>) element._timeout;
+    }
+
     public long lastClean() {
         return _lastClean.get();
     }
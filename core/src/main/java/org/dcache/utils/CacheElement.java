@@ -19,6 +19,7 @@
  */
 package org.dcache.utils;
 
+import com.google.common.math.LongMath;
 import java.time.Clock;
 import java.util.Date;
 
@@ -55,6 +56,11 @@ public class CacheElement<V> {
 
     private final Clock _clock;
 
+    /**
+     * Expiry timeout of this element, if tracked by a timer wheel.
+     */
+    TimerWheel.Timeout<?> _timeout;
+
     CacheElement(V inner, Clock clock, long maxLifeTime, long idleTime) {
         _clock = clock;
         _creationTime = _clock.millis();
@@ -86,6 +92,16 @@ public class CacheElement<V> {
         return time - _lastAccessTime < _idleTime && time - _creationTime < _maxLifeTime;
     }
 
+    /**
+     * Get the time when this entry becomes invalid, if not accessed in between.
+     *
+     * @return time in milliseconds since 1 of January 1970.
+     */
+    long expiresAt() {
+        return Math.min(LongMath.saturatedAdd(_lastAccessTime, _idleTime),
+                LongMath.saturatedAdd(_creationTime, _maxLifeTime));
+    }
+
     @Override
     public String toString() {
         long now = _clock.millis();
@@ -0,0 +1,327 @@
+/*
+ * Copyright (c) 2018 Deutsches Elektronen-Synchroton,
+ * Member of the Helmholtz Association, (DESY), HAMBURG, GERMANY
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Library General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public
+ * License along with this program (see the file COPYING.LIB for more
+ * details); if not, write to the Free Software Foundation, Inc.,
+ * 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.dcache.utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A hierarchical timing wheel to track deadlines of a large number of objects.
+ *
+ * The wheel consists of {@link #LEVELS} levels of {@link #WHEEL_SIZE} slots each.
+ * A slot at level {@code n} covers {@code WHEEL_SIZE^n} ticks. Objects with a
+ * deadline far in the future are kept at higher levels and cascaded down as
+ * the time advances. Scheduling, rescheduling and cancellation are O(1); advancing
+ * the wheel touches only slots, which became due.
+ *
+ * The class is not thread safe, callers have to provide external synchronization.
+ *
+ * @param <T> the type of objects tracked by the wheel.
+ */
+public class TimerWheel<T> {
+
+    private static final int WHEEL_BITS = 6;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int LEVELS = 6;
+
+    /**
+     * Number of ticks covered by all levels of the wheel.
+     */
+    private static final long SPAN = 1L << (WHEEL_BITS * LEVELS);
+
+    /**
+     * A handle to an object scheduled on the wheel.
+     * @param <T> the type of tracked object.
+     */
+    public static final class Timeout<T> {
+
+        private final T _value;
+        private long _deadline;
+        private int _slot = -1;
+        private Timeout<T> _prev;
+        private Timeout<T> _next;
+
+        private Timeout(T value, long deadline) {
+            _value = value;
+            _deadline = deadline;
+        }
+
+        /**
+         * Get object associated with this timeout.
+         * @return tracked object.
+         */
+        public T value() {
+            return _value;
+        }
+
+        /**
+         * Get deadline of this timeout.
+         * @return deadline in milliseconds.
+         */
+        public long deadline() {
+            return _deadline;
+        }
+
+        /**
+         * Tells whatever timeout is still tracked by the wheel.
+         * @return true if timeout is scheduled.
+         */
+        public boolean isScheduled() {
+            return _slot >= 0;
+        }
+    }
+
+    /**
+     * Tick duration in milliseconds.
+     */
+    private final long _tick;
+
+    /**
+     * Last processed tick.
+     */
+    private long _currentTick;
+
+    private final Timeout<T>[] _slots;
+
+    private int _size;
+
+    /**
+     * Create a new timer wheel.
+     *
+     * @param tickDuration resolution of the wheel.
+     * @param unit a {@link TimeUnit} determining how to interpret the {@code tickDuration}.
+     * @param now current time in milliseconds.
+     */
+    @SuppressWarnings("unchecked")
+    public TimerWheel(long tickDuration, TimeUnit unit, long now) {
+        _tick = unit.toMillis(tickDuration);
+        checkArgument(_tick > 0, "tick duration must be at least one millisecond");
+        _currentTick = now / _tick;
+        _slots = new Timeout[LEVELS * WHEEL_SIZE];
+    }
+
+    /**
+     * Add a new object to the wheel.
+     *
+     * @param value object to track.
+     * @param deadline time in milliseconds when object expires.
+     * @return timeout handle which can be used to reschedule or cancel the timeout.
+     */
+    public Timeout<T> schedule(T value, long deadline) {
+        Timeout<T> timeout = new Timeout<>(value, deadline);
+        add(timeout, false);
+        _size++;
+        return timeout;
+    }
+
+    /**
+     * Move a scheduled timeout to a new deadline. If timeout is not scheduled
+     * any more, it is added back to the wheel.
+     *
+     * @param timeout timeout to reschedule.
+     * @param deadline new deadline in milliseconds.
+     */
+    public void reschedule(Timeout<T> timeout, long deadline) {
+        if (timeout.isScheduled()) {
+            unlink(timeout);
+        } else {
+            _size++;
+        }
+        timeout._deadline = deadline;
+        add(timeout, false);
+    }
+
+    /**
+     * Remove timeout from the wheel.
+     *
+     * @param timeout timeout to remove.
+     * @return true if timeout was scheduled.
+     */
+    public boolean cancel(Timeout<T> timeout) {
+        if (!timeout.isScheduled()) {
+            return false;
+        }
+        unlink(timeout);
+        _size--;
+        return true;
+    }
+
+    /**
+     * Advance the wheel to the given time and pass all timeouts, whose deadline
+     * is reached, to the provided consumer. The passed timeouts are not scheduled
+     * any more and can be rescheduled by the consumer.
+     *
+     * @param now current time in milliseconds.
+     * @param expired consumer of expired timeouts.
+     */
+    public void advance(long now, Consumer<Timeout<T>> expired) {
+
+        long targetTick = now / _tick;
+        if (_size == 0) {
+            _currentTick = Math.max(_currentTick, targetTick);
+            return;
+        }
+
+        Timeout<T> due = null;
+        while (_currentTick < targetTick) {
+            _currentTick++;
+            cascade();
+
+            int slot = (int) (_currentTick & WHEEL_MASK);
+            Timeout<T> head = _slots[slot];
+            if (head != null) {
+                _slots[slot] = null;
+                Timeout<T> tail = head;
+                for (;;) {
+                    tail._slot = -1;
+                    _size--;
+                    if (tail._next == null) {
+                        break;
+                    }
+                    tail = tail._next;
+                }
+                tail._next = due;
+                if (due != null) {
+                    due._prev = tail;
+                }
+                due = head;
+            }
+
+            if (_size == 0) {
+                _currentTick = targetTick;
+            }
+        }
+
+        while (due != null) {
+            Timeout<T> timeout = due;
+            due = timeout._next;
+            timeout._prev = null;
+            timeout._next = null;
+            expired.accept(timeout);
+        }
+    }
+
+    /**
+     * Remove all timeouts from the wheel.
+     */
+    public void clear() {
+        for (int i = 0; i < _slots.length; i++) {
+            Timeout<T> timeout = _slots[i];
+            while (timeout != null) {
+                Timeout<T> next = timeout._next;
+                timeout._slot = -1;
+                timeout._prev = null;
+                timeout._next = null;
+                timeout = next;
+            }
+            _slots[i] = null;
+        }
+        _size = 0;
+    }
+
+    /**
+     * Get number of scheduled timeouts.
+     * @return number of scheduled timeouts.
+     */
+    public int size() {
+        return _size;
+    }
+
+    /**
+     * Re-distribute timeouts of higher level slots, which start with the current tick.
+     */
+    private void cascade() {
+        for (int level = 1; level < LEVELS; level++) {
+            int shift = WHEEL_BITS * level;
+            if ((_currentTick & ((1L << shift) - 1)) != 0) {
+                break;
+            }
+            int slot = level * WHEEL_SIZE + (int) ((_currentTick >>> shift) & WHEEL_MASK);
+            Timeout<T> timeout = _slots[slot];
+            _slots[slot] = null;
+            while (timeout != null) {
+                Timeout<T> next = timeout._next;
+                timeout._prev = null;
+                timeout._next = null;
+                add(timeout, true);
+                timeout = next;
+            }
+        }
+    }
+
+    /**
+     * Link timeout into the slot which corresponds to it's deadline.
+     *
+     * @param timeout timeout to add.
+     * @param cascading true if called while advancing the wheel, e.g. the current
+     * tick is not processed yet.
+     */
+    private void add(Timeout<T> timeout, boolean cascading) {
+        // round up to never expire before the deadline
+        long tick = timeout._deadline / _tick;
+        if (timeout._deadline % _tick != 0) {
+            tick++;
+        }
+
+        long delta = tick - _currentTick;
+        int slot;
+        if (delta < WHEEL_SIZE) {
+            if (delta <= 0) {
+                // already due timeouts are processed with the current or the next tick
+                tick = cascading ? _currentTick : _currentTick + 1;
+            }
+            slot = (int) (tick & WHEEL_MASK);
+        } else {
+            if (delta >= SPAN) {
+                // park at the most distant slot, timeout will be re-added on cascade
+                tick = _currentTick + SPAN - 1;
+                delta = SPAN - 1;
+            }
+            int level = (63 - Long.numberOfLeadingZeros(delta)) / WHEEL_BITS;
+            slot = level * WHEEL_SIZE + (int) ((tick >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+        }
+
+        Timeout<T> head = _slots[slot];
+        timeout._slot = slot;
+        timeout._prev = null;
+        timeout._next = head;
+        if (head != null) {
+            head._prev = timeout;
+        }
+        _slots[slot] = timeout;
+    }
+
+    private void unlink(Timeout<T> timeout) {
+        if (timeout._prev == null) {
+            _slots[timeout._slot] = timeout._next;
+        } else {
+            timeout._prev._next = timeout._next;
+        }
+        if (timeout._next != null) {
+            timeout._next._prev = timeout._prev;
+        }
+        timeout._slot = -1;
+        timeout._prev = null;
+        timeout._next = null;
+    }
+}
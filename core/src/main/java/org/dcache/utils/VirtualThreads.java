@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2018 Deutsches Elektronen-Synchroton,
+ * Member of the Helmholtz Association, (DESY), HAMBURG, GERMANY
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Library General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public
+ * License along with this program (see the file COPYING.LIB for more
+ * details); if not, write to the Free Software Foundation, Inc.,
+ * 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.dcache.utils;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Access to virtual threads, which are available starting with Java 21. As
+ * the code is compiled for older releases, the executor is looked up at
+ * runtime.
+ *
+ * @since 0.18
+ */
+public final class VirtualThreads {
+
+    /**
+     * Handle of {@code Executors#newVirtualThreadPerTaskExecutor} or null, if
+     * virtual threads are not supported by the runtime.
+     */
+    private static final MethodHandle NEW_EXECUTOR = lookupExecutorFactory();
+
+    private VirtualThreads() {
+    }
+
+    private static MethodHandle lookupExecutorFactory() {
+        try {
+            return MethodHandles.publicLookup().findStatic(Executors.class,
+                    "newVirtualThreadPerTaskExecutor", MethodType.methodType(ExecutorService.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Tell whether the runtime supports virtual threads.
+     * @return true, if virtual threads are supported.
+     */
+    public static boolean isSupported() {
+        return NEW_EXECUTOR != null;
+    }
+
+    /**
+     * Create an executor, which runs each task on a new virtual thread.
+     *
+     * @return new executor.
+     * @throws UnsupportedOperationException if virtual threads are not
+     * supported by the runtime.
+     */
+    public static ExecutorService newVirtualThreadPerTaskExecutor() {
+        if (NEW_EXECUTOR == null) {
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or newer");
+        }
+        try {
+            return (ExecutorService) NEW_EXECUTOR.invokeExact();
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    /**
+     * Create an executor, which runs each task on a new virtual thread, with
+     * at most {@code maxInFlight} tasks running concurrently.
+     *
+     * @param maxInFlight maximal number of concurrently running tasks.
+     * @return new executor.
+     * @throws UnsupportedOperationException if virtual threads are not
+     * supported by the runtime.
+     */
+    public static BoundedExecutor newBoundedExecutor(int maxInFlight) {
+        return new BoundedExecutor(newVirtualThreadPerTaskExecutor(), maxInFlight);
+    }
+}
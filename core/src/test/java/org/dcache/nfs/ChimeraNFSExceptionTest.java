@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2018 Deutsches Elektronen-Synchroton,
+ * Member of the Helmholtz Association, (DESY), HAMBURG, GERMANY
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Library General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public
+ * License along with this program (see the file COPYING.LIB for more
+ * details); if not, write to the Free Software Foundation, Inc.,
+ * 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.dcache.nfs;
+
+import java.io.IOException;
+import org.dcache.nfs.status.NoEntException;
+import org.dcache.nfs.status.ServerFaultException;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class ChimeraNFSExceptionTest {
+
+    @Test
+    public void testMessageWithoutDetail() {
+        assertEquals("NFS4ERR_NOENT", new NoEntException().getMessage());
+    }
+
+    @Test
+    public void testMessageWithDetail() {
+        assertEquals("NFS4ERR_NOENT : no such file", new NoEntException("no such file").getMessage());
+    }
+
+    @Test
+    public void testCauseKept() {
+        IOException cause = new IOException("disk failure");
+        ChimeraNFSException e = new ServerFaultException("write failed", cause);
+        assertSame(cause, e.getCause());
+        assertEquals("NFS4ERR_SERVERFAULT : write failed", e.getMessage());
+    }
+
+    @Test
+    public void testNoStackTrace() {
+        assertEquals(0, new NoEntException().getStackTrace().length);
+    }
+}
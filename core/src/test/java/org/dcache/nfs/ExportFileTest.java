@@ -1,9 +1,18 @@
 package org.dcache.nfs;
 
 import com.google.common.io.Files;
+import com.google.common.net.InetAddresses;
 import java.io.File;
 import java.io.IOException;
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -11,8 +20,11 @@ import static org.mockito.Mockito.*;
 import static org.mockito.BDDMockito.*;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
-import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 /**
  */
@@ -124,6 +136,115 @@ public class ExportFileTest {
         assertExportExists("/added_export", ef);
     }
 
+    @Test
+    public void testMostSpecificSubnetFirst() throws IOException {
+
+        ExportFile ef = new ExportFile(new StringReader(
+                "/data 192.168.0.0/16(ro,no_root_squash) 192.168.1.0/24(rw)\n"
+                + "/other 10.0.0.0/8(rw)\n"
+                + "/public *(ro)\n"));
+
+        FsExport export = ef.getExport("/data", InetAddresses.forString("192.168.1.5"));
+        assertEquals("192.168.1.0/24", export.client());
+
+        export = ef.getExport("/data", InetAddresses.forString("192.168.2.1"));
+        assertEquals("192.168.0.0/16", export.client());
+
+        assertNull(ef.getExport("/data", InetAddresses.forString("172.16.0.1")));
+        assertNotNull(ef.getExport("/public", InetAddresses.forString("172.16.0.1")));
+
+        assertEquals(3, ef.exportsFor(InetAddresses.forString("192.168.1.5")).count());
+        assertEquals(2, ef.exportsFor(InetAddresses.forString("10.1.1.1")).count());
+        assertNull(ef.getExport("/other", InetAddresses.forString("192.168.1.5")));
+    }
+
+    @Test
+    public void testIpv6Subnet() throws IOException {
+
+        ExportFile ef = new ExportFile(new StringReader("/data fe80::/64(rw) ::1(rw)\n"));
+
+        assertNotNull(ef.getExport("/data", InetAddresses.forString("fe80::1")));
+        assertNotNull(ef.getExport("/data", InetAddresses.forString("::1")));
+        assertNull(ef.getExport("/data", InetAddresses.forString("fe81::1")));
+        assertNull(ef.getExport("/data", InetAddresses.forString("1.1.1.1")));
+    }
+
+    @Test
+    public void testRescanDropsCachedDecisions() throws IOException {
+
+        ExportFile ef = new ExportFile(export, exportDir);
+        InetAddress client = InetAddresses.forString("1.1.1.1");
+        assertNotNull(ef.getExport("/export_main", client));
+
+        Files.write("/export_main 3.3.3.3(sec=sys)", export, UTF_8);
+        ef.rescan();
+        assertNull(ef.getExport("/export_main", client));
+    }
+
+    @Test
+    public void testListenerNotifiedWithChangedExports() throws IOException {
+
+        ExportFile ef = new ExportFile(export, exportDir);
+        List<Set<Integer>> changes = new ArrayList<>();
+        ef.addListener(changes::add);
+        long generation = ef.getGeneration();
+
+        ef.rescan();
+        assertTrue("listener notified without a change", changes.isEmpty());
+        assertEquals(generation, ef.getGeneration());
+
+        Files.write("/export_main 3.3.3.3(sec=sys)", export, UTF_8);
+        ef.rescan();
+
+        int index = ef.getExports()
+                .filter(e -> e.getPath().equals("/export_main"))
+                .findAny()
+                .get()
+                .getIndex();
+        assertEquals(1, changes.size());
+        assertEquals(Collections.singleton(index), changes.get(0));
+        assertEquals(generation + 1, ef.getGeneration());
+    }
+
+    @Test
+    public void testListenerNotifiedOnAllRootChange() throws IOException {
+
+        ExportFile ef = new ExportFile(export, exportDir);
+        List<Set<Integer>> changes = new ArrayList<>();
+        ef.addListener(changes::add);
+
+        Files.write("/export_main 1.1.1.1(sec=sys,all_root)", export, UTF_8);
+        ef.rescan();
+
+        int index = ef.getExports()
+                .filter(e -> e.getPath().equals("/export_main"))
+                .findAny()
+                .get()
+                .getIndex();
+        assertEquals(1, changes.size());
+        assertEquals(Collections.singleton(index), changes.get(0));
+    }
+
+    @Test
+    public void testReloadOnChange() throws Exception {
+
+        ExportFile ef = new ExportFile(export, exportDir);
+        CountDownLatch reloaded = new CountDownLatch(1);
+        ef.addListener(changed -> reloaded.countDown());
+
+        ef.startWatching();
+        try {
+            File addedFile = File.createTempFile("new_export", ".exports", exportDir);
+            addedFile.deleteOnExit();
+            Files.write("/added_export *(sec=sys)", addedFile, UTF_8);
+
+            assertTrue("export table not reloaded", reloaded.await(30, TimeUnit.SECONDS));
+            assertExportExists("/added_export", ef);
+        } finally {
+            ef.stopWatching();
+        }
+    }
+
     private void assertExportExists(String path, ExportFile exportFile) {
         assertTrue("export " + path + " doesn't exists", exportFile.getExports()
                 .filter(e -> e.getPath().equals(path))
@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2018 Deutsches Elektronen-Synchroton,
+ * Member of the Helmholtz Association, (DESY), HAMBURG, GERMANY
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Library General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public
+ * License along with this program (see the file COPYING.LIB for more
+ * details); if not, write to the Free Software Foundation, Inc.,
+ * 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.dcache.nfs.v4;
+
+import java.nio.channels.CompletionHandler;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.dcache.nfs.nfsstat;
+import org.dcache.nfs.status.BadHandleException;
+import org.dcache.nfs.v4.xdr.CB_COMPOUND4args;
+import org.dcache.nfs.v4.xdr.CB_COMPOUND4res;
+import org.dcache.nfs.v4.xdr.CB_SEQUENCE4args;
+import org.dcache.nfs.v4.xdr.CB_SEQUENCE4res;
+import org.dcache.nfs.v4.xdr.nfs4_prot;
+import org.dcache.nfs.v4.xdr.nfs_cb_opnum4;
+import org.dcache.nfs.v4.xdr.nfs_cb_resop4;
+import org.dcache.nfs.v4.xdr.nfs_fh4;
+import org.dcache.nfs.v4.xdr.sessionid4;
+import org.dcache.nfs.v4.xdr.stateid4;
+import org.dcache.oncrpc4j.rpc.RpcCall;
+import org.dcache.oncrpc4j.rpc.RpcReply;
+import org.dcache.oncrpc4j.rpc.RpcTransport;
+import org.dcache.oncrpc4j.xdr.XdrAble;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+public class ClientCBTest {
+
+    private RpcCall rpc;
+    private ClientCB cb;
+
+    @Before
+    public void setUp() {
+        rpc = mock(RpcCall.class);
+        cb = new ClientCB(rpc, new sessionid4(new byte[nfs4_prot.NFS4_SESSIONID_SIZE]), 2, 1000);
+    }
+
+    @Test
+    public void shouldQueueCallsWhenNoFreeSlots() throws Exception {
+
+        cb.cbCompoundAsync("test");
+        cb.cbCompoundAsync("test");
+        cb.cbCompoundAsync("test");
+
+        List<CompletionHandler<RpcReply, RpcTransport>> handlers = sentHandlers(2);
+        assertEquals(1, cb.getQueuedCalls());
+
+        handlers.get(0).completed(reply(nfsstat.NFS_OK), null);
+
+        sentHandlers(3);
+        assertEquals(0, cb.getQueuedCalls());
+    }
+
+    @Test
+    public void shouldUseDifferentSlotsInParallel() throws Exception {
+
+        cb.cbCompoundAsync("test");
+        cb.cbCompoundAsync("test");
+
+        List<CB_SEQUENCE4args> sequences = sentSequences(2);
+        assertNotEquals(sequences.get(0).csa_slotid.value, sequences.get(1).csa_slotid.value);
+        assertEquals(1, sequences.get(0).csa_highest_slotid.value);
+    }
+
+    @Test
+    public void shouldAdvanceSequenceOnReply() throws Exception {
+
+        cb = new ClientCB(rpc, new sessionid4(new byte[nfs4_prot.NFS4_SESSIONID_SIZE]), 1, 1000);
+
+        CompletableFuture<CB_COMPOUND4res> f = cb.cbCompoundAsync("test");
+        sentHandlers(1).get(0).completed(reply(nfsstat.NFS_OK), null);
+        assertTrue(f.isDone());
+
+        cb.cbCompoundAsync("test");
+        List<CB_SEQUENCE4args> sequences = sentSequences(2);
+        assertEquals(sequences.get(0).csa_sequenceid.value + 1, sequences.get(1).csa_sequenceid.value);
+    }
+
+    @Test
+    public void shouldAdvanceSequenceOnTimeout() throws Exception {
+
+        cb = new ClientCB(rpc, new sessionid4(new byte[nfs4_prot.NFS4_SESSIONID_SIZE]), 1, 1000);
+
+        CompletableFuture<CB_COMPOUND4res> f = cb.cbCompoundAsync("test");
+        sentHandlers(1).get(0).failed(new TimeoutException(), null);
+
+        try {
+            f.get();
+            fail("Failed call-back not reported");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+
+        cb.cbCompoundAsync("test");
+        List<CB_SEQUENCE4args> sequences = sentSequences(2);
+        assertEquals(sequences.get(0).csa_sequenceid.value + 1, sequences.get(1).csa_sequenceid.value);
+    }
+
+    @Test
+    public void shouldResendWithPreviousSequenceIfTimedOutRequestNotSeen() throws Exception {
+
+        cb = new ClientCB(rpc, new sessionid4(new byte[nfs4_prot.NFS4_SESSIONID_SIZE]), 1, 1000);
+
+        cb.cbCompoundAsync("test");
+        sentHandlers(1).get(0).failed(new TimeoutException(), null);
+
+        CompletableFuture<CB_COMPOUND4res> f = cb.cbCompoundAsync("test");
+        sentHandlers(2).get(1).completed(reply(nfsstat.NFSERR_SEQ_MISORDERED, nfsstat.NFSERR_SEQ_MISORDERED), null);
+        assertFalse(f.isDone());
+
+        sentHandlers(3).get(2).completed(reply(nfsstat.NFS_OK), null);
+        assertTrue(f.isDone());
+
+        List<CB_SEQUENCE4args> sequences = sentSequences(3);
+        assertEquals(sequences.get(0).csa_sequenceid.value, sequences.get(2).csa_sequenceid.value);
+    }
+
+    @Test
+    public void shouldFailOnErrorStatus() throws Exception {
+
+        CompletableFuture<Void> f = cb.cbDelegationRecallAsync(new nfs_fh4(new byte[]{0x1}),
+                new stateid4(new byte[12], 1), false);
+        sentHandlers(1).get(0).completed(reply(nfsstat.NFSERR_BADHANDLE), null);
+
+        try {
+            f.get();
+            fail("Error status not reported");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof BadHandleException);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<CompletionHandler<RpcReply, RpcTransport>> sentHandlers(int n) throws Exception {
+        ArgumentCaptor<CompletionHandler> captor = ArgumentCaptor.forClass(CompletionHandler.class);
+        verify(rpc, times(n)).call(eq(nfs4_prot.CB_COMPOUND_1), any(XdrAble.class), captor.capture(),
+                anyLong(), any(TimeUnit.class));
+        return (List) captor.getAllValues();
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<CB_SEQUENCE4args> sentSequences(int n) throws Exception {
+        ArgumentCaptor<XdrAble> captor = ArgumentCaptor.forClass(XdrAble.class);
+        verify(rpc, times(n)).call(eq(nfs4_prot.CB_COMPOUND_1), captor.capture(), any(CompletionHandler.class),
+                anyLong(), any(TimeUnit.class));
+        return captor.getAllValues().stream()
+                .map(a -> ((CB_COMPOUND4args) a).argarray[0].opcbsequence)
+                .collect(java.util.stream.Collectors.toList());
+    }
+
+    private static RpcReply reply(int status) throws Exception {
+        return reply(status, nfsstat.NFS_OK);
+    }
+
+    private static RpcReply reply(int status, int sequenceStatus) throws Exception {
+        RpcReply reply = mock(RpcReply.class);
+        doAnswer(invocation -> {
+            CB_COMPOUND4res res = (CB_COMPOUND4res) invocation.getArguments()[0];
+            res.status = status;
+            res.resarray = new nfs_cb_resop4[1];
+            res.resarray[0] = new nfs_cb_resop4();
+            res.resarray[0].resop = nfs_cb_opnum4.OP_CB_SEQUENCE;
+            res.resarray[0].opcbsequence = new CB_SEQUENCE4res();
+            res.resarray[0].opcbsequence.csr_status = sequenceStatus;
+            return null;
+        }).when(reply).getReplyResult(any(XdrAble.class));
+        return reply;
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 2018 Deutsches Elektronen-Synchroton,
+ * Member of the Helmholtz Association, (DESY), HAMBURG, GERMANY
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Library General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public
+ * License along with this program (see the file COPYING.LIB for more
+ * details); if not, write to the Free Software Foundation, Inc.,
+ * 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.dcache.nfs.v4;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.dcache.nfs.v4.xdr.clientid4;
+import org.dcache.nfs.v4.xdr.verifier4;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ClientRegistryTest {
+
+    private ClientRegistry _registry;
+    private ManualClock _clock;
+    private List<NFS4Client> _expired;
+
+    @Before
+    public void setUp() {
+        _clock = new ManualClock();
+        _expired = new ArrayList<>();
+        _registry = new ClientRegistry("test registry", 10, TimeUnit.SECONDS.toMillis(5),
+                _expired::add, 30, TimeUnit.SECONDS, _clock);
+    }
+
+    @After
+    public void tearDown() {
+        _registry.shutdown();
+    }
+
+    @Test
+    public void testPutGet() throws Exception {
+        NFS4Client client = newClient(1L);
+        _registry.tryPut(client);
+        assertSame(client, _registry.get(1L));
+    }
+
+    @Test
+    public void testGetNotExisting() throws Exception {
+        _registry.tryPut(newClient(1L));
+        assertNull(_registry.get(2L));
+    }
+
+    @Test
+    public void testGetAfterRemove() throws Exception {
+        NFS4Client client = newClient(1L);
+        _registry.tryPut(client);
+        assertSame(client, _registry.remove(1L));
+        assertNull(_registry.get(1L));
+        assertTrue("removed client reported as expired", _expired.isEmpty());
+    }
+
+    @Test
+    public void testGetAfterTimeout() throws Exception {
+        NFS4Client client = newClient(1L);
+        _registry.tryPut(client);
+        _clock.advance(6, TimeUnit.SECONDS);
+        assertNull("client not expired", _registry.get(1L));
+        assertEquals(1, _expired.size());
+        assertSame(client, _expired.get(0));
+    }
+
+    @Test
+    public void testAccessKeepsAlive() throws Exception {
+        NFS4Client client = newClient(1L);
+        _registry.tryPut(client);
+        _clock.advance(4, TimeUnit.SECONDS);
+        assertNotNull(_registry.get(1L));
+        _clock.advance(4, TimeUnit.SECONDS);
+        assertSame(client, _registry.get(1L));
+    }
+
+    @Test
+    public void testExpireByCleaner() throws Exception {
+        _registry.tryPut(newClient(1L));
+        _registry.tryPut(newClient(2L));
+        _clock.advance(4, TimeUnit.SECONDS);
+        _registry.get(2L);
+        _clock.advance(2, TimeUnit.SECONDS);
+        _registry.expireClients();
+
+        assertEquals(1, _registry.size());
+        assertEquals(1, _expired.size());
+        assertEquals(new clientid4(1L), _expired.get(0).getId());
+    }
+
+    @Test
+    public void testRescheduledClientExpiredByCleaner() throws Exception {
+        _registry.tryPut(newClient(1L));
+        _clock.advance(4, TimeUnit.SECONDS);
+        _registry.get(1L);
+        _clock.advance(2, TimeUnit.SECONDS);
+        _registry.expireClients();
+        assertEquals(1, _registry.size());
+
+        _clock.advance(4, TimeUnit.SECONDS);
+        _registry.expireClients();
+        assertEquals(0, _registry.size());
+        assertEquals(1, _expired.size());
+    }
+
+    @Test
+    public void testClients() throws Exception {
+        for (long i = 0; i < 10; i++) {
+            _registry.tryPut(newClient(i << 32 | i));
+        }
+        assertEquals(10, _registry.size());
+        assertEquals(10, _registry.clients().size());
+    }
+
+    @Test
+    public void testLimitReached() throws Exception {
+        for (long i = 0; i < 10; i++) {
+            assertTrue(_registry.tryPut(newClient(i)));
+        }
+        assertFalse(_registry.tryPut(newClient(10L)));
+        assertEquals(10, _registry.size());
+    }
+
+    @Test
+    public void testReplaceWhenLimitReached() throws Exception {
+        for (long i = 0; i < 10; i++) {
+            _registry.tryPut(newClient(i));
+        }
+        _registry.remove(0L);
+        assertTrue(_registry.tryPut(newClient(10L)));
+    }
+
+    @Test
+    public void testEvictExpiredWhenLimitReached() throws Exception {
+        for (long i = 0; i < 10; i++) {
+            _registry.tryPut(newClient(i));
+        }
+        _clock.advance(6, TimeUnit.SECONDS);
+        assertTrue(_registry.tryPut(newClient(10L)));
+        assertEquals(1, _registry.size());
+        assertEquals(10, _expired.size());
+    }
+
+    @Test
+    public void testHighWatermark() throws Exception {
+        for (long i = 0; i < 5; i++) {
+            _registry.tryPut(newClient(i));
+        }
+        _registry.remove(0L);
+        _registry.remove(1L);
+        assertEquals(3, _registry.size());
+        assertEquals(5, _registry.getHighWatermark());
+        _registry.resetHighWatermark();
+        assertEquals(3, _registry.getHighWatermark());
+    }
+
+    @Test
+    public void testGetByOwner() throws Exception {
+        NFS4Client client = newClient(1L, new byte[]{1});
+        _registry.tryPut(client);
+        _registry.tryPut(newClient(2L, new byte[]{2}));
+        assertSame(client, _registry.getByOwner(new byte[]{1}));
+        assertNull(_registry.getByOwner(new byte[]{3}));
+    }
+
+    @Test
+    public void testGetByOwnerAfterRemove() throws Exception {
+        _registry.tryPut(newClient(1L, new byte[]{1}));
+        _registry.remove(1L);
+        assertNull(_registry.getByOwner(new byte[]{1}));
+    }
+
+    @Test
+    public void testGetByOwnerAfterTimeout() throws Exception {
+        _registry.tryPut(newClient(1L, new byte[]{1}));
+        _clock.advance(6, TimeUnit.SECONDS);
+        _registry.expireClients();
+        assertNull(_registry.getByOwner(new byte[]{1}));
+    }
+
+    @Test
+    public void testGetByOwnerWithReplacedClient() throws Exception {
+        NFS4Client oldClient = newClient(1L, new byte[]{1});
+        NFS4Client newClient = newClient(2L, new byte[]{1});
+        _registry.tryPut(oldClient);
+        _registry.tryPut(newClient);
+
+        _registry.remove(1L);
+        assertSame(newClient, _registry.getByOwner(new byte[]{1}));
+    }
+
+    private static NFS4Client newClient(long clientid) throws Exception {
+        return newClient(clientid, new byte[] {1, 2, 3});
+    }
+
+    private static NFS4Client newClient(long clientid, byte[] owner) throws Exception {
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getByName(null), 123);
+        return new NFS4Client(null, new clientid4(clientid), 1, address, address,
+                owner, new verifier4(new byte[8]), null, 1000, false);
+    }
+
+    private static class ManualClock extends Clock {
+
+        private final AtomicLong currentTime = new AtomicLong();
+
+        @Override
+        public Instant instant() {
+            return Instant.ofEpochMilli(currentTime.get());
+        }
+
+        void advance(long time, TimeUnit unit) {
+            currentTime.addAndGet(unit.toMillis(time));
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return Clock.systemDefaultZone().getZone();
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2018 Deutsches Elektronen-Synchroton,
+ * Member of the Helmholtz Association, (DESY), HAMBURG, GERMANY
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Library General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public
+ * License along with this program (see the file COPYING.LIB for more
+ * details); if not, write to the Free Software Foundation, Inc.,
+ * 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.dcache.nfs.v4;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.dcache.nfs.nfsstat;
+import org.dcache.nfs.v4.client.CompoundBuilder;
+import org.dcache.nfs.v4.xdr.nfs4_prot;
+import org.dcache.nfs.v4.xdr.nfs_argop4;
+import org.dcache.nfs.v4.xdr.nfs_fh4;
+import org.dcache.nfs.v4.xdr.nfs_opnum4;
+import org.dcache.nfs.v4.xdr.nfs_resop4;
+import org.dcache.nfs.vfs.Inode;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.dcache.nfs.v4.NfsTestUtils.generateRpcCall;
+
+public class CompoundSchedulerTest {
+
+    private ExecutorService _executor;
+    private CompoundScheduler _scheduler;
+    private CompoundContext _context;
+
+    @Before
+    public void setUp() {
+        _executor = Executors.newFixedThreadPool(4);
+        _scheduler = new CompoundScheduler(_executor);
+        _context = new CompoundContextBuilder()
+                .withCall(generateRpcCall())
+                .build();
+    }
+
+    @After
+    public void tearDown() {
+        _executor.shutdownNow();
+    }
+
+    @Test
+    public void testPlanBulkStat() {
+        nfs_argop4[] ops = new CompoundBuilder()
+                .withPutfh(fh(1))
+                .withGetattr(nfs4_prot.FATTR4_SIZE)
+                .withPutfh(fh(2))
+                .withGetattr(nfs4_prot.FATTR4_SIZE)
+                .withPutfh(fh(3))
+                .withGetattr(nfs4_prot.FATTR4_SIZE)
+                .build().argarray;
+
+        List<CompoundScheduler.Segment> segments = CompoundScheduler.plan(ops, 0);
+        assertEquals(3, segments.size());
+        assertEquals(2, segments.get(1).from());
+        assertEquals(4, segments.get(1).to());
+    }
+
+    @Test
+    public void testPlanWithSavedFh() {
+        nfs_argop4[] ops = new CompoundBuilder()
+                .withPutfh(fh(1))
+                .withSavefh()
+                .withPutfh(fh(2))
+                .withRestorefh()
+                .build().argarray;
+
+        assertNull(CompoundScheduler.plan(ops, 0));
+    }
+
+    @Test
+    public void testPlanSingleSegment() {
+        nfs_argop4[] ops = new CompoundBuilder()
+                .withPutrootfh()
+                .withLookup("a")
+                .withLookup("b")
+                .withGetfh()
+                .build().argarray;
+
+        assertNull(CompoundScheduler.plan(ops, 0));
+    }
+
+    @Test
+    public void testPlanNoFhAtStart() {
+        nfs_argop4[] ops = new CompoundBuilder()
+                .withGetattr(nfs4_prot.FATTR4_SIZE)
+                .withPutfh(fh(1))
+                .withGetattr(nfs4_prot.FATTR4_SIZE)
+                .build().argarray;
+
+        assertNull(CompoundScheduler.plan(ops, 0));
+    }
+
+    @Test
+    public void testParallelExecutionInOrder() throws IOException, InterruptedException {
+        nfs_argop4[] ops = new CompoundBuilder()
+                .withPutfh(fh(1))
+                .withGetattr(nfs4_prot.FATTR4_SIZE)
+                .withPutfh(fh(2))
+                .withGetattr(nfs4_prot.FATTR4_SIZE)
+                .withPutfh(fh(3))
+                .withGetattr(nfs4_prot.FATTR4_SIZE)
+                .build().argarray;
+
+        // all segments must be processed at the same time to pass the latch
+        CountDownLatch latch = new CountDownLatch(3);
+        ConcurrentMap<nfs_resop4, Inode> seen = new ConcurrentHashMap<>();
+        List<nfs_resop4> results = _scheduler.execute(_context, ops, 0, (context, op, result) -> {
+            if (op.argop == nfs_opnum4.OP_PUTFH) {
+                context.currentInode(Inode.forFile(op.opputfh.object.value));
+                latch.countDown();
+                try {
+                    assertTrue("segments not processed in parallel", latch.await(5, TimeUnit.SECONDS));
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            } else {
+                seen.put(result, context.currentInode());
+            }
+            result.setStatus(nfsstat.NFS_OK);
+        });
+
+        assertEquals(6, results.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(nfs_opnum4.OP_PUTFH, results.get(2 * i).resop);
+            assertEquals(nfs_opnum4.OP_GETATTR, results.get(2 * i + 1).resop);
+            assertEquals(Inode.forFile(fh(i + 1).value), seen.get(results.get(2 * i + 1)));
+        }
+    }
+
+    @Test
+    public void testStopOnFirstError() throws IOException {
+        nfs_argop4[] ops = new CompoundBuilder()
+                .withPutfh(fh(1))
+                .withGetattr(nfs4_prot.FATTR4_SIZE)
+                .withPutfh(fh(2))
+                .withLookup("missing")
+                .withGetattr(nfs4_prot.FATTR4_SIZE)
+                .withPutfh(fh(3))
+                .withGetattr(nfs4_prot.FATTR4_SIZE)
+                .build().argarray;
+
+        List<nfs_resop4> results = _scheduler.execute(_context, ops, 0, (context, op, result) -> {
+            result.setStatus(op.argop == nfs_opnum4.OP_LOOKUP ? nfsstat.NFSERR_NOENT : nfsstat.NFS_OK);
+        });
+
+        assertEquals(4, results.size());
+        assertEquals(nfs_opnum4.OP_LOOKUP, results.get(3).resop);
+        assertEquals(nfsstat.NFSERR_NOENT, results.get(3).getStatus());
+    }
+
+    @Test(expected = IOException.class)
+    public void testExceptionPropagated() throws IOException {
+        nfs_argop4[] ops = new CompoundBuilder()
+                .withPutfh(fh(1))
+                .withGetattr(nfs4_prot.FATTR4_SIZE)
+                .withPutfh(fh(2))
+                .withGetattr(nfs4_prot.FATTR4_SIZE)
+                .build().argarray;
+
+        _scheduler.execute(_context, ops, 0, (context, op, result) -> {
+            if (op.argop == nfs_opnum4.OP_GETATTR && context.currentInode().equals(Inode.forFile(fh(2).value))) {
+                throw new IOException("backend failure");
+            }
+            if (op.argop == nfs_opnum4.OP_PUTFH) {
+                context.currentInode(Inode.forFile(op.opputfh.object.value));
+            }
+            result.setStatus(nfsstat.NFS_OK);
+        });
+    }
+
+    private static nfs_fh4 fh(int id) {
+        return new nfs_fh4(new byte[]{(byte) id});
+    }
+}
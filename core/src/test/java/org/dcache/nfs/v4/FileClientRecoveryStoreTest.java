@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2018 Deutsches Elektronen-Synchroton,
+ * Member of the Helmholtz Association, (DESY), HAMBURG, GERMANY
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Library General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public
+ * License along with this program (see the file COPYING.LIB for more
+ * details); if not, write to the Free Software Foundation, Inc.,
+ * 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.dcache.nfs.v4;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FileClientRecoveryStoreTest {
+
+    private static final byte[] CLIENT1 = "client1".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] CLIENT2 = "client2".getBytes(StandardCharsets.UTF_8);
+
+    private Path dir;
+    private Path log;
+    private FileClientRecoveryStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("nfs-clients");
+        log = dir.resolve("clients.log");
+        store = new FileClientRecoveryStore(log);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        store.close();
+        Files.deleteIfExists(log);
+        Files.deleteIfExists(dir);
+    }
+
+    @Test
+    public void testNothingToRecoverOnFirstStart() {
+        assertFalse(store.waitingForReclaim());
+        assertFalse(store.wantReclaim(CLIENT1));
+    }
+
+    @Test
+    public void testRecoverAfterRestart() throws IOException {
+        store.addClient(CLIENT1);
+        store.addClient(CLIENT2);
+        restart();
+
+        assertTrue(store.waitingForReclaim());
+        assertTrue(store.wantReclaim(CLIENT1));
+        assertTrue(store.wantReclaim(CLIENT2));
+    }
+
+    @Test
+    public void testRemovedClientNotRecovered() throws IOException {
+        store.addClient(CLIENT1);
+        store.addClient(CLIENT2);
+        store.removeClient(CLIENT2);
+        restart();
+
+        assertTrue(store.wantReclaim(CLIENT1));
+        assertFalse(store.wantReclaim(CLIENT2));
+    }
+
+    @Test
+    public void testGraceEndsWhenAllReclaimed() throws IOException {
+        store.addClient(CLIENT1);
+        store.addClient(CLIENT2);
+        restart();
+
+        store.addClient(CLIENT1);
+        store.reclaimClient(CLIENT1);
+        assertTrue(store.waitingForReclaim());
+
+        store.addClient(CLIENT2);
+        store.reclaimClient(CLIENT2);
+        assertFalse(store.waitingForReclaim());
+    }
+
+    @Test
+    public void testNotReclaimedClientRecoveredOnNextRestart() throws IOException {
+        store.addClient(CLIENT1);
+        restart();
+        restart();
+
+        assertTrue(store.wantReclaim(CLIENT1));
+    }
+
+    @Test
+    public void testNotReclaimedClientDroppedAfterGrace() throws IOException {
+        store.addClient(CLIENT1);
+        store.addClient(CLIENT2);
+        restart();
+
+        store.addClient(CLIENT1);
+        store.reclaimComplete();
+        assertFalse(store.waitingForReclaim());
+        restart();
+
+        assertTrue(store.wantReclaim(CLIENT1));
+        assertFalse(store.wantReclaim(CLIENT2));
+    }
+
+    @Test
+    public void testKnownClientNotRecordedAgain() throws IOException {
+        store.addClient(CLIENT1);
+        long size = Files.size(log);
+
+        store.addClient(CLIENT1);
+        assertEquals(size, Files.size(log));
+
+        restart();
+        store.addClient(CLIENT1);
+        assertEquals(size, Files.size(log));
+    }
+
+    @Test
+    public void testTruncatedRecordIgnored() throws IOException {
+        store.addClient(CLIENT1);
+        store.close();
+        Files.write(log, new byte[]{1, 0, 0}, StandardOpenOption.APPEND);
+        store = new FileClientRecoveryStore(log);
+
+        assertTrue(store.wantReclaim(CLIENT1));
+    }
+
+    @Test
+    public void testZeroFilledTailIgnored() throws IOException {
+        store.addClient(CLIENT1);
+        store.close();
+        Files.write(log, new byte[16], StandardOpenOption.APPEND);
+        store = new FileClientRecoveryStore(log);
+
+        assertTrue(store.wantReclaim(CLIENT1));
+
+        // the broken tail is dropped
+        restart();
+        assertTrue(store.wantReclaim(CLIENT1));
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalidFile() throws IOException {
+        Path other = dir.resolve("other");
+        Files.write(other, "garbage".getBytes(StandardCharsets.UTF_8));
+        try {
+            new FileClientRecoveryStore(other);
+        } finally {
+            Files.delete(other);
+        }
+    }
+
+    private void restart() throws IOException {
+        store.close();
+        store = new FileClientRecoveryStore(log);
+    }
+}
@@ -20,17 +20,34 @@
 package org.dcache.nfs.v4;
 
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
 import org.dcache.nfs.status.BadStateidException;
+import org.dcache.nfs.status.DelayException;
 import org.dcache.nfs.status.InvalException;
 import org.dcache.nfs.status.ShareDeniedException;
 import org.junit.Before;
 import org.junit.Test;
 
+import org.dcache.nfs.v4.xdr.attrlist4;
+import org.dcache.nfs.v4.xdr.bitmap4;
+import org.dcache.nfs.v4.xdr.fattr4;
+import org.dcache.nfs.v4.xdr.nfs4_prot;
 import org.dcache.nfs.v4.xdr.nfs_fh4;
 import org.dcache.nfs.vfs.Inode;
+import org.dcache.nfs.vfs.Stat;
+import org.dcache.oncrpc4j.xdr.Xdr;
+import org.dcache.nfs.v4.xdr.open_delegation4;
+import org.dcache.nfs.v4.xdr.open_delegation_type4;
 import org.dcache.nfs.v4.xdr.stateid4;
 
 import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 import static org.dcache.nfs.v4.NfsTestUtils.createClient;
 import static org.dcache.nfs.v4.NfsTestUtils.generateFileHandle;
 
@@ -184,6 +201,23 @@ public class FileTrackerTest {
         tracker.addOpen(client1, stateOwner1, inode, OPEN4_SHARE_ACCESS_WRITE, OPEN4_SHARE_ACCESS_READ);
     }
 
+    @Test
+    public void shouldAllowConflictingOpensAfterDowngrade() throws Exception {
+
+        NFS4Client client1 = createClient(sh);
+        StateOwner stateOwner1 = client1.getOrCreateOwner("client1".getBytes(StandardCharsets.UTF_8), new seqid4(0));
+        NFS4Client client2 = createClient(sh);
+        StateOwner stateOwner2 = client2.getOrCreateOwner("client2".getBytes(StandardCharsets.UTF_8), new seqid4(0));
+
+        nfs_fh4 fh = generateFileHandle();
+        Inode inode = Inode.forFile(fh.value);
+
+        stateid4 s = tracker.addOpen(client1, stateOwner1, inode, OPEN4_SHARE_ACCESS_BOTH, OPEN4_SHARE_ACCESS_WRITE);
+        tracker.downgradeOpen(client1, s, inode, OPEN4_SHARE_ACCESS_READ, 0);
+
+        tracker.addOpen(client2, stateOwner2, inode, OPEN4_SHARE_ACCESS_WRITE, 0);
+    }
+
     @Test(expected = BadStateidException.class)
     public void shouldFailToGetAccessModeWithBadStateid() throws Exception {
 
@@ -197,4 +231,237 @@ public class FileTrackerTest {
         tracker.getShareAccess(client1, inode, client1.createState(stateOwner1).stateid());
     }
 
+    @Test
+    public void shouldNotGrantDelegationWithoutCallback() throws Exception {
+
+        NFS4Client client1 = createClient(sh);
+        StateOwner stateOwner1 = client1.getOrCreateOwner("client1".getBytes(StandardCharsets.UTF_8), new seqid4(0));
+
+        nfs_fh4 fh = generateFileHandle();
+        Inode inode = Inode.forFile(fh.value);
+
+        tracker.addOpen(client1, stateOwner1, inode, OPEN4_SHARE_ACCESS_READ, 0);
+        open_delegation4 delegation = tracker.grantDelegation(client1, stateOwner1, inode, OPEN4_SHARE_ACCESS_READ);
+        assertEquals(open_delegation_type4.OPEN_DELEGATE_NONE, delegation.delegation_type);
+    }
+
+    @Test
+    public void shouldGrantReadDelegation() throws Exception {
+
+        NFS4Client client1 = createClient(sh);
+        client1.setCB(mock(ClientCB.class));
+        StateOwner stateOwner1 = client1.getOrCreateOwner("client1".getBytes(StandardCharsets.UTF_8), new seqid4(0));
+
+        nfs_fh4 fh = generateFileHandle();
+        Inode inode = Inode.forFile(fh.value);
+
+        tracker.addOpen(client1, stateOwner1, inode, OPEN4_SHARE_ACCESS_READ, 0);
+        open_delegation4 delegation = tracker.grantDelegation(client1, stateOwner1, inode, OPEN4_SHARE_ACCESS_READ);
+        assertEquals(open_delegation_type4.OPEN_DELEGATE_READ, delegation.delegation_type);
+        assertEquals(1, tracker.getDelegationCount());
+    }
+
+    @Test
+    public void shouldGrantWriteDelegationToSingleWriter() throws Exception {
+
+        NFS4Client client1 = createClient(sh);
+        client1.setCB(mock(ClientCB.class));
+        StateOwner stateOwner1 = client1.getOrCreateOwner("client1".getBytes(StandardCharsets.UTF_8), new seqid4(0));
+
+        nfs_fh4 fh = generateFileHandle();
+        Inode inode = Inode.forFile(fh.value);
+
+        tracker.addOpen(client1, stateOwner1, inode, OPEN4_SHARE_ACCESS_BOTH, 0);
+        open_delegation4 delegation = tracker.grantDelegation(client1, stateOwner1, inode, OPEN4_SHARE_ACCESS_BOTH);
+        assertEquals(open_delegation_type4.OPEN_DELEGATE_WRITE, delegation.delegation_type);
+    }
+
+    @Test
+    public void shouldNotGrantReadDelegationWithOtherWriter() throws Exception {
+
+        NFS4Client client1 = createClient(sh);
+        client1.setCB(mock(ClientCB.class));
+        StateOwner stateOwner1 = client1.getOrCreateOwner("client1".getBytes(StandardCharsets.UTF_8), new seqid4(0));
+        NFS4Client client2 = createClient(sh);
+        StateOwner stateOwner2 = client2.getOrCreateOwner("client2".getBytes(StandardCharsets.UTF_8), new seqid4(0));
+
+        nfs_fh4 fh = generateFileHandle();
+        Inode inode = Inode.forFile(fh.value);
+
+        tracker.addOpen(client2, stateOwner2, inode, OPEN4_SHARE_ACCESS_WRITE, 0);
+        tracker.addOpen(client1, stateOwner1, inode, OPEN4_SHARE_ACCESS_READ, 0);
+        open_delegation4 delegation = tracker.grantDelegation(client1, stateOwner1, inode, OPEN4_SHARE_ACCESS_READ);
+        assertEquals(open_delegation_type4.OPEN_DELEGATE_NONE, delegation.delegation_type);
+    }
+
+    @Test
+    public void shouldRecallDelegationOnConflictingOpen() throws Exception {
+
+        ClientCB cb = recallableCB();
+        NFS4Client client1 = createClient(sh);
+        client1.setCB(cb);
+        StateOwner stateOwner1 = client1.getOrCreateOwner("client1".getBytes(StandardCharsets.UTF_8), new seqid4(0));
+        NFS4Client client2 = createClient(sh);
+        StateOwner stateOwner2 = client2.getOrCreateOwner("client2".getBytes(StandardCharsets.UTF_8), new seqid4(0));
+
+        nfs_fh4 fh = generateFileHandle();
+        Inode inode = Inode.forFile(fh.value);
+
+        tracker.addOpen(client1, stateOwner1, inode, OPEN4_SHARE_ACCESS_READ, 0);
+        open_delegation4 delegation = tracker.grantDelegation(client1, stateOwner1, inode, OPEN4_SHARE_ACCESS_READ);
+
+        try {
+            tracker.addOpen(client2, stateOwner2, inode, OPEN4_SHARE_ACCESS_WRITE, 0);
+            fail("Conflicting open must wait for delegation return");
+        } catch (DelayException e) {
+            // expected
+        }
+
+        verify(cb, timeout(1000)).cbDelegationRecallAsync(any(nfs_fh4.class), eq(delegation.read.stateid), eq(false));
+
+        tracker.returnDelegation(client1, inode, delegation.read.stateid);
+        assertEquals(0, tracker.getDelegationCount());
+        tracker.addOpen(client2, stateOwner2, inode, OPEN4_SHARE_ACCESS_WRITE, 0);
+    }
+
+    @Test
+    public void shouldAllowReadOpenWithReadDelegation() throws Exception {
+
+        NFS4Client client1 = createClient(sh);
+        client1.setCB(mock(ClientCB.class));
+        StateOwner stateOwner1 = client1.getOrCreateOwner("client1".getBytes(StandardCharsets.UTF_8), new seqid4(0));
+        NFS4Client client2 = createClient(sh);
+        client2.setCB(mock(ClientCB.class));
+        StateOwner stateOwner2 = client2.getOrCreateOwner("client2".getBytes(StandardCharsets.UTF_8), new seqid4(0));
+
+        nfs_fh4 fh = generateFileHandle();
+        Inode inode = Inode.forFile(fh.value);
+
+        tracker.addOpen(client1, stateOwner1, inode, OPEN4_SHARE_ACCESS_READ, 0);
+        tracker.grantDelegation(client1, stateOwner1, inode, OPEN4_SHARE_ACCESS_READ);
+
+        tracker.addOpen(client2, stateOwner2, inode, OPEN4_SHARE_ACCESS_READ, 0);
+        open_delegation4 delegation = tracker.grantDelegation(client2, stateOwner2, inode, OPEN4_SHARE_ACCESS_READ);
+        assertEquals(open_delegation_type4.OPEN_DELEGATE_READ, delegation.delegation_type);
+        assertEquals(2, tracker.getDelegationCount());
+    }
+
+    @Test(expected = BadStateidException.class)
+    public void shouldRejectReturnOfUnknownDelegation() throws Exception {
+
+        NFS4Client client1 = createClient(sh);
+        StateOwner stateOwner1 = client1.getOrCreateOwner("client1".getBytes(StandardCharsets.UTF_8), new seqid4(0));
+
+        nfs_fh4 fh = generateFileHandle();
+        Inode inode = Inode.forFile(fh.value);
+
+        stateid4 s = tracker.addOpen(client1, stateOwner1, inode, OPEN4_SHARE_ACCESS_READ, 0);
+        tracker.returnDelegation(client1, inode, s);
+    }
+
+    @Test
+    public void shouldAcceptDelegationStateidForShareAccess() throws Exception {
+
+        NFS4Client client1 = createClient(sh);
+        client1.setCB(mock(ClientCB.class));
+        StateOwner stateOwner1 = client1.getOrCreateOwner("client1".getBytes(StandardCharsets.UTF_8), new seqid4(0));
+
+        nfs_fh4 fh = generateFileHandle();
+        Inode inode = Inode.forFile(fh.value);
+
+        tracker.addOpen(client1, stateOwner1, inode, OPEN4_SHARE_ACCESS_BOTH, 0);
+        open_delegation4 delegation = tracker.grantDelegation(client1, stateOwner1, inode, OPEN4_SHARE_ACCESS_BOTH);
+        assertEquals(OPEN4_SHARE_ACCESS_BOTH, tracker.getShareAccess(client1, inode, delegation.write.stateid));
+    }
+
+    @Test
+    public void shouldRecallReadDelegationOnAnonymousWrite() throws Exception {
+
+        ClientCB cb = recallableCB();
+        NFS4Client client1 = createClient(sh);
+        client1.setCB(cb);
+        StateOwner stateOwner1 = client1.getOrCreateOwner("client1".getBytes(StandardCharsets.UTF_8), new seqid4(0));
+
+        nfs_fh4 fh = generateFileHandle();
+        Inode inode = Inode.forFile(fh.value);
+
+        tracker.addOpen(client1, stateOwner1, inode, OPEN4_SHARE_ACCESS_READ, 0);
+        open_delegation4 delegation = tracker.grantDelegation(client1, stateOwner1, inode, OPEN4_SHARE_ACCESS_READ);
+
+        // reads don't conflict with read delegations
+        tracker.recallDelegations(null, inode, false);
+
+        try {
+            tracker.recallDelegations(null, inode, true);
+            fail("Write must wait for delegation return");
+        } catch (DelayException e) {
+            // expected
+        }
+        verify(cb, timeout(1000)).cbDelegationRecallAsync(any(nfs_fh4.class), eq(delegation.read.stateid), eq(false));
+    }
+
+    @Test
+    public void shouldNotRecallOwnDelegation() throws Exception {
+
+        ClientCB cb = recallableCB();
+        NFS4Client client1 = createClient(sh);
+        client1.setCB(cb);
+        StateOwner stateOwner1 = client1.getOrCreateOwner("client1".getBytes(StandardCharsets.UTF_8), new seqid4(0));
+
+        nfs_fh4 fh = generateFileHandle();
+        Inode inode = Inode.forFile(fh.value);
+
+        tracker.addOpen(client1, stateOwner1, inode, OPEN4_SHARE_ACCESS_BOTH, 0);
+        tracker.grantDelegation(client1, stateOwner1, inode, OPEN4_SHARE_ACCESS_BOTH);
+        tracker.recallDelegations(client1, inode, true);
+        assertEquals(1, tracker.getDelegationCount());
+    }
+
+    @Test
+    public void shouldGetAttributesFromWriteDelegationHolder() throws Exception {
+
+        ClientCB cb = mock(ClientCB.class);
+        NFS4Client client1 = createClient(sh);
+        client1.setCB(cb);
+        StateOwner stateOwner1 = client1.getOrCreateOwner("client1".getBytes(StandardCharsets.UTF_8), new seqid4(0));
+
+        nfs_fh4 fh = generateFileHandle();
+        Inode inode = Inode.forFile(fh.value);
+
+        tracker.addOpen(client1, stateOwner1, inode, OPEN4_SHARE_ACCESS_BOTH, 0);
+        tracker.grantDelegation(client1, stateOwner1, inode, OPEN4_SHARE_ACCESS_BOTH);
+
+        fattr4 attrs = new fattr4();
+        attrs.attrmask = new bitmap4();
+        attrs.attrmask.set(nfs4_prot.FATTR4_CHANGE);
+        attrs.attrmask.set(nfs4_prot.FATTR4_SIZE);
+        try (Xdr xdr = new Xdr(32)) {
+            xdr.beginEncoding();
+            xdr.xdrEncodeLong(1);
+            xdr.xdrEncodeLong(4096);
+            xdr.endEncoding();
+            attrs.attr_vals = new attrlist4(xdr.getBytes());
+        }
+        when(cb.cbGetAttrAsync(any(nfs_fh4.class), any(bitmap4.class)))
+                .thenReturn(CompletableFuture.completedFuture(attrs));
+
+        Stat stat = new Stat();
+        stat.setSize(0);
+        stat.setGeneration(1);
+        stat.setMTime(0);
+
+        Stat delegated = tracker.getDelegatedAttributes(null, inode, stat);
+        assertEquals(4096, delegated.getSize());
+        assertEquals(2, delegated.getGeneration());
+
+        // the holder itself doesn't need a call-back
+        assertSame(stat, tracker.getDelegatedAttributes(client1, inode, stat));
+    }
+
+    private static ClientCB recallableCB() {
+        ClientCB cb = mock(ClientCB.class);
+        when(cb.cbDelegationRecallAsync(any(nfs_fh4.class), any(stateid4.class), anyBoolean()))
+                .thenReturn(CompletableFuture.completedFuture(null));
+        return cb;
+    }
 }
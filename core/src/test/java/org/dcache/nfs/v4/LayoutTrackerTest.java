@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2018 Deutsches Elektronen-Synchroton,
+ * Member of the Helmholtz Association, (DESY), HAMBURG, GERMANY
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Library General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public
+ * License along with this program (see the file COPYING.LIB for more
+ * details); if not, write to the Free Software Foundation, Inc.,
+ * 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.dcache.nfs.v4;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.dcache.nfs.status.NoMatchingLayoutException;
+import org.dcache.nfs.v4.xdr.deviceid4;
+import org.dcache.nfs.v4.xdr.nfs_fh4;
+import org.dcache.nfs.v4.xdr.seqid4;
+import org.dcache.nfs.v4.xdr.stateid4;
+import org.dcache.nfs.vfs.Inode;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.dcache.nfs.v4.NfsTestUtils.createClient;
+import static org.dcache.nfs.v4.NfsTestUtils.generateFileHandle;
+
+public class LayoutTrackerTest {
+
+    private static final deviceid4 DEVICE1 = new deviceid4(new byte[]{0x1});
+    private static final deviceid4 DEVICE2 = new deviceid4(new byte[]{0x2});
+
+    private NFSv4StateHandler sh;
+    private LayoutTracker tracker;
+
+    @Before
+    public void setUp() {
+        sh = new NFSv4StateHandler();
+        tracker = new LayoutTracker(TimeUnit.SECONDS.toMillis(10));
+    }
+
+    @After
+    public void tearDown() {
+        tracker.shutdown();
+    }
+
+    @Test
+    public void shouldTrackLayoutsPerDevice() throws Exception {
+
+        NFS4Client client = createClient(sh);
+        Inode inode1 = Inode.forFile(generateFileHandle().value);
+        Inode inode2 = Inode.forFile(generateFileHandle().value);
+
+        tracker.addLayout(client, inode1, layoutStateid(client), DEVICE1, DEVICE2);
+        tracker.addLayout(client, inode2, layoutStateid(client), DEVICE1);
+
+        assertEquals(2, tracker.getLayoutCount());
+        assertEquals(2, tracker.getLayoutCount(DEVICE1));
+        assertEquals(1, tracker.getLayoutCount(DEVICE2));
+        assertEquals(1, tracker.getLayouts(inode1).size());
+        assertEquals(2, tracker.getLayouts(client).size());
+    }
+
+    @Test
+    public void shouldCompleteRecallWhenLayoutsReturned() throws Exception {
+
+        ClientCB cb = callback(CompletableFuture.completedFuture(null));
+        NFS4Client client = createClient(sh);
+        client.setCB(cb);
+
+        stateid4 stateid1 = layoutStateid(client);
+        stateid4 stateid2 = layoutStateid(client);
+        tracker.addLayout(client, Inode.forFile(generateFileHandle().value), stateid1, DEVICE1);
+        tracker.addLayout(client, Inode.forFile(generateFileHandle().value), stateid2, DEVICE1);
+
+        CompletableFuture<Void> recall = tracker.recallByDevice(DEVICE1);
+        verify(cb, times(2)).cbLayoutRecallFileAsync(any(nfs_fh4.class), any(stateid4.class));
+        assertFalse(recall.isDone());
+
+        assertTrue(tracker.returnLayout(client, stateid1));
+        assertFalse(recall.isDone());
+
+        assertTrue(tracker.returnLayout(client, stateid2));
+        assertTrue(recall.isDone());
+        assertEquals(0, tracker.getLayoutCount(DEVICE1));
+    }
+
+    @Test
+    public void shouldNotRecallLayoutsOnOtherDevices() throws Exception {
+
+        ClientCB cb = callback(CompletableFuture.completedFuture(null));
+        NFS4Client client = createClient(sh);
+        client.setCB(cb);
+
+        tracker.addLayout(client, Inode.forFile(generateFileHandle().value), layoutStateid(client), DEVICE2);
+
+        CompletableFuture<Void> recall = tracker.recallByDevice(DEVICE1);
+        assertTrue(recall.isDone());
+        assertEquals(1, tracker.getLayoutCount());
+    }
+
+    @Test
+    public void shouldRevokeLayoutsWithoutCallbackChannel() throws Exception {
+
+        NFS4Client client = createClient(sh);
+        tracker.addLayout(client, Inode.forFile(generateFileHandle().value), layoutStateid(client), DEVICE1);
+
+        CompletableFuture<Void> recall = tracker.recallByDevice(DEVICE1);
+        assertTrue(recall.isDone());
+        assertEquals(0, tracker.getLayoutCount());
+    }
+
+    @Test
+    public void shouldReleaseLayoutOnNoMatchingLayout() throws Exception {
+
+        CompletableFuture<Void> reply = new CompletableFuture<>();
+        reply.completeExceptionally(new NoMatchingLayoutException());
+        NFS4Client client = createClient(sh);
+        client.setCB(callback(reply));
+
+        tracker.addLayout(client, Inode.forFile(generateFileHandle().value), layoutStateid(client), DEVICE1);
+
+        CompletableFuture<Void> recall = tracker.recallByDevice(DEVICE1);
+        assertTrue(recall.isDone());
+        assertEquals(0, tracker.getLayoutCount());
+    }
+
+    @Test
+    public void shouldRevokeLayoutNotReturnedInTime() throws Exception {
+
+        tracker = new LayoutTracker(10);
+        NFS4Client client = createClient(sh);
+        client.setCB(callback(new CompletableFuture<>()));
+
+        tracker.addLayout(client, Inode.forFile(generateFileHandle().value), layoutStateid(client), DEVICE1);
+
+        tracker.recallByDevice(DEVICE1).get(5, TimeUnit.SECONDS);
+        assertEquals(0, tracker.getLayoutCount());
+    }
+
+    @Test
+    public void shouldRecallAllLayoutsOncePerClient() throws Exception {
+
+        ClientCB cb = callback(CompletableFuture.completedFuture(null));
+        NFS4Client client = createClient(sh);
+        client.setCB(cb);
+
+        tracker.addLayout(client, Inode.forFile(generateFileHandle().value), layoutStateid(client), DEVICE1);
+        tracker.addLayout(client, Inode.forFile(generateFileHandle().value), layoutStateid(client), DEVICE2);
+
+        CompletableFuture<Void> recall = tracker.recallAll();
+        verify(cb).cbLayoutRecallFsidAsync();
+        assertFalse(recall.isDone());
+
+        tracker.returnAll(client);
+        assertTrue(recall.isDone());
+    }
+
+    @Test
+    public void shouldForgetLayoutWhenStateDisposed() throws Exception {
+
+        NFS4Client client = createClient(sh);
+        stateid4 stateid = layoutStateid(client);
+        tracker.addLayout(client, Inode.forFile(generateFileHandle().value), stateid, DEVICE1);
+
+        client.releaseState(stateid);
+        assertEquals(0, tracker.getLayoutCount());
+    }
+
+    private static stateid4 layoutStateid(NFS4Client client) throws Exception {
+        StateOwner owner = client.getOrCreateOwner("layout".getBytes(StandardCharsets.UTF_8), new seqid4(0));
+        return client.createState(owner).stateid();
+    }
+
+    private static ClientCB callback(CompletableFuture<Void> reply) {
+        ClientCB cb = mock(ClientCB.class);
+        given(cb.cbLayoutRecallFileAsync(any(nfs_fh4.class), any(stateid4.class))).willReturn(reply);
+        given(cb.cbLayoutRecallFsidAsync()).willReturn(reply);
+        return cb;
+    }
+}
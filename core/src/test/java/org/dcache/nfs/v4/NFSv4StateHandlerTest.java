@@ -28,8 +28,8 @@ import static org.junit.Assert.*;
 import java.net.UnknownHostException;
 import java.nio.charset.StandardCharsets;
 import org.dcache.nfs.ChimeraNFSException;
-import org.dcache.nfs.status.BadSeqidException;
 import org.dcache.nfs.status.BadStateidException;
+import org.dcache.nfs.status.DelayException;
 import org.dcache.nfs.status.StaleClientidException;
 import org.dcache.nfs.v4.xdr.seqid4;
 
@@ -43,7 +43,7 @@ public class NFSv4StateHandlerTest {
     private StateOwner _owner;
 
     @Before
-    public void setUp() throws UnknownHostException, BadSeqidException {
+    public void setUp() throws UnknownHostException, ChimeraNFSException {
         _stateHandler = new NFSv4StateHandler();
         _client = createClient(_stateHandler);
         _owner =  _client.getOrCreateOwner("client test".getBytes(StandardCharsets.UTF_8), new seqid4(0));
@@ -97,6 +97,56 @@ public class NFSv4StateHandlerTest {
         _stateHandler.updateClientLeaseTime(stateid);
     }
 
+    @Test(expected = DelayException.class)
+    public void testTooManyClients() throws Exception {
+        NFSv4StateHandler stateHandler = new NFSv4StateHandler(2, 0, 1);
+        createClient(stateHandler);
+        createClient(stateHandler);
+    }
+
+    @Test
+    public void testClientHighWatermark() throws Exception {
+        NFS4Client client = createClient(_stateHandler);
+        _stateHandler.removeClient(client);
+        assertEquals(1, _stateHandler.getClientCount());
+        assertEquals(2, _stateHandler.getClientHighWatermark());
+    }
+
+    @Test
+    public void testNoGracePeriodWithoutRecoverableClients() {
+        assertTrue(_stateHandler.hasGracePeriodExpired());
+    }
+
+    @Test
+    public void testGracePeriodAfterRestart() throws Exception {
+        InMemoryClientRecoveryStore clientStore = new InMemoryClientRecoveryStore();
+        NFSv4StateHandler stateHandler = new NFSv4StateHandler(2, 0, Integer.MAX_VALUE, clientStore);
+        NFS4Client client = createClient(stateHandler);
+        client.setConfirmed();
+        stateHandler.shutdown();
+
+        stateHandler = new NFSv4StateHandler(2, 0, Integer.MAX_VALUE, new InMemoryClientRecoveryStore(clientStore));
+        assertFalse(stateHandler.hasGracePeriodExpired());
+        assertTrue(stateHandler.wantReclaim(client));
+
+        stateHandler.reclaimComplete(client);
+        assertTrue(stateHandler.hasGracePeriodExpired());
+    }
+
+    @Test
+    public void testRemovedClientCantReclaim() throws Exception {
+        InMemoryClientRecoveryStore clientStore = new InMemoryClientRecoveryStore();
+        NFSv4StateHandler stateHandler = new NFSv4StateHandler(2, 0, Integer.MAX_VALUE, clientStore);
+        NFS4Client client = createClient(stateHandler);
+        client.setConfirmed();
+        stateHandler.removeClient(client);
+        stateHandler.shutdown();
+
+        stateHandler = new NFSv4StateHandler(2, 0, Integer.MAX_VALUE, new InMemoryClientRecoveryStore(clientStore));
+        assertTrue(stateHandler.hasGracePeriodExpired());
+        assertFalse(stateHandler.wantReclaim(client));
+    }
+
     @Test
     public void testInstanceId() {
         int instanceId = 18;
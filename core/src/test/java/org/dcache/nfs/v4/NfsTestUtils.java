@@ -44,11 +44,11 @@ class NfsTestUtils {
     private final static Random RANDOM = new Random();
     private NfsTestUtils() { /* utility class */}
 
-    static NFS4Client createClient() throws UnknownHostException {
+    static NFS4Client createClient() throws UnknownHostException, ChimeraNFSException {
         return createClient( new NFSv4StateHandler());
     }
 
-    static NFS4Client createClient(NFSv4StateHandler stateHandler) throws UnknownHostException {
+    static NFS4Client createClient(NFSv4StateHandler stateHandler) throws UnknownHostException, ChimeraNFSException {
         InetSocketAddress address = new InetSocketAddress(InetAddress.getByName(null), 123);
         byte[] owner = new byte[8];
         byte[] bootTime = new byte[8];
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2018 Deutsches Elektronen-Synchroton,
+ * Member of the Helmholtz Association, (DESY), HAMBURG, GERMANY
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Library General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public
+ * License along with this program (see the file COPYING.LIB for more
+ * details); if not, write to the Free Software Foundation, Inc.,
+ * 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.dcache.nfs.v4;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import org.dcache.nfs.nfsstat;
+import org.dcache.nfs.status.SeqMisorderedException;
+import org.dcache.nfs.v4.xdr.READ4resok;
+import org.dcache.nfs.v4.xdr.nfs_opnum4;
+import org.dcache.nfs.v4.xdr.nfs_resop4;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ReplyCacheTest {
+
+    private ReplyCache _cache;
+
+    @Before
+    public void setUp() {
+        _cache = new ReplyCache("test", 1024, false);
+    }
+
+    @Test
+    public void testReplayCachedReply() throws SeqMisorderedException {
+        SessionSlot slot = new SessionSlot(_cache, _cache.newAccount());
+
+        slot.acquire(1);
+        slot.update(Collections.singletonList(readReply(64)));
+
+        List<nfs_resop4> reply = slot.acquire(1);
+        assertEquals(1, reply.size());
+        assertEquals(nfs_opnum4.OP_READ, reply.get(0).resop);
+        assertEquals(nfsstat.NFS_OK, reply.get(0).opread.status);
+        assertEquals(64, reply.get(0).opread.resok4.data.remaining());
+    }
+
+    @Test
+    public void testOriginalReplyNotConsumed() throws SeqMisorderedException {
+        SessionSlot slot = new SessionSlot(_cache, _cache.newAccount());
+        nfs_resop4 read = readReply(64);
+
+        slot.acquire(1);
+        slot.update(Collections.singletonList(read));
+
+        assertEquals("data of the reply to send consumed", 64, read.opread.resok4.data.remaining());
+    }
+
+    @Test
+    public void testReplayOffHeap() throws SeqMisorderedException {
+        _cache.setOffHeap(true);
+        SessionSlot slot = new SessionSlot(_cache, _cache.newAccount());
+
+        slot.acquire(1);
+        slot.update(Collections.singletonList(readReply(64)));
+
+        assertEquals(1, slot.acquire(1).size());
+    }
+
+    @Test
+    public void testNewSequenceReleasesReply() throws SeqMisorderedException {
+        SessionSlot slot = new SessionSlot(_cache, _cache.newAccount());
+
+        slot.acquire(1);
+        slot.update(Collections.singletonList(readReply(64)));
+        assertEquals(1, _cache.getEntries());
+
+        slot.acquire(2);
+        assertEquals(0, _cache.getEntries());
+        assertEquals(0, _cache.getUsedBytes());
+    }
+
+    @Test
+    public void testEvictedReplyNotReplayed() throws SeqMisorderedException {
+        ReplyCache.Account account = _cache.newAccount();
+        SessionSlot slot1 = new SessionSlot(_cache, account);
+        SessionSlot slot2 = new SessionSlot(_cache, account);
+
+        slot1.acquire(1);
+        slot1.update(Collections.singletonList(readReply(600)));
+        slot2.acquire(1);
+        slot2.update(Collections.singletonList(readReply(600)));
+
+        assertEquals(1, _cache.getEvictions());
+        assertTrue("evicted reply replayed", slot1.acquire(1).isEmpty());
+        assertEquals(1, slot2.acquire(1).size());
+    }
+
+    @Test
+    public void testTooBigReplyNotCached() throws SeqMisorderedException {
+        SessionSlot slot = new SessionSlot(_cache, _cache.newAccount());
+
+        slot.acquire(1);
+        slot.update(Collections.singletonList(readReply(2048)));
+
+        assertEquals(0, _cache.getUsedBytes());
+        assertTrue(slot.acquire(1).isEmpty());
+    }
+
+    @Test
+    public void testGreedySessionEvictsOwnReplies() throws SeqMisorderedException {
+        SessionSlot quiet = new SessionSlot(_cache, _cache.newAccount());
+        quiet.acquire(1);
+        quiet.update(Collections.singletonList(readReply(100)));
+
+        ReplyCache.Account greedy = _cache.newAccount();
+        for (int i = 0; i < 10; i++) {
+            SessionSlot slot = new SessionSlot(_cache, greedy);
+            slot.acquire(1);
+            slot.update(Collections.singletonList(readReply(200)));
+        }
+
+        assertEquals(2, _cache.getSessions());
+        assertTrue(_cache.getUsedBytes() <= _cache.getMaxBytes());
+        assertEquals("reply of a session within fair share evicted", 1, quiet.acquire(1).size());
+    }
+
+    @Test
+    public void testReleaseAccount() throws SeqMisorderedException {
+        ReplyCache.Account account = _cache.newAccount();
+        SessionSlot slot = new SessionSlot(_cache, account);
+        slot.acquire(1);
+        slot.update(Collections.singletonList(readReply(64)));
+
+        _cache.release(account);
+
+        assertEquals(0, _cache.getEntries());
+        assertEquals(0, _cache.getSessions());
+        assertEquals(0, _cache.getUsedBytes());
+        assertTrue(slot.acquire(1).isEmpty());
+    }
+
+    @Test
+    public void testShrinkEvicts() throws SeqMisorderedException {
+        SessionSlot slot = new SessionSlot(_cache, _cache.newAccount());
+        slot.acquire(1);
+        slot.update(Collections.singletonList(readReply(600)));
+
+        _cache.setMaxBytes(100);
+
+        assertEquals(0, _cache.getEntries());
+        assertTrue(slot.acquire(1).isEmpty());
+    }
+
+    private static nfs_resop4 readReply(int size) {
+        nfs_resop4 resop = nfs_resop4.resopFor(nfs_opnum4.OP_READ);
+        resop.opread.status = nfsstat.NFS_OK;
+        resop.opread.resok4 = new READ4resok();
+        resop.opread.resok4.eof = false;
+        resop.opread.resok4.data = ByteBuffer.allocate(size);
+        return resop;
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2018 Deutsches Elektronen-Synchroton,
+ * Member of the Helmholtz Association, (DESY), HAMBURG, GERMANY
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Library General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public
+ * License along with this program (see the file COPYING.LIB for more
+ * details); if not, write to the Free Software Foundation, Inc.,
+ * 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.dcache.nfs.v4;
+
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+import org.dcache.nfs.ChimeraNFSException;
+import org.dcache.nfs.status.BadSlotException;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.dcache.nfs.v4.NfsTestUtils.createClient;
+
+public class SlotTableControllerTest {
+
+    private SlotTableController _controller;
+    private NFSv41Session _session;
+
+    @Before
+    public void setUp() throws UnknownHostException, ChimeraNFSException {
+        _controller = SlotTableController.builder()
+                .withName("test")
+                .withInitialSlots(4)
+                .withMinSlots(2)
+                .withMaxSlots(16)
+                .withMaxInFlight(1)
+                .withMaxHeapUsage(0)
+                .withAdjustInterval(0, TimeUnit.NANOSECONDS)
+                .build();
+
+        NFS4Client client = createClient();
+        _session = client.createSession(1, _controller.slotsForNewSession(64), 1, 8, 8);
+    }
+
+    @Test
+    public void testNewSessionSize() {
+        assertEquals(4, _controller.slotsForNewSession(64));
+        assertEquals(3, _controller.slotsForNewSession(3));
+        assertEquals(3, _session.getHighestSlot());
+    }
+
+    @Test
+    public void testGrowBusySession() throws ChimeraNFSException {
+        _controller.adjust(_session, 3);
+
+        assertEquals(7, _session.getHighestSlot());
+        assertEquals(7, _session.getTargetHighestSlot());
+        assertNotNull(_session.getSessionSlot(7));
+        assertEquals(1, _controller.getGrows());
+    }
+
+    @Test
+    public void testGrowLimitedByMaxSlots() {
+        for (int i = 0; i < 10; i++) {
+            _controller.adjust(_session, _session.getHighestSlot());
+        }
+        assertEquals(15, _session.getHighestSlot());
+    }
+
+    @Test
+    public void testIdleSessionNotGrown() {
+        _controller.adjust(_session, 1);
+
+        assertEquals(3, _session.getHighestSlot());
+        assertEquals(0, _controller.getGrows());
+    }
+
+    @Test
+    public void testShrinkUnderPressure() throws ChimeraNFSException {
+        SessionSlot slot = _session.getSessionSlot(3);
+
+        _controller.requestStarted();
+        _controller.requestStarted();
+        _controller.adjust(_session, 3);
+
+        assertTrue(_controller.isUnderPressure());
+        assertEquals("target not lowered", 1, _session.getTargetHighestSlot());
+        assertEquals("slot in use removed", 3, _session.getHighestSlot());
+        assertSame(slot, _session.getSessionSlot(3));
+
+        // client stopped using high slots
+        _controller.adjust(_session, 1);
+        assertEquals(1, _session.getHighestSlot());
+        assertEquals(1, _controller.getShrinks());
+    }
+
+    @Test(expected = BadSlotException.class)
+    public void testRemovedSlotNotAccepted() throws ChimeraNFSException {
+        _controller.requestStarted();
+        _controller.requestStarted();
+        _controller.adjust(_session, 1);
+
+        _session.getSessionSlot(3);
+    }
+
+    @Test
+    public void testNoShrinkBelowMinSlots() {
+        _controller.requestStarted();
+        _controller.requestStarted();
+        for (int i = 0; i < 10; i++) {
+            _controller.adjust(_session, 0);
+        }
+        assertEquals(1, _session.getTargetHighestSlot());
+    }
+
+    @Test
+    public void testGrowAfterPressureGone() {
+        _controller.requestStarted();
+        _controller.requestStarted();
+        _controller.adjust(_session, 0);
+        _controller.requestCompleted(0);
+        _controller.requestCompleted(0);
+
+        _controller.adjust(_session, 1);
+
+        assertFalse(_controller.isUnderPressure());
+        assertEquals(3, _session.getTargetHighestSlot());
+    }
+
+    @Test
+    public void testAdjustRateLimited() throws UnknownHostException, ChimeraNFSException {
+        SlotTableController controller = SlotTableController.builder()
+                .withName("test-limited")
+                .withAdjustInterval(1, TimeUnit.HOURS)
+                .build();
+        NFSv41Session session = createClient().createSession(1, 4, 1, 8, 8);
+
+        controller.adjust(session, 3);
+
+        assertEquals(3, session.getHighestSlot());
+    }
+}
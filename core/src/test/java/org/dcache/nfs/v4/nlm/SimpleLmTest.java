@@ -1,6 +1,7 @@
 package org.dcache.nfs.v4.nlm;
 
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.dcache.nfs.v4.StateOwner;
 import org.dcache.nfs.v4.xdr.clientid4;
 import org.dcache.nfs.v4.xdr.nfs4_prot;
@@ -9,6 +10,8 @@ import org.dcache.nfs.v4.xdr.state_owner4;
 import org.junit.Test;
 import org.junit.Before;
 
+import static org.junit.Assert.*;
+
 /**
  *
  */
@@ -319,6 +322,265 @@ public class SimpleLmTest {
         nlm.test(file1, lock3);
     }
 
+    @Test(expected = LockDeniedException.class)
+    public void testConflictWithLongLockAmongManySmall() throws LockException {
+        for (int i = 0; i < 100; i++) {
+            nlm.lock(file1, new LockBuilder()
+                    .withOwner("owner1")
+                    .from(i * 10)
+                    .length(5)
+                    .forWrite()
+                    .build());
+        }
+        nlm.lock(file1, new LockBuilder()
+                .withOwner("owner1")
+                .from(2000)
+                .length(1000)
+                .forWrite()
+                .build());
+
+        NlmLock lock = new LockBuilder()
+                .withOwner("owner2")
+                .from(2999)
+                .length(1)
+                .forWrite()
+                .build();
+        nlm.test(file1, lock);
+    }
+
+    @Test
+    public void testNoConflictBetweenManySmallLocks() throws LockException {
+        for (int i = 0; i < 100; i++) {
+            nlm.lock(file1, new LockBuilder()
+                    .withOwner("owner1")
+                    .from(i * 10)
+                    .length(5)
+                    .forWrite()
+                    .build());
+        }
+        for (int i = 0; i < 100; i++) {
+            nlm.lock(file1, new LockBuilder()
+                    .withOwner("owner2")
+                    .from(i * 10 + 5)
+                    .length(5)
+                    .forWrite()
+                    .build());
+        }
+    }
+
+    @Test(expected = LockDeniedException.class)
+    public void testConflictWithLockUpToTheEnd() throws LockException {
+        nlm.lock(file1, new LockBuilder()
+                .withOwner("owner1")
+                .from(100)
+                .length(nfs4_prot.NFS4_UINT64_MAX)
+                .forWrite()
+                .build());
+
+        NlmLock lock = new LockBuilder()
+                .withOwner("owner2")
+                .from(Long.MAX_VALUE - 1)
+                .length(1)
+                .forWrite()
+                .build();
+        nlm.lock(file1, lock);
+    }
+
+    @Test
+    public void testLockAfterUnlockOfSplitLock() throws LockException {
+        nlm.lock(file1, new LockBuilder()
+                .withOwner("owner1")
+                .from(0)
+                .length(100)
+                .forWrite()
+                .build());
+        nlm.unlock(file1, new LockBuilder()
+                .withOwner("owner1")
+                .from(0)
+                .length(50)
+                .forWrite()
+                .build());
+
+        nlm.lock(file1, new LockBuilder()
+                .withOwner("owner2")
+                .from(0)
+                .length(50)
+                .forWrite()
+                .build());
+    }
+
+    @Test
+    public void testWaiterNotifiedOnUnlock() throws LockException {
+        NlmLock lock1 = new LockBuilder()
+                .withOwner("owner1")
+                .from(0)
+                .length(10)
+                .forWrite()
+                .build();
+        nlm.lock(file1, lock1);
+
+        NlmLock lock2 = new LockBuilder()
+                .withOwner("owner2")
+                .from(5)
+                .length(10)
+                .forWrite()
+                .build();
+        AtomicInteger notified = new AtomicInteger();
+        try {
+            nlm.lockOrWait(file1, lock2, notified::incrementAndGet);
+            fail("lock must be denied");
+        } catch (LockDeniedException e) {
+            // expected
+        }
+        assertEquals(0, notified.get());
+
+        nlm.unlock(file1, lock1);
+        assertEquals(1, notified.get());
+
+        nlm.lock(file1, lock2);
+        assertEquals(0, ((SimpleLm) nlm).getWaitingLocks());
+        assertEquals(1, ((SimpleLm) nlm).getGrantedAfterWait());
+    }
+
+    @Test(expected = LockDeniedException.class)
+    public void testRangeHeldForNotifiedWaiter() throws LockException {
+        NlmLock lock1 = new LockBuilder()
+                .withOwner("owner1")
+                .from(0)
+                .length(10)
+                .forWrite()
+                .build();
+        nlm.lock(file1, lock1);
+
+        NlmLock lock2 = new LockBuilder()
+                .withOwner("owner2")
+                .from(0)
+                .length(10)
+                .forWrite()
+                .build();
+        try {
+            nlm.lockOrWait(file1, lock2, () -> {});
+        } catch (LockDeniedException e) {
+            // expected
+        }
+        nlm.unlock(file1, lock1);
+
+        NlmLock lock3 = new LockBuilder()
+                .withOwner("owner3")
+                .from(0)
+                .length(10)
+                .forWrite()
+                .build();
+        nlm.lock(file1, lock3);
+    }
+
+    @Test
+    public void testWaitersNotifiedInOrder() throws LockException {
+        NlmLock lock1 = new LockBuilder()
+                .withOwner("owner1")
+                .from(0)
+                .length(10)
+                .forWrite()
+                .build();
+        nlm.lock(file1, lock1);
+
+        NlmLock lock2 = new LockBuilder()
+                .withOwner("owner2")
+                .from(0)
+                .length(10)
+                .forWrite()
+                .build();
+        NlmLock lock3 = new LockBuilder()
+                .withOwner("owner3")
+                .from(0)
+                .length(10)
+                .forWrite()
+                .build();
+
+        AtomicInteger notified2 = new AtomicInteger();
+        AtomicInteger notified3 = new AtomicInteger();
+        try {
+            nlm.lockOrWait(file1, lock2, notified2::incrementAndGet);
+        } catch (LockDeniedException e) {
+            // expected
+        }
+        try {
+            nlm.lockOrWait(file1, lock3, notified3::incrementAndGet);
+        } catch (LockDeniedException e) {
+            // expected
+        }
+
+        nlm.unlock(file1, lock1);
+        assertEquals(1, notified2.get());
+        assertEquals(0, notified3.get());
+
+        nlm.lock(file1, lock2);
+        nlm.unlock(file1, lock2);
+        assertEquals(1, notified3.get());
+    }
+
+    @Test
+    public void testCancelWaitReleasesRange() throws LockException {
+        NlmLock lock1 = new LockBuilder()
+                .withOwner("owner1")
+                .from(0)
+                .length(10)
+                .forWrite()
+                .build();
+        nlm.lock(file1, lock1);
+
+        NlmLock lock2 = new LockBuilder()
+                .withOwner("owner2")
+                .from(0)
+                .length(10)
+                .forWrite()
+                .build();
+        try {
+            nlm.lockOrWait(file1, lock2, () -> {});
+        } catch (LockDeniedException e) {
+            // expected
+        }
+        nlm.unlock(file1, lock1);
+        nlm.cancelWait(file1, lock2);
+
+        NlmLock lock3 = new LockBuilder()
+                .withOwner("owner3")
+                .from(0)
+                .length(10)
+                .forWrite()
+                .build();
+        nlm.lock(file1, lock3);
+        assertEquals(0, ((SimpleLm) nlm).getWaitingLocks());
+    }
+
+    @Test
+    public void testIsWaiting() throws LockException {
+        NlmLock lock1 = new LockBuilder()
+                .withOwner("owner1")
+                .from(0)
+                .length(10)
+                .forWrite()
+                .build();
+        nlm.lock(file1, lock1);
+
+        NlmLock lock2 = new LockBuilder()
+                .withOwner("owner2")
+                .from(0)
+                .length(10)
+                .forWrite()
+                .build();
+        assertFalse(nlm.isWaiting(file1, lock2));
+        try {
+            nlm.lockOrWait(file1, lock2, () -> {});
+        } catch (LockDeniedException e) {
+            // expected
+        }
+        assertTrue(nlm.isWaiting(file1, lock2));
+
+        nlm.cancelWait(file1, lock2);
+        assertFalse(nlm.isWaiting(file1, lock2));
+    }
+
     public static class LockBuilder {
 
         private long offset;
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2018 Deutsches Elektronen-Synchroton,
+ * Member of the Helmholtz Association, (DESY), HAMBURG, GERMANY
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Library General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public
+ * License along with this program (see the file COPYING.LIB for more
+ * details); if not, write to the Free Software Foundation, Inc.,
+ * 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.dcache.nfs.vfs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FileChannelsTest {
+
+    private Path file;
+    private FileChannel channel;
+
+    @Before
+    public void setUp() throws IOException {
+        file = Files.createTempFile("nfs4j", ".data");
+        Files.write(file, new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        channel.close();
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void testReadFully() throws IOException {
+        ByteBuffer data = FileChannels.read(channel, 2, 4);
+        assertFalse(data.isDirect());
+        assertEquals(4, data.remaining());
+        assertEquals(3, data.get());
+        assertEquals(6, data.get(3));
+    }
+
+    @Test
+    public void testReadShortAtEndOfFile() throws IOException {
+        ByteBuffer data = FileChannels.read(channel, 6, 1024);
+        assertEquals(2, data.remaining());
+        assertEquals(2, data.capacity());
+        assertEquals(7, data.get());
+        assertEquals(8, data.get());
+    }
+
+    @Test
+    public void testReadAtEndOfFile() throws IOException {
+        ByteBuffer data = FileChannels.read(channel, 8, 1024);
+        assertFalse(data.hasRemaining());
+    }
+
+    @Test
+    public void testReadBeyondEndOfFile() throws IOException {
+        ByteBuffer data = FileChannels.read(channel, 9, 1024);
+        assertFalse(data.hasRemaining());
+    }
+}
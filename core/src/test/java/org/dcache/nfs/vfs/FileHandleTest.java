@@ -103,4 +103,40 @@ public class FileHandleTest {
         assertEquals(1, fh.getType());
         assertEquals(oldIdReg, new String(opaque, ACSII));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testEqualsAndHashCode() {
+        byte[] bytes = BaseEncoding.base16().lowerCase().decode("01caffee00000000ea15b996002e303a494e4f44453a3030303043333732333331373433393234353645423833453434383434453844323844363a30");
+        FileHandle fh1 = new FileHandle(bytes);
+        FileHandle fh2 = new FileHandle.FileHandleBuilder()
+                .setExportIdx("/export/data".hashCode())
+                .build("0:INODE:0000C37233174392456EB83E44844E8D28D6:0".getBytes(ACSII));
+
+        assertEquals(fh1, fh2);
+        assertEquals(fh1.hashCode(), fh2.hashCode());
+        assertEquals(new Inode(fh1), new Inode(bytes));
+        assertEquals(new Inode(fh1).hashCode(), new Inode(bytes).hashCode());
+    }
+
+    @Test
+    public void testNotEqualOnDifferentExport() {
+        FileHandle fh1 = new FileHandle.FileHandleBuilder()
+                .setExportIdx(1)
+                .build("0:INODE:0000C37233174392456EB83E44844E8D28D6:0".getBytes(ACSII));
+        FileHandle fh2 = new FileHandle.FileHandleBuilder()
+                .setExportIdx(2)
+                .build("0:INODE:0000C37233174392456EB83E44844E8D28D6:0".getBytes(ACSII));
+
+        assertNotEquals(fh1, fh2);
+    }
+
+    @Test
+    public void testBytesNotShared() {
+        FileHandle fh = new FileHandle.FileHandleBuilder()
+                .build("0:INODE:0000C37233174392456EB83E44844E8D28D6:0".getBytes(ACSII));
+        String asString = fh.toString();
+
+        fh.bytes()[0] = 0x7f;
+        assertEquals(asString, fh.toString());
+    }
+}
@@ -20,13 +20,18 @@
 package org.dcache.nfs.vfs;
 
 import java.io.IOException;
+import java.io.StringReader;
 import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.stream.Stream;
 import org.dcache.auth.Subjects;
 import org.dcache.nfs.ExportFile;
 import org.dcache.nfs.FsExport;
 import org.dcache.nfs.status.AccessException;
 import org.dcache.nfs.status.PermException;
+import org.dcache.nfs.status.StaleException;
 import org.dcache.oncrpc4j.rpc.RpcAuth;
 import org.dcache.oncrpc4j.rpc.RpcAuthType;
 import org.dcache.oncrpc4j.rpc.RpcCall;
@@ -37,6 +42,9 @@ import org.junit.Test;
 
 import static org.mockito.Mockito.*;
 import static org.mockito.BDDMockito.given;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.dcache.nfs.v4.xdr.nfs4_prot.*;
 
 import org.junit.Before;
 
@@ -222,4 +230,116 @@ public class PseudoFsTest {
         pseudoFs = new PseudoFs(mockedFs, mockedRpc, mockedExportFile);
         pseudoFs.getattr(inode);
     }
+
+    @Test
+    public void testPseudoTreeBuiltOnce() throws IOException {
+
+        ExportFile exportFile = new ExportFile(new StringReader("/data/a *(rw)\n"));
+        givenPseudoTreeBackend();
+
+        for (int i = 0; i < 3; i++) {
+            walkPseudoTree(exportFile);
+        }
+
+        verify(mockedFs, times(1)).lookup(any(Inode.class), eq("data"));
+        verify(mockedFs, times(1)).lookup(any(Inode.class), eq("a"));
+    }
+
+    @Test
+    public void testPseudoTreeRebuiltOnRescan() throws IOException {
+
+        Path exports = Files.createTempFile("exports", null);
+        try {
+            Files.write(exports, "/data/a *(rw)\n".getBytes(StandardCharsets.UTF_8));
+            ExportFile exportFile = new ExportFile(exports.toUri());
+            givenPseudoTreeBackend();
+
+            walkPseudoTree(exportFile);
+            exportFile.rescan();
+            walkPseudoTree(exportFile);
+
+            // unchanged exports keep the tree
+            verify(mockedFs, times(1)).lookup(any(Inode.class), eq("data"));
+
+            Files.write(exports, "/data/a *(rw,no_root_squash)\n".getBytes(StandardCharsets.UTF_8));
+            exportFile.rescan();
+            walkPseudoTree(exportFile);
+
+            verify(mockedFs, times(2)).lookup(any(Inode.class), eq("data"));
+        } finally {
+            Files.delete(exports);
+        }
+    }
+
+    @Test
+    public void testAccessWithSingleGetattr() throws IOException {
+
+        given(mockedTransport.getRemoteSocketAddress()).willReturn(localAddress);
+        given(mockedAuth.getSubject()).willReturn(Subjects.of(1, 1));
+        given(mockedAuth.type()).willReturn(RpcAuthType.UNIX);
+        given(mockedRpc.getTransport()).willReturn(mockedTransport);
+        given(mockedRpc.getCredential()).willReturn(mockedAuth);
+
+        given(mockedExport.ioMode()).willReturn(FsExport.IO.RW);
+        given(mockedExport.isTrusted()).willReturn(false);
+        given(mockedExport.checkAcls()).willReturn(false);
+        given(mockedExport.getSec()).willReturn(FsExport.Sec.SYS);
+
+        given(mockedExportFile.getExport(1, localAddress.getAddress())).willReturn(mockedExport);
+        int mode = ACCESS4_READ | ACCESS4_MODIFY | ACCESS4_EXTEND | ACCESS4_EXECUTE;
+        given(mockedFs.access(inode, mode)).willReturn(mode);
+
+        pseudoFs = new PseudoFs(mockedFs, mockedRpc, mockedExportFile);
+        assertEquals(mode, pseudoFs.access(inode, mode));
+        verify(mockedFs, times(1)).getattr(inode);
+    }
+
+    @Test
+    public void testPseudoTreeRebuiltOnStaleNode() throws IOException {
+
+        ExportFile exportFile = new ExportFile(new StringReader("/data/a *(rw)\n"));
+        givenPseudoTreeBackend();
+        walkPseudoTree(exportFile);
+
+        // exported directory removed and re-created
+        Inode data = pseudoFs.lookup(pseudoFs.getRootInode(), "data");
+        Stat stat = pseudoFs.getattr(data);
+        given(mockedFs.getattr(any(Inode.class)))
+                .willThrow(new StaleException())
+                .willReturn(stat);
+        try {
+            pseudoFs.getattr(data);
+            fail("getattr of removed directory succeeded");
+        } catch (StaleException e) {
+        }
+
+        walkPseudoTree(exportFile);
+
+        verify(mockedFs, times(2)).lookup(any(Inode.class), eq("data"));
+    }
+
+    private void givenPseudoTreeBackend() throws IOException {
+
+        given(mockedTransport.getRemoteSocketAddress()).willReturn(localAddress);
+        given(mockedAuth.getSubject()).willReturn(Subjects.of(1, 1));
+        given(mockedRpc.getTransport()).willReturn(mockedTransport);
+        given(mockedRpc.getCredential()).willReturn(mockedAuth);
+
+        Stat stat = new Stat();
+        stat.setMode(0755 | Stat.S_IFDIR);
+        stat.setUid(0);
+        stat.setGid(0);
+
+        given(mockedFs.getRootInode()).willReturn(Inode.forFile(new byte[]{0}));
+        given(mockedFs.lookup(any(Inode.class), eq("data"))).willReturn(Inode.forFile(new byte[]{1}));
+        given(mockedFs.lookup(any(Inode.class), eq("a"))).willReturn(Inode.forFile(new byte[]{2}));
+        given(mockedFs.getattr(any(Inode.class))).willReturn(stat);
+    }
+
+    private void walkPseudoTree(ExportFile exportFile) throws IOException {
+        pseudoFs = new PseudoFs(mockedFs, mockedRpc, exportFile);
+        Inode root = pseudoFs.getRootInode();
+        Inode data = pseudoFs.lookup(root, "data");
+        pseudoFs.lookup(data, "a");
+    }
 }
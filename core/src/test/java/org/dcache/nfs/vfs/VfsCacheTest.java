@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2018 Deutsches Elektronen-Synchroton,
+ * Member of the Helmholtz Association, (DESY), HAMBURG, GERMANY
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Library General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public
+ * License along with this program (see the file COPYING.LIB for more
+ * details); if not, write to the Free Software Foundation, Inc.,
+ * 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.dcache.nfs.vfs;
+
+import java.io.IOException;
+import javax.security.auth.Subject;
+import org.dcache.nfs.v4.xdr.nfsace4;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.dcache.nfs.v4.xdr.nfs4_prot.ACE4_READ_DATA;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.*;
+
+public class VfsCacheTest {
+
+    private VirtualFileSystem inner;
+    private AclCheckable aclCheckable;
+    private VfsCache vfsCache;
+    private Inode inode;
+    private Subject subject;
+
+    @Before
+    public void setUp() {
+        inner = mock(VirtualFileSystem.class);
+        aclCheckable = mock(AclCheckable.class);
+        given(inner.getAclCheckable()).willReturn(aclCheckable);
+
+        VfsCacheConfig cacheConfig = new VfsCacheConfig();
+        cacheConfig.setMaxEntries(10);
+        cacheConfig.setLifeTime(10);
+        cacheConfig.setAclLifeTime(10);
+        vfsCache = new VfsCache(inner, cacheConfig);
+
+        inode = Inode.forFile(new byte[]{1});
+        subject = new Subject();
+    }
+
+    @Test
+    public void testAclDecisionCached() throws IOException {
+        given(aclCheckable.checkAcl(subject, inode, ACE4_READ_DATA)).willReturn(AclCheckable.Access.ALLOW);
+
+        assertEquals(AclCheckable.Access.ALLOW, vfsCache.getAclCheckable().checkAcl(subject, inode, ACE4_READ_DATA));
+        assertEquals(AclCheckable.Access.ALLOW, vfsCache.getAclCheckable().checkAcl(subject, inode, ACE4_READ_DATA));
+
+        verify(aclCheckable, times(1)).checkAcl(subject, inode, ACE4_READ_DATA);
+    }
+
+    @Test
+    public void testAclDecisionInvalidatedBySetAcl() throws IOException {
+        given(aclCheckable.checkAcl(subject, inode, ACE4_READ_DATA)).willReturn(AclCheckable.Access.ALLOW);
+
+        vfsCache.getAclCheckable().checkAcl(subject, inode, ACE4_READ_DATA);
+        vfsCache.setAcl(inode, new nfsace4[0]);
+        vfsCache.getAclCheckable().checkAcl(subject, inode, ACE4_READ_DATA);
+
+        verify(aclCheckable, times(2)).checkAcl(subject, inode, ACE4_READ_DATA);
+    }
+
+    @Test
+    public void testAclDecisionInvalidatedBySetattr() throws IOException {
+        given(aclCheckable.checkAcl(subject, inode, ACE4_READ_DATA)).willReturn(AclCheckable.Access.ALLOW);
+
+        vfsCache.getAclCheckable().checkAcl(subject, inode, ACE4_READ_DATA);
+        vfsCache.setattr(inode, new Stat());
+        vfsCache.getAclCheckable().checkAcl(subject, inode, ACE4_READ_DATA);
+
+        verify(aclCheckable, times(2)).checkAcl(subject, inode, ACE4_READ_DATA);
+    }
+
+    @Test
+    public void testAclCacheDisabled() throws IOException {
+        vfsCache = new VfsCache(inner, new VfsCacheConfig());
+        vfsCache.getAclCheckable().checkAcl(subject, inode, ACE4_READ_DATA);
+        vfsCache.getAclCheckable().checkAcl(subject, inode, ACE4_READ_DATA);
+
+        verify(aclCheckable, times(2)).checkAcl(subject, inode, ACE4_READ_DATA);
+    }
+}
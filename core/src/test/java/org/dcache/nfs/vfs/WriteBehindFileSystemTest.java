@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2018 Deutsches Elektronen-Synchroton,
+ * Member of the Helmholtz Association, (DESY), HAMBURG, GERMANY
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Library General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public
+ * License along with this program (see the file COPYING.LIB for more
+ * details); if not, write to the Free Software Foundation, Inc.,
+ * 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.dcache.nfs.vfs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.dcache.nfs.vfs.VirtualFileSystem.StabilityLevel;
+import org.dcache.nfs.vfs.VirtualFileSystem.WriteResult;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class WriteBehindFileSystemTest {
+
+    private MemoryFile inner;
+    private WriteBehindFileSystem fs;
+    private Inode inode;
+
+    @Before
+    public void setUp() {
+        inner = new MemoryFile();
+        fs = new WriteBehindFileSystem(inner, 1024, 1, TimeUnit.HOURS);
+        inode = Inode.forFile(new byte[]{1, 2, 3});
+    }
+
+    @After
+    public void tearDown() {
+        fs.close();
+    }
+
+    @Test
+    public void testUnstableWriteBuffered() throws IOException {
+        WriteResult result = fs.write(inode, bytes(1, 2, 3, 4), 0, 4, StabilityLevel.UNSTABLE);
+
+        assertEquals(StabilityLevel.UNSTABLE, result.getStabilityLevel());
+        assertEquals(4, result.getBytesWritten());
+        assertEquals(0, inner.writes);
+        assertEquals(4, fs.getBufferedBytes());
+    }
+
+    @Test
+    public void testGetattrReflectsBufferedData() throws IOException {
+        fs.write(inode, bytes(1, 2, 3, 4), 8, 4, StabilityLevel.UNSTABLE);
+        assertEquals(12, fs.getattr(inode).getSize());
+    }
+
+    @Test
+    public void testCommitFlushesCoalescedData() throws IOException {
+        fs.write(inode, bytes(1, 2), 0, 2, StabilityLevel.UNSTABLE);
+        fs.write(inode, bytes(3, 4), 2, 2, StabilityLevel.UNSTABLE);
+        fs.commit(inode, 0, 0);
+
+        assertEquals(1, inner.writes);
+        assertEquals(1, inner.commits);
+        assertEquals(0, fs.getBufferedBytes());
+        assertArrayEquals(bytes(1, 2, 3, 4), inner.content());
+    }
+
+    @Test
+    public void testOverlappingWriteReplacesData() throws IOException {
+        fs.write(inode, bytes(1, 1, 1, 1, 1, 1), 0, 6, StabilityLevel.UNSTABLE);
+        fs.write(inode, bytes(2, 2), 2, 2, StabilityLevel.UNSTABLE);
+        fs.write(inode, bytes(3, 3, 3), 5, 3, StabilityLevel.UNSTABLE);
+        assertEquals(8, fs.getBufferedBytes());
+
+        fs.commit(inode, 0, 0);
+        assertArrayEquals(bytes(1, 1, 2, 2, 1, 3, 3, 3), inner.content());
+    }
+
+    @Test
+    public void testStableWriteAfterBufferedData() throws IOException {
+        fs.write(inode, bytes(1, 1, 1, 1), 0, 4, StabilityLevel.UNSTABLE);
+        WriteResult result = fs.write(inode, bytes(2, 2), 1, 2, StabilityLevel.FILE_SYNC);
+
+        assertEquals(StabilityLevel.FILE_SYNC, result.getStabilityLevel());
+        assertEquals(0, fs.getBufferedBytes());
+        assertArrayEquals(bytes(1, 2, 2, 1), inner.content());
+    }
+
+    @Test
+    public void testReadFlushesBufferedData() throws IOException {
+        fs.write(inode, bytes(1, 2, 3, 4), 0, 4, StabilityLevel.UNSTABLE);
+
+        byte[] data = new byte[4];
+        assertEquals(4, fs.read(inode, data, 0, 4));
+        assertArrayEquals(bytes(1, 2, 3, 4), data);
+    }
+
+    @Test
+    public void testFlushOnMemoryPressure() throws IOException {
+        fs.write(inode, new byte[1000], 0, 1000, StabilityLevel.UNSTABLE);
+        assertEquals(0, inner.writes);
+
+        fs.write(inode, new byte[100], 1000, 100, StabilityLevel.UNSTABLE);
+        assertEquals(1, inner.writes);
+        assertEquals(0, fs.getBufferedBytes());
+    }
+
+    @Test
+    public void testFailedFlushAdvancesEpoch() throws IOException {
+        long epoch = fs.getWriteEpoch();
+        fs.write(inode, bytes(1, 2, 3, 4), 0, 4, StabilityLevel.UNSTABLE);
+
+        inner.fail = true;
+        try {
+            fs.commit(inode, 0, 0);
+            fail("IOException expected");
+        } catch (IOException e) {
+            // expected
+        }
+
+        assertNotEquals(epoch, fs.getWriteEpoch());
+        assertEquals(0, fs.getBufferedBytes());
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] b = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            b[i] = (byte) values[i];
+        }
+        return b;
+    }
+
+    /**
+     * A file system with a single in-memory file.
+     */
+    private static class MemoryFile extends ForwardingFileSystem {
+
+        private byte[] data = new byte[0];
+        private int writes;
+        private int commits;
+        private boolean fail;
+
+        @Override
+        protected VirtualFileSystem delegate() {
+            throw new UnsupportedOperationException();
+        }
+
+        byte[] content() {
+            return data;
+        }
+
+        @Override
+        public WriteResult write(Inode inode, ByteBuffer buf, long offset, StabilityLevel stabilityLevel) throws IOException {
+            byte[] b = new byte[buf.remaining()];
+            buf.get(b);
+            return write(inode, b, offset, b.length, stabilityLevel);
+        }
+
+        @Override
+        public WriteResult write(Inode inode, byte[] b, long offset, int count, StabilityLevel stabilityLevel) throws IOException {
+            if (fail) {
+                throw new IOException("injected failure");
+            }
+            writes++;
+            if (offset + count > data.length) {
+                data = Arrays.copyOf(data, (int) offset + count);
+            }
+            System.arraycopy(b, 0, data, (int) offset, count);
+            return new WriteResult(stabilityLevel, count);
+        }
+
+        @Override
+        public int read(Inode inode, byte[] b, long offset, int count) throws IOException {
+            int n = (int) Math.min(count, data.length - offset);
+            System.arraycopy(data, (int) offset, b, 0, n);
+            return n;
+        }
+
+        @Override
+        public void commit(Inode inode, long offset, int count) throws IOException {
+            commits++;
+        }
+
+        @Override
+        public Stat getattr(Inode inode) throws IOException {
+            Stat stat = new Stat();
+            stat.setSize(data.length);
+            return stat;
+        }
+
+        @Override
+        public long getWriteEpoch() {
+            return 0;
+        }
+    }
+}
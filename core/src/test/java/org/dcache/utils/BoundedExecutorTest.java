@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2018 Deutsches Elektronen-Synchroton,
+ * Member of the Helmholtz Association, (DESY), HAMBURG, GERMANY
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Library General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public
+ * License along with this program (see the file COPYING.LIB for more
+ * details); if not, write to the Free Software Foundation, Inc.,
+ * 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.dcache.utils;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BoundedExecutorTest {
+
+    private ExecutorService _inner;
+    private BoundedExecutor _executor;
+
+    @Before
+    public void setUp() {
+        _inner = Executors.newCachedThreadPool();
+        _executor = new BoundedExecutor(_inner, 2);
+    }
+
+    @After
+    public void tearDown() {
+        _inner.shutdownNow();
+    }
+
+    @Test
+    public void testBlockWhenLimitReached() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        _executor.execute(() -> await(release));
+        _executor.execute(() -> await(release));
+        assertEquals(2, _executor.getInFlight());
+
+        AtomicBoolean submitted = new AtomicBoolean();
+        Thread submitter = new Thread(() -> {
+            _executor.execute(() -> {});
+            submitted.set(true);
+        });
+        submitter.start();
+        submitter.join(200);
+        assertFalse("task submitted above the limit", submitted.get());
+
+        release.countDown();
+        submitter.join(5000);
+        assertTrue(submitted.get());
+    }
+
+    @Test
+    public void testPermitReleasedOnFailure() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        _executor.execute(() -> {
+            done.countDown();
+            throw new RuntimeException("task failure");
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        // the permit is released after the task has finished
+        for (int i = 0; i < 50 && _executor.getInFlight() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, _executor.getInFlight());
+    }
+
+    @Test
+    public void testPermitReleasedOnReject() {
+        _inner.shutdown();
+        try {
+            _executor.execute(() -> {});
+            fail("task accepted by terminated executor");
+        } catch (RejectedExecutionException e) {
+            assertEquals(0, _executor.getInFlight());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidLimit() {
+        new BoundedExecutor(_inner, 0);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -100,6 +100,27 @@ public class CacheTest {
         assertNull("Object not expired", value);
     }
 
+    @Test
+    public void testExpiredByCleanup() throws Exception {
+        _cache.put("key1", "value1");
+        _cache.put("key2", "value2");
+        _clock.advance(6, TimeUnit.SECONDS);
+        _cache.run();
+        assertEquals(0, _cache.size());
+    }
+
+    @Test
+    public void testCleanupKeepsAccessed() throws Exception {
+        _cache.put("key1", "value1", Long.MAX_VALUE, TimeUnit.SECONDS.toMillis(5));
+        _cache.put("key2", "value2", Long.MAX_VALUE, TimeUnit.SECONDS.toMillis(5));
+        _clock.advance(4, TimeUnit.SECONDS);
+        _cache.get("key2");
+        _clock.advance(2, TimeUnit.SECONDS);
+        _cache.run();
+        assertEquals(1, _cache.size());
+        assertNotNull(_cache.get("key2"));
+    }
+
     @Test
     public void testBigLifeTime() {
          _cache.put("key1", "value1", Long.MAX_VALUE, TimeUnit.SECONDS.toMillis(180));
@@ -112,7 +133,7 @@ public class CacheTest {
 
         @Override
         public Instant instant() {
-            return Instant.ofEpochSecond(currentTime.get());
+            return Instant.ofEpochMilli(currentTime.get());
         }
 
         void advance(long time, TimeUnit unit) {
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2018 Deutsches Elektronen-Synchroton,
+ * Member of the Helmholtz Association, (DESY), HAMBURG, GERMANY
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Library General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public
+ * License along with this program (see the file COPYING.LIB for more
+ * details); if not, write to the Free Software Foundation, Inc.,
+ * 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.dcache.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TimerWheelTest {
+
+    private TimerWheel<String> _wheel;
+    private List<String> _expired;
+
+    @Before
+    public void setUp() {
+        _wheel = new TimerWheel<>(10, TimeUnit.MILLISECONDS, 0);
+        _expired = new ArrayList<>();
+    }
+
+    @Test
+    public void testNotExpiredBeforeDeadline() {
+        _wheel.schedule("a", 100);
+        _wheel.advance(99, t -> _expired.add(t.value()));
+        assertTrue(_expired.isEmpty());
+        assertEquals(1, _wheel.size());
+    }
+
+    @Test
+    public void testExpiredAtDeadline() {
+        _wheel.schedule("a", 100);
+        _wheel.advance(100, t -> _expired.add(t.value()));
+        assertEquals(1, _expired.size());
+        assertEquals(0, _wheel.size());
+    }
+
+    @Test
+    public void testExpiredAfterCascade() {
+        _wheel.schedule("a", TimeUnit.HOURS.toMillis(1));
+        _wheel.advance(TimeUnit.HOURS.toMillis(1) - 1, t -> _expired.add(t.value()));
+        assertTrue(_expired.isEmpty());
+        _wheel.advance(TimeUnit.HOURS.toMillis(1), t -> _expired.add(t.value()));
+        assertEquals(1, _expired.size());
+    }
+
+    @Test
+    public void testAlreadyDue() {
+        _wheel.advance(1000, t -> _expired.add(t.value()));
+        _wheel.schedule("a", 500);
+        _wheel.advance(1010, t -> _expired.add(t.value()));
+        assertEquals(1, _expired.size());
+    }
+
+    @Test
+    public void testReschedule() {
+        TimerWheel.Timeout<String> timeout = _wheel.schedule("a", 100);
+        _wheel.reschedule(timeout, 5000);
+        _wheel.advance(200, t -> _expired.add(t.value()));
+        assertTrue(_expired.isEmpty());
+        _wheel.advance(5000, t -> _expired.add(t.value()));
+        assertEquals(1, _expired.size());
+    }
+
+    @Test
+    public void testCancel() {
+        TimerWheel.Timeout<String> timeout = _wheel.schedule("a", 100);
+        assertTrue(_wheel.cancel(timeout));
+        assertFalse(_wheel.cancel(timeout));
+        _wheel.advance(200, t -> _expired.add(t.value()));
+        assertTrue(_expired.isEmpty());
+        assertEquals(0, _wheel.size());
+    }
+
+    @Test
+    public void testFarFuture() {
+        _wheel.schedule("a", Long.MAX_VALUE);
+        _wheel.advance(TimeUnit.DAYS.toMillis(1), t -> _expired.add(t.value()));
+        assertTrue(_expired.isEmpty());
+        assertEquals(1, _wheel.size());
+    }
+
+    @Test
+    public void testExpiryOrderRandomized() {
+        Random random = new Random(1);
+        long[] deadlines = new long[10000];
+        for (int i = 0; i < deadlines.length; i++) {
+            deadlines[i] = random.nextInt(1000000);
+            _wheel.schedule(Integer.toString(i), deadlines[i]);
+        }
+
+        for (long now = 0; now <= 1000000; now += 777) {
+            long time = now;
+            _wheel.advance(time, t -> {
+                assertTrue("expired too early", t.deadline() <= time);
+                assertTrue("expired too late", t.deadline() > time - 777 - 10);
+                _expired.add(t.value());
+            });
+        }
+        _wheel.advance(1000000, t -> _expired.add(t.value()));
+        assertEquals(deadlines.length, _expired.size());
+    }
+}
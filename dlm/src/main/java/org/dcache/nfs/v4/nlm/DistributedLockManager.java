@@ -20,17 +20,36 @@
 package org.dcache.nfs.v4.nlm;
 
 import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.Striped;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.hazelcast.core.ExecutionCallback;
 import com.hazelcast.core.HazelcastInstance;
-import com.hazelcast.core.MultiMap;
+import com.hazelcast.core.ICompletableFuture;
+import com.hazelcast.core.IMap;
+import com.hazelcast.map.AbstractEntryProcessor;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 
 /**
  * An implementation of {@link LockManager} which uses Hazelcast's distributed
- * {@link MultiMap} to store locks.
+ * {@link IMap} to store locks.
  *
  * <p>
  * Example:
@@ -44,11 +63,78 @@ import java.util.concurrent.locks.Lock;
  * The {@code lm1} and {@code lm2} will share the same set of locks as long as they
  * connected to the same Hazelcast cluster.
  *
+ * <p>
+ * All locks of a file are kept as a single map entry. Lock and unlock requests
+ * are applied to the entry by entry processors on the member, which owns the
+ * entry, thus an uncontended request costs a single round trip. As entry
+ * processors are executed by cluster members, nfs4j classes must be available
+ * on members' class path. A lock test only reads the entry and can be served
+ * by a near cache, if one is configured for the map.
+ *
+ * <p>
+ * In owner-affinity mode, see
+ * {@link #DistributedLockManager(HazelcastInstance, String, long, TimeUnit)},
+ * an instance takes a short lease on a file and, while it holds the lease,
+ * serves all requests for that file from a local copy of the file's locks.
+ * The changes are replicated to the cluster asynchronously. Other instances
+ * wait until the lease is released. This mode pays off when a file is
+ * accessed mostly through a single server.
+ *
  * @since 0.16
  */
 public class DistributedLockManager extends AbstractLockManager {
 
-    private final MultiMap<String, NlmLock> locks;
+    private static final Logger LOGGER = LoggerFactory.getLogger(DistributedLockManager.class);
+
+    /**
+     * Time in milliseconds to wait before re-trying to acquire a lease held
+     * by other instance.
+     */
+    private static final long LEASE_RETRY_DELAY = 5;
+
+    /**
+     * Time in milliseconds to wait before re-trying a failed replication.
+     */
+    private static final long REPLICATION_RETRY_DELAY = 100;
+
+    /**
+     * Locks by file.
+     */
+    private final IMap<String, List<NlmLock>> locks;
+
+    /*
+     * Use {@link Striped} locks to make operations on different files
+     * independent from each other. Requests of other instances are
+     * serialized by the entry processors or leases.
+     */
+    private final Striped<Lock> objLock = Striped.lock(Runtime.getRuntime().availableProcessors() * 4);
+
+    /**
+     * Number of synchronous requests sent to the cluster.
+     */
+    private final LongAdder roundTrips = new LongAdder();
+
+    /**
+     * Lease holders by file, only used in owner-affinity mode.
+     */
+    private final IMap<String, String> leases;
+
+    /**
+     * Files leased by this instance.
+     */
+    private final ConcurrentMap<String, LeasedLocks> leased = new ConcurrentHashMap<>();
+
+    /**
+     * Lease time in milliseconds, or zero, if owner-affinity mode is not used.
+     */
+    private final long leaseTime;
+
+    /**
+     * Identifies this instance as a lease holder.
+     */
+    private final String leaseOwner = UUID.randomUUID().toString();
+
+    private final ScheduledExecutorService leaseReleaser;
 
     /**
      * Create a new {@code DistributedLockManager} with a given {@code name}.
@@ -59,36 +145,114 @@ public class DistributedLockManager extends AbstractLockManager {
      * @param name name of the lock manager.
      */
     public DistributedLockManager(HazelcastInstance hz, String name) {
-        locks = hz.getMultiMap(name);
+        locks = hz.getMap(name);
+        leases = null;
+        leaseTime = 0;
+        leaseReleaser = null;
+    }
+
+    /**
+     * Create a new {@code DistributedLockManager} with a given {@code name},
+     * which runs in owner-affinity mode. The lease on a file is released after
+     * {@code leaseTime}, which limits the time other instances have to wait
+     * for it.
+     *
+     * @param hz reference to Haselcast instance.
+     * @param name name of the lock manager.
+     * @param leaseTime time for which a file is leased.
+     * @param unit time unit of {@code leaseTime}.
+     * @since 0.18
+     */
+    public DistributedLockManager(HazelcastInstance hz, String name, long leaseTime, TimeUnit unit) {
+        if (leaseTime <= 0) {
+            throw new IllegalArgumentException("lease time must be positive: " + leaseTime);
+        }
+        locks = hz.getMap(name);
+        leases = hz.getMap(name + "-leases");
+        this.leaseTime = unit.toMillis(leaseTime);
+        leaseReleaser = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder()
+                        .setNameFormat("dlm-lease-" + name + "-%d")
+                        .setDaemon(true)
+                        .build());
     }
 
     @Override
     protected Lock getObjectLock(byte[] objId) {
-        String key = BaseEncoding.base16().upperCase().encode(objId);
+        String key = objIdToKey(objId);
+        Lock lock = objLock.get(key);
+        if (leaseTime == 0) {
+            return lock;
+        }
+
         return new Lock() {
             @Override
             public void lock() {
-                locks.lock(key);
+                while (true) {
+                    LeasedLocks lease = acquireLease(key);
+                    lock.lock();
+                    if (leased.get(key) == lease && !lease.isExpired()) {
+                        return;
+                    }
+                    lock.unlock();
+                }
             }
 
             @Override
             public void lockInterruptibly() throws InterruptedException {
-                locks.tryLock(key, Long.MAX_VALUE, TimeUnit.DAYS);
+                while (true) {
+                    LeasedLocks lease = tryAcquireLease(key);
+                    if (lease == null) {
+                        TimeUnit.MILLISECONDS.sleep(LEASE_RETRY_DELAY);
+                        continue;
+                    }
+                    lock.lockInterruptibly();
+                    if (leased.get(key) == lease && !lease.isExpired()) {
+                        return;
+                    }
+                    lock.unlock();
+                }
             }
 
             @Override
             public boolean tryLock() {
-                return locks.tryLock(key);
+                LeasedLocks lease = tryAcquireLease(key);
+                if (lease == null || !lock.tryLock()) {
+                    return false;
+                }
+                if (leased.get(key) == lease && !lease.isExpired()) {
+                    return true;
+                }
+                lock.unlock();
+                return false;
             }
 
             @Override
             public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
-                return locks.tryLock(key, time, unit);
+                long deadline = System.nanoTime() + unit.toNanos(time);
+                while (true) {
+                    LeasedLocks lease = tryAcquireLease(key);
+                    long remaining = deadline - System.nanoTime();
+                    if (lease != null) {
+                        if (!lock.tryLock(remaining, TimeUnit.NANOSECONDS)) {
+                            return false;
+                        }
+                        if (leased.get(key) == lease && !lease.isExpired()) {
+                            return true;
+                        }
+                        lock.unlock();
+                        remaining = deadline - System.nanoTime();
+                    }
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    TimeUnit.NANOSECONDS.sleep(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(LEASE_RETRY_DELAY)));
+                }
             }
 
             @Override
             public void unlock() {
-                locks.unlock(key);
+                lock.unlock();
             }
 
             @Override
@@ -106,35 +270,372 @@ public class DistributedLockManager extends AbstractLockManager {
     @Override
     protected Collection<NlmLock> getActiveLocks(byte[] objId) {
         String key = objIdToKey(objId);
-        return locks.get(key);
+        if (leaseTime != 0) {
+            return Collections.unmodifiableList(leased.get(key).locks);
+        }
+        roundTrips.increment();
+        List<NlmLock> activeLocks = locks.get(key);
+        return activeLocks == null ? Collections.emptyList() : activeLocks;
+    }
+
+    @Override
+    protected void doLock(byte[] objId, NlmLock lock) throws LockDeniedException {
+        NlmLock conflictingLock = (NlmLock) apply(objId, new LockProcessor(lock));
+        if (conflictingLock != null) {
+            throw new LockDeniedException("object locked", conflictingLock);
+        }
+    }
+
+    @Override
+    protected void doUnlock(byte[] objId, NlmLock lock) throws LockException {
+        if (!(Boolean) apply(objId, new UnlockProcessor(lock))) {
+            throw new LockRangeUnavailabeException("no matching lock");
+        }
     }
 
     @Override
     protected void add(byte[] objId, NlmLock lock) {
-        String key = objIdToKey(objId);
-        locks.put(key, lock);
+        addAll(objId, Collections.singletonList(lock));
     }
 
     @Override
     protected boolean remove(byte[] objId, NlmLock lock) {
-        String key = objIdToKey(objId);
-        return locks.remove(key, lock);
+        return (Boolean) apply(objId, new RemoveProcessor(Collections.singletonList(lock)));
     }
 
     @Override
     protected void addAll(byte[] objId, Collection<NlmLock> locks) {
-        String key = objIdToKey(objId);
-        locks.forEach(l -> this.locks.put(key, l));
+        apply(objId, new AddProcessor(locks));
     }
 
     @Override
     protected void removeAll(byte[] objId, Collection<NlmLock> locks) {
+        apply(objId, new RemoveProcessor(locks));
+    }
+
+    /**
+     * Get the number of synchronous requests this lock manager has sent to
+     * the cluster. In owner-affinity mode, asynchronous replication of
+     * changes is not counted.
+     *
+     * @return number of round trips.
+     * @since 0.18
+     */
+    public long getRoundTrips() {
+        return roundTrips.sum();
+    }
+
+    /**
+     * Release all leases held by this lock manager and stop lease handling.
+     * Has no effect, if owner-affinity mode is not used.
+     *
+     * @since 0.18
+     */
+    public void shutdown() {
+        if (leaseReleaser == null) {
+            return;
+        }
+        leaseReleaser.shutdownNow();
+        leased.values().forEach(this::release);
+    }
+
+    /**
+     * Apply a processor to the file's locks, either locally, if the file is
+     * leased, or on the member, which owns the file's entry.
+     */
+    private Object apply(byte[] objId, LocksProcessor processor) {
         String key = objIdToKey(objId);
-        locks.forEach(l -> this.locks.remove(key, l));
+        if (leaseTime == 0) {
+            roundTrips.increment();
+            return locks.executeOnKey(key, processor);
+        }
+
+        LeasedLocks lease = leased.get(key);
+        Object result = processor.apply(lease.locks);
+        if (processor.isModified()) {
+            lease.replicate(new ArrayList<>(lease.locks));
+        }
+        return result;
+    }
+
+    /**
+     * Get a valid lease on a file, waiting for other instances to release
+     * their lease, if required.
+     */
+    private LeasedLocks acquireLease(String key) {
+        while (true) {
+            LeasedLocks lease = tryAcquireLease(key);
+            if (lease != null) {
+                return lease;
+            }
+            Uninterruptibles.sleepUninterruptibly(LEASE_RETRY_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Get a valid lease on a file without waiting.
+     *
+     * @return the lease or null, if the lease is held by other instance, or
+     * our own lease is being released.
+     */
+    private LeasedLocks tryAcquireLease(String key) {
+        LeasedLocks lease = leased.get(key);
+        if (lease != null) {
+            return lease.isExpired() ? null : lease;
+        }
+
+        long now = System.currentTimeMillis();
+        roundTrips.increment();
+        // the TTL cleans up the leases of crashed instances
+        String owner = leases.putIfAbsent(key, leaseOwner, 3 * leaseTime, TimeUnit.MILLISECONDS);
+        if (owner != null) {
+            return null;
+        }
+
+        roundTrips.increment();
+        List<NlmLock> currentLocks = locks.get(key);
+        lease = new LeasedLocks(key,
+                currentLocks == null ? new ArrayList<>() : new ArrayList<>(currentLocks),
+                now + leaseTime);
+        leased.put(key, lease);
+        leaseReleaser.schedule(this::releaseExpired, leaseTime, TimeUnit.MILLISECONDS);
+        return lease;
+    }
+
+    private void releaseExpired() {
+        leased.values().stream()
+                .filter(LeasedLocks::isExpired)
+                .forEach(this::release);
+    }
+
+    /**
+     * Stop using a lease, wait until all changes are replicated and let other
+     * instances acquire the lease. As failed replications are re-tried, the
+     * lease is kept until the cluster has the latest locks of the file.
+     */
+    private void release(LeasedLocks lease) {
+        Lock lock = objLock.get(lease.key);
+        lock.lock();
+        try {
+            if (!leased.remove(lease.key, lease)) {
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        lease.awaitReplication();
+        leases.remove(lease.key, leaseOwner);
     }
 
     private static String objIdToKey(byte[] objId) {
         return BaseEncoding.base64().omitPadding().encode(objId);
     }
 
+    /**
+     * Locks of a file leased by this instance. Changes are replicated one at
+     * a time. If the locks are modified while a replication is in progress,
+     * only the latest state is replicated afterwards. A failed replication is
+     * re-tried, unless a newer state is pending.
+     */
+    private class LeasedLocks {
+
+        private final String key;
+        private final List<NlmLock> locks;
+        private final long expiresAt;
+
+        /**
+         * Latest state, which is not replicated yet. Guarded by this.
+         */
+        private List<NlmLock> pending;
+
+        /**
+         * Whether a replication is in progress. Guarded by this.
+         */
+        private boolean inFlight;
+
+        LeasedLocks(String key, List<NlmLock> locks, long expiresAt) {
+            this.key = key;
+            this.locks = locks;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() >= expiresAt;
+        }
+
+        synchronized void replicate(List<NlmLock> snapshot) {
+            pending = snapshot;
+            if (!inFlight) {
+                sendPending();
+            }
+        }
+
+        synchronized void awaitReplication() {
+            boolean interrupted = false;
+            while (inFlight) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void sendPending() {
+            List<NlmLock> snapshot = pending;
+            pending = null;
+            inFlight = true;
+            if (snapshot.isEmpty()) {
+                onReplicated(DistributedLockManager.this.locks.removeAsync(key), snapshot);
+            } else {
+                onReplicated(DistributedLockManager.this.locks.setAsync(key, snapshot), snapshot);
+            }
+        }
+
+        private <T> void onReplicated(ICompletableFuture<T> future, List<NlmLock> snapshot) {
+            future.andThen(new ExecutionCallback<T>() {
+                @Override
+                public void onResponse(T response) {
+                    next();
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    LOGGER.warn("Failed to replicate locks of {}, will retry: {}", key, t.getMessage());
+                    retry(snapshot);
+                }
+            });
+        }
+
+        private synchronized void retry(List<NlmLock> snapshot) {
+            if (pending == null) {
+                pending = snapshot;
+            }
+            try {
+                leaseReleaser.schedule(this::next, REPLICATION_RETRY_DELAY, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // shutting down
+                LOGGER.error("Failed to replicate locks of {}", key);
+                pending = null;
+                inFlight = false;
+                notifyAll();
+            }
+        }
+
+        private synchronized void next() {
+            if (pending != null) {
+                sendPending();
+            } else {
+                inFlight = false;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Base class of entry processors, which update locks of a file. A
+     * processor can be applied to a map entry on a cluster member or to
+     * a local list of locks.
+     */
+    private static abstract class LocksProcessor extends AbstractEntryProcessor<String, List<NlmLock>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private transient boolean modified;
+
+        /**
+         * Apply the processor to all locks of a file.
+         *
+         * @param locks locks of the file, updated in place.
+         * @return result returned to the caller.
+         */
+        Object apply(List<NlmLock> locks) {
+            List<NlmLock> before = new ArrayList<>(locks);
+            Object result = update(locks);
+            modified = !locks.equals(before);
+            return result;
+        }
+
+        abstract Object update(List<NlmLock> locks);
+
+        boolean isModified() {
+            return modified;
+        }
+
+        @Override
+        public Object process(Map.Entry<String, List<NlmLock>> entry) {
+            List<NlmLock> current = entry.getValue();
+            List<NlmLock> fileLocks = current == null ? new ArrayList<>() : new ArrayList<>(current);
+            Object result = apply(fileLocks);
+            if (modified) {
+                // a null value removes the entry
+                entry.setValue(fileLocks.isEmpty() ? null : fileLocks);
+            }
+            return result;
+        }
+    }
+
+    private static class LockProcessor extends LocksProcessor {
+
+        private static final long serialVersionUID = 1L;
+        private final NlmLock lock;
+
+        LockProcessor(NlmLock lock) {
+            this.lock = lock;
+        }
+
+        @Override
+        Object update(List<NlmLock> locks) {
+            return LockRanges.lock(locks, lock);
+        }
+    }
+
+    private static class UnlockProcessor extends LocksProcessor {
+
+        private static final long serialVersionUID = 1L;
+        private final NlmLock lock;
+
+        UnlockProcessor(NlmLock lock) {
+            this.lock = lock;
+        }
+
+        @Override
+        Object update(List<NlmLock> locks) {
+            return LockRanges.unlock(locks, lock);
+        }
+    }
+
+    private static class AddProcessor extends LocksProcessor {
+
+        private static final long serialVersionUID = 1L;
+        private final ArrayList<NlmLock> toAdd;
+
+        AddProcessor(Collection<NlmLock> toAdd) {
+            this.toAdd = new ArrayList<>(toAdd);
+        }
+
+        @Override
+        Object update(List<NlmLock> locks) {
+            locks.addAll(toAdd);
+            return null;
+        }
+    }
+
+    private static class RemoveProcessor extends LocksProcessor {
+
+        private static final long serialVersionUID = 1L;
+        private final ArrayList<NlmLock> toRemove;
+
+        RemoveProcessor(Collection<NlmLock> toRemove) {
+            this.toRemove = new ArrayList<>(toRemove);
+        }
+
+        @Override
+        Object update(List<NlmLock> locks) {
+            return locks.removeAll(toRemove);
+        }
+    }
 }
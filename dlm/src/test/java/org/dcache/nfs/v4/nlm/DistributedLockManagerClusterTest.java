@@ -0,0 +1,162 @@
+package org.dcache.nfs.v4.nlm;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.config.JoinConfig;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs lock managers on two embedded cluster members and counts the round
+ * trips each operation takes.
+ */
+public class DistributedLockManagerClusterTest {
+
+    private HazelcastInstance hz1;
+    private HazelcastInstance hz2;
+    private DistributedLockManager lm1;
+    private DistributedLockManager lm2;
+    private byte[] file1;
+
+    @Before
+    public void setUp() throws Exception {
+
+        file1 = "file1".getBytes(StandardCharsets.UTF_8);
+
+        String cluster = UUID.randomUUID().toString();
+        hz1 = Hazelcast.newHazelcastInstance(memberConfig(cluster));
+        hz2 = Hazelcast.newHazelcastInstance(memberConfig(cluster));
+    }
+
+    @Test
+    public void testUncontendedLockSingleRoundTrip() throws LockException {
+        givenLockManagers();
+
+        long before = lm1.getRoundTrips();
+        lm1.lock(file1, lock("owner1", 0, 1, false));
+        assertEquals(1, lm1.getRoundTrips() - before);
+    }
+
+    @Test
+    public void testUnlockSingleRoundTrip() throws LockException {
+        givenLockManagers();
+        lm1.lock(file1, lock("owner1", 0, 10, false));
+
+        long before = lm1.getRoundTrips();
+        lm1.unlock(file1, lock("owner1", 0, 10, false));
+        assertEquals(1, lm1.getRoundTrips() - before);
+    }
+
+    @Test
+    public void testSplitSingleRoundTrip() throws LockException {
+        givenLockManagers();
+        lm1.lock(file1, lock("owner1", 0, 10, false));
+
+        long before = lm1.getRoundTrips();
+        lm1.unlock(file1, lock("owner1", 3, 2, false));
+        assertEquals(1, lm1.getRoundTrips() - before);
+
+        lm2.test(file1, lock("owner2", 3, 2, true));
+    }
+
+    @Test
+    public void testTestSingleRoundTrip() throws LockException {
+        givenLockManagers();
+        lm1.lock(file1, lock("owner1", 0, 10, false));
+
+        long before = lm2.getRoundTrips();
+        lm2.test(file1, lock("owner2", 20, 10, true));
+        assertEquals(1, lm2.getRoundTrips() - before);
+    }
+
+    @Test(expected = LockDeniedException.class)
+    public void testConflictOnOtherMember() throws LockException {
+        givenLockManagers();
+        lm1.lock(file1, lock("owner1", 0, 1, false));
+        lm2.lock(file1, lock("owner2", 0, 1, true));
+    }
+
+    @Test
+    public void testAffinityServesLockedFileLocally() throws LockException {
+        givenAffinityLockManagers(1, TimeUnit.MINUTES);
+
+        long before = lm1.getRoundTrips();
+        lm1.lock(file1, lock("owner1", 0, 1, false));
+        // acquire lease and load locks
+        assertEquals(2, lm1.getRoundTrips() - before);
+
+        before = lm1.getRoundTrips();
+        lm1.lock(file1, lock("owner1", 10, 1, false));
+        lm1.test(file1, lock("owner2", 20, 1, true));
+        lm1.unlock(file1, lock("owner1", 0, 1, false));
+        assertEquals(0, lm1.getRoundTrips() - before);
+    }
+
+    @Test
+    public void testAffinityLeaseHandover() throws LockException {
+        givenAffinityLockManagers(100, TimeUnit.MILLISECONDS);
+
+        lm1.lock(file1, lock("owner1", 0, 1, false));
+        try {
+            lm2.lock(file1, lock("owner2", 0, 1, true));
+            fail("Lock on lm1 is lost");
+        } catch (LockDeniedException e) {
+            // pass
+        }
+
+        lm1.unlock(file1, lock("owner1", 0, 1, false));
+        lm2.lock(file1, lock("owner2", 0, 1, true));
+    }
+
+    @After
+    public void tearDown() {
+        if (lm1 != null) {
+            lm1.shutdown();
+        }
+        if (lm2 != null) {
+            lm2.shutdown();
+        }
+        if (hz1 != null) {
+            hz1.shutdown();
+        }
+        if (hz2 != null) {
+            hz2.shutdown();
+        }
+    }
+
+    private void givenLockManagers() {
+        lm1 = new DistributedLockManager(hz1, "distributed-byte-range-lock");
+        lm2 = new DistributedLockManager(hz2, "distributed-byte-range-lock");
+    }
+
+    private void givenAffinityLockManagers(long leaseTime, TimeUnit unit) {
+        lm1 = new DistributedLockManager(hz1, "distributed-byte-range-lock", leaseTime, unit);
+        lm2 = new DistributedLockManager(hz2, "distributed-byte-range-lock", leaseTime, unit);
+    }
+
+    private static NlmLock lock(String owner, long offset, long length, boolean write) {
+        SimpleLmTest.LockBuilder builder = new SimpleLmTest.LockBuilder()
+                .withOwner(owner)
+                .from(offset)
+                .length(length);
+        return write ? builder.forWrite().build() : builder.forRead().build();
+    }
+
+    private static Config memberConfig(String cluster) {
+        Config config = new Config();
+        config.getGroupConfig().setName(cluster);
+        JoinConfig join = config.getNetworkConfig().getJoin();
+        join.getMulticastConfig().setEnabled(false);
+        join.getTcpIpConfig().setEnabled(true).addMember("127.0.0.1");
+        return config;
+    }
+}